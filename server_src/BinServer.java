@@ -2,16 +2,29 @@ import com.esotericsoftware.kryonet.Connection;
 import com.esotericsoftware.kryonet.Listener;
 import com.esotericsoftware.kryonet.Server;
 import javafx.application.Platform;
+import net.ClientRegistry;
+import net.DeliveryQueue;
 import net.FileSendPacketWrap;
-import net.IdleSender;
+import net.PacketDispatcher;
+import net.PinSubscriptions;
+import net.Relay;
+import net.SendPump;
+import net.TransferMeta;
+import net.TransferTable;
+import net.UdpChannel;
 import net.packet.*;
+import net.packet.legacy.LegacyPackets;
 import util.FileUtils;
 import util.PINUtils;
+import util.WheelTimer;
 
+import java.net.InetSocketAddress;
+import java.security.SecureRandom;
 import java.util.*;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This class contains all the network operations for our Server.
@@ -30,6 +43,18 @@ public class BinServer extends Listener {
      */
     public static final float SPLIT_PERC = 0.2f;
 
+    /**
+     * Largest fraction of the net_target_size base a split's content may take when clients pick their
+     * own length, see 'ConnectResponsePacketV2'. Legacy receivers get boxed content of twice the size,
+     * which must still fit in their object buffer.
+     */
+    public static final float MAX_SPLIT_PERC = 0.4f;
+
+    /**
+     * Smallest content length in bytes a split may have when clients pick their own length.
+     */
+    public static final int MIN_SPLIT_LENGTH = 16 * 1024;
+
     /**
      * Maximum amount of time for a client to send a 'ConnectRequestPacket' before our
      * client is removed.
@@ -38,16 +63,100 @@ public class BinServer extends Listener {
     private static final int MAX_RESPONSE_TIME = 5000;
 
     /**
-     * HashMap containing the connection ID and Client object associated
+     * Amount of serial lanes that handle control packets (connect, PIN checks, handshakes).
+     */
+    private static final int CONTROL_LANES = 2;
+
+    /**
+     * Amount of serial lanes that handle bulk packets (file content and disk I/O).
+     */
+    private static final int BULK_LANES = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Registry containing the connection ID, UID, PIN and Client object associated
      * with a given Client.
      */
-    private HashMap<Integer, Client> clientMap;
+    private ClientRegistry<Client> clients;
 
     /**
      * Instance of our KryoServer.
      */
     private Server server;
 
+    /**
+     * Length of a tick of 'timer' in milis and amount of ticks per revolution.
+     */
+    private static final int TIMER_TICK = 100, TIMER_WHEEL_SIZE = 512;
+
+    /**
+     * Shared timer for every timeout the server keeps per client (admission, handshake, stalled transfers).
+     */
+    private WheelTimer timer;
+
+    /**
+     * Time in milis that PIN departures are collected for before they are sent
+     * to their subscribers as one 'PinUpdatePacket'.
+     */
+    private static final int PIN_UPDATE_INTERVAL = 250;
+
+    /**
+     * Tracks which clients need to be told when a given PIN departs.
+     */
+    private PinSubscriptions pinSubscriptions;
+
+    /**
+     * Pending flush of queued PIN departures, null or expired if none is pending.
+     */
+    private WheelTimer.Timeout pinUpdateFlush;
+
+    /**
+     * Spooled files waiting for their recipient to connect.
+     */
+    private DeliveryQueue deliveries;
+
+    /**
+     * Milis between drops of the files that waited too long for their recipient, see 'DeliveryQueue.expire()'.
+     */
+    private static final int DELIVERY_SWEEP = 60 * 1000;
+
+    /**
+     * Max amount of splits held in memory per relayed file.
+     */
+    private static final int RELAY_WINDOW = 32;
+
+    /**
+     * Credit granted to a client when it opens a transfer, and amount of its chunks handled
+     * before that credit is handed back; see 'ContinueSplitPacket'.
+     */
+    private static final int CREDIT_WINDOW = 32, CREDIT_BATCH = CREDIT_WINDOW / 4;
+
+    /**
+     * Time in milis a relay waits for its sender or receiver to reconnect and resume before it is dropped,
+     * see 'TransferResumePacket'.
+     */
+    private static final int RESUME_TIMEOUT = 5 * 60 * 1000;
+
+    /**
+     * Auxiliary connections a client may attach, see 'StripeHelloPacket', and random bytes of the token
+     * it attaches them with.
+     */
+    private static final int MAX_STRIPES = 8, STRIPE_TOKEN_BYTES = 24;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    /**
+     * Split files being uploaded, by file UID; see 'Relay'.
+     * Each is also indexed on its receiver and sender, see 'Client.relayed', and by the UID of its sender
+     * while the sender is detached, see 'sendResumes()'; 'forget()' drops it from all of them.
+     */
+    private final ConcurrentHashMap<String, Relay> relays = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<Relay>> lostUploads = new ConcurrentHashMap<>();
+
+    /**
+     * Moves packet handling off of the KryoNet update thread, see 'PacketDispatcher'.
+     */
+    private PacketDispatcher dispatcher;
+
     /**
      * Ports of operation given by 'init()'.
      */
@@ -75,16 +184,26 @@ public class BinServer extends Listener {
      */
     private int targetLength = 0;
 
+    /**
+     * Bounds of the split length for clients that pick their own, see 'ConnectResponsePacketV2'.
+     */
+    private int minLength = 0, maxLength = 0;
+
     /**
      * Initiates the network operations for this com.net.server.
      */
     public void init(int portTCP, int portUDP, int m) {
         this.portTCP = portTCP;
         this.portUDP = portUDP;
-        clientMap = new HashMap<>();
+        clients = new ClientRegistry<>();
+        pinSubscriptions = new PinSubscriptions();
+        deliveries = new DeliveryQueue(ServerSettings.DELIVERY_FILE_PATH);
+        timer = new WheelTimer(TIMER_TICK, TimeUnit.MILLISECONDS, TIMER_WHEEL_SIZE, "server-timer");
+        schedule(this::expireDeliveries, DELIVERY_SWEEP);
         server = new Server(writeBufferSize = (m * 16384), objectBufferSize = (m * 2048));
         registerClasses();
-        server.addListener(this);
+        dispatcher = new PacketDispatcher(this, CONTROL_LANES, BULK_LANES);
+        server.addListener(dispatcher);
         try {
             server.bind(portTCP, portUDP);
             success = true;
@@ -95,30 +214,16 @@ public class BinServer extends Listener {
         new Thread(server).start();
 
         targetLength = (int) (((writeBufferSize < objectBufferSize) ? writeBufferSize : objectBufferSize) * SPLIT_PERC);
+        maxLength = (int) (((writeBufferSize < objectBufferSize) ? writeBufferSize : objectBufferSize) * MAX_SPLIT_PERC);
+        minLength = Math.min(MIN_SPLIT_LENGTH, targetLength);
     }
 
     /**
-     * Register all classes and data types being sent in any packet.
+     * Register all classes and data types being sent in any packet,
+     * with the fixed IDs and serializers of 'PacketSerializers'.
      */
     private void registerClasses() {
-        server.getKryo().register(ConnectRequestPacket.class);
-        server.getKryo().register(ConnectResponsePacket.class);
-        server.getKryo().register(DisconnectRequestPacket.class);
-        server.getKryo().register(FileAcceptPacket.class);
-        server.getKryo().register(FileRejectedPacket.class);
-        server.getKryo().register(FileSendPacket.class);
-        server.getKryo().register(FileSendPacketSplit.class);
-        server.getKryo().register(FileSendRequestPacket.class);
-        server.getKryo().register(PinCheckResponsePacket.class);
-        server.getKryo().register(PinCheckRequestPacket.class);
-        server.getKryo().register(PinUpdatePacket.class);
-        server.getKryo().register(ContinueSplitPacket.class);
-        server.getKryo().register(HandshakePacket.class);
-        server.getKryo().register(Byte[].class);
-        server.getKryo().register(String[].class);
-        server.getKryo().register(String.class);
-        server.getKryo().register(Integer.class);
-        server.getKryo().register(Boolean.class);
+        PacketSerializers.register(server.getKryo());
     }
 
     /**
@@ -129,19 +234,21 @@ public class BinServer extends Listener {
     @Override
     public void connected(Connection connection) {
         super.connected(connection);
-        clientMap.put(connection.getID(), new Client());
+        Client client = new Client();
+        client.connection = connection;
+        client.pump = new SendPump(connection, writeBufferSize / 2, SendPump.SMALLEST_REMAINING);
+        clients.add(connection.getID(), client);
 
         //remove the client if they have not connected
-        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
         final int id = connection.getID();
         Runnable task = () -> {
-            if (clientMap.get(id).UID.equals("") || clientMap.get(id).PIN.equals("")) {
+            Client c = clients.get(id);
+            if (c == null) return;
+            if (c.UID.equals("") || c.PIN.equals("")) {
                 server.sendToTCP(id, new DisconnectRequestPacket());
             }
         };
-        int delay = MAX_RESPONSE_TIME;
-        scheduler.schedule(task, delay, TimeUnit.MILLISECONDS);
-        scheduler.shutdown();
+        client.admission = schedule(task, MAX_RESPONSE_TIME);
     }
 
     /**
@@ -151,11 +258,19 @@ public class BinServer extends Listener {
     @Override
     public void disconnected(Connection connection) {
         super.disconnected(connection);
+        Connection main = dispatcher.detach(connection);
+        if (main != null) {
+            //the chunks in flight on it are lost, the client resumes its transfers once it reconnects
+            log("Auxiliary connection lost, closing its client.");
+            main.close();
+            return;
+        }
         removeClient(connection.getID());
     }
 
     /**
      * Invoked when this com.net.server received any com.net.
+     * Runs on a 'PacketDispatcher' lane rather than the KryoNet update thread.
      * Check for a ConnectRequestPacket and send a ConnectResponsePacket.
      * @param connection of the client who sent the packet.
      * @param object that the client sent.
@@ -174,15 +289,42 @@ public class BinServer extends Listener {
          */
 
             ConnectRequestPacket crp = (ConnectRequestPacket) object;
-            Client c = clientMap.get(connection.getID());
+            Client c = clients.get(connection.getID());
+            if (c.admission != null) c.admission.cancel();
             c.UID = crp.UID;
+            Integer protocol = crp instanceof ConnectRequestPacketV2 ? ((ConnectRequestPacketV2) crp).protocol : null;
+            c.legacy = protocol == null || protocol < ConnectRequestPacketV2.PROTOCOL_BYTES;
+            c.framed = protocol != null && protocol >= ConnectRequestPacketV2.PROTOCOL_FRAMES;
+            c.credited = protocol != null && protocol >= ConnectRequestPacketV2.PROTOCOL_CREDITS;
+            c.resumable = protocol != null && protocol >= ConnectRequestPacketV2.PROTOCOL_RESUME;
+            c.checked = protocol != null && protocol >= ConnectRequestPacketV2.PROTOCOL_CHECKSUM;
+            c.direct = protocol != null && protocol >= ConnectRequestPacketV2.PROTOCOL_DIRECT;
             c.PIN = PINUtils.gen();
-            ConnectResponsePacket response = new ConnectResponsePacket();
+            clients.admit(connection.getID(), c.UID, c.PIN);
+            //its bulk packets are handled from now on, before it learns its PIN and sends any more
+            dispatcher.admit(connection);
+            deliveries.reassign(c.PIN);
+            ConnectResponsePacket response;
+            if (protocol != null && protocol >= ConnectRequestPacketV2.PROTOCOL_ADAPTIVE) {
+                ConnectResponsePacketV2 v2 = new ConnectResponsePacketV2();
+                v2.minLength = minLength;
+                v2.maxLength = maxLength;
+                if (protocol >= ConnectRequestPacketV2.PROTOCOL_STRIPES) {
+                    byte[] token = new byte[STRIPE_TOKEN_BYTES];
+                    random.nextBytes(token);
+                    v2.stripeToken = c.stripeToken = Base64.getEncoder().encodeToString(token);
+                }
+                response = v2;
+            } else {
+                response = new ConnectResponsePacket();
+            }
             response.targetLength = targetLength;
             //TODO: check if client is duplicate
             response.allowed = true;
             response.PIN = c.PIN;
             server.sendToTCP(connection.getID(), response);
+            sendPending(connection.getID(), c.UID, c.PIN);
+            sendResumes(connection.getID());
             log("PACKET 'ConnectRequestPacket'.");
         } else if (object instanceof PinCheckRequestPacket) {
             /*
@@ -192,9 +334,10 @@ public class BinServer extends Listener {
              */
             String pin = ((PinCheckRequestPacket) object).PIN;
             PinCheckResponsePacket pcrp = new PinCheckResponsePacket();
-            pcrp.valid = getClientFromPIN(pin) != null;
-            if (pcrp.valid) if (pin.equals(clientMap.get(connection.getID()).PIN)) pcrp.valid = false;
-            pcrp.UID = pcrp.valid ? getClientFromPIN(pin).UID : "";
+            Client target = getClientFromPIN(pin);
+            pcrp.valid = target != null && target != clients.get(connection.getID());
+            pcrp.UID = pcrp.valid ? target.UID : "";
+            if (pcrp.valid) pinSubscriptions.subscribe(connection.getID(), pin);
             server.sendToTCP(connection.getID(), pcrp);
         } else if (object instanceof HandshakePacket) {
             /*
@@ -205,109 +348,243 @@ public class BinServer extends Listener {
             HandshakePacket hp = (HandshakePacket) object;
             HandshakePacket packet = new HandshakePacket();
             packet.encryptedPubKey = hp.encryptedPubKey;
-            packet.pin = clientMap.get(connection.getID()).PIN;
-            packet.senderUID = clientMap.get(connection.getID()).UID;
+            packet.sealed = hp.sealed;
+            Client sender = clients.get(connection.getID());
+            packet.pin = sender.PIN;
+            packet.senderUID = sender.UID;
             packet.UID = hp.UID;
             int to = getConnectionFromUID(hp.UID);
-            server.sendToTCP(to, packet);
+            if (to == -1) return;
+            //both sides now know each others PIN
+            pinSubscriptions.subscribe(connection.getID(), clients.getPIN(to));
+            pinSubscriptions.subscribe(to, sender.PIN);
+            send(to, packet);
+        } else if (object instanceof StripeHelloPacket) {
+            /*
+            Auxiliary connection of a client, with the token its main connection was given.
+            Its packets are handled as the main connection's from now on, echo the hello once they are.
+             */
+            StripeHelloPacket shp = (StripeHelloPacket) object;
+            Client stripe = clients.get(connection.getID());
+            int to = shp.UID == null ? -1 : getConnectionFromUID(shp.UID);
+            Client c = to == -1 ? null : clients.get(to);
+            if (stripe == null || !stripe.UID.equals("") || c == null || c.stripeToken == null
+                    || !c.stripeToken.equals(shp.token) || c.stripes.size() >= MAX_STRIPES) {
+                log("Closed auxiliary connection from " + connection.getRemoteAddressTCP() + ", no valid hello.");
+                connection.close();
+                return;
+            }
+            if (stripe.admission != null) stripe.admission.cancel();
+            clients.remove(connection.getID());
+            dispatcher.attach(connection, c.connection);
+            c.stripes.add(connection);
+            c.pump.setStripes(c.stripes.toArray(new Connection[0]));
+            StripeHelloPacket echo = new StripeHelloPacket();
+            echo.UID = shp.UID;
+            server.sendToTCP(connection.getID(), echo);
+            log("PACKET 'StripeHello'.");
+        } else if (object instanceof DirectEndpointPacket) {
+            /*
+            Client advertised an endpoint for split files sent to it directly.
+            Send to the client w the target 'UID', with the address we see the client at.
+            Only passed between clients that negotiated it.
+             */
+            DirectEndpointPacket dep = (DirectEndpointPacket) object;
+            Client sender = clients.get(connection.getID());
+            int to = dep.UID == null ? -1 : getConnectionFromUID(dep.UID);
+            Client target = to == -1 ? null : clients.get(to);
+            if (sender == null || !sender.direct || target == null || !target.direct) return;
+            DirectEndpointPacket packet = new DirectEndpointPacket();
+            packet.UID = dep.UID;
+            packet.senderUID = sender.UID;
+            packet.port = dep.port;
+            packet.token = dep.token;
+            ArrayList<String> hosts = new ArrayList<>();
+            if (dep.hosts != null) hosts.addAll(Arrays.asList(dep.hosts));
+            InetSocketAddress address = connection.getRemoteAddressTCP();
+            if (address != null && !hosts.contains(address.getAddress().getHostAddress())) {
+                hosts.add(address.getAddress().getHostAddress());
+            }
+            packet.hosts = hosts.toArray(new String[0]);
+            send(to, packet);
+            log("PACKET 'DirectEndpoint'.");
         } else if (object instanceof FileSendPacket) {
             /*
             Write the data to the disk.
             Flush file to file send que.
-            Send request.
-            TODO: Process offline file sending
+            Send request, or queue it if the target is offline.
              */
             FileSendPacket fsp = (FileSendPacket) object;
-            String senderUID = clientMap.get(connection.getID()).UID;
+            String senderUID = clients.get(connection.getID()).UID;
             fsp.senderUID = senderUID;
-            if (getClientFromPIN(fsp.pin) != null) {
+            int to = getConnectionFromPIN(fsp.pin);
+            if (to != -1) {
                 if (!FileSendPacketWrap.flush(object)) {
                     log("Error: could not flush FileSendPacket @ " + fsp.fileUID);
                 } else {
                     FileSendRequestPacket fsrp = new FileSendRequestPacket();
                     fsrp.pin = fsp.pin;
-                    fsrp.senderUID = clientMap.get(connection.getID()).UID;
                     fsrp.fileName = fsp.fileName;
                     fsrp.fileNameParams = fsp.fileNameParams;
                     fsrp.fileSize = fsp.fileSize;
                     fsrp.fileSizeParams = fsp.fileSizeParams;
                     fsrp.fileUID = fsp.fileUID;
                     fsrp.senderUID = senderUID;
-                    server.sendToTCP(getConnectionFromPIN(fsp.pin), fsrp);
+                    send(to, fsrp);
                     log("Sent Response [FileSendPacket]");
                 }
+            } else if (FileSendPacketWrap.flush(object)) {
+                //can not find target, hold until they connect
+                queueDelivery(connection, fsp.pin, fsp.fileUID);
             } else {
-                //can not find target
-                //TODO: offline sending here
+                log("Error: could not flush FileSendPacket @ " + fsp.fileUID);
             }
             log("PACKET 'FileSend'.");
-        } else if (object instanceof FileSendPacketSplit) {
+        } else if (object instanceof TransferOpenPacket) {
             /*
-            Write the Split data to the disk.
-            When the file is complete send a request.
+            Client opened a split transfer; keep its header until the final chunk
+            and grant the initial credit.
              */
-            FileSendPacketSplit fsp = (FileSendPacketSplit) object;
-            fsp.senderUID = clientMap.get(connection.getID()).UID;
-            if (!FileSendPacketWrap.flush(fsp)) {
-                log("Error: could not flush FileSendPacketSplit @ " + fsp.fileUID);
+            Client c = clients.get(connection.getID());
+            TransferOpenPacket top = (TransferOpenPacket) object;
+            if (c == null || top.transfer == null) return;
+            c.transfers.open(top, CREDIT_WINDOW);
+            //a sender resuming an upload cut off by a disconnect
+            Relay relay = top.fileUID == null ? null : relays.get(top.fileUID);
+            if (relay != null && c.resumable && c.UID.equals(relay.getSenderUID())
+                    && relay.attachSender(connection.getID(), c.credited ? top.transfer : -1)) {
+                c.sending.add(relay);
+                Set<Relay> lost = lostUploads.get(c.UID);
+                if (lost != null) lost.remove(relay);
             }
-            HashMap<String, Object> map = FileSendPacketWrap.getParamsAsMap(fsp.fileUID);
-            if ((boolean) map.get("isFinished")) {
-                if (getClientFromPIN(fsp.pin) != null) {
-                    FileSendPacketWrap.flush(object);
-                    FileSendRequestPacket fsrp = new FileSendRequestPacket();
-                    fsrp.pin = fsp.pin;
-                    fsrp.fileName = (Byte[]) map.get("fileName");
-                    fsrp.fileNameParams = (Byte[]) map.get("fileNameParams");
-                    fsrp.fileSize = (Byte[]) map.get("fsp.fileSize");
-                    fsrp.fileSizeParams = (Byte[]) map.get("fsp.fileSizeParams");
-                    fsrp.fileUID = fsp.fileUID;
-                    fsrp.senderUID = fsp.senderUID;
-                    server.sendToTCP(getConnectionFromPIN(fsp.pin), fsrp);
-                    log("Sent Response [FileSendPacket]");
-                } else {
-                    log("Could not find target. UID: " + fsp.fileUID);
-                    //can not find target
-                    //TODO: store in que with empty UID and wait for a user w a matching PIN
-                    //TODO: then send 'FileSendRequest' packet.
+            if (!c.credited) return;
+            ContinueSplitPacket credit = TransferTable.credit(top.transfer, CREDIT_WINDOW);
+            //take the chunks over UDP if the client proposed it, the channel is ready before they can arrive
+            if (Boolean.TRUE.equals(top.datagram) && UdpChannel.isAvailable(connection)) {
+                datagrams(c, connection);
+                credit.datagram = true;
+                //and the parity it sends with them, see 'ErasureCode'
+                if (Boolean.TRUE.equals(top.parity)) credit.parity = true;
+            }
+            server.sendToTCP(connection.getID(), credit);
+        } else if (object instanceof ContinueSplitPacket) {
+            /*
+            Client granted credit for a transfer it receives, resume its relay.
+            Its first grant may agree to take the chunks over UDP.
+             */
+            ContinueSplitPacket csp = (ContinueSplitPacket) object;
+            Client c = clients.get(connection.getID());
+            if (c == null || csp.transfer == null || csp.credit == null) return;
+            Relay relay = c.relayed.get(csp.transfer);
+            if (relay == null) return;
+            if (Boolean.TRUE.equals(csp.datagram) && UdpChannel.isAvailable(connection)) {
+                UdpChannel channel = datagrams(c, connection);
+                channel.carry(csp.transfer);
+                if (Boolean.TRUE.equals(csp.parity)) channel.setParity(true);
+            }
+            relay.grant(csp.credit);
+            if (relay.isComplete()) {
+                forget(relay);
+                if (c.udp != null) c.udp.drop(csp.transfer);
+            }
+            pump(connection.getID());
+        } else if (object instanceof DatagramSegmentPacket) {
+            /*
+            Part of a chunk sent over the UDP data channel, handle the chunks it completes in order.
+             */
+            Client c = clients.get(connection.getID());
+            if (c == null || c.udp == null) return;
+            for (Object chunk : c.udp.receive((DatagramSegmentPacket) object)) received(connection, chunk);
+        } else if (object instanceof DatagramParityPacket) {
+            /*
+            Parity of a group of datagrams, handle the chunks of the ones it rebuilds.
+             */
+            Client c = clients.get(connection.getID());
+            if (c == null || c.udp == null) return;
+            for (Object chunk : c.udp.receive((DatagramParityPacket) object)) received(connection, chunk);
+        } else if (object instanceof DatagramAckPacket) {
+            Client c = clients.get(connection.getID());
+            if (c != null && c.udp != null) c.udp.acked((DatagramAckPacket) object);
+        } else if (object instanceof FileSendPacketSplit || object instanceof FileChunkPacket) {
+            /*
+            Spool the split, or pipe it to the receiver if they accepted already; see 'receiveSplit()'.
+            A chunk that does not match its checksum is asked for again, the final chunk
+            of its transfer is held back until it arrived; see 'RetransmitPacket'.
+             */
+            Client c = clients.get(connection.getID());
+            if (c == null) return;
+            if (!(object instanceof FileChunkPacket)) {
+                receiveSplit(connection, c, object);
+                return;
+            }
+            //chunks of striped transfers come over every connection of the client, see 'StripeHelloPacket'
+            List<FileChunkPacket> ordered = c.transfers.order((FileChunkPacket) object);
+            if (dropCancelled(connection, c, ((FileChunkPacket) object).transfer)) return;
+            for (FileChunkPacket chunk : ordered) {
+                RetransmitPacket retransmit = c.transfers.check(chunk);
+                if (retransmit != null) {
+                    server.sendToTCP(connection.getID(), retransmit);
+                    log("Corrupted chunk [" + chunk.series + "] of transfer " + chunk.transfer + ", asked again.");
+                    continue;
                 }
-            };
+                if (c.transfers.defer(chunk)) continue;
+                receiveSplit(connection, c, chunk);
+                FileChunkPacket held = c.transfers.release(chunk.transfer);
+                if (held != null) receiveSplit(connection, c, held);
+            }
+        } else if (object instanceof RetransmitPacket) {
+            /*
+            Client got a chunk of a file we relay corrupted, send it again.
+             */
+            RetransmitPacket rp = (RetransmitPacket) object;
+            Client c = clients.get(connection.getID());
+            if (c == null || rp.transfer == null || rp.series == null) return;
+            Relay relay = c.relayed.get(rp.transfer);
+            if (relay != null && relay.retransmit(rp.series)) {
+                serve(relay);
+            } else if (relay != null) {
+                //it would never complete
+                relay.abort();
+                forget(relay);
+                releaseCredit(relay);
+                log("Dropped relay @ " + relay.getUID() + ", chunk [" + rp.series + "] can not be sent again.");
+            }
+            log("PACKET 'Retransmit'.");
         } else if (object instanceof FileAcceptPacket) {
             /*
             Client accepted a packet and now wants a 'FileSendPacket'.
             Target used should be saved in params.
-            If the given file is singular, load into memory & send.
-            Else send each one split at a time.
+            Each file is sent by 'accept()', split files are interleaved with the others
+            sent to the client, see 'serve()'.
              */
             FileAcceptPacket fap = (FileAcceptPacket) object;
             for (String uid: fap.UID) {
-                if (!FileSendPacketWrap.hasCatalog(uid)) continue;
-                if (FileSendPacketWrap.hasSingular(uid)) {
-                    server.sendToTCP(connection.getID(), FileSendPacketWrap.readSingle(uid));
-                    log("Sent 'FileSendPacket'.");
-                } else {
-                    if (!((boolean) FileSendPacketWrap.getParamsAsMap(uid).get("isFinished"))) {
-                        log("ERROR: File isn't complete: " + uid);
-                        return;
-                    }
-                    int l = FileSendPacketWrap.getLength(uid);
-                    for (int i = 0; i < l; i++) {
-                        ArrayList<Object> list = new ArrayList<>();
-                        list.add(FileSendPacketWrap.readSplit(uid, i));
-                        new IdleSender(server, list, connection.getID());
-                        boolean rem = FileSendPacketWrap.removeSplit(uid, i);
-                        System.out.println("removed for " + uid + "_" + i + ": " + rem);
-                    }
-                    log("Sent 'FileSendPacketSplit' complete.");
-                }
+                accept(connection, uid, null);
             }
             log("PACKET 'FileAccept[" + fap.UID.length + "]'.");
+        } else if (object instanceof TransferResumePacket) {
+            /*
+            Client accepted a file it holds part of after a disconnect, send only the series it misses.
+             */
+            TransferResumePacket trp = (TransferResumePacket) object;
+            if (trp.fileUID == null) return;
+            accept(connection, trp.fileUID, trp.have);
+            log("PACKET 'TransferResume'.");
         } else if (object instanceof FileRejectedPacket) {
             /*
             Client rejected a file. Remove from record.
              */
             FileRejectedPacket frp = (FileRejectedPacket) object;
             for (String uid: frp.UID) {
+                deliveries.remove(uid);
+                Relay relay = relays.get(uid);
+                if (relay != null) {
+                    relay.abort();
+                    forget(relay);
+                    releaseCredit(relay);
+                    log("Dropped relay @ " + uid);
+                    continue;
+                }
                 if (!FileSendPacketWrap.hasCatalog(uid)) {
                     log("ERROR: File not in catalog " + uid);
                     continue;
@@ -325,32 +602,593 @@ public class BinServer extends Listener {
     }
 
 
+    /**
+     * Spools a split received from its sender, or pipes it to the receiver if they accepted already; see 'Relay'.
+     * Chunks are turned back into splits with the header of their transfer.
+     * Sends a request on the first split if the target is online,
+     * otherwise when the file is complete.
+     * @param connection of the sender.
+     * @param c the sender.
+     * @param object a 'FileSendPacketSplit', or a 'FileChunkPacket' that was checked.
+     */
+    private void receiveSplit(Connection connection, Client c, Object object) {
+        //transfer of a chunk that uses credits, else -1
+        int transfer = object instanceof FileChunkPacket && c.credited ? ((FileChunkPacket) object).transfer : -1;
+        FileSendPacketSplit fsp = object instanceof FileChunkPacket ? c.transfers.toSplit((FileChunkPacket) object) : (FileSendPacketSplit) object;
+        if (fsp == null) {
+            if (!dropCancelled(connection, c, ((FileChunkPacket) object).transfer)) {
+                log("Error: chunk of unknown transfer " + ((FileChunkPacket) object).transfer);
+            }
+            return;
+        }
+        fsp.senderUID = c.UID;
+        Relay relay = relays.get(fsp.fileUID);
+        if (relay == null && fsp.series == 0 && !fsp.finalPacket) {
+            relay = new Relay(fsp.fileUID, c.UID, connection.getID(), transfer, RELAY_WINDOW);
+            relays.put(fsp.fileUID, relay);
+            c.sending.add(relay);
+        }
+        if (relay == null || !relay.offer(fsp)) {
+            if (!FileSendPacketWrap.flush(fsp)) {
+                log("Error: could not flush FileSendPacketSplit @ " + fsp.fileUID);
+            }
+        } else if (relay.isAborted() && forget(relay)) {
+            log("Error: could not spool FileSendPacketSplit [" + fsp.series + "] @ " + fsp.fileUID + ", dropped relay.");
+            dropUpload(connection.getID(), transfer, fsp.fileUID);
+            return;
+        }
+        if (transfer != -1) {
+            //the credit of a held chunk is handed back by the relay, the rest on the final chunk
+            boolean held = relay != null && relay.holdCredit();
+            int credit = 0;
+            if (fsp.finalPacket) credit = c.transfers.handled(transfer, CREDIT_BATCH, true) - (held ? 1 : 0);
+            else if (!held) credit = c.transfers.handled(transfer, CREDIT_BATCH, false);
+            if (credit > 0) server.sendToTCP(connection.getID(), TransferTable.credit(transfer, credit));
+        }
+        int to = getConnectionFromPIN(fsp.pin);
+        if (relay != null && fsp.series == 0 && to != -1 && relay.markOffered()) {
+            FileSendRequestPacket fsrp = new FileSendRequestPacket();
+            fsrp.pin = fsp.pin;
+            fsrp.fileName = fsp.fileName;
+            fsrp.fileNameParams = fsp.fileNameParams;
+            fsrp.fileSize = fsp.fileSize;
+            fsrp.fileSizeParams = fsp.fileSizeParams;
+            fsrp.fileUID = fsp.fileUID;
+            fsrp.senderUID = fsp.senderUID;
+            send(to, fsrp);
+            log("Sent Response [FileSendPacketSplit] early.");
+        }
+        if (relay != null) {
+            pump(relay.getReceiverID());
+            if (!fsp.finalPacket || !relay.close()) return;
+            forget(relay);
+            if (relay.isOffered() && to != -1) return;
+        }
+        if (FileSendPacketWrap.isFinished(fsp.fileUID)) {
+            if (to != -1) {
+                send(to, createRequest(fsp.fileUID, fsp.pin));
+                log("Sent Response [FileSendPacket]");
+            } else {
+                //can not find target, hold until they connect
+                queueDelivery(connection, fsp.pin, fsp.fileUID);
+            }
+        }
+    }
+
+    /**
+     * Gives up the upload of a transfer the client sent a chunk out of range for, see 'TransferTable.cancelled()'.
+     * Its relay is dropped if the client is the sender.
+     * @param connection of the sender.
+     * @param c the sender.
+     * @param transfer ID of the transfer on its connection.
+     * @return true if the transfer was cancelled.
+     */
+    private boolean dropCancelled(Connection connection, Client c, int transfer) {
+        String uid = c.transfers.cancelled(transfer);
+        if (uid == null) return false;
+        Relay relay = relays.get(uid);
+        if (relay != null && c.UID.equals(relay.getSenderUID())) {
+            relay.abort();
+            forget(relay);
+            releaseCredit(relay);
+        }
+        log("Error: chunk out of range @ " + uid + ", dropped upload.");
+        dropUpload(connection.getID(), c.credited ? transfer : -1, uid);
+        return true;
+    }
+
+    /**
+     * Gives up an upload the server can not keep, E.G. its spool failed.
+     * A sender of chunks is told with a 'FileRejectedPacket' and the rest of its chunks are dropped as
+     * of an unknown transfer; a sender of whole splits can not be told and is disconnected.
+     * @param id connection ID of the sender.
+     * @param transfer ID of the transfer on its connection if it uses credits, else -1.
+     * @param uid of the file.
+     */
+    private void dropUpload(int id, int transfer, String uid) {
+        Client c = clients.get(id);
+        if (transfer == -1 || c == null) {
+            for (Connection connection : server.getConnections()) {
+                if (connection.getID() == id) connection.close();
+            }
+            return;
+        }
+        c.transfers.close(transfer);
+        FileRejectedPacket frp = new FileRejectedPacket();
+        frp.UID = new String[]{uid};
+        server.sendToTCP(id, frp);
+    }
+
+    /**
+     * Gives up a relay that failed as a spooled split of it could not be read back, see 'Relay.isFailed()'.
+     * The receiver is told with a 'FileRejectedPacket' so it drops what it holds, and the sender's upload
+     * is given up like one whose spool failed, see 'dropUpload()'.
+     * @param relay that failed, forgotten already.
+     */
+    private void dropRelay(Relay relay) {
+        releaseCredit(relay);
+        int to = relay.getReceiverID();
+        if (to != -1 && !isLegacy(to)) {
+            FileRejectedPacket frp = new FileRejectedPacket();
+            frp.UID = new String[]{relay.getUID()};
+            server.sendToTCP(to, frp);
+        }
+        if (relay.getSenderID() != -1) dropUpload(relay.getSenderID(), relay.getSenderTransfer(), relay.getUID());
+        log("Error: could not read spooled split @ " + relay.getUID() + ", dropped relay.");
+    }
+
+    /**
+     * Sends a file a client accepted.
+     * If the given file is singular, load into memory & send.
+     * If the file is still being uploaded, relay it as it arrives.
+     * Else send each one split at a time.
+     * @param connection of the client.
+     * @param uid of the file.
+     * @param have series the client holds already, see 'TransferResumePacket'; null if none.
+     */
+    private void accept(Connection connection, String uid, byte[] have) {
+        int id = connection.getID();
+        deliveries.remove(uid);
+        Relay relay = relays.get(uid);
+        if (relay != null && relay.activate(connection, isLegacy(id), nextTransfer(id), isCredited(id), isResumable(id), isChecked(id), have)) {
+            if (isStriped(id)) relay.stripe();
+            relayTo(id, relay);
+            serve(relay);
+            log("Relaying 'FileSendPacketSplit' @ " + uid);
+            return;
+        }
+        if (!FileSendPacketWrap.hasCatalog(uid)) return;
+        if (FileSendPacketWrap.hasSingular(uid)) {
+            send(id, FileSendPacketWrap.readSingle(uid));
+            log("Sent 'FileSendPacket'.");
+        } else {
+            if (!FileSendPacketWrap.isFinished(uid)) {
+                log("ERROR: File isn't complete: " + uid);
+                return;
+            }
+            Relay serving = new Relay(uid, null, -1, -1, RELAY_WINDOW);
+            if (relays.putIfAbsent(uid, serving) != null) return;
+            serving.activate(connection, isLegacy(id), nextTransfer(id), isCredited(id), isResumable(id), isChecked(id), have);
+            if (isStriped(id)) serving.stripe();
+            relayTo(id, serving);
+            serve(serving);
+            log("Serving 'FileSendPacketSplit' @ " + uid);
+        }
+    }
+
     /**
      * Removes the client with the given connection ID.
-     * Sends out a 'PinUpdatePacket' to all clients.
+     * Queues a PIN departure for every client that resolved its PIN; see 'sendPinUpdates()'.
      * @param id connection ID from KryoServer.
      */
     public void removeClient(int id) {
-        if (!clientMap.containsKey(id)) return;
-        PinUpdatePacket pup = new PinUpdatePacket();
-        pup.PIN = clientMap.get(id).PIN;
-        server.sendToAllTCP(pup);
-        clientMap.remove(id);
-        PINUtils.removePIN(pup.PIN);
+        Client c = clients.remove(id);
+        if (c == null) return;
+        if (c.admission != null) c.admission.cancel();
+        c.pump.clear();
+        if (c.udp != null) c.udp.close();
+        for (Connection stripe : c.stripes) stripe.close();
+        if (pinSubscriptions.depart(id, c.PIN)) {
+            synchronized (pinSubscriptions) {
+                if (pinUpdateFlush == null || pinUpdateFlush.isExpired()) {
+                    pinUpdateFlush = schedule(this::sendPinUpdates, PIN_UPDATE_INTERVAL);
+                }
+            }
+        }
+        PINUtils.removePIN(c.PIN);
+        if (!c.PIN.equals("") && !c.UID.equals("")) deliveries.depart(c.PIN, c.UID);
+        //drop the relays this client was sending or receiving, unless it resumes them
+        for (Relay relay : c.sending) {
+            if (relay.getSenderID() != id) continue;
+            //the receiver is still relayed the rest of a complete upload
+            if (!relay.detachSender()) continue;
+            if (c.resumable) {
+                lostUploads.computeIfAbsent(c.UID, k -> ConcurrentHashMap.newKeySet()).add(relay);
+                park(relay);
+                //reconnected before this connection timed out
+                int to = getConnectionFromUID(c.UID);
+                if (to != -1) sendResumes(to);
+                continue;
+            }
+            relay.abort();
+            forget(relay);
+        }
+        for (Relay relay : c.receiving) {
+            if (c.sending.contains(relay)) continue;
+            if (relay.getReceiverID() == id) {
+                if (relay.detachReceiver()) {
+                    park(relay);
+                    releaseCredit(relay);
+                    //asked again once it reconnects, it resumes instead of accepting
+                    deliveries.add(c.UID, relay.getUID());
+                    int to = getConnectionFromUID(c.UID);
+                    if (to != -1) sendPending(to, c.UID, clients.getPIN(to));
+                    continue;
+                }
+                relay.abort();
+                if (relay.getSenderID() == -1) forget(relay);
+                releaseCredit(relay);
+            }
+        }
         log("Client disconnected.");
     }
 
+    /**
+     * Drops a relay whose sender or receiver was detached if it has not resumed after 'RESUME_TIMEOUT'.
+     * @param relay that was detached from.
+     */
+    private void park(Relay relay) {
+        schedule(() -> {
+            if (!relay.expire(RESUME_TIMEOUT)) return;
+            forget(relay);
+            deliveries.remove(relay.getUID());
+            releaseCredit(relay);
+            log("Dropped relay @ " + relay.getUID());
+        }, RESUME_TIMEOUT);
+    }
+
+    /**
+     * Tells a client that reconnected which series the server holds of every upload it was cut off from,
+     * it then resumes them; see 'TransferResumePacket'.
+     * @param id connection ID of the client.
+     */
+    private void sendResumes(int id) {
+        Client c = clients.get(id);
+        Set<Relay> lost = c == null || !c.resumable ? null : lostUploads.get(c.UID);
+        if (lost == null) return;
+        for (Relay relay : lost) {
+            if (!relay.isSenderLost()) continue;
+            TransferResumePacket trp = new TransferResumePacket();
+            trp.fileUID = relay.getUID();
+            trp.length = FileSendPacketWrap.getLength(trp.fileUID);
+            trp.have = relay.getReceived();
+            server.sendToTCP(id, trp);
+        }
+    }
+
+    /**
+     * Indexes a relay just activated on its receiver, see 'Client.relayed'.
+     * @param id connection ID of the receiver.
+     * @param relay activated.
+     */
+    private void relayTo(int id, Relay relay) {
+        Client c = clients.get(id);
+        if (c == null) return;
+        c.receiving.add(relay);
+        if (relay.getTransfer() != -1) c.relayed.put(relay.getTransfer(), relay);
+    }
+
+    /**
+     * Drops a relay from 'relays' and from every index it is in.
+     * @param relay to drop.
+     * @return false if it was dropped already.
+     */
+    private boolean forget(Relay relay) {
+        if (!relays.remove(relay.getUID(), relay)) return false;
+        Client receiver = clients.get(relay.getReceiverID());
+        if (receiver != null) {
+            receiver.receiving.remove(relay);
+            receiver.relayed.remove(relay.getTransfer(), relay);
+        }
+        Client sender = clients.get(relay.getSenderID());
+        if (sender != null) sender.sending.remove(relay);
+        if (relay.getSenderUID() != null) {
+            lostUploads.computeIfPresent(relay.getSenderUID(), (uid, lost) -> {
+                lost.remove(relay);
+                return lost.isEmpty() ? null : lost;
+            });
+        }
+        return true;
+    }
+
+    /**
+     * Queues a spooled file for a recipient that is offline, under the UID of the client that last held the PIN.
+     * If no departed client held it, the file is dropped and the sender told with a 'FileRejectedPacket';
+     * whoever gets the PIN next is not its recipient.
+     * @param connection of the sender.
+     * @param pin the sender addressed.
+     * @param fileUID of the spooled file.
+     */
+    private void queueDelivery(Connection connection, String pin, String fileUID) {
+        if (deliveries.addForPIN(pin, fileUID) == null) {
+            dropDelivery(fileUID);
+            FileRejectedPacket frp = new FileRejectedPacket();
+            frp.UID = new String[]{fileUID};
+            server.sendToTCP(connection.getID(), frp);
+            return;
+        }
+        log("Queued for offline target. UID: " + fileUID);
+        //past 'DeliveryQueue.MAX_FILES' the oldest are dropped right away
+        if (deliveries.size() > DeliveryQueue.MAX_FILES) {
+            for (String expired : deliveries.expire()) dropDelivery(expired);
+        }
+    }
+
+    /**
+     * Drops the files that waited too long for their recipient, then runs again after 'DELIVERY_SWEEP'.
+     * Runs on the timer thread.
+     */
+    private void expireDeliveries() {
+        try {
+            for (String fileUID : deliveries.expire()) dropDelivery(fileUID);
+        } finally {
+            schedule(this::expireDeliveries, DELIVERY_SWEEP);
+        }
+    }
+
+    /**
+     * Removes a file that will not be delivered from the spool, and drops its relay if any.
+     * @param fileUID of the spooled file.
+     */
+    private void dropDelivery(String fileUID) {
+        Relay relay = relays.get(fileUID);
+        if (relay != null) {
+            relay.abort();
+            forget(relay);
+            releaseCredit(relay);
+        } else if (FileSendPacketWrap.hasCatalog(fileUID)) {
+            FileSendPacketWrap.removeCompletely(fileUID);
+        }
+        log("Dropped undelivered file @ " + fileUID);
+    }
+
+    /**
+     * Sends one 'FileSendRequestBatchPacket' with every file queued for a client that just connected,
+     * or one 'FileSendRequestPacket' each to clients that speak the legacy format.
+     * Files that are no longer spooled are dropped from the queue.
+     * @param id connection ID of the client.
+     * @param uid of the client.
+     * @param pin assigned to the client.
+     */
+    private void sendPending(int id, String uid, String pin) {
+        ArrayList<FileSendRequestPacket> requests = new ArrayList<>();
+        for (String fileUID : deliveries.claim(uid)) {
+            FileSendRequestPacket fsrp = createRequest(fileUID, pin);
+            if (fsrp == null) {
+                deliveries.remove(fileUID);
+                continue;
+            }
+            requests.add(fsrp);
+        }
+        if (requests.isEmpty()) return;
+        if (isLegacy(id)) {
+            for (FileSendRequestPacket fsrp : requests) send(id, fsrp);
+            return;
+        }
+        FileSendRequestBatchPacket batch = new FileSendRequestBatchPacket();
+        batch.requests = requests.toArray(new FileSendRequestPacket[0]);
+        server.sendToTCP(id, batch);
+        log("Sent 'FileSendRequestBatch[" + batch.requests.length + "]'.");
+    }
+
+    /**
+     * Creates a 'FileSendRequestPacket' from the params of a spooled file.
+     * @param fileUID of the spooled file.
+     * @param pin of the recipient.
+     * @return the request, or null if the file is not spooled.
+     */
+    private FileSendRequestPacket createRequest(String fileUID, String pin) {
+        HashMap<String, Object> map = FileSendPacketWrap.getParamsAsMap(fileUID);
+        if (map == null) return null;
+        FileSendRequestPacket fsrp = new FileSendRequestPacket();
+        fsrp.pin = pin;
+        fsrp.fileName = (byte[]) map.get("fileName");
+        fsrp.fileNameParams = (byte[]) map.get("fileNameParams");
+        fsrp.fileSize = (byte[]) map.get("fileSize");
+        fsrp.fileSizeParams = (byte[]) map.get("fileSizeParams");
+        fsrp.fileUID = fileUID;
+        fsrp.senderUID = (String) map.get("senderUID");
+        return fsrp;
+    }
+
+    /**
+     * Sends a packet over TCP in the format the client negotiated, see 'encode()'.
+     * @param id connection ID of the client.
+     * @param packet to send.
+     */
+    private void send(int id, Object packet) {
+        server.sendToTCP(id, encode(id, packet));
+    }
+
+    /**
+     * Converts a packet to the boxed packets of 'net.packet.legacy' if the client did not
+     * negotiate 'byte[]' payloads with 'ConnectRequestPacketV2'.
+     * @param id connection ID of the client.
+     * @param packet to send.
+     * @return the packet to send to that client.
+     */
+    private Object encode(int id, Object packet) {
+        return isLegacy(id) ? LegacyPackets.downgrade(packet) : packet;
+    }
+
+    /**
+     * @param id connection ID of the client.
+     * @return a new transfer ID on the client's connection, or -1 if it takes whole 'FileSendPacketSplit's.
+     */
+    private int nextTransfer(int id) {
+        Client c = clients.get(id);
+        return c == null || !c.framed ? -1 : c.transfers.nextID();
+    }
+
+    /**
+     * @param id connection ID of the client.
+     * @return true if the client grants credit for the transfers it receives.
+     */
+    private boolean isCredited(int id) {
+        Client c = clients.get(id);
+        return c != null && c.credited;
+    }
+
+    /**
+     * @param id connection ID of the client.
+     * @return true if the client resumes split files after a disconnect, see 'TransferResumePacket'.
+     */
+    private boolean isResumable(int id) {
+        Client c = clients.get(id);
+        return c != null && c.resumable;
+    }
+
+    /**
+     * @param id connection ID of the client.
+     * @return true if the client takes chunks with a checksum, see 'FileChunkPacketV2'.
+     */
+    private boolean isChecked(int id) {
+        Client c = clients.get(id);
+        return c != null && c.checked;
+    }
+
+    /**
+     * @param id connection ID of the client.
+     * @return true if the client attached auxiliary connections to take chunks on, see 'StripeHelloPacket'.
+     */
+    private boolean isStriped(int id) {
+        Client c = clients.get(id);
+        return c != null && !c.stripes.isEmpty();
+    }
+
+    /**
+     * @param id connection ID of the client.
+     * @return true if the client speaks the boxed 'Byte[]' format.
+     */
+    private boolean isLegacy(int id) {
+        Client c = clients.get(id);
+        return c == null || c.legacy;
+    }
+
+    /**
+     * Invoked when a connection's write buffer has emptied; resumes the relays sending to it.
+     * @param connection that is idle.
+     */
+    @Override
+    public void idle(Connection connection) {
+        pump(connection.getID());
+    }
+
+    /**
+     * Adds an activated relay to its receiver's 'SendPump' on the receiver's bulk lane,
+     * or pumps it if it is still there, E.G. when a chunk of it is sent again.
+     * Forgets the relay once the final split is sent, or acknowledged if the receiver is resumable.
+     * @param relay to serve.
+     */
+    private void serve(Relay relay) {
+        int id = relay.getReceiverID();
+        Client c = clients.get(id);
+        if (c == null) return;
+        dispatcher.execute(id, () -> {
+            if (c.pump.contains(relay)) {
+                c.pump.pump();
+            } else {
+                c.pump.add(relay, () -> {
+                    if (relay.isFailed() && forget(relay)) dropRelay(relay);
+                    else if (relay.isComplete()) forget(relay);
+                });
+            }
+            releaseCredit(relay);
+        });
+    }
+
+    /**
+     * Returns the UDP data channel of a client, opening it for the first transfer agreed on it.
+     * @param c client.
+     * @param connection of the client.
+     * @return its channel.
+     */
+    private UdpChannel datagrams(Client c, Connection connection) {
+        synchronized (c) {
+            if (c.udp == null) {
+                c.udp = new UdpChannel(connection, objectBufferSize);
+                c.pump.setDatagrams(c.udp);
+            }
+            return c.udp;
+        }
+    }
+
+    /**
+     * Runs the 'SendPump' of a client on its bulk lane, where relays read the spool,
+     * unless a run is queued already. Hands back held credit to the senders afterwards.
+     * @param id connection ID of the receiving client, -1 is ignored.
+     */
+    private void pump(int id) {
+        Client c = clients.get(id);
+        if (c == null || c.pump.size() == 0 || !c.pumpScheduled.compareAndSet(false, true)) return;
+        dispatcher.execute(id, () -> {
+            c.pumpScheduled.set(false);
+            c.pump.pump();
+            for (Relay relay : c.receiving) {
+                if (relay.getReceiverID() == id) releaseCredit(relay);
+            }
+        });
+    }
+
+    /**
+     * Hands the sender of a relay back the credit it held while the receiver was behind.
+     * @param relay to release the credit of.
+     */
+    private void releaseCredit(Relay relay) {
+        int credit = relay.takeReleased();
+        if (credit > 0) server.sendToTCP(relay.getSenderID(), TransferTable.credit(relay.getSenderTransfer(), credit));
+    }
+
+    /**
+     * Sends every queued PIN departure, one 'PinUpdatePacket' per subscriber,
+     * or one legacy 'PinUpdatePacket' per PIN to clients without 'ConnectRequestPacketV2'.
+     */
+    private void sendPinUpdates() {
+        for (Map.Entry<Integer, ArrayList<String>> e : pinSubscriptions.drain().entrySet()) {
+            if (isLegacy(e.getKey())) {
+                //older clients only know the single PIN packet
+                for (String pin : e.getValue()) {
+                    net.packet.legacy.PinUpdatePacket pup = new net.packet.legacy.PinUpdatePacket();
+                    pup.PIN = pin;
+                    server.sendToTCP(e.getKey(), pup);
+                }
+                continue;
+            }
+            PinUpdatePacket pup = new PinUpdatePacket();
+            pup.PINS = e.getValue().toArray(new String[0]);
+            server.sendToTCP(e.getKey(), pup);
+        }
+    }
+
+    /**
+     * Runs the given task once on the shared server timer after a delay.
+     * Used for admission timeouts, and meant for any other per-client timeout.
+     * Keep the returned timeout and cancel it once it is no longer needed.
+     * @param task to run, should be short.
+     * @param delay in milis.
+     * @return the scheduled timeout.
+     */
+    public WheelTimer.Timeout schedule(Runnable task, long delay) {
+        return timer.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
     /**
      * Gets a client object based on a UID.
      * @param uid of the client we want to get.
      * @return a client with the given UID or null.
      */
     public Client getClientFromUID(String uid) {
-        for (int key: clientMap.keySet()) {
-            Client c = clientMap.get(key);
-            if (uid.equals(c.UID)) return c;
-        }
-        return null;
+        return clients.getFromUID(uid);
     }
 
     /**
@@ -359,11 +1197,7 @@ public class BinServer extends Listener {
      * @return a client with the given PIN or null.
      */
     public Client getClientFromPIN(String pin) {
-        for (int key: clientMap.keySet()) {
-            Client c = clientMap.get(key);
-            if (pin.equals(c.PIN)) return c;
-        }
-        return null;
+        return clients.getFromPIN(pin);
     }
 
     /**
@@ -372,11 +1206,7 @@ public class BinServer extends Listener {
      * @return integer, representing the connection ID. Or -1 if not found.
      */
     public Integer getConnectionFromUID(String uid) {
-        for (int key: clientMap.keySet()) {
-            Client c = clientMap.get(key);
-            if (uid.equals(c.UID)) return key;
-        }
-        return -1;
+        return clients.getConnectionFromUID(uid);
     }
 
     /**
@@ -385,11 +1215,7 @@ public class BinServer extends Listener {
      * @return integer, representing the connection ID. Or -1 if not found.
      */
     public Integer getConnectionFromPIN(String pin) {
-        for (int key: clientMap.keySet()) {
-            Client c = clientMap.get(key);
-            if (pin.equals(c.PIN)) return key;
-        }
-        return -1;
+        return clients.getConnectionFromPIN(pin);
     }
 
     /**
@@ -459,6 +1285,73 @@ class Client {
      */
     protected String UID, PIN;
 
+    /**
+     * Disconnects the client if it has not sent a 'ConnectRequestPacket' in time.
+     */
+    protected WheelTimer.Timeout admission;
+
+    /**
+     * True unless the client negotiated 'byte[]' payloads with 'ConnectRequestPacketV2'.
+     */
+    protected boolean legacy = true;
+
+    /**
+     * True if the client takes split transfers as 'TransferOpenPacket' and 'FileChunkPacket's.
+     */
+    protected boolean framed = false;
+
+    /**
+     * True if the client uses credit based flow control, see 'ContinueSplitPacket'.
+     */
+    protected boolean credited = false;
+
+    /**
+     * True if the client resumes split files after a disconnect, see 'TransferResumePacket'.
+     */
+    protected boolean resumable = false;
+
+    /**
+     * True if the client sends and takes chunks with a checksum, see 'FileChunkPacketV2'.
+     */
+    protected boolean checked = false;
+
+    /**
+     * True if the client takes split files directly from its peers, see 'DirectEndpointPacket'.
+     */
+    protected boolean direct = false;
+
+    /**
+     * Main connection of the client, the token its auxiliary connections are attached with (null unless it speaks
+     * 'ConnectRequestPacketV2.PROTOCOL_STRIPES') and the ones attached; see 'StripeHelloPacket'.
+     */
+    protected Connection connection;
+    protected String stripeToken;
+    protected final CopyOnWriteArrayList<Connection> stripes = new CopyOnWriteArrayList<>();
+
+    /**
+     * Split transfers open on this client's connection, see 'TransferTable'.
+     */
+    protected final TransferTable transfers = new TransferTable();
+
+    /**
+     * Sends the split files this client accepted, interleaved; see 'Relay'.
+     * Only run on the client's bulk lane; 'pumpScheduled' is set while a run is queued there.
+     */
+    protected SendPump pump;
+    protected final AtomicBoolean pumpScheduled = new AtomicBoolean(false);
+
+    /**
+     * Carries the chunks of transfers agreed on over UDP, null until the first one; see 'TransferOpenPacket.datagram'.
+     */
+    protected volatile UdpChannel udp;
+
+    /**
+     * Relays this client receives, and those sent as chunks by the ID of their transfer on its connection;
+     * relays it sends. So its credit, retransmits and disconnect are handled without scanning every relay.
+     */
+    protected final Set<Relay> receiving = ConcurrentHashMap.newKeySet(), sending = ConcurrentHashMap.newKeySet();
+    protected final ConcurrentHashMap<Integer, Relay> relayed = new ConcurrentHashMap<>();
+
     /**
      * Constructor to avoid null values.
      */
@@ -36,6 +36,11 @@ public class ServerSettings {
      */
     public static final String WORKING_DIR_WRAP = STORAGE_DIR_PATH + "temp_wrap" + FileUtils.getSeparator();
 
+    /**
+     * Path of the log of files waiting for an offline recipient, see 'DeliveryQueue'.
+     */
+    public static final String DELIVERY_FILE_PATH = STORAGE_DIR_PATH + "deliveries.txt";
+
 
     /**
      * Keys that represent various values for retrieval via the 'keyValueMap' of an instance of clientSettings.
@@ -0,0 +1,189 @@
+package net;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of every client connected to 'BinServer'.
+ * Clients are indexed by their connection ID, UID and PIN so that
+ * routing a packet is a single map lookup instead of a scan over all clients.
+ * Lookups are lock-free; 'add', 'admit' and 'remove' are synchronized so that
+ * all three indexes are always updated together.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ * @param <C> object stored for each connected client.
+ */
+public class ClientRegistry<C> {
+
+    /**
+     * Holds a client alongside the identity it is currently indexed under.
+     */
+    private static class Entry<C> {
+        final int id;
+        final C client;
+        String UID = "", PIN = "";
+
+        Entry(int id, C client) {
+            this.id = id;
+            this.client = client;
+        }
+    }
+
+    /**
+     * Connection ID -> entry.
+     */
+    private final ConcurrentHashMap<Integer, Entry<C>> connectionMap = new ConcurrentHashMap<>();
+
+    /**
+     * UID -> entry, only contains admitted clients.
+     */
+    private final ConcurrentHashMap<String, Entry<C>> uidMap = new ConcurrentHashMap<>();
+
+    /**
+     * PIN -> entry, only contains admitted clients.
+     */
+    private final ConcurrentHashMap<String, Entry<C>> pinMap = new ConcurrentHashMap<>();
+
+    /**
+     * Adds a newly connected client that has no UID or PIN yet.
+     * Replaces any client previously stored for the connection ID.
+     * @param id connection ID from KryoServer.
+     * @param client object to store.
+     */
+    public synchronized void add(int id, C client) {
+        Entry<C> old = connectionMap.put(id, new Entry<>(id, client));
+        if (old != null) unindex(old);
+    }
+
+    /**
+     * Assigns a UID and PIN to an already added client and indexes it under both.
+     * If another connection holds the same UID (I.E. a stale connection of a
+     * reconnecting client) the newest connection wins the UID index.
+     * @param id connection ID of the client.
+     * @param uid of the client.
+     * @param pin assigned to the client.
+     * @return false if no client exists with the given connection ID.
+     */
+    public synchronized boolean admit(int id, String uid, String pin) {
+        Entry<C> e = connectionMap.get(id);
+        if (e == null) return false;
+        unindex(e);
+        e.UID = uid == null ? "" : uid;
+        e.PIN = pin == null ? "" : pin;
+        if (!e.UID.equals("")) uidMap.put(e.UID, e);
+        if (!e.PIN.equals("")) pinMap.put(e.PIN, e);
+        return true;
+    }
+
+    /**
+     * Removes the client with the given connection ID from all indexes.
+     * @param id connection ID from KryoServer.
+     * @return the removed client, or null if not found.
+     */
+    public synchronized C remove(int id) {
+        Entry<C> e = connectionMap.remove(id);
+        if (e == null) return null;
+        unindex(e);
+        return e.client;
+    }
+
+    /**
+     * Removes the UID and PIN index of the given entry, given
+     * they still point at this entry.
+     */
+    private void unindex(Entry<C> e) {
+        if (!e.UID.equals("")) uidMap.remove(e.UID, e);
+        if (!e.PIN.equals("")) pinMap.remove(e.PIN, e);
+    }
+
+    /**
+     * @param id connection ID to check.
+     * @return true if a client is stored for the given connection ID.
+     */
+    public boolean contains(int id) {
+        return connectionMap.containsKey(id);
+    }
+
+    /**
+     * @param id connection ID of the client.
+     * @return the client, or null if not found.
+     */
+    public C get(int id) {
+        Entry<C> e = connectionMap.get(id);
+        return e == null ? null : e.client;
+    }
+
+    /**
+     * @param uid of the client we want to get.
+     * @return a client with the given UID or null.
+     */
+    public C getFromUID(String uid) {
+        if (uid == null) return null;
+        Entry<C> e = uidMap.get(uid);
+        return e == null ? null : e.client;
+    }
+
+    /**
+     * @param pin of the client we want to get.
+     * @return a client with the given PIN or null.
+     */
+    public C getFromPIN(String pin) {
+        if (pin == null) return null;
+        Entry<C> e = pinMap.get(pin);
+        return e == null ? null : e.client;
+    }
+
+    /**
+     * @param uid to find the connection for.
+     * @return the connection ID of the client with the given UID, or -1 if not found.
+     */
+    public int getConnectionFromUID(String uid) {
+        if (uid == null) return -1;
+        Entry<C> e = uidMap.get(uid);
+        return e == null ? -1 : e.id;
+    }
+
+    /**
+     * @param pin to find the connection for.
+     * @return the connection ID of the client with the given PIN, or -1 if not found.
+     */
+    public int getConnectionFromPIN(String pin) {
+        if (pin == null) return -1;
+        Entry<C> e = pinMap.get(pin);
+        return e == null ? -1 : e.id;
+    }
+
+    /**
+     * @param id connection ID of the client.
+     * @return the UID the client was admitted with, or "" if not admitted.
+     */
+    public String getUID(int id) {
+        Entry<C> e = connectionMap.get(id);
+        return e == null ? "" : e.UID;
+    }
+
+    /**
+     * @param id connection ID of the client.
+     * @return the PIN the client was admitted with, or "" if not admitted.
+     */
+    public String getPIN(int id) {
+        Entry<C> e = connectionMap.get(id);
+        return e == null ? "" : e.PIN;
+    }
+
+    /**
+     * @return amount of connected clients, admitted or not.
+     */
+    public int size() {
+        return connectionMap.size();
+    }
+
+    /**
+     * @return connection IDs of all connected clients.
+     */
+    public Collection<Integer> getConnections() {
+        return Collections.unmodifiableSet(connectionMap.keySet());
+    }
+}
@@ -0,0 +1,242 @@
+package net;
+
+import util.AppendLog;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * Files spooled by 'FileSendPacketWrap' that are waiting for their recipient to connect,
+ * queued under the recipient's UID. When a client connects its pending files are found with one
+ * map lookup, so the cost is linear in its pending files rather than in the catalog.
+ * Senders address a PIN, and a PIN is given to whichever client connects next once its holder left.
+ * So a file for an offline recipient is only queued if the PIN was last held by a client that departed,
+ * see 'depart()', and follows that client's UID from then on.
+ * A file stays queued until the recipient accepts or rejects it, or for at most 'TTL' after it was queued;
+ * at most 'MAX_FILES' are queued, and PINs of at most 'MAX_DEPARTED' departed clients are kept as long.
+ * Files past either bound are handed out by 'expire()' so the caller drops them.
+ * Persisted as an 'AppendLog' of "+uid file time", "-file", "=pin uid time" and "~pin" lines,
+ * compacted once mostly stale.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ */
+public class DeliveryQueue {
+
+    /**
+     * Milis a file stays queued and a departed client is known by its PIN.
+     */
+    public static final long TTL = 7L * 24 * 60 * 60 * 1000;
+
+    /**
+     * Most files queued and departed clients kept at once.
+     */
+    public static final int MAX_FILES = 10000, MAX_DEPARTED = 10000;
+
+    /**
+     * Least amount of log lines before compaction is considered.
+     */
+    private static final int COMPACT_MIN = 256;
+
+    /**
+     * Recipient UID -> file UIDs in the order they were queued.
+     */
+    private final HashMap<String, LinkedHashSet<String>> pending = new HashMap<>();
+
+    /**
+     * File UID -> recipient UID and when it was queued, oldest first.
+     */
+    private final LinkedHashMap<String, Entry> recipients = new LinkedHashMap<>();
+
+    /**
+     * PIN -> UID of the client that held it last and when it departed, oldest first.
+     */
+    private final LinkedHashMap<String, Entry> departed = new LinkedHashMap<>();
+
+    private final AppendLog log;
+
+    /**
+     * Loads the queue from the given log file.
+     * @param path of the log file.
+     */
+    public DeliveryQueue(String path) {
+        log = new AppendLog(path);
+        for (String line : log.read()) {
+            String[] parts = line.substring(Math.min(1, line.length())).split("\t");
+            if (line.startsWith("+") && parts.length == 3) {
+                put(parts[0], parts[1], parseTime(parts[2]));
+            } else if (line.startsWith("-")) {
+                take(parts[0]);
+            } else if (line.startsWith("=") && parts.length == 3) {
+                departed.remove(parts[0]);
+                departed.put(parts[0], new Entry(parts[1], parseTime(parts[2])));
+            } else if (line.startsWith("~")) {
+                departed.remove(parts[0]);
+            }
+        }
+        compact();
+    }
+
+    private static long parseTime(String s) {
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException e) {
+            //expires right away
+            return 0;
+        }
+    }
+
+    /**
+     * Remembers the client that held a PIN as it disconnects, files sent to the PIN are queued for it.
+     * @param pin the client held.
+     * @param uid of the client.
+     */
+    public synchronized void depart(String pin, String uid) {
+        long now = System.currentTimeMillis();
+        departed.remove(pin);
+        departed.put(pin, new Entry(uid, now));
+        log.append("=" + pin + "\t" + uid + "\t" + now);
+        while (departed.size() > MAX_DEPARTED) forget(departed.keySet().iterator().next());
+    }
+
+    /**
+     * Forgets the departed holder of a PIN once it is given to another client.
+     * @param pin given out.
+     */
+    public synchronized void reassign(String pin) {
+        if (departed.containsKey(pin)) forget(pin);
+    }
+
+    private void forget(String pin) {
+        departed.remove(pin);
+        log.append("~" + pin);
+    }
+
+    /**
+     * Queues a file for the client that departed holding the given PIN.
+     * @param pin the sender addressed.
+     * @param fileUID of the spooled file.
+     * @return the UID the file is queued for, null if no known client held the PIN and it can not be queued.
+     */
+    public synchronized String addForPIN(String pin, String fileUID) {
+        Entry holder = departed.get(pin);
+        if (holder == null || holder.time + TTL < System.currentTimeMillis()) return null;
+        add(holder.key, fileUID);
+        return holder.key;
+    }
+
+    /**
+     * Queues a file for the client with the given UID.
+     * @param uid of the recipient.
+     * @param fileUID of the spooled file.
+     */
+    public synchronized void add(String uid, String fileUID) {
+        Entry e = recipients.get(fileUID);
+        if (e != null && uid.equals(e.key)) return;
+        long now = System.currentTimeMillis();
+        put(uid, fileUID, now);
+        log.append("+" + uid + "\t" + fileUID + "\t" + now);
+    }
+
+    /**
+     * Removes a file from the queue, I.E. once delivered or rejected.
+     * @param fileUID of the spooled file.
+     * @return true if it was queued.
+     */
+    public synchronized boolean remove(String fileUID) {
+        if (!take(fileUID)) return false;
+        log.append("-" + fileUID);
+        compact();
+        return true;
+    }
+
+    /**
+     * Removes the files queued longer than 'TTL' and the oldest ones past 'MAX_FILES',
+     * and forgets clients that departed longer than 'TTL' ago.
+     * @return UIDs of the files removed, the caller drops them from the spool.
+     */
+    public synchronized ArrayList<String> expire() {
+        long now = System.currentTimeMillis();
+        ArrayList<String> expired = new ArrayList<>();
+        Iterator<HashMap.Entry<String, Entry>> it = recipients.entrySet().iterator();
+        while (it.hasNext()) {
+            HashMap.Entry<String, Entry> e = it.next();
+            if (e.getValue().time + TTL >= now && recipients.size() - expired.size() <= MAX_FILES) break;
+            expired.add(e.getKey());
+        }
+        for (String fileUID : expired) remove(fileUID);
+        while (!departed.isEmpty()) {
+            HashMap.Entry<String, Entry> e = departed.entrySet().iterator().next();
+            if (e.getValue().time + TTL >= now) break;
+            forget(e.getKey());
+        }
+        compact();
+        return expired;
+    }
+
+    /**
+     * Finds the files waiting for a client that just connected.
+     * @param uid of the client.
+     * @return UIDs of pending files in the order they were queued, empty if none.
+     */
+    public synchronized ArrayList<String> claim(String uid) {
+        LinkedHashSet<String> set = pending.get(uid);
+        return set == null ? new ArrayList<>() : new ArrayList<>(set);
+    }
+
+    /**
+     * @return amount of queued files.
+     */
+    public synchronized int size() {
+        return recipients.size();
+    }
+
+    private void put(String uid, String fileUID, long time) {
+        take(fileUID);
+        recipients.put(fileUID, new Entry(uid, time));
+        pending.computeIfAbsent(uid, k -> new LinkedHashSet<>()).add(fileUID);
+    }
+
+    private boolean take(String fileUID) {
+        Entry e = recipients.remove(fileUID);
+        if (e == null) return false;
+        LinkedHashSet<String> set = pending.get(e.key);
+        if (set != null) {
+            set.remove(fileUID);
+            if (set.isEmpty()) pending.remove(e.key);
+        }
+        return true;
+    }
+
+    /**
+     * Rewrites the log with only the live entries once most of its lines are stale.
+     */
+    private void compact() {
+        int live = recipients.size() + departed.size();
+        if (log.getLines() < COMPACT_MIN || log.getLines() < live * 2) return;
+        ArrayList<String> lines = new ArrayList<>();
+        for (HashMap.Entry<String, Entry> e : departed.entrySet()) {
+            lines.add("=" + e.getKey() + "\t" + e.getValue().key + "\t" + e.getValue().time);
+        }
+        for (HashMap.Entry<String, Entry> e : recipients.entrySet()) {
+            lines.add("+" + e.getValue().key + "\t" + e.getKey() + "\t" + e.getValue().time);
+        }
+        log.rewrite(lines);
+    }
+
+    /**
+     * A client UID and the milis it was recorded at.
+     */
+    private static class Entry {
+        private final String key;
+        private final long time;
+
+        private Entry(String key, long time) {
+            this.key = key;
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package net;
+
+import com.esotericsoftware.kryonet.Connection;
+import com.esotericsoftware.kryonet.FrameworkMessage;
+import com.esotericsoftware.kryonet.Listener;
+import net.packet.DatagramParityPacket;
+import net.packet.DatagramSegmentPacket;
+import net.packet.FileAcceptPacket;
+import net.packet.FileChunkPacket;
+import net.packet.FileRejectedPacket;
+import net.packet.FileSendPacket;
+import net.packet.FileSendPacketSplit;
+import net.packet.TransferOpenPacket;
+import net.packet.legacy.LegacyPackets;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves packet handling off of the KryoNet update thread.
+ * Every connection is pinned to one serial "lane" (single threaded executor) for
+ * control packets and one lane for bulk packets (anything that reads or writes file content),
+ * so packets of a given kind are handled in the order they were received per connection,
+ * while control packets never wait behind disk I/O.
+ * 'connected' runs on the control lane; 'disconnected' runs on the control lane only
+ * after every bulk packet received before it has been handled.
+ * Packets of 'net.packet.legacy' are converted to their 'net.packet' counterparts on the lane,
+ * so the target only ever sees 'byte[]' payloads.
+ * An auxiliary connection attached to a client's main one is handled as that connection,
+ * on its lanes, see 'attach()'; only its 'connected' and 'disconnected' are its own.
+ * A lane holds at most 'LANE_CAPACITY' received packets; once full, the KryoNet update thread waits for room,
+ * so no more is read from the sockets and TCP pushes back on the senders.
+ * Bulk packets of a connection are held until the target admits it, see 'admit()', so none is handled
+ * before the client is registered; at most 'MAX_HELD' of them, a connection sending more is closed.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ */
+public class PacketDispatcher extends Listener {
+
+    /**
+     * Listener that handles packets once they reach a lane.
+     */
+    private final Listener target;
+
+    /**
+     * Most received packets queued or being handled on one lane, and most bulk packets held per connection not admitted.
+     */
+    public static final int LANE_CAPACITY = 64, MAX_HELD = 16;
+
+    /**
+     * Serial lanes for control and bulk packets.
+     */
+    private final Lane[] controlLanes, bulkLanes;
+
+    /**
+     * Connections admitted, and the bulk packets received from those that are not yet in order; see 'admit()'.
+     * Packets are only held and handed on while holding the lock of 'held'.
+     */
+    private final Set<Connection> admitted = ConcurrentHashMap.newKeySet();
+    private final HashMap<Connection, ArrayList<Object>> held = new HashMap<>();
+
+    /**
+     * Main connections by the auxiliary connections attached to them.
+     */
+    private final ConcurrentHashMap<Connection, Connection> attached = new ConcurrentHashMap<>();
+
+    /**
+     * @param target listener to invoke from the worker lanes.
+     * @param controlLanes amount of serial lanes for control packets.
+     * @param bulkLanes amount of serial lanes for bulk packets.
+     */
+    public PacketDispatcher(Listener target, int controlLanes, int bulkLanes) {
+        this.target = target;
+        this.controlLanes = createLanes("control", controlLanes);
+        this.bulkLanes = createLanes("bulk", bulkLanes);
+    }
+
+    private static Lane[] createLanes(String name, int n) {
+        Lane[] lanes = new Lane[Math.max(1, n)];
+        for (int i = 0; i < lanes.length; i++) {
+            final String threadName = "dispatch-" + name + "-" + i;
+            ThreadFactory tf = r -> {
+                Thread t = new Thread(r, threadName);
+                t.setDaemon(true);
+                return t;
+            };
+            lanes[i] = new Lane(Executors.newSingleThreadExecutor(tf));
+        }
+        return lanes;
+    }
+
+    /**
+     * Returns true if the given packet reads or writes file content and should be
+     * handled on a bulk lane. 'TransferOpenPacket's go there too, ahead of their chunks,
+     * and so do the 'DatagramSegmentPacket's chunks arrive in over UDP and their 'DatagramParityPacket's.
+     * @param object received packet.
+     * @return true if bulk, false if control.
+     */
+    public static boolean isBulk(Object object) {
+        return object instanceof FileSendPacketSplit || object instanceof FileSendPacket
+                || object instanceof TransferOpenPacket || object instanceof FileChunkPacket
+                || object instanceof DatagramSegmentPacket || object instanceof DatagramParityPacket
+                || object instanceof FileAcceptPacket || object instanceof FileRejectedPacket
+                || object instanceof net.packet.legacy.FileSendPacketSplit || object instanceof net.packet.legacy.FileSendPacket;
+    }
+
+    private Lane controlLane(Connection connection) {
+        return controlLanes[Math.abs(connection.getID() % controlLanes.length)];
+    }
+
+    private Lane bulkLane(Connection connection) {
+        return bulkLane(connection.getID());
+    }
+
+    private Lane bulkLane(int id) {
+        return bulkLanes[Math.abs(id % bulkLanes.length)];
+    }
+
+    @Override
+    public void connected(Connection connection) {
+        controlLane(connection).executor.execute(() -> target.connected(connection));
+    }
+
+    @Override
+    public void disconnected(Connection connection) {
+        synchronized (held) {
+            held.remove(connection);
+            admitted.remove(connection);
+        }
+        //drain the bulk lane first so no bulk packet is handled for a removed client
+        bulkLane(connection).executor.execute(() -> controlLane(connection).executor.execute(() -> target.disconnected(connection)));
+    }
+
+    @Override
+    public void received(Connection received, Object object) {
+        if (object instanceof FrameworkMessage) {
+            target.received(received, object);
+            return;
+        }
+        Connection connection = attached.getOrDefault(received, received);
+        boolean bulk = isBulk(object);
+        if (bulk && !admitted.contains(connection)) {
+            synchronized (held) {
+                //admitted or attached meanwhile
+                connection = attached.getOrDefault(received, received);
+                if (!admitted.contains(connection)) {
+                    ArrayList<Object> packets = held.computeIfAbsent(connection, k -> new ArrayList<>());
+                    if (packets.size() < MAX_HELD) {
+                        packets.add(object);
+                        return;
+                    }
+                }
+            }
+            if (!admitted.contains(connection)) {
+                System.out.println("ERROR: connection " + connection.getID() + " sent too much before it was admitted.");
+                received.close();
+                return;
+            }
+        }
+        Lane lane = bulk ? bulkLane(connection) : controlLane(connection);
+        try {
+            //wait for room, the sockets are not read meanwhile
+            lane.room.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        handle(lane, connection, object, true);
+    }
+
+    /**
+     * Queues a received packet on a lane.
+     * @param counted true if it took room on the lane, given back once handled.
+     */
+    private void handle(Lane lane, Connection connection, Object object, boolean counted) {
+        lane.executor.execute(() -> {
+            try {
+                target.received(connection, LegacyPackets.upgrade(object));
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            } finally {
+                if (counted) lane.room.release();
+            }
+        });
+    }
+
+    /**
+     * Lets the bulk packets of a connection be handled, those held first; invoked once its client is registered.
+     * Runs on a lane, so the held packets are queued without waiting for room.
+     * @param connection admitted.
+     */
+    public void admit(Connection connection) {
+        synchronized (held) {
+            if (!connection.isConnected()) return;
+            flush(held.remove(connection), connection);
+            admitted.add(connection);
+        }
+    }
+
+    private void flush(ArrayList<Object> packets, Connection connection) {
+        if (packets == null) return;
+        for (Object object : packets) handle(bulkLane(connection), connection, object, false);
+    }
+
+    @Override
+    public void idle(Connection connection) {
+        target.idle(attached.getOrDefault(connection, connection));
+    }
+
+    /**
+     * Handles the packets of an auxiliary connection as if the main connection received them,
+     * in order with the main connection's packets of the same lane; see 'StripeHelloPacket'.
+     * @param stripe auxiliary connection.
+     * @param main connection it belongs to.
+     */
+    public void attach(Connection stripe, Connection main) {
+        synchronized (held) {
+            //bulk packets it sent ahead of its hello
+            flush(held.remove(stripe), main);
+            attached.put(stripe, main);
+        }
+    }
+
+    /**
+     * @param stripe auxiliary connection that closed.
+     * @return the main connection it was attached to, null if none.
+     */
+    public Connection detach(Connection stripe) {
+        return attached.remove(stripe);
+    }
+
+    /**
+     * Runs a task on the bulk lane of the given connection, in order with its bulk packets.
+     * @param id connection ID.
+     * @param task to run.
+     */
+    public void execute(int id, Runnable task) {
+        bulkLane(id).executor.execute(() -> {
+            try {
+                task.run();
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Stops all lanes, waiting up to the given time for queued packets to be handled.
+     * @param timeout in milis.
+     */
+    public void stop(long timeout) {
+        for (Lane lane : bulkLanes) lane.executor.shutdown();
+        for (Lane lane : controlLanes) lane.executor.shutdown();
+        try {
+            for (Lane lane : bulkLanes) lane.executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+            for (Lane lane : controlLanes) lane.executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A serial executor and the room left for received packets on it.
+     * Tasks queued from the lanes themselves take no room, so lanes never wait on each other.
+     */
+    private static class Lane {
+        private final ExecutorService executor;
+        private final Semaphore room = new Semaphore(LANE_CAPACITY);
+
+        private Lane(ExecutorService executor) {
+            this.executor = executor;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package net;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Tracks which connections know of which PINs so that 'BinServer' only tells
+ * the interested clients when a PIN departs, instead of every client.
+ * A connection subscribes to a PIN once it resolves it, either through a
+ * 'PinCheckRequestPacket' or a 'HandshakePacket'.
+ * Departures are queued per subscriber and drained in batches, so a burst of
+ * disconnects produces one 'PinUpdatePacket' per subscriber.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ */
+public class PinSubscriptions {
+
+    /**
+     * PIN -> connection IDs that resolved it.
+     */
+    private final HashMap<String, HashSet<Integer>> subscribers = new HashMap<>();
+
+    /**
+     * Connection ID -> PINs it resolved, used to clean up when it departs.
+     */
+    private final HashMap<Integer, HashSet<String>> subscriptions = new HashMap<>();
+
+    /**
+     * Connection ID -> departed PINs not yet sent to it.
+     */
+    private HashMap<Integer, ArrayList<String>> pending = new HashMap<>();
+
+    /**
+     * Records that the given connection knows of the given PIN.
+     * @param id connection ID of the subscriber.
+     * @param pin that was resolved.
+     */
+    public synchronized void subscribe(int id, String pin) {
+        if (pin == null || pin.equals("")) return;
+        subscribers.computeIfAbsent(pin, k -> new HashSet<>()).add(id);
+        subscriptions.computeIfAbsent(id, k -> new HashSet<>()).add(pin);
+    }
+
+    /**
+     * Removes the departing connection and queues a departure notice for each of
+     * its PIN's subscribers.
+     * @param id connection ID of the departing client.
+     * @param pin of the departing client.
+     * @return true if at least one notice was queued.
+     */
+    public synchronized boolean depart(int id, String pin) {
+        //drop what the departing client subscribed to
+        HashSet<String> pins = subscriptions.remove(id);
+        if (pins != null) {
+            for (String p : pins) {
+                HashSet<Integer> set = subscribers.get(p);
+                if (set == null) continue;
+                set.remove(id);
+                if (set.isEmpty()) subscribers.remove(p);
+            }
+        }
+        pending.remove(id);
+        //notify who subscribed to the departing client
+        if (pin == null || pin.equals("")) return false;
+        HashSet<Integer> subs = subscribers.remove(pin);
+        if (subs == null) return false;
+        for (int sub : subs) {
+            HashSet<String> set = subscriptions.get(sub);
+            if (set != null) set.remove(pin);
+            pending.computeIfAbsent(sub, k -> new ArrayList<>()).add(pin);
+        }
+        return !subs.isEmpty();
+    }
+
+    /**
+     * Takes every queued departure notice.
+     * @return connection ID -> departed PINs to send it.
+     */
+    public synchronized Map<Integer, ArrayList<String>> drain() {
+        HashMap<Integer, ArrayList<String>> map = pending;
+        pending = new HashMap<>();
+        return map;
+    }
+}
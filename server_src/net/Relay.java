@@ -0,0 +1,620 @@
+package net;
+
+import com.esotericsoftware.kryonet.Connection;
+import net.packet.FileChunkPacket;
+import net.packet.FileSendPacketSplit;
+import net.packet.TransferOpenPacket;
+import net.packet.legacy.LegacyPackets;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * A split file that is being uploaded to 'BinServer'.
+ * Until the receiver accepts it, every split is spooled to disk with 'FileSendPacketWrap' as before.
+ * Once the receiver accepts while the upload is still running, the relay is "activated":
+ * the splits already spooled are queued first, and every split received afterwards is piped
+ * straight to the receiver from memory.
+ * The in-memory window is bounded; when the receiver falls behind (window full) further splits
+ * are spilled to the spool and read back in turn, so splits always reach the receiver in the order
+ * they were received.
+ * A relay without a sender serves a file that was spooled completely the same way.
+ * Receivers that speak 'ConnectRequestPacketV2.PROTOCOL_FRAMES' get the file as one 'TransferOpenPacket'
+ * followed by lean 'FileChunkPacket's, see 'TransferTable'.
+ * Receivers that speak 'ConnectRequestPacketV2.PROTOCOL_CREDITS' are only sent as many chunks as they
+ * granted credit for. Credit of a sender that uses credits is held back while the receiver is behind
+ * and handed back as the receiver catches up, so a slow receiver slows down the sender.
+ * Once activated the relay is a source of the receiver's 'SendPump', which interleaves it with other
+ * files sent to the same receiver.
+ * Transfers of clients that speak 'ConnectRequestPacketV2.PROTOCOL_RESUME' outlive a disconnect, see
+ * 'TransferResumePacket'. A sender that disconnects is detached and the relay keeps what it received,
+ * a sender that reconnects is attached again and only sends the series missing.
+ * A receiver that disconnects is detached as well: splits sent to a resumable receiver are kept,
+ * in memory or spooled, until its credit acknowledges them, and are spooled again when it detaches.
+ * Only acknowledged splits are dropped, so the receiver holds every series the relay does not,
+ * and is relayed the rest once it resumes.
+ * Receivers that speak 'ConnectRequestPacketV2.PROTOCOL_CHECKSUM' get chunks with a checksum and ask for
+ * corrupted ones again, see 'RetransmitPacket'. Those are sent ahead of the others, without credit, from the
+ * splits kept until acknowledged; such a receiver is always resumable.
+ * All spool I/O for the file happens while holding this relay's lock.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ */
+public class Relay implements SendPump.Source {
+
+    /**
+     * Times a chunk is sent again before the receiver is given up on, its spooled copy is likely corrupted.
+     */
+    public static final int MAX_RETRANSMITS = 3;
+
+    /**
+     * UID of the file being relayed, and of the client uploading it, null if the file is spooled completely.
+     */
+    private final String uid, senderUID;
+
+    /**
+     * Connection ID of the uploading client, -1 if the file is spooled completely or the sender is detached,
+     * and ID of the transfer on its connection, -1 if it does not use credits.
+     */
+    private int sender, senderTransfer;
+
+    /**
+     * Max amount of splits held in memory.
+     */
+    private final int window;
+
+    /**
+     * Receiver, null until activated.
+     */
+    private Connection receiver;
+
+    /**
+     * True if the receiver only understands the boxed packets of 'net.packet.legacy'.
+     */
+    private boolean legacy;
+
+    /**
+     * ID of the transfer on the receiver's connection, or -1 to send whole 'FileSendPacketSplit's.
+     * The 'TransferOpenPacket' is sent before the first chunk, once 'opened'.
+     */
+    private int transfer = -1;
+    private boolean opened = false;
+
+    /**
+     * True if the chunks may go over any connection of the receiver, see 'stripe()'.
+     */
+    private boolean striped = false;
+
+    /**
+     * Chunks the receiver granted credit for, -1 if it does not use credits.
+     */
+    private int credit = -1;
+
+    /**
+     * True if the receiver resumes the file after a disconnect; sent splits are then kept until acknowledged.
+     * The first credit it grants is its window, any credit after that acknowledges as many splits.
+     */
+    private boolean resumable = false, windowGranted = false;
+
+    /**
+     * True if the receiver is sent 'FileChunkPacketV2's and asks for corrupted ones again.
+     */
+    private boolean checked = false;
+
+    /**
+     * Chunks the receiver asked for again, sent first; and how often each series was.
+     */
+    private final ArrayDeque<FileChunkPacket> resend = new ArrayDeque<>();
+    private final HashMap<Integer, Integer> retransmitted = new HashMap<>();
+
+    /**
+     * Splits sent to a resumable receiver and not acknowledged yet, in the order sent.
+     * Either a 'FileSendPacketSplit' held in memory or the Integer series of a spooled split.
+     */
+    private final ArrayDeque<Object> unacked = new ArrayDeque<>();
+
+    /**
+     * Series received from the sender, series the receiver acknowledged and that are dropped,
+     * and series the receiver held when it was activated.
+     */
+    private final BitSet received = new BitSet(), delivered = new BitSet(), held = new BitSet();
+
+    /**
+     * Milis when the sender or receiver was detached, 0 if attached or never detached.
+     */
+    private long senderLostAt = 0, receiverLostAt = 0;
+
+    /**
+     * Credit of the sender held back while the receiver is behind, and the part of it that
+     * may be handed back; see 'holdCredit()'.
+     */
+    private int owed = 0, released = 0;
+
+    /**
+     * Splits waiting for the receiver in series order.
+     * Either a 'FileSendPacketSplit' held in memory or the Integer series of a spooled split.
+     */
+    private final ArrayDeque<Object> queue = new ArrayDeque<>();
+
+    /**
+     * Amount of splits in 'queue' held in memory.
+     */
+    private int inMemory = 0;
+
+    /**
+     * Amount of splits not sent to the receiver yet, set once activated.
+     */
+    private int remaining = 0;
+
+    /**
+     * True if a 'FileSendRequestPacket' was already sent for this file.
+     */
+    private boolean offered = false;
+
+    /**
+     * True once the final split was received from the sender.
+     */
+    private boolean uploaded = false;
+
+    /**
+     * Amount of splits of the file, taken from the first split received; -1 until then.
+     */
+    private int length = -1;
+
+    private boolean closed = false, aborted = false, done = false;
+
+    /**
+     * True once a spooled split could not be read back, the relay is aborted; see 'isFailed()'.
+     */
+    private boolean failed = false;
+
+    /**
+     * @param uid of the file.
+     * @param senderUID UID of the uploading client, null if the file is spooled completely.
+     * @param sender connection ID of the uploading client, -1 if the file is spooled completely.
+     * @param senderTransfer ID of the transfer on the sender's connection if it uses credits, else -1.
+     * @param window max amount of splits to hold in memory.
+     */
+    public Relay(String uid, String senderUID, int sender, int senderTransfer, int window) {
+        this.uid = uid;
+        this.senderUID = senderUID;
+        this.sender = sender;
+        this.senderTransfer = senderTransfer;
+        this.window = Math.max(1, window);
+    }
+
+    /**
+     * Handles a split received from the sender.
+     * Spools it if not activated, queues it for the receiver otherwise.
+     * Splits of an aborted relay are dropped. A split that can not be spooled, or whose series is not one of
+     * the file, aborts the relay as the file could never be complete; the caller must then give up the upload,
+     * see 'isAborted()'.
+     * @param split received from the sender.
+     * @return false if the relay is closed and the caller should spool the split itself.
+     */
+    public synchronized boolean offer(FileSendPacketSplit split) {
+        if (aborted) return true;
+        if (closed) return false;
+        if (length == -1 && split.length != null && split.length > 0 && split.length <= TransferMeta.MAX_LENGTH) length = split.length;
+        if (split.series == null || split.series < 0 || split.series >= length || !Integer.valueOf(length).equals(split.length)) {
+            abort();
+            return true;
+        }
+        received.set(split.series);
+        if (Boolean.TRUE.equals(split.finalPacket)) uploaded = true;
+        //the receiver holds it already
+        if (held.get(split.series)) return true;
+        if (receiver != null && inMemory < window) {
+            queue.add(split);
+            inMemory++;
+            return true;
+        }
+        //not activated yet, or the receiver is behind and it is spilled
+        if (!FileSendPacketWrap.flush(split)) {
+            abort();
+            return true;
+        }
+        if (receiver != null) queue.add(split.series);
+        return true;
+    }
+
+    /**
+     * Starts relaying to the given receiver, queuing every split spooled so far that it does not hold.
+     * @param receiver connection that accepted the file.
+     * @param legacy true if the receiver needs the boxed packets of 'net.packet.legacy'.
+     * @param transfer ID to send the file under as 'FileChunkPacket's, -1 to send 'FileSendPacketSplit's.
+     * @param credited true if the receiver grants credit for the transfer.
+     * @param resumable true if the receiver resumes the file after a disconnect, it must grant credit.
+     * @param checked true if the receiver is sent checksums, it must be resumable.
+     * @param have series the receiver holds, see 'TransferResumePacket'; null if none.
+     * @return false if the relay is closed or already has a receiver, or the receiver does not hold
+     * a split that was acknowledged and dropped.
+     */
+    public synchronized boolean activate(Connection receiver, boolean legacy, int transfer, boolean credited,
+                                         boolean resumable, boolean checked, byte[] have) {
+        if (closed || aborted || this.receiver != null) return false;
+        int l = FileSendPacketWrap.getLength(uid);
+        BitSet h = have == null ? new BitSet() : BitSet.valueOf(have);
+        //the final series is always sent
+        h.clear(Math.max(l - 1, 0), Math.max(h.length(), l));
+        BitSet lost = (BitSet) delivered.clone();
+        lost.andNot(h);
+        if (!lost.isEmpty()) return false;
+        this.receiver = receiver;
+        this.legacy = legacy;
+        this.transfer = transfer;
+        this.credit = credited ? 0 : -1;
+        this.resumable = resumable && credited;
+        this.checked = checked && this.resumable && transfer != -1;
+        held.clear();
+        held.or(h);
+        receiverLostAt = 0;
+        remaining = l - held.cardinality();
+        for (int i = 0; i < l; i++) {
+            if (!held.get(i) && FileSendPacketWrap.hasSplit(uid, i)) queue.add(i);
+        }
+        return true;
+    }
+
+    /**
+     * Spreads the chunks over every connection of the receiver, see 'TransferOpenPacket.striped', given they
+     * are sent in series order from the first: the receiver holds none and what is spooled so far has no gaps.
+     * The receiver waits for every series before it hands a later one on, so a gap would hold up its credit.
+     * Must be invoked right after 'activate()'.
+     * @return true if striped.
+     */
+    public synchronized boolean stripe() {
+        if (transfer == -1 || credit == -1 || opened || !held.isEmpty()) return false;
+        int next = 0;
+        for (Object item : queue) {
+            if (!(item instanceof Integer) || (Integer) item != next++) return false;
+        }
+        striped = true;
+        return true;
+    }
+
+    /**
+     * Closes the relay once the upload is complete, given no receiver was activated.
+     * The spooled file is then served like any other.
+     * @return true if closed or aborted, false if a receiver is being relayed to, or a detached
+     * receiver holds splits that were dropped and it must resume from this relay.
+     */
+    public synchronized boolean close() {
+        if (aborted) return true;
+        if (receiver != null || !delivered.isEmpty()) return false;
+        closed = true;
+        return true;
+    }
+
+    /**
+     * Drops the file: nothing more is sent or spooled and the spool is removed.
+     * Used when the sender or receiver disconnects and can not resume, or the receiver rejects the file.
+     */
+    public synchronized void abort() {
+        if (aborted || done) return;
+        aborted = true;
+        queue.clear();
+        unacked.clear();
+        resend.clear();
+        inMemory = 0;
+        //nothing is relayed anymore, the sender may finish
+        released += owed;
+        owed = 0;
+        if (FileSendPacketWrap.hasCatalog(uid)) FileSendPacketWrap.removeCompletely(uid);
+    }
+
+    /**
+     * Takes the next packet for the receiver: the 'TransferOpenPacket' first if it is framed,
+     * then chunks asked for again, then splits in series order as long as the receiver has credit.
+     * Hands back held credit of the sender for every split taken, see 'takeReleased()'.
+     * Must only run on one thread at a time, I.E. the receiver's bulk lane.
+     * @return the packet, or null if nothing can be sent yet.
+     */
+    @Override
+    public synchronized Object poll() {
+        if (receiver == null || aborted) return null;
+        if (!resend.isEmpty()) return resend.poll();
+        if (done) return null;
+        if (transfer != -1 && !opened) {
+            //the header goes out without credit, the receiver grants it in response
+            TransferOpenPacket header = FileSendPacketWrap.readHeader(uid, transfer);
+            if (header == null) return null;
+            //a receiver granting credit may agree to take the chunks over UDP, with parity to rebuild lost ones
+            if (credit != -1 && UdpChannel.isAvailable(receiver)) {
+                header.datagram = true;
+                header.parity = true;
+            }
+            if (striped) header.striped = true;
+            opened = true;
+            return header;
+        }
+        while (credit != 0) {
+            Object item = queue.poll();
+            if (item == null) return null;
+            Object packet;
+            boolean last;
+            if (item instanceof FileSendPacketSplit) {
+                FileSendPacketSplit split = (FileSendPacketSplit) item;
+                inMemory--;
+                last = Boolean.TRUE.equals(split.finalPacket);
+                packet = transfer == -1 ? legacy ? LegacyPackets.downgrade(split) : split
+                        : checked ? TransferTable.checkedChunk(transfer, split) : TransferTable.chunk(transfer, split);
+            } else {
+                int series = (Integer) item;
+                last = series + 1 == FileSendPacketWrap.getLength(uid);
+                packet = transfer != -1 ? FileSendPacketWrap.readChunk(uid, series, transfer, checked) : FileSendPacketWrap.readSplit(uid, series);
+                if (packet == null) {
+                    //the receiver would wait for it forever
+                    failed = true;
+                    abort();
+                    return null;
+                }
+                if (!resumable) FileSendPacketWrap.removeSplit(uid, series);
+                if (legacy) packet = LegacyPackets.downgrade(packet);
+            }
+            if (resumable) unacked.add(item);
+            if (credit > 0) credit--;
+            if (remaining > 0) remaining--;
+            if (owed > 0) {
+                owed--;
+                released++;
+            }
+            if (last) {
+                done = true;
+                //a resumable receiver may still miss it, removed once acknowledged
+                if (!resumable && FileSendPacketWrap.hasCatalog(uid)) FileSendPacketWrap.removeCompletely(uid);
+            }
+            return packet;
+        }
+        return null;
+    }
+
+    /**
+     * @return true once the final split and every chunk asked for again were taken, or the relay was aborted.
+     */
+    @Override
+    public synchronized boolean isFinished() {
+        return (done && resend.isEmpty()) || aborted;
+    }
+
+    /**
+     * @return true once the final split was taken and, for a resumable receiver, all splits acknowledged;
+     * or the relay was aborted. The relay can then be forgotten.
+     */
+    public synchronized boolean isComplete() {
+        return aborted || (done && unacked.isEmpty());
+    }
+
+    /**
+     * @return amount of splits not sent to the receiver yet.
+     */
+    @Override
+    public synchronized long remaining() {
+        return remaining;
+    }
+
+    /**
+     * Adds credit the receiver granted.
+     * Credit of a resumable receiver after its window acknowledges the oldest splits sent,
+     * which are then dropped; the spool is removed once the final split is acknowledged.
+     * @param credit amount of chunks.
+     */
+    public synchronized void grant(int credit) {
+        if (this.credit == -1) return;
+        this.credit += credit;
+        if (!resumable || aborted) return;
+        if (!windowGranted) {
+            windowGranted = true;
+            return;
+        }
+        for (int i = 0; i < credit && !unacked.isEmpty(); i++) {
+            Object item = unacked.poll();
+            if (item instanceof FileSendPacketSplit) {
+                delivered.set(((FileSendPacketSplit) item).series);
+            } else {
+                FileSendPacketWrap.removeSplit(uid, (Integer) item);
+                delivered.set((Integer) item);
+            }
+        }
+        if (done && unacked.isEmpty() && FileSendPacketWrap.hasCatalog(uid)) FileSendPacketWrap.removeCompletely(uid);
+    }
+
+    /**
+     * Sends a chunk again that reached the receiver corrupted, see 'RetransmitPacket'.
+     * It is taken from the splits not acknowledged yet, read into memory now as its spooled copy
+     * is removed once acknowledged.
+     * @param series of the chunk.
+     * @return false if the chunk is not kept, or was sent again 'MAX_RETRANSMITS' times already.
+     */
+    public synchronized boolean retransmit(int series) {
+        if (!checked || receiver == null || aborted) return false;
+        if (retransmitted.merge(series, 1, Integer::sum) > MAX_RETRANSMITS) return false;
+        for (Object item : unacked) {
+            if (item instanceof FileSendPacketSplit && ((FileSendPacketSplit) item).series == series) {
+                resend.add(TransferTable.checkedChunk(transfer, (FileSendPacketSplit) item));
+                return true;
+            }
+            if (item instanceof Integer && (Integer) item == series) {
+                FileChunkPacket chunk = FileSendPacketWrap.readChunk(uid, series, transfer, true);
+                if (chunk == null) return false;
+                resend.add(chunk);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Detaches a sender that disconnected, keeping what was received so it can resume; see 'attachSender()'.
+     * Held credit is forgotten, it was granted for a transfer of the closed connection.
+     * @return true if the sender must resume, false if the upload was complete already.
+     */
+    public synchronized boolean detachSender() {
+        sender = -1;
+        senderTransfer = -1;
+        owed = 0;
+        released = 0;
+        if (uploaded || aborted) return false;
+        senderLostAt = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * Attaches a sender that reconnected and resumes the upload.
+     * @param sender connection ID of the uploading client.
+     * @param senderTransfer ID of the transfer on its connection if it uses credits, else -1.
+     * @return false if the relay is not waiting for its sender.
+     */
+    public synchronized boolean attachSender(int sender, int senderTransfer) {
+        if (senderLostAt == 0 || aborted) return false;
+        this.sender = sender;
+        this.senderTransfer = senderTransfer;
+        senderLostAt = 0;
+        return true;
+    }
+
+    /**
+     * Detaches a resumable receiver that disconnected. Every split not acknowledged is spooled,
+     * so together with what the receiver holds the file stays complete, and the relay waits to be
+     * activated again; see 'TransferResumePacket'.
+     * Held credit of the sender is handed back, the splits are spooled from now on.
+     * @return false if the receiver is not resumable, the relay must be aborted.
+     */
+    public synchronized boolean detachReceiver() {
+        if (!resumable || receiver == null || aborted) return false;
+        for (Object item : unacked) {
+            if (item instanceof FileSendPacketSplit) FileSendPacketWrap.flush(item);
+        }
+        for (Object item : queue) {
+            if (item instanceof FileSendPacketSplit) FileSendPacketWrap.flush(item);
+        }
+        unacked.clear();
+        queue.clear();
+        resend.clear();
+        retransmitted.clear();
+        inMemory = 0;
+        remaining = 0;
+        receiver = null;
+        transfer = -1;
+        opened = false;
+        credit = -1;
+        resumable = false;
+        checked = false;
+        windowGranted = false;
+        done = false;
+        held.clear();
+        released += owed;
+        owed = 0;
+        receiverLostAt = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * Aborts the relay if its sender or receiver has been detached for longer than the given time.
+     * @param timeout in milis.
+     * @return true if aborted now.
+     */
+    public synchronized boolean expire(long timeout) {
+        long now = System.currentTimeMillis();
+        if (aborted) return false;
+        if ((senderLostAt == 0 || now - senderLostAt < timeout) && (receiverLostAt == 0 || now - receiverLostAt < timeout)) return false;
+        abort();
+        return true;
+    }
+
+    /**
+     * @return true if the sender is detached and expected to resume.
+     */
+    public synchronized boolean isSenderLost() {
+        return senderLostAt != 0;
+    }
+
+    /**
+     * @return series received from the sender but the final one, see 'TransferResumePacket'.
+     */
+    public synchronized byte[] getReceived() {
+        BitSet r = (BitSet) received.clone();
+        int l = FileSendPacketWrap.getLength(uid);
+        if (l > 0) r.clear(l - 1);
+        byte[] have = new byte[(Math.max(l, 0) + 7) / 8];
+        byte[] bits = r.toByteArray();
+        System.arraycopy(bits, 0, have, 0, Math.min(bits.length, have.length));
+        return have;
+    }
+
+    /**
+     * Holds back the credit of a chunk just handled from the sender if the receiver is behind,
+     * I.E. a window's worth of splits, spooled or in memory, is waiting for it.
+     * @return true if held, the caller must not grant it; it is handed back by 'poll()'.
+     */
+    public synchronized boolean holdCredit() {
+        if (senderTransfer == -1 || receiver == null || aborted || done || queue.size() < window) return false;
+        owed++;
+        return true;
+    }
+
+    /**
+     * @return held credit of the sender that may be handed back now, reset to 0.
+     */
+    public synchronized int takeReleased() {
+        int r = released;
+        released = 0;
+        return r;
+    }
+
+    /**
+     * Marks that a 'FileSendRequestPacket' was sent for this file.
+     * @return false if it was already marked.
+     */
+    public synchronized boolean markOffered() {
+        if (offered) return false;
+        offered = true;
+        return true;
+    }
+
+    public synchronized boolean isOffered() {
+        return offered;
+    }
+
+    public synchronized boolean isAborted() {
+        return aborted;
+    }
+
+    /**
+     * @return true if the relay was aborted as a spooled split could not be read back, see 'poll()';
+     * the caller must then give up the file on both sides.
+     */
+    public synchronized boolean isFailed() {
+        return failed;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    public synchronized int getReceiverID() {
+        return receiver == null ? -1 : receiver.getID();
+    }
+
+    public synchronized int getSenderID() {
+        return sender;
+    }
+
+    public synchronized int getSenderTransfer() {
+        return senderTransfer;
+    }
+
+    public synchronized int getTransfer() {
+        return transfer;
+    }
+
+    public String getUID() {
+        return uid;
+    }
+
+    public String getSenderUID() {
+        return senderUID;
+    }
+}
@@ -0,0 +1,341 @@
+package net;
+
+import com.esotericsoftware.kryonet.Connection;
+import net.packet.FileChunkPacket;
+import net.packet.TransferOpenPacket;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Sends the packets of one connection, keeping its TCP write buffer filled up to a high water mark
+ * instead of sending a single object per 'idle()' callback.
+ * Packets come from 'Source's, usually one per transfer, and are interleaved one packet at a time,
+ * so a large transfer does not hold back others queued behind it.
+ * Which source sends next is chosen by a priority, E.G. 'SMALLEST_REMAINING' so a small file
+ * finishes right away during bulk traffic; sources of equal priority are served round-robin.
+ * 'pump()' is invoked whenever a source has something new and whenever the connection is idle;
+ * it returns once the write buffer reached the high water mark or no source has a packet ready.
+ * Once a source is finished its 'IdleOnFinish' is invoked.
+ * Chunks of transfers carried by the connection's 'UdpChannel' are handed to it instead of the write buffer,
+ * and chunks of striped transfers go to whichever connection of the session has the emptiest write buffer,
+ * taking turns while they are even; see 'setStripes()'.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ */
+public class SendPump {
+
+    /**
+     * Packets to be sent by a 'SendPump'.
+     */
+    public interface Source {
+
+        /**
+         * @return the next packet to send, or null if none is ready yet.
+         */
+        Object poll();
+
+        /**
+         * @return true once every packet of this source has been returned by 'poll()'.
+         */
+        boolean isFinished();
+
+        /**
+         * @return amount of packets left to send, used by 'SMALLEST_REMAINING'.
+         */
+        long remaining();
+    }
+
+    /**
+     * Serves the source with the least packets left first, chunks of one connection are of similar size.
+     * A steady stream of small transfers may hold back a large one until it calms down.
+     */
+    public static final Comparator<Source> SMALLEST_REMAINING = Comparator.comparingLong(Source::remaining);
+
+    /**
+     * A 'Source' that packets are added to from any thread, see 'SendPump.open()'.
+     */
+    public class Queue implements Source {
+
+        private final ArrayDeque<Object> packets = new ArrayDeque<>();
+        private boolean closed = false;
+
+        /**
+         * Packets expected to be sent in total and packets polled so far.
+         */
+        private final long expected;
+        private long polled = 0;
+
+        private Queue(long expected) {
+            this.expected = expected;
+        }
+
+        /**
+         * Queues a packet and sends what fits into the write buffer.
+         * @param packet to send.
+         */
+        public void add(Object packet) {
+            synchronized (this) {
+                packets.add(packet);
+            }
+            pump();
+        }
+
+        /**
+         * Marks the queue as complete, it finishes once all queued packets have been sent.
+         */
+        public void close() {
+            synchronized (this) {
+                closed = true;
+            }
+            pump();
+        }
+
+        /**
+         * @return amount of packets not sent yet.
+         */
+        public synchronized int size() {
+            return packets.size();
+        }
+
+        @Override
+        public synchronized Object poll() {
+            Object packet = packets.poll();
+            if (packet != null) polled++;
+            return packet;
+        }
+
+        @Override
+        public synchronized boolean isFinished() {
+            return closed && packets.isEmpty();
+        }
+
+        @Override
+        public synchronized long remaining() {
+            return Math.max(packets.size(), expected - polled);
+        }
+    }
+
+    private static class Entry {
+        private final Source source;
+        private final IdleOnFinish listener;
+
+        private Entry(Source source, IdleOnFinish listener) {
+            this.source = source;
+            this.listener = listener;
+        }
+    }
+
+    private final Connection connection;
+
+    /**
+     * Bytes in the write buffer at which sending stops until the next 'pump()'.
+     * Must leave room for one more object.
+     */
+    private final int highWater;
+
+    /**
+     * Order sources are served in, null for plain round-robin.
+     */
+    private final Comparator<Source> priority;
+
+    /**
+     * Sources with packets left, in the order they are served.
+     */
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+
+    /**
+     * Takes the chunks of transfers agreed on over UDP, null if none; see 'setDatagrams()'.
+     */
+    private volatile UdpChannel datagrams;
+
+    /**
+     * Auxiliary connections of the session that chunks of striped transfers are spread over, null if none;
+     * and the length of every striped transfer by ID, learned from its header and forgotten on its final chunk.
+     */
+    private volatile Connection[] stripes;
+    private final HashMap<Integer, Integer> striped = new HashMap<>();
+
+    /**
+     * Connection the next chunk of a striped transfer goes to if the write buffers are even, see 'route()'.
+     */
+    private int turn = 0;
+
+    /**
+     * @param connection to send on.
+     * @param highWater bytes in the write buffer at which to stop sending.
+     */
+    public SendPump(Connection connection, int highWater) {
+        this(connection, highWater, null);
+    }
+
+    /**
+     * @param connection to send on.
+     * @param highWater bytes in the write buffer at which to stop sending.
+     * @param priority order to serve sources in, E.G. 'SMALLEST_REMAINING'; null for round-robin.
+     */
+    public SendPump(Connection connection, int highWater, Comparator<Source> priority) {
+        this.connection = connection;
+        this.highWater = highWater;
+        this.priority = priority;
+    }
+
+    /**
+     * Adds a source to be served and sends what fits into the write buffer.
+     * @param source of packets.
+     * @param listener invoked once the source is finished, may be null.
+     */
+    public void add(Source source, IdleOnFinish listener) {
+        synchronized (this) {
+            entries.add(new Entry(source, listener));
+        }
+        pump();
+    }
+
+    /**
+     * @param source of packets.
+     * @return true if the source was added and is not finished yet, or finished since the last 'pump()'.
+     */
+    public synchronized boolean contains(Source source) {
+        for (Entry entry : entries) {
+            if (entry.source == source) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Opens a queue to add packets of one transfer to.
+     * @param expected amount of packets the transfer will add, see 'Source.remaining()'.
+     * @param listener invoked once the queue is closed and sent, may be null.
+     * @return the queue.
+     */
+    public Queue open(long expected, IdleOnFinish listener) {
+        Queue queue = new Queue(expected);
+        add(queue, listener);
+        return queue;
+    }
+
+    /**
+     * Sends a single packet in turn with other sources.
+     * @param packet to send.
+     * @param listener invoked once the packet was handed to the write buffer, may be null.
+     */
+    public void send(Object packet, IdleOnFinish listener) {
+        Queue queue = new Queue(1);
+        queue.packets.add(packet);
+        queue.closed = true;
+        add(queue, listener);
+    }
+
+    /**
+     * Sends packets of the queued sources, one at a time in order of priority, until the write buffer
+     * reached the high water mark or none of them has a packet ready.
+     * A source that sent is moved behind the others, so equal priorities take turns.
+     * @return amount of packets sent.
+     */
+    public int pump() {
+        ArrayList<Entry> finished = null;
+        int sent = 0;
+        synchronized (this) {
+            while (!entries.isEmpty() && connection.isConnected() && connection.getTcpWriteBufferSize() < highWater) {
+                Entry[] order = entries.toArray(new Entry[0]);
+                //stable, ties keep their round-robin order
+                if (priority != null) Arrays.sort(order, (a, b) -> priority.compare(a.source, b.source));
+                Entry served = null;
+                for (Entry entry : order) {
+                    Object packet = entry.source.poll();
+                    if (entry.source.isFinished()) {
+                        entries.remove(entry);
+                        if (finished == null) finished = new ArrayList<>();
+                        finished.add(entry);
+                    }
+                    if (packet != null) {
+                        UdpChannel udp = datagrams;
+                        if (udp != null && udp.carries(packet)) udp.send(packet);
+                        else route(packet).sendTCP(packet);
+                        sent++;
+                        served = entry;
+                        break;
+                    }
+                }
+                if (served == null) break;
+                if (entries.remove(served)) entries.add(served);
+            }
+        }
+        //outside the lock, listeners may queue more packets
+        if (finished != null) {
+            for (Entry entry : finished) {
+                if (entry.listener != null) entry.listener.onFinish();
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Sends the chunks of the transfers a channel carries over it from now on.
+     * @param datagrams the connection's channel, null to send everything on TCP.
+     */
+    public void setDatagrams(UdpChannel datagrams) {
+        this.datagrams = datagrams;
+    }
+
+    /**
+     * Spreads the chunks of striped transfers over the given connections as well, from their next header on;
+     * see 'TransferOpenPacket.striped'. Everything else stays on the main connection, which is
+     * the only one whose write buffer stops 'pump()': a chunk only goes to another connection while
+     * that one is emptier, so none fills up further.
+     * @param stripes auxiliary connections of the session, null or empty to send everything on the main one.
+     */
+    public void setStripes(Connection[] stripes) {
+        this.stripes = stripes == null || stripes.length == 0 ? null : stripes;
+    }
+
+    /**
+     * @return the connection to send a packet on.
+     */
+    private Connection route(Object packet) {
+        Connection[] s = stripes;
+        if (packet instanceof TransferOpenPacket) {
+            TransferOpenPacket header = (TransferOpenPacket) packet;
+            if (s != null && header.transfer != null && header.length != null && Boolean.TRUE.equals(header.striped)) {
+                striped.put(header.transfer, header.length);
+            }
+            return connection;
+        }
+        if (!(packet instanceof FileChunkPacket)) return connection;
+        FileChunkPacket chunk = (FileChunkPacket) packet;
+        Integer length = striped.get(chunk.transfer);
+        if (length == null) return connection;
+        if (chunk.series + 1 >= length) striped.remove(chunk.transfer);
+        if (s == null) return connection;
+        //ties taken in turn, the kernel often takes everything so that every write buffer is empty
+        turn = (turn + 1) % (s.length + 1);
+        Connection emptiest = null;
+        for (int i = 0; i <= s.length; i++) {
+            int at = (turn + i) % (s.length + 1);
+            Connection c = at == s.length ? connection : s[at];
+            if (!c.isConnected()) continue;
+            if (emptiest == null || c.getTcpWriteBufferSize() < emptiest.getTcpWriteBufferSize()) emptiest = c;
+        }
+        return emptiest == null ? connection : emptiest;
+    }
+
+    /**
+     * Drops all sources without invoking their listeners, used once the connection closed.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        striped.clear();
+    }
+
+    /**
+     * @return amount of sources not finished yet.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,462 @@
+package net;
+
+import net.packet.ContinueSplitPacket;
+import net.packet.FileChunkPacket;
+import net.packet.FileChunkPacketV2;
+import net.packet.FileSendPacketSplit;
+import net.packet.RetransmitPacket;
+import net.packet.TransferOpenPacket;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+/**
+ * Split transfers open on one connection, see 'TransferOpenPacket'.
+ * Hands out IDs for transfers this side sends, and keeps the header of every transfer
+ * the other side opened so its 'FileChunkPacket's can be turned back into 'FileSendPacketSplit's.
+ * Only the first split of a transfer gets the file name and size, like senders always did,
+ * so the header is not parsed again for every split.
+ * Also keeps the credit of both directions, see 'ContinueSplitPacket': the chunks handled of every
+ * transfer the other side sends, handed back as credit in batches and in full on the final chunk,
+ * and the credit the other side granted for every transfer this side sends.
+ * Credit granted after the window of a transfer this side sends acknowledges its chunks, so the
+ * sender learns once every chunk arrived; see 'grant()'.
+ * Chunks of 'FileChunkPacketV2' that do not match their checksum are asked for again, see 'check()',
+ * and the final chunk of their transfer is held back until they arrived, see 'defer()'.
+ * Chunks of striped transfers are put back in series order, see 'order()'.
+ * A chunk with a series outside the length of its transfer cancels the transfer, see 'cancelled()'.
+ * All methods are thread-safe.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ */
+public class TransferTable {
+
+    /**
+     * Headers of transfers opened by the other side, by transfer ID.
+     */
+    private final HashMap<Integer, TransferOpenPacket> open = new HashMap<>();
+
+    /**
+     * Chunks handled of every transfer the other side opened, since credit was last granted for it.
+     */
+    private final HashMap<Integer, Integer> handled = new HashMap<>();
+
+    /**
+     * Credit left of every transfer this side sends with 'nextSendID()', until finished.
+     */
+    private final HashMap<Integer, Integer> credits = new HashMap<>();
+
+    /**
+     * Chunks sent and not acknowledged yet of every transfer this side sends, until all are,
+     * and the transfers that were granted their window already.
+     */
+    private final HashMap<Integer, Integer> unacked = new HashMap<>();
+    private final HashSet<Integer> windowed = new HashSet<>();
+
+    /**
+     * Series asked for again of every transfer the other side opened, see 'RetransmitPacket',
+     * and its final chunk if held back until they arrived.
+     */
+    private final HashMap<Integer, BitSet> retransmits = new HashMap<>();
+    private final HashMap<Integer, FileChunkPacket> deferred = new HashMap<>();
+
+    /**
+     * Next series expected of every striped transfer the other side opened, the chunks of it
+     * that arrived ahead of that series, and the credit it was granted; see 'order()'.
+     */
+    private final HashMap<Integer, Integer> nextSeries = new HashMap<>();
+    private final HashMap<Integer, TreeMap<Integer, FileChunkPacket>> ahead = new HashMap<>();
+    private final HashMap<Integer, Integer> windows = new HashMap<>();
+
+    /**
+     * File UIDs of the transfers the other side opened that were cancelled for a chunk out of range,
+     * until taken by 'cancelled()'.
+     */
+    private final HashMap<Integer, String> cancelled = new HashMap<>();
+
+    /**
+     * Next ID for a transfer sent from this side.
+     */
+    private int next = 0;
+
+    /**
+     * @return a new ID for a transfer sent from this side.
+     */
+    public synchronized int nextID() {
+        return next++;
+    }
+
+    /**
+     * Credit is only kept for transfers opened this way, credit granted after 'finish()'
+     * (the rest handed back on the final chunk) only acknowledges chunks.
+     * @return a new ID for a transfer sent from this side under credit, see 'acquire()'.
+     */
+    public synchronized int nextSendID() {
+        int id = next++;
+        credits.put(id, 0);
+        unacked.put(id, 0);
+        return id;
+    }
+
+    /**
+     * Adds credit the other side granted for a transfer this side sends.
+     * The first grant is the transfer's window, every grant after it acknowledges as many chunks.
+     * @param transfer ID of the transfer.
+     * @param credit amount of chunks.
+     * @return true if the transfer was finished and this acknowledged its last chunk, it is forgotten then.
+     */
+    public synchronized boolean grant(int transfer, int credit) {
+        Integer u = unacked.get(transfer);
+        if (u == null) return false;
+        if (!windowed.add(transfer)) unacked.put(transfer, u -= credit);
+        if (credits.containsKey(transfer)) {
+            credits.merge(transfer, credit, Integer::sum);
+            notifyAll();
+            return false;
+        }
+        if (u > 0) return false;
+        unacked.remove(transfer);
+        windowed.remove(transfer);
+        return true;
+    }
+
+    /**
+     * Takes one credit of a transfer this side sends, waiting for it to be granted if needed.
+     * @param transfer ID of the transfer.
+     * @param timeout in milis.
+     * @return false if no credit was granted in time.
+     */
+    public synchronized boolean acquire(int transfer, long timeout) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeout;
+        int c;
+        while ((c = credits.getOrDefault(transfer, 0)) == 0) {
+            long left = end - System.currentTimeMillis();
+            if (left <= 0) return false;
+            wait(left);
+        }
+        credits.put(transfer, c - 1);
+        unacked.merge(transfer, 1, Integer::sum);
+        return true;
+    }
+
+    /**
+     * Forgets the credit of a transfer this side finished sending, its chunks are still acknowledged.
+     * @param transfer ID of the transfer.
+     */
+    public synchronized void finish(int transfer) {
+        credits.remove(transfer);
+    }
+
+    /**
+     * Forgets a transfer this side gave up sending.
+     * @param transfer ID of the transfer.
+     */
+    public synchronized void cancel(int transfer) {
+        credits.remove(transfer);
+        unacked.remove(transfer);
+        windowed.remove(transfer);
+    }
+
+    /**
+     * Counts a handled chunk of a transfer the other side sends.
+     * Credit is handed back in batches rather than per chunk; a batch must not be larger than
+     * the credit granted when the transfer was opened.
+     * The final chunk hands back all credit not handed back yet, so the sender hears of every chunk,
+     * see 'ChunkSizer'.
+     * @param transfer ID of the transfer.
+     * @param batch amount of handled chunks to grant at once.
+     * @param last true if the chunk was the final one of the transfer.
+     * @return credit to grant now, 0 if none.
+     */
+    public synchronized int handled(int transfer, int batch, boolean last) {
+        if (last) {
+            Integer n = handled.remove(transfer);
+            return n == null ? 1 : n + 1;
+        }
+        if (!open.containsKey(transfer)) return 0;
+        int n = handled.merge(transfer, 1, Integer::sum);
+        if (n < batch) return 0;
+        handled.put(transfer, 0);
+        return n;
+    }
+
+    /**
+     * Records a transfer opened by the other side, replacing any with the same ID.
+     * @param header received.
+     * @param window credit granted for the transfer, bounds the chunks of a striped one held ahead; see 'order()'.
+     */
+    public synchronized void open(TransferOpenPacket header, int window) {
+        if (header.transfer == null) return;
+        open.put(header.transfer, header);
+        cancelled.remove(header.transfer);
+        handled.remove(header.transfer);
+        ahead.remove(header.transfer);
+        if (Boolean.TRUE.equals(header.striped)) {
+            nextSeries.put(header.transfer, 0);
+            windows.put(header.transfer, window);
+        } else {
+            nextSeries.remove(header.transfer);
+            windows.remove(header.transfer);
+        }
+    }
+
+    /**
+     * Rebuilds the split a chunk stands for, closing the transfer on its final chunk.
+     * The count of its handled chunks is kept for the final 'handled()'.
+     * A chunk with a series out of range cancels its transfer.
+     * @param chunk received.
+     * @return the split, or null if the transfer was never opened or was cancelled, see 'cancelled()'.
+     */
+    public synchronized FileSendPacketSplit toSplit(FileChunkPacket chunk) {
+        TransferOpenPacket h = open.get(chunk.transfer);
+        if (h == null) return null;
+        if (!inRange(h, chunk.series)) {
+            refuse(chunk.transfer);
+            return null;
+        }
+        FileSendPacketSplit split = new FileSendPacketSplit();
+        split.pin = h.pin;
+        split.senderUID = h.senderUID;
+        split.fileUID = h.fileUID;
+        split.isZip = h.isZip;
+        split.length = h.length;
+        split.series = chunk.series;
+        split.finalPacket = chunk.series + 1 == h.length;
+        split.content = chunk.content;
+        split.contentParams = chunk.contentParams;
+        if (chunk.series == 0) {
+            split.fileName = h.fileName;
+            split.fileNameParams = h.fileNameParams;
+            split.fileSize = h.fileSize;
+            split.fileSizeParams = h.fileSizeParams;
+        }
+        if (split.finalPacket) open.remove(chunk.transfer);
+        return split;
+    }
+
+    /**
+     * @param transfer ID of a transfer the other side opened.
+     */
+    public synchronized void close(int transfer) {
+        open.remove(transfer);
+        handled.remove(transfer);
+        retransmits.remove(transfer);
+        deferred.remove(transfer);
+        nextSeries.remove(transfer);
+        ahead.remove(transfer);
+        windows.remove(transfer);
+    }
+
+    /**
+     * Takes the file of a transfer cancelled by 'toSplit()' or 'order()', nothing more of it is handled;
+     * the caller gives up the file.
+     * @param transfer ID of a transfer the other side opened.
+     * @return UID of its file, or null if it was not cancelled.
+     */
+    public synchronized String cancelled(int transfer) {
+        return cancelled.remove(transfer);
+    }
+
+    /**
+     * Closes a transfer the other side sent a chunk out of range for, see 'cancelled()'.
+     */
+    private void refuse(int transfer) {
+        TransferOpenPacket h = open.get(transfer);
+        close(transfer);
+        if (h != null && h.fileUID != null) cancelled.put(transfer, h.fileUID);
+    }
+
+    /**
+     * @return true if the series is one of the transfer of the header, I.E. within [0, length),
+     * and the length is one a file can have, see 'TransferMeta.MAX_LENGTH'.
+     */
+    private static boolean inRange(TransferOpenPacket h, int series) {
+        return h.length != null && h.length <= TransferMeta.MAX_LENGTH && series >= 0 && series < h.length;
+    }
+
+    /**
+     * Puts the chunks of a striped transfer the other side opened back in series order, they arrive
+     * out of order over the connections of the session; see 'TransferOpenPacket.striped'.
+     * Chunks of other transfers, and chunks sent again after their series was handed on, pass straight through.
+     * A chunk with a series out of range cancels its transfer, as does one further ahead of the next series
+     * than the credit granted for the transfer allows, so a sender can not fill memory by skipping a series.
+     * What is returned must be handled before the next chunk is ordered.
+     * @param chunk received.
+     * @return the chunks to handle now in series order, empty if the chunk came ahead of others
+     * or its transfer was cancelled, see 'cancelled()'.
+     */
+    public synchronized List<FileChunkPacket> order(FileChunkPacket chunk) {
+        Integer next = nextSeries.get(chunk.transfer);
+        if (next == null) return Collections.singletonList(chunk);
+        TransferOpenPacket h = open.get(chunk.transfer);
+        if (h == null || !inRange(h, chunk.series) || chunk.series - next >= windows.getOrDefault(chunk.transfer, 0)) {
+            refuse(chunk.transfer);
+            return Collections.emptyList();
+        }
+        if (chunk.series < next) return Collections.singletonList(chunk);
+        TreeMap<Integer, FileChunkPacket> waiting = ahead.computeIfAbsent(chunk.transfer, t -> new TreeMap<>());
+        waiting.put(chunk.series, chunk);
+        ArrayList<FileChunkPacket> ready = new ArrayList<>();
+        FileChunkPacket c;
+        while ((c = waiting.remove(next)) != null) {
+            ready.add(c);
+            next++;
+        }
+        if (waiting.isEmpty()) ahead.remove(chunk.transfer);
+        if (next >= h.length) {
+            nextSeries.remove(chunk.transfer);
+            windows.remove(chunk.transfer);
+        }
+        else nextSeries.put(chunk.transfer, next);
+        return ready;
+    }
+
+    /**
+     * Checks a chunk of a transfer the other side opened against its checksum, if it carries one.
+     * A corrupted chunk must be dropped without granting credit for it, and is asked for again;
+     * an intact one is no longer waited for. A chunk of an unknown transfer or out of range passes, it is
+     * dropped by 'toSplit()'.
+     * @param chunk received.
+     * @return the packet asking for the chunk again, or null if it is intact.
+     */
+    public synchronized RetransmitPacket check(FileChunkPacket chunk) {
+        TransferOpenPacket h = open.get(chunk.transfer);
+        if (h == null || !inRange(h, chunk.series)) return null;
+        if (chunk instanceof FileChunkPacketV2 && ((FileChunkPacketV2) chunk).checksum != checksum(chunk.content, chunk.contentParams)) {
+            retransmits.computeIfAbsent(chunk.transfer, t -> new BitSet()).set(chunk.series);
+            RetransmitPacket p = new RetransmitPacket();
+            p.transfer = chunk.transfer;
+            p.series = chunk.series;
+            return p;
+        }
+        BitSet waiting = retransmits.get(chunk.transfer);
+        if (waiting != null) {
+            waiting.clear(chunk.series);
+            if (waiting.isEmpty()) retransmits.remove(chunk.transfer);
+        }
+        return null;
+    }
+
+    /**
+     * Holds back the final chunk of a transfer while chunks of it are asked for again,
+     * so the file is only complete once they arrived.
+     * @param chunk received and checked.
+     * @return true if held, it is handed out by 'release()' once the last chunk asked for arrived.
+     */
+    public synchronized boolean defer(FileChunkPacket chunk) {
+        TransferOpenPacket h = open.get(chunk.transfer);
+        if (h == null || h.length == null || chunk.series + 1 != h.length || !retransmits.containsKey(chunk.transfer)) return false;
+        deferred.put(chunk.transfer, chunk);
+        return true;
+    }
+
+    /**
+     * @param transfer ID of a transfer the other side opened.
+     * @return its final chunk held back by 'defer()' if no chunk is asked for anymore, else null.
+     */
+    public synchronized FileChunkPacket release(int transfer) {
+        if (retransmits.containsKey(transfer)) return null;
+        return deferred.remove(transfer);
+    }
+
+    /**
+     * @return amount of transfers the other side has open.
+     */
+    public synchronized int size() {
+        return open.size();
+    }
+
+    /**
+     * @param transfer ID of the transfer.
+     * @param credit amount of chunks.
+     * @return a packet granting the credit.
+     */
+    public static ContinueSplitPacket credit(int transfer, int credit) {
+        ContinueSplitPacket p = new ContinueSplitPacket();
+        p.transfer = transfer;
+        p.credit = credit;
+        return p;
+    }
+
+    /**
+     * Creates the header of a transfer from any split of it.
+     * The file name and size are only known if the split is the first one.
+     * @param transfer ID of the transfer.
+     * @param split of the file.
+     * @return the header.
+     */
+    public static TransferOpenPacket header(int transfer, FileSendPacketSplit split) {
+        TransferOpenPacket h = new TransferOpenPacket();
+        h.transfer = transfer;
+        h.pin = split.pin;
+        h.senderUID = split.senderUID;
+        h.fileUID = split.fileUID;
+        h.fileName = split.fileName;
+        h.fileNameParams = split.fileNameParams;
+        h.fileSize = split.fileSize;
+        h.fileSizeParams = split.fileSizeParams;
+        h.isZip = split.isZip;
+        h.length = split.length;
+        return h;
+    }
+
+    /**
+     * @param transfer ID of the transfer.
+     * @param split to send.
+     * @return the chunk carrying the split's content.
+     */
+    public static FileChunkPacket chunk(int transfer, FileSendPacketSplit split) {
+        FileChunkPacket c = new FileChunkPacket();
+        c.transfer = transfer;
+        c.series = split.series;
+        c.content = split.content;
+        c.contentParams = split.contentParams;
+        return c;
+    }
+
+    /**
+     * @param transfer ID of the transfer.
+     * @param split to send.
+     * @return the chunk carrying the split's content and its checksum.
+     */
+    public static FileChunkPacketV2 checkedChunk(int transfer, FileSendPacketSplit split) {
+        return checked(chunk(transfer, split), null);
+    }
+
+    /**
+     * Adds a checksum to a chunk.
+     * @param chunk to send.
+     * @param checksum of its content, E.G. stored with a spooled split; computed if null.
+     * @return the chunk as a 'FileChunkPacketV2'.
+     */
+    public static FileChunkPacketV2 checked(FileChunkPacket chunk, Integer checksum) {
+        FileChunkPacketV2 c = new FileChunkPacketV2();
+        c.transfer = chunk.transfer;
+        c.series = chunk.series;
+        c.content = chunk.content;
+        c.contentParams = chunk.contentParams;
+        c.checksum = checksum != null ? checksum : checksum(chunk.content, chunk.contentParams);
+        return c;
+    }
+
+    /**
+     * CRC32C of a split's content followed by its params, which the JVM computes with the CPU's CRC32C
+     * instructions where there are any.
+     * @param content of the split, may be null.
+     * @param contentParams of the split, may be null.
+     * @return the checksum.
+     */
+    public static int checksum(byte[] content, byte[] contentParams) {
+        CRC32C crc = new CRC32C();
+        if (content != null) crc.update(content);
+        if (contentParams != null) crc.update(contentParams);
+        return (int) crc.getValue();
+    }
+}
@@ -1,4 +1,28 @@
 package net.packet;
 
+/**
+ * Grants credit for a split transfer: the side receiving the transfer's 'FileChunkPacket's
+ * allows the sending side to have 'credit' more chunks of it in flight.
+ * Sent once the 'TransferOpenPacket' is handled and again as chunks are handled.
+ * Only exchanged with peers that negotiated 'ConnectRequestPacketV2.PROTOCOL_CREDITS';
+ * older clients never sent nor received this packet, so its format is free to change.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ **/
 public class ContinueSplitPacket {
+    public Integer transfer;
+    public Integer credit;
+
+    /**
+     * True in the first grant if the receiving side takes the chunks over the UDP data channel
+     * proposed by 'TransferOpenPacket.datagram'.
+     */
+    public Boolean datagram;
+
+    /**
+     * True in the first grant if the receiving side also takes parity with the datagrams,
+     * as proposed by 'TransferOpenPacket.parity'.
+     */
+    public Boolean parity;
 }
@@ -0,0 +1,14 @@
+package net.packet;
+
+/**
+ * Acknowledges 'DatagramSegmentPacket's received on the UDP data channel, see 'net.UdpChannel'.
+ * 'ranges' holds pairs of the first and last sequence number of a run received, the highest run first.
+ * Gaps between the runs are the datagrams still missing, the sender takes them as lost
+ * once enough datagrams sent after them arrived.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ **/
+public class DatagramAckPacket {
+    public long[] ranges;
+}
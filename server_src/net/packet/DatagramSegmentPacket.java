@@ -0,0 +1,18 @@
+package net.packet;
+
+/**
+ * Part of a packet sent over the UDP data channel of a connection, see 'net.UdpChannel'.
+ * Chunks of transfers both sides agreed to carry there, see 'TransferOpenPacket.datagram', are cut into
+ * segments small enough for one datagram: segment 'index' of 'count' of the 'message'th packet sent.
+ * Every datagram has a sequence number of its own, a segment sent again gets a new one,
+ * so an acknowledgement always tells which send arrived; see 'DatagramAckPacket'.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ **/
+public class DatagramSegmentPacket {
+    public long seq;
+    public int message;
+    public int index, count;
+    public byte[] data;
+}
@@ -0,0 +1,20 @@
+package net.packet;
+
+/**
+ * Advertises an endpoint a client takes split files on directly, sent to a peer through the server
+ * once a handshake with it completed; see 'ConnectRequestPacketV2.PROTOCOL_DIRECT'.
+ * The peer connects to one of 'hosts' on 'port' and opens with a 'DirectHelloPacket' carrying 'token',
+ * then offers files and sends their chunks the way the server would. If that fails it relays them as usual.
+ * The server adds the address it sees the client at to 'hosts', and only forwards the packet
+ * between peers that negotiated 'ConnectRequestPacketV2.PROTOCOL_DIRECT'.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ **/
+public class DirectEndpointPacket {
+    public String UID; //of the peer it is for
+    public String senderUID; //assigned by server
+    public String[] hosts;
+    public Integer port;
+    public String token;
+}
@@ -0,0 +1,14 @@
+package net.packet;
+
+/**
+ * First packet on a direct connection between two clients, see 'DirectEndpointPacket'.
+ * Carries the UID of the connecting client and the token the other client advertised to it;
+ * the connection is closed if they do not match.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ **/
+public class DirectHelloPacket {
+    public String UID;
+    public String token;
+}
@@ -0,0 +1,16 @@
+package net.packet;
+
+/**
+ * One part of a split transfer opened by a 'TransferOpenPacket'.
+ * Only carries what differs between parts; the final part is the one with
+ * 'series + 1 == length' of its transfer.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ **/
+public class FileChunkPacket {
+    public int transfer;
+    public int series;
+    public byte[] content;
+    public byte[] contentParams;
+}
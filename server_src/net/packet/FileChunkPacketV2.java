@@ -0,0 +1,13 @@
+package net.packet;
+
+/**
+ * Sent instead of 'FileChunkPacket' to and by clients that speak 'ConnectRequestPacketV2.PROTOCOL_CHECKSUM'.
+ * Carries the CRC32C of 'content' followed by 'contentParams', see 'net.TransferTable.checksum()'.
+ * A chunk that does not match is dropped and asked for again with a 'RetransmitPacket'.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ **/
+public class FileChunkPacketV2 extends FileChunkPacket {
+    public int checksum;
+}
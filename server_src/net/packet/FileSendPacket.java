@@ -14,10 +14,10 @@ package net.packet;
  **/
 public class FileSendPacket {
     public String pin;
-    public Byte[] content;
-    public Byte[] contentParams;
-    public Byte[] fileName, fileNameParams;
-    public Byte[] fileSize, fileSizeParams;
+    public byte[] content;
+    public byte[] contentParams;
+    public byte[] fileName, fileNameParams;
+    public byte[] fileSize, fileSizeParams;
     public String fileUID;
     public String senderUID; //assigned by server
     public Boolean isZip;
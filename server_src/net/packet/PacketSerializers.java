@@ -0,0 +1,877 @@
+package net.packet;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * Registers every packet with a fixed ID and a hand-written 'Serializer', for both 'BinServer' and 'BinClient'.
+ * IDs are the ones registration order used to hand out, IDs below 14 belong to Kryo and KryoNet.
+ * Never reuse or renumber an ID; new packets take the next free one.
+ *
+ * Packets that clients without 'ConnectRequestPacketV2' also use (control packets and 'net.packet.legacy')
+ * are written byte for byte the way Kryo's 'FieldSerializer' writes them: fields sorted by name,
+ * a not-null byte before boxed values, zig-zag varints and boxed 'Byte[]' elements.
+ * 'ContinueSplitPacket' is the exception, those clients never sent nor received it.
+ * Packets only sent between 'ConnectRequestPacketV2' peers use a compact format:
+ * a varint mask of the fields present (and of 'Boolean' values), then only those fields,
+ * with positive varints for numbers and raw runs for 'byte[]'.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ */
+public class PacketSerializers {
+
+    /**
+     * Registers all packets and the array types they use.
+     * @param kryo of a 'Server' or 'Client'.
+     */
+    public static void register(Kryo kryo) {
+        kryo.register(ConnectRequestPacket.class, new ConnectRequestSerializer(), 14);
+        kryo.register(ConnectResponsePacket.class, new ConnectResponseSerializer(), 15);
+        kryo.register(DisconnectRequestPacket.class, new EmptySerializer<>(DisconnectRequestPacket::new), 16);
+        kryo.register(FileAcceptPacket.class, new FileAcceptSerializer(), 17);
+        kryo.register(FileRejectedPacket.class, new FileRejectedSerializer(), 18);
+        kryo.register(net.packet.legacy.FileSendPacket.class, new LegacyFileSendSerializer(), 19);
+        kryo.register(net.packet.legacy.FileSendPacketSplit.class, new LegacyFileSendSplitSerializer(), 20);
+        kryo.register(net.packet.legacy.FileSendRequestPacket.class, new LegacyFileSendRequestSerializer(), 21);
+        kryo.register(PinCheckResponsePacket.class, new PinCheckResponseSerializer(), 22);
+        kryo.register(PinCheckRequestPacket.class, new PinCheckRequestSerializer(), 23);
+        kryo.register(net.packet.legacy.PinUpdatePacket.class, new LegacyPinUpdateSerializer(), 24);
+        kryo.register(ContinueSplitPacket.class, new ContinueSplitSerializer(), 25);
+        kryo.register(net.packet.legacy.HandshakePacket.class, new LegacyHandshakeSerializer(), 26);
+        kryo.register(Byte[].class, 27);
+        kryo.register(String[].class, 28);
+        kryo.register(FileSendRequestBatchPacket.class, new FileSendRequestBatchSerializer(), 29);
+        kryo.register(FileSendRequestPacket[].class, 30);
+        kryo.register(byte[].class, 31);
+        kryo.register(ConnectRequestPacketV2.class, new ConnectRequestV2Serializer(), 32);
+        kryo.register(FileSendPacket.class, new FileSendSerializer(), 33);
+        kryo.register(FileSendPacketSplit.class, new FileSendSplitSerializer(), 34);
+        kryo.register(FileSendRequestPacket.class, new FileSendRequestSerializer(), 35);
+        kryo.register(HandshakePacket.class, new HandshakeSerializer(), 36);
+        kryo.register(PinUpdatePacket.class, new PinUpdateSerializer(), 37);
+        kryo.register(TransferOpenPacket.class, new TransferOpenSerializer(), 38);
+        kryo.register(FileChunkPacket.class, new FileChunkSerializer(), 39);
+        kryo.register(ConnectResponsePacketV2.class, new ConnectResponseV2Serializer(), 40);
+        kryo.register(TransferResumePacket.class, new TransferResumeSerializer(), 41);
+        kryo.register(FileChunkPacketV2.class, new FileChunkV2Serializer(), 42);
+        kryo.register(RetransmitPacket.class, new RetransmitSerializer(), 43);
+        kryo.register(DirectEndpointPacket.class, new DirectEndpointSerializer(), 44);
+        kryo.register(DirectHelloPacket.class, new DirectHelloSerializer(), 45);
+        kryo.register(DatagramSegmentPacket.class, new DatagramSegmentSerializer(), 46);
+        kryo.register(DatagramAckPacket.class, new DatagramAckSerializer(), 47);
+        kryo.register(DatagramParityPacket.class, new DatagramParitySerializer(), 48);
+        kryo.register(StripeHelloPacket.class, new StripeHelloSerializer(), 49);
+    }
+
+    /*
+     * 'FieldSerializer' compatible values.
+     */
+
+    private static void writeInteger(Output out, Integer v) {
+        out.writeByte(v == null ? 0 : 1);
+        if (v != null) out.writeVarInt(v, false);
+    }
+
+    private static Integer readInteger(Input in) {
+        return in.readByte() == 0 ? null : in.readVarInt(false);
+    }
+
+    private static void writeBoolean(Output out, Boolean v) {
+        out.writeByte(v == null ? 0 : 1);
+        if (v != null) out.writeBoolean(v);
+    }
+
+    private static Boolean readBoolean(Input in) {
+        return in.readByte() == 0 ? null : in.readBoolean();
+    }
+
+    private static void writeStrings(Output out, String[] v) {
+        if (v == null) {
+            out.writeVarInt(0, true);
+            return;
+        }
+        out.writeVarInt(v.length + 1, true);
+        for (String s : v) out.writeString(s);
+    }
+
+    private static String[] readStrings(Input in) {
+        int l = in.readVarInt(true);
+        if (l == 0) return null;
+        String[] v = new String[checkLength(in, l - 1)];
+        for (int i = 0; i < v.length; i++) v[i] = in.readString();
+        return v;
+    }
+
+    private static void writeBoxed(Output out, Byte[] v) {
+        if (v == null) {
+            out.writeVarInt(0, true);
+            return;
+        }
+        out.writeVarInt(v.length + 1, true);
+        for (Byte b : v) {
+            out.writeByte(b == null ? 0 : 1);
+            if (b != null) out.writeByte(b);
+        }
+    }
+
+    private static Byte[] readBoxed(Input in) {
+        int l = in.readVarInt(true);
+        if (l == 0) return null;
+        Byte[] v = new Byte[checkLength(in, l - 1)];
+        for (int i = 0; i < v.length; i++) v[i] = in.readByte() == 0 ? null : in.readByte();
+        return v;
+    }
+
+    /*
+     * Compact values, presence is kept in the mask of the packet.
+     */
+
+    private static int bit(Object v, int bit) {
+        return v == null ? 0 : bit;
+    }
+
+    private static int flag(Boolean v, int set, int on) {
+        return v == null ? 0 : (v ? set | on : set);
+    }
+
+    private static Boolean flag(int mask, int set, int on) {
+        return (mask & set) == 0 ? null : (mask & on) != 0;
+    }
+
+    private static void writeBytes(Output out, byte[] v) {
+        out.writeVarInt(v.length, true);
+        out.writeBytes(v);
+    }
+
+    private static byte[] readBytes(Input in) {
+        return in.readBytes(checkLength(in, in.readVarInt(true)));
+    }
+
+    /**
+     * Rejects a length that can not fit in what is left of the packet, so a corrupt length
+     * fails instead of allocating a huge array.
+     */
+    private static int checkLength(Input in, int l) {
+        if (l < 0 || (in.limit() > 0 && l > in.limit() - in.position() && in.getInputStream() == null)) {
+            throw new KryoException("Invalid length: " + l);
+        }
+        return l;
+    }
+
+    static class EmptySerializer<T> extends Serializer<T> {
+        private final java.util.function.Supplier<T> factory;
+
+        EmptySerializer(java.util.function.Supplier<T> factory) {
+            this.factory = factory;
+        }
+
+        public void write(Kryo kryo, Output out, T p) {
+        }
+
+        public T read(Kryo kryo, Input in, Class<? extends T> type) {
+            return factory.get();
+        }
+    }
+
+    static class ConnectRequestSerializer extends Serializer<ConnectRequestPacket> {
+        public void write(Kryo kryo, Output out, ConnectRequestPacket p) {
+            out.writeString(p.UID);
+        }
+
+        public ConnectRequestPacket read(Kryo kryo, Input in, Class<? extends ConnectRequestPacket> type) {
+            ConnectRequestPacket p = new ConnectRequestPacket();
+            p.UID = in.readString();
+            return p;
+        }
+    }
+
+    static class ConnectResponseSerializer extends Serializer<ConnectResponsePacket> {
+        public void write(Kryo kryo, Output out, ConnectResponsePacket p) {
+            out.writeString(p.PIN);
+            writeBoolean(out, p.allowed);
+            writeInteger(out, p.targetLength);
+        }
+
+        public ConnectResponsePacket read(Kryo kryo, Input in, Class<? extends ConnectResponsePacket> type) {
+            ConnectResponsePacket p = new ConnectResponsePacket();
+            p.PIN = in.readString();
+            p.allowed = readBoolean(in);
+            p.targetLength = readInteger(in);
+            return p;
+        }
+    }
+
+    static class FileAcceptSerializer extends Serializer<FileAcceptPacket> {
+        public void write(Kryo kryo, Output out, FileAcceptPacket p) {
+            writeStrings(out, p.UID);
+        }
+
+        public FileAcceptPacket read(Kryo kryo, Input in, Class<? extends FileAcceptPacket> type) {
+            FileAcceptPacket p = new FileAcceptPacket();
+            p.UID = readStrings(in);
+            return p;
+        }
+    }
+
+    static class FileRejectedSerializer extends Serializer<FileRejectedPacket> {
+        public void write(Kryo kryo, Output out, FileRejectedPacket p) {
+            writeStrings(out, p.UID);
+        }
+
+        public FileRejectedPacket read(Kryo kryo, Input in, Class<? extends FileRejectedPacket> type) {
+            FileRejectedPacket p = new FileRejectedPacket();
+            p.UID = readStrings(in);
+            return p;
+        }
+    }
+
+    static class PinCheckResponseSerializer extends Serializer<PinCheckResponsePacket> {
+        public void write(Kryo kryo, Output out, PinCheckResponsePacket p) {
+            out.writeString(p.UID);
+            writeBoolean(out, p.valid);
+        }
+
+        public PinCheckResponsePacket read(Kryo kryo, Input in, Class<? extends PinCheckResponsePacket> type) {
+            PinCheckResponsePacket p = new PinCheckResponsePacket();
+            p.UID = in.readString();
+            p.valid = readBoolean(in);
+            return p;
+        }
+    }
+
+    static class PinCheckRequestSerializer extends Serializer<PinCheckRequestPacket> {
+        public void write(Kryo kryo, Output out, PinCheckRequestPacket p) {
+            out.writeString(p.PIN);
+        }
+
+        public PinCheckRequestPacket read(Kryo kryo, Input in, Class<? extends PinCheckRequestPacket> type) {
+            PinCheckRequestPacket p = new PinCheckRequestPacket();
+            p.PIN = in.readString();
+            return p;
+        }
+    }
+
+    static class LegacyPinUpdateSerializer extends Serializer<net.packet.legacy.PinUpdatePacket> {
+        public void write(Kryo kryo, Output out, net.packet.legacy.PinUpdatePacket p) {
+            out.writeString(p.PIN);
+        }
+
+        public net.packet.legacy.PinUpdatePacket read(Kryo kryo, Input in, Class<? extends net.packet.legacy.PinUpdatePacket> type) {
+            net.packet.legacy.PinUpdatePacket p = new net.packet.legacy.PinUpdatePacket();
+            p.PIN = in.readString();
+            return p;
+        }
+    }
+
+    static class LegacyHandshakeSerializer extends Serializer<net.packet.legacy.HandshakePacket> {
+        public void write(Kryo kryo, Output out, net.packet.legacy.HandshakePacket p) {
+            out.writeString(p.UID);
+            writeBoxed(out, p.encryptedPubKey);
+            out.writeString(p.pin);
+            out.writeString(p.senderUID);
+        }
+
+        public net.packet.legacy.HandshakePacket read(Kryo kryo, Input in, Class<? extends net.packet.legacy.HandshakePacket> type) {
+            net.packet.legacy.HandshakePacket p = new net.packet.legacy.HandshakePacket();
+            p.UID = in.readString();
+            p.encryptedPubKey = readBoxed(in);
+            p.pin = in.readString();
+            p.senderUID = in.readString();
+            return p;
+        }
+    }
+
+    static class LegacyFileSendSerializer extends Serializer<net.packet.legacy.FileSendPacket> {
+        public void write(Kryo kryo, Output out, net.packet.legacy.FileSendPacket p) {
+            writeBoxed(out, p.content);
+            writeBoxed(out, p.contentParams);
+            writeBoxed(out, p.fileName);
+            writeBoxed(out, p.fileNameParams);
+            writeBoxed(out, p.fileSize);
+            writeBoxed(out, p.fileSizeParams);
+            out.writeString(p.fileUID);
+            writeBoolean(out, p.isZip);
+            out.writeString(p.pin);
+            out.writeString(p.senderUID);
+        }
+
+        public net.packet.legacy.FileSendPacket read(Kryo kryo, Input in, Class<? extends net.packet.legacy.FileSendPacket> type) {
+            net.packet.legacy.FileSendPacket p = new net.packet.legacy.FileSendPacket();
+            p.content = readBoxed(in);
+            p.contentParams = readBoxed(in);
+            p.fileName = readBoxed(in);
+            p.fileNameParams = readBoxed(in);
+            p.fileSize = readBoxed(in);
+            p.fileSizeParams = readBoxed(in);
+            p.fileUID = in.readString();
+            p.isZip = readBoolean(in);
+            p.pin = in.readString();
+            p.senderUID = in.readString();
+            return p;
+        }
+    }
+
+    static class LegacyFileSendSplitSerializer extends Serializer<net.packet.legacy.FileSendPacketSplit> {
+        public void write(Kryo kryo, Output out, net.packet.legacy.FileSendPacketSplit p) {
+            writeBoxed(out, p.content);
+            writeBoxed(out, p.contentParams);
+            writeBoxed(out, p.fileName);
+            writeBoxed(out, p.fileNameParams);
+            writeBoxed(out, p.fileSize);
+            writeBoxed(out, p.fileSizeParams);
+            out.writeString(p.fileUID);
+            writeBoolean(out, p.finalPacket);
+            writeBoolean(out, p.isZip);
+            writeInteger(out, p.length);
+            out.writeString(p.pin);
+            out.writeString(p.senderUID);
+            writeInteger(out, p.series);
+        }
+
+        public net.packet.legacy.FileSendPacketSplit read(Kryo kryo, Input in, Class<? extends net.packet.legacy.FileSendPacketSplit> type) {
+            net.packet.legacy.FileSendPacketSplit p = new net.packet.legacy.FileSendPacketSplit();
+            p.content = readBoxed(in);
+            p.contentParams = readBoxed(in);
+            p.fileName = readBoxed(in);
+            p.fileNameParams = readBoxed(in);
+            p.fileSize = readBoxed(in);
+            p.fileSizeParams = readBoxed(in);
+            p.fileUID = in.readString();
+            p.finalPacket = readBoolean(in);
+            p.isZip = readBoolean(in);
+            p.length = readInteger(in);
+            p.pin = in.readString();
+            p.senderUID = in.readString();
+            p.series = readInteger(in);
+            return p;
+        }
+    }
+
+    static class LegacyFileSendRequestSerializer extends Serializer<net.packet.legacy.FileSendRequestPacket> {
+        public void write(Kryo kryo, Output out, net.packet.legacy.FileSendRequestPacket p) {
+            writeBoxed(out, p.fileName);
+            writeBoxed(out, p.fileNameParams);
+            writeBoxed(out, p.fileSize);
+            writeBoxed(out, p.fileSizeParams);
+            out.writeString(p.fileUID);
+            out.writeString(p.pin);
+            out.writeString(p.senderUID);
+        }
+
+        public net.packet.legacy.FileSendRequestPacket read(Kryo kryo, Input in, Class<? extends net.packet.legacy.FileSendRequestPacket> type) {
+            net.packet.legacy.FileSendRequestPacket p = new net.packet.legacy.FileSendRequestPacket();
+            p.fileName = readBoxed(in);
+            p.fileNameParams = readBoxed(in);
+            p.fileSize = readBoxed(in);
+            p.fileSizeParams = readBoxed(in);
+            p.fileUID = in.readString();
+            p.pin = in.readString();
+            p.senderUID = in.readString();
+            return p;
+        }
+    }
+
+    static class ConnectRequestV2Serializer extends Serializer<ConnectRequestPacketV2> {
+        private static final int UID = 1, PROTOCOL = 2;
+
+        public void write(Kryo kryo, Output out, ConnectRequestPacketV2 p) {
+            out.writeVarInt(bit(p.UID, UID) | bit(p.protocol, PROTOCOL), true);
+            if (p.UID != null) out.writeString(p.UID);
+            if (p.protocol != null) out.writeVarInt(p.protocol, true);
+        }
+
+        public ConnectRequestPacketV2 read(Kryo kryo, Input in, Class<? extends ConnectRequestPacketV2> type) {
+            ConnectRequestPacketV2 p = new ConnectRequestPacketV2();
+            int mask = in.readVarInt(true);
+            if ((mask & UID) != 0) p.UID = in.readString();
+            if ((mask & PROTOCOL) != 0) p.protocol = in.readVarInt(true);
+            return p;
+        }
+    }
+
+    static class ConnectResponseV2Serializer extends Serializer<ConnectResponsePacketV2> {
+        private static final int ALLOWED_SET = 1, ALLOWED = 2, PIN = 4, TARGET_LENGTH = 8, MIN_LENGTH = 16, MAX_LENGTH = 32,
+                STRIPE_TOKEN = 64;
+
+        public void write(Kryo kryo, Output out, ConnectResponsePacketV2 p) {
+            out.writeVarInt(flag(p.allowed, ALLOWED_SET, ALLOWED) | bit(p.PIN, PIN) | bit(p.targetLength, TARGET_LENGTH)
+                    | bit(p.minLength, MIN_LENGTH) | bit(p.maxLength, MAX_LENGTH) | bit(p.stripeToken, STRIPE_TOKEN), true);
+            if (p.PIN != null) out.writeString(p.PIN);
+            if (p.targetLength != null) out.writeVarInt(p.targetLength, true);
+            if (p.minLength != null) out.writeVarInt(p.minLength, true);
+            if (p.maxLength != null) out.writeVarInt(p.maxLength, true);
+            if (p.stripeToken != null) out.writeString(p.stripeToken);
+        }
+
+        public ConnectResponsePacketV2 read(Kryo kryo, Input in, Class<? extends ConnectResponsePacketV2> type) {
+            ConnectResponsePacketV2 p = new ConnectResponsePacketV2();
+            int mask = in.readVarInt(true);
+            p.allowed = flag(mask, ALLOWED_SET, ALLOWED);
+            if ((mask & PIN) != 0) p.PIN = in.readString();
+            if ((mask & TARGET_LENGTH) != 0) p.targetLength = in.readVarInt(true);
+            if ((mask & MIN_LENGTH) != 0) p.minLength = in.readVarInt(true);
+            if ((mask & MAX_LENGTH) != 0) p.maxLength = in.readVarInt(true);
+            if ((mask & STRIPE_TOKEN) != 0) p.stripeToken = in.readString();
+            return p;
+        }
+    }
+
+    static class PinUpdateSerializer extends Serializer<PinUpdatePacket> {
+        private static final int PIN = 1, PINS = 2;
+
+        public void write(Kryo kryo, Output out, PinUpdatePacket p) {
+            out.writeVarInt(bit(p.PIN, PIN) | bit(p.PINS, PINS), true);
+            if (p.PIN != null) out.writeString(p.PIN);
+            if (p.PINS != null) writeStrings(out, p.PINS);
+        }
+
+        public PinUpdatePacket read(Kryo kryo, Input in, Class<? extends PinUpdatePacket> type) {
+            PinUpdatePacket p = new PinUpdatePacket();
+            int mask = in.readVarInt(true);
+            if ((mask & PIN) != 0) p.PIN = in.readString();
+            if ((mask & PINS) != 0) p.PINS = readStrings(in);
+            return p;
+        }
+    }
+
+    static class HandshakeSerializer extends Serializer<HandshakePacket> {
+        private static final int UID = 1, SENDER_UID = 2, KEY = 4, PIN = 8, SEALED_SET = 16, SEALED = 32;
+
+        public void write(Kryo kryo, Output out, HandshakePacket p) {
+            out.writeVarInt(bit(p.UID, UID) | bit(p.senderUID, SENDER_UID) | bit(p.encryptedPubKey, KEY) | bit(p.pin, PIN)
+                    | flag(p.sealed, SEALED_SET, SEALED), true);
+            if (p.UID != null) out.writeString(p.UID);
+            if (p.senderUID != null) out.writeString(p.senderUID);
+            if (p.encryptedPubKey != null) writeBytes(out, p.encryptedPubKey);
+            if (p.pin != null) out.writeString(p.pin);
+        }
+
+        public HandshakePacket read(Kryo kryo, Input in, Class<? extends HandshakePacket> type) {
+            HandshakePacket p = new HandshakePacket();
+            int mask = in.readVarInt(true);
+            if ((mask & UID) != 0) p.UID = in.readString();
+            if ((mask & SENDER_UID) != 0) p.senderUID = in.readString();
+            if ((mask & KEY) != 0) p.encryptedPubKey = readBytes(in);
+            if ((mask & PIN) != 0) p.pin = in.readString();
+            p.sealed = flag(mask, SEALED_SET, SEALED);
+            return p;
+        }
+    }
+
+    static class FileSendRequestSerializer extends Serializer<FileSendRequestPacket> {
+        private static final int PIN = 1, SENDER_UID = 2, FILE_UID = 4, NAME = 8, NAME_PARAMS = 16, SIZE = 32, SIZE_PARAMS = 64;
+
+        public void write(Kryo kryo, Output out, FileSendRequestPacket p) {
+            out.writeVarInt(bit(p.pin, PIN) | bit(p.senderUID, SENDER_UID) | bit(p.fileUID, FILE_UID) | bit(p.fileName, NAME)
+                    | bit(p.fileNameParams, NAME_PARAMS) | bit(p.fileSize, SIZE) | bit(p.fileSizeParams, SIZE_PARAMS), true);
+            if (p.pin != null) out.writeString(p.pin);
+            if (p.senderUID != null) out.writeString(p.senderUID);
+            if (p.fileUID != null) out.writeString(p.fileUID);
+            if (p.fileName != null) writeBytes(out, p.fileName);
+            if (p.fileNameParams != null) writeBytes(out, p.fileNameParams);
+            if (p.fileSize != null) writeBytes(out, p.fileSize);
+            if (p.fileSizeParams != null) writeBytes(out, p.fileSizeParams);
+        }
+
+        public FileSendRequestPacket read(Kryo kryo, Input in, Class<? extends FileSendRequestPacket> type) {
+            FileSendRequestPacket p = new FileSendRequestPacket();
+            int mask = in.readVarInt(true);
+            if ((mask & PIN) != 0) p.pin = in.readString();
+            if ((mask & SENDER_UID) != 0) p.senderUID = in.readString();
+            if ((mask & FILE_UID) != 0) p.fileUID = in.readString();
+            if ((mask & NAME) != 0) p.fileName = readBytes(in);
+            if ((mask & NAME_PARAMS) != 0) p.fileNameParams = readBytes(in);
+            if ((mask & SIZE) != 0) p.fileSize = readBytes(in);
+            if ((mask & SIZE_PARAMS) != 0) p.fileSizeParams = readBytes(in);
+            return p;
+        }
+    }
+
+    static class FileSendRequestBatchSerializer extends Serializer<FileSendRequestBatchPacket> {
+        private final FileSendRequestSerializer request = new FileSendRequestSerializer();
+
+        public void write(Kryo kryo, Output out, FileSendRequestBatchPacket p) {
+            writeLength(out, p.requests);
+            if (p.requests == null) return;
+            for (FileSendRequestPacket r : p.requests) {
+                out.writeBoolean(r != null);
+                if (r != null) request.write(kryo, out, r);
+            }
+        }
+
+        public FileSendRequestBatchPacket read(Kryo kryo, Input in, Class<? extends FileSendRequestBatchPacket> type) {
+            FileSendRequestBatchPacket p = new FileSendRequestBatchPacket();
+            int l = in.readVarInt(true);
+            if (l == 0) return p;
+            p.requests = new FileSendRequestPacket[checkLength(in, l - 1)];
+            for (int i = 0; i < p.requests.length; i++) {
+                if (in.readBoolean()) p.requests[i] = request.read(kryo, in, FileSendRequestPacket.class);
+            }
+            return p;
+        }
+
+        private static void writeLength(Output out, Object[] v) {
+            out.writeVarInt(v == null ? 0 : v.length + 1, true);
+        }
+    }
+
+    static class FileSendSerializer extends Serializer<FileSendPacket> {
+        private static final int PIN = 1, CONTENT = 2, CONTENT_PARAMS = 4, NAME = 8, NAME_PARAMS = 16, SIZE = 32, SIZE_PARAMS = 64,
+                FILE_UID = 128, SENDER_UID = 256, ZIP_SET = 512, ZIP = 1024;
+
+        public void write(Kryo kryo, Output out, FileSendPacket p) {
+            out.writeVarInt(bit(p.pin, PIN) | bit(p.content, CONTENT) | bit(p.contentParams, CONTENT_PARAMS) | bit(p.fileName, NAME)
+                    | bit(p.fileNameParams, NAME_PARAMS) | bit(p.fileSize, SIZE) | bit(p.fileSizeParams, SIZE_PARAMS)
+                    | bit(p.fileUID, FILE_UID) | bit(p.senderUID, SENDER_UID) | flag(p.isZip, ZIP_SET, ZIP), true);
+            if (p.pin != null) out.writeString(p.pin);
+            if (p.content != null) writeBytes(out, p.content);
+            if (p.contentParams != null) writeBytes(out, p.contentParams);
+            if (p.fileName != null) writeBytes(out, p.fileName);
+            if (p.fileNameParams != null) writeBytes(out, p.fileNameParams);
+            if (p.fileSize != null) writeBytes(out, p.fileSize);
+            if (p.fileSizeParams != null) writeBytes(out, p.fileSizeParams);
+            if (p.fileUID != null) out.writeString(p.fileUID);
+            if (p.senderUID != null) out.writeString(p.senderUID);
+        }
+
+        public FileSendPacket read(Kryo kryo, Input in, Class<? extends FileSendPacket> type) {
+            FileSendPacket p = new FileSendPacket();
+            int mask = in.readVarInt(true);
+            if ((mask & PIN) != 0) p.pin = in.readString();
+            if ((mask & CONTENT) != 0) p.content = readBytes(in);
+            if ((mask & CONTENT_PARAMS) != 0) p.contentParams = readBytes(in);
+            if ((mask & NAME) != 0) p.fileName = readBytes(in);
+            if ((mask & NAME_PARAMS) != 0) p.fileNameParams = readBytes(in);
+            if ((mask & SIZE) != 0) p.fileSize = readBytes(in);
+            if ((mask & SIZE_PARAMS) != 0) p.fileSizeParams = readBytes(in);
+            if ((mask & FILE_UID) != 0) p.fileUID = in.readString();
+            if ((mask & SENDER_UID) != 0) p.senderUID = in.readString();
+            p.isZip = flag(mask, ZIP_SET, ZIP);
+            return p;
+        }
+    }
+
+    static class FileSendSplitSerializer extends Serializer<FileSendPacketSplit> {
+        private static final int PIN = 1, NAME = 2, NAME_PARAMS = 4, SIZE = 8, SIZE_PARAMS = 16, CONTENT = 32, CONTENT_PARAMS = 64,
+                SENDER_UID = 128, FILE_UID = 256, SERIES = 512, LENGTH = 1024, ZIP_SET = 2048, ZIP = 4096, FINAL_SET = 8192, FINAL = 16384;
+
+        public void write(Kryo kryo, Output out, FileSendPacketSplit p) {
+            out.writeVarInt(bit(p.pin, PIN) | bit(p.fileName, NAME) | bit(p.fileNameParams, NAME_PARAMS) | bit(p.fileSize, SIZE)
+                    | bit(p.fileSizeParams, SIZE_PARAMS) | bit(p.content, CONTENT) | bit(p.contentParams, CONTENT_PARAMS)
+                    | bit(p.senderUID, SENDER_UID) | bit(p.fileUID, FILE_UID) | bit(p.series, SERIES) | bit(p.length, LENGTH)
+                    | flag(p.isZip, ZIP_SET, ZIP) | flag(p.finalPacket, FINAL_SET, FINAL), true);
+            if (p.pin != null) out.writeString(p.pin);
+            if (p.fileName != null) writeBytes(out, p.fileName);
+            if (p.fileNameParams != null) writeBytes(out, p.fileNameParams);
+            if (p.fileSize != null) writeBytes(out, p.fileSize);
+            if (p.fileSizeParams != null) writeBytes(out, p.fileSizeParams);
+            if (p.content != null) writeBytes(out, p.content);
+            if (p.contentParams != null) writeBytes(out, p.contentParams);
+            if (p.senderUID != null) out.writeString(p.senderUID);
+            if (p.fileUID != null) out.writeString(p.fileUID);
+            if (p.series != null) out.writeVarInt(p.series, true);
+            if (p.length != null) out.writeVarInt(p.length, true);
+        }
+
+        public FileSendPacketSplit read(Kryo kryo, Input in, Class<? extends FileSendPacketSplit> type) {
+            FileSendPacketSplit p = new FileSendPacketSplit();
+            int mask = in.readVarInt(true);
+            if ((mask & PIN) != 0) p.pin = in.readString();
+            if ((mask & NAME) != 0) p.fileName = readBytes(in);
+            if ((mask & NAME_PARAMS) != 0) p.fileNameParams = readBytes(in);
+            if ((mask & SIZE) != 0) p.fileSize = readBytes(in);
+            if ((mask & SIZE_PARAMS) != 0) p.fileSizeParams = readBytes(in);
+            if ((mask & CONTENT) != 0) p.content = readBytes(in);
+            if ((mask & CONTENT_PARAMS) != 0) p.contentParams = readBytes(in);
+            if ((mask & SENDER_UID) != 0) p.senderUID = in.readString();
+            if ((mask & FILE_UID) != 0) p.fileUID = in.readString();
+            if ((mask & SERIES) != 0) p.series = in.readVarInt(true);
+            if ((mask & LENGTH) != 0) p.length = in.readVarInt(true);
+            p.isZip = flag(mask, ZIP_SET, ZIP);
+            p.finalPacket = flag(mask, FINAL_SET, FINAL);
+            return p;
+        }
+    }
+
+    static class ContinueSplitSerializer extends Serializer<ContinueSplitPacket> {
+        private static final int TRANSFER = 1, CREDIT = 2, DATAGRAM_SET = 4, DATAGRAM = 8, PARITY_SET = 16, PARITY = 32;
+
+        public void write(Kryo kryo, Output out, ContinueSplitPacket p) {
+            out.writeVarInt(bit(p.transfer, TRANSFER) | bit(p.credit, CREDIT) | flag(p.datagram, DATAGRAM_SET, DATAGRAM)
+                    | flag(p.parity, PARITY_SET, PARITY), true);
+            if (p.transfer != null) out.writeVarInt(p.transfer, true);
+            if (p.credit != null) out.writeVarInt(p.credit, true);
+        }
+
+        public ContinueSplitPacket read(Kryo kryo, Input in, Class<? extends ContinueSplitPacket> type) {
+            ContinueSplitPacket p = new ContinueSplitPacket();
+            int mask = in.readVarInt(true);
+            if ((mask & TRANSFER) != 0) p.transfer = in.readVarInt(true);
+            if ((mask & CREDIT) != 0) p.credit = in.readVarInt(true);
+            p.datagram = flag(mask, DATAGRAM_SET, DATAGRAM);
+            p.parity = flag(mask, PARITY_SET, PARITY);
+            return p;
+        }
+    }
+
+    static class TransferOpenSerializer extends Serializer<TransferOpenPacket> {
+        private static final int TRANSFER = 1, PIN = 2, SENDER_UID = 4, FILE_UID = 8, NAME = 16, NAME_PARAMS = 32, SIZE = 64,
+                SIZE_PARAMS = 128, LENGTH = 256, ZIP_SET = 512, ZIP = 1024,
+                DATAGRAM_SET = 2048, DATAGRAM = 4096, PARITY_SET = 8192, PARITY = 16384, STRIPED_SET = 32768, STRIPED = 65536;
+
+        public void write(Kryo kryo, Output out, TransferOpenPacket p) {
+            out.writeVarInt(bit(p.transfer, TRANSFER) | bit(p.pin, PIN) | bit(p.senderUID, SENDER_UID) | bit(p.fileUID, FILE_UID)
+                    | bit(p.fileName, NAME) | bit(p.fileNameParams, NAME_PARAMS) | bit(p.fileSize, SIZE)
+                    | bit(p.fileSizeParams, SIZE_PARAMS) | bit(p.length, LENGTH) | flag(p.isZip, ZIP_SET, ZIP)
+                    | flag(p.datagram, DATAGRAM_SET, DATAGRAM) | flag(p.parity, PARITY_SET, PARITY)
+                    | flag(p.striped, STRIPED_SET, STRIPED), true);
+            if (p.transfer != null) out.writeVarInt(p.transfer, true);
+            if (p.pin != null) out.writeString(p.pin);
+            if (p.senderUID != null) out.writeString(p.senderUID);
+            if (p.fileUID != null) out.writeString(p.fileUID);
+            if (p.fileName != null) writeBytes(out, p.fileName);
+            if (p.fileNameParams != null) writeBytes(out, p.fileNameParams);
+            if (p.fileSize != null) writeBytes(out, p.fileSize);
+            if (p.fileSizeParams != null) writeBytes(out, p.fileSizeParams);
+            if (p.length != null) out.writeVarInt(p.length, true);
+        }
+
+        public TransferOpenPacket read(Kryo kryo, Input in, Class<? extends TransferOpenPacket> type) {
+            TransferOpenPacket p = new TransferOpenPacket();
+            int mask = in.readVarInt(true);
+            if ((mask & TRANSFER) != 0) p.transfer = in.readVarInt(true);
+            if ((mask & PIN) != 0) p.pin = in.readString();
+            if ((mask & SENDER_UID) != 0) p.senderUID = in.readString();
+            if ((mask & FILE_UID) != 0) p.fileUID = in.readString();
+            if ((mask & NAME) != 0) p.fileName = readBytes(in);
+            if ((mask & NAME_PARAMS) != 0) p.fileNameParams = readBytes(in);
+            if ((mask & SIZE) != 0) p.fileSize = readBytes(in);
+            if ((mask & SIZE_PARAMS) != 0) p.fileSizeParams = readBytes(in);
+            if ((mask & LENGTH) != 0) p.length = in.readVarInt(true);
+            p.isZip = flag(mask, ZIP_SET, ZIP);
+            p.datagram = flag(mask, DATAGRAM_SET, DATAGRAM);
+            p.parity = flag(mask, PARITY_SET, PARITY);
+            p.striped = flag(mask, STRIPED_SET, STRIPED);
+            return p;
+        }
+    }
+
+    static class TransferResumeSerializer extends Serializer<TransferResumePacket> {
+        private static final int FILE_UID = 1, LENGTH = 2, HAVE = 4;
+
+        public void write(Kryo kryo, Output out, TransferResumePacket p) {
+            out.writeVarInt(bit(p.fileUID, FILE_UID) | bit(p.length, LENGTH) | bit(p.have, HAVE), true);
+            if (p.fileUID != null) out.writeString(p.fileUID);
+            if (p.length != null) out.writeVarInt(p.length, true);
+            if (p.have != null) writeBytes(out, p.have);
+        }
+
+        public TransferResumePacket read(Kryo kryo, Input in, Class<? extends TransferResumePacket> type) {
+            TransferResumePacket p = new TransferResumePacket();
+            int mask = in.readVarInt(true);
+            if ((mask & FILE_UID) != 0) p.fileUID = in.readString();
+            if ((mask & LENGTH) != 0) p.length = in.readVarInt(true);
+            if ((mask & HAVE) != 0) p.have = readBytes(in);
+            return p;
+        }
+    }
+
+    static class RetransmitSerializer extends Serializer<RetransmitPacket> {
+        private static final int TRANSFER = 1, SERIES = 2;
+
+        public void write(Kryo kryo, Output out, RetransmitPacket p) {
+            out.writeVarInt(bit(p.transfer, TRANSFER) | bit(p.series, SERIES), true);
+            if (p.transfer != null) out.writeVarInt(p.transfer, true);
+            if (p.series != null) out.writeVarInt(p.series, true);
+        }
+
+        public RetransmitPacket read(Kryo kryo, Input in, Class<? extends RetransmitPacket> type) {
+            RetransmitPacket p = new RetransmitPacket();
+            int mask = in.readVarInt(true);
+            if ((mask & TRANSFER) != 0) p.transfer = in.readVarInt(true);
+            if ((mask & SERIES) != 0) p.series = in.readVarInt(true);
+            return p;
+        }
+    }
+
+    static class DirectEndpointSerializer extends Serializer<DirectEndpointPacket> {
+        private static final int UID = 1, SENDER_UID = 2, HOSTS = 4, PORT = 8, TOKEN = 16;
+
+        public void write(Kryo kryo, Output out, DirectEndpointPacket p) {
+            out.writeVarInt(bit(p.UID, UID) | bit(p.senderUID, SENDER_UID) | bit(p.hosts, HOSTS) | bit(p.port, PORT)
+                    | bit(p.token, TOKEN), true);
+            if (p.UID != null) out.writeString(p.UID);
+            if (p.senderUID != null) out.writeString(p.senderUID);
+            if (p.hosts != null) writeStrings(out, p.hosts);
+            if (p.port != null) out.writeVarInt(p.port, true);
+            if (p.token != null) out.writeString(p.token);
+        }
+
+        public DirectEndpointPacket read(Kryo kryo, Input in, Class<? extends DirectEndpointPacket> type) {
+            DirectEndpointPacket p = new DirectEndpointPacket();
+            int mask = in.readVarInt(true);
+            if ((mask & UID) != 0) p.UID = in.readString();
+            if ((mask & SENDER_UID) != 0) p.senderUID = in.readString();
+            if ((mask & HOSTS) != 0) p.hosts = readStrings(in);
+            if ((mask & PORT) != 0) p.port = in.readVarInt(true);
+            if ((mask & TOKEN) != 0) p.token = in.readString();
+            return p;
+        }
+    }
+
+    static class DirectHelloSerializer extends Serializer<DirectHelloPacket> {
+        private static final int UID = 1, TOKEN = 2;
+
+        public void write(Kryo kryo, Output out, DirectHelloPacket p) {
+            out.writeVarInt(bit(p.UID, UID) | bit(p.token, TOKEN), true);
+            if (p.UID != null) out.writeString(p.UID);
+            if (p.token != null) out.writeString(p.token);
+        }
+
+        public DirectHelloPacket read(Kryo kryo, Input in, Class<? extends DirectHelloPacket> type) {
+            DirectHelloPacket p = new DirectHelloPacket();
+            int mask = in.readVarInt(true);
+            if ((mask & UID) != 0) p.UID = in.readString();
+            if ((mask & TOKEN) != 0) p.token = in.readString();
+            return p;
+        }
+    }
+
+    static class StripeHelloSerializer extends Serializer<StripeHelloPacket> {
+        private static final int UID = 1, TOKEN = 2;
+
+        public void write(Kryo kryo, Output out, StripeHelloPacket p) {
+            out.writeVarInt(bit(p.UID, UID) | bit(p.token, TOKEN), true);
+            if (p.UID != null) out.writeString(p.UID);
+            if (p.token != null) out.writeString(p.token);
+        }
+
+        public StripeHelloPacket read(Kryo kryo, Input in, Class<? extends StripeHelloPacket> type) {
+            StripeHelloPacket p = new StripeHelloPacket();
+            int mask = in.readVarInt(true);
+            if ((mask & UID) != 0) p.UID = in.readString();
+            if ((mask & TOKEN) != 0) p.token = in.readString();
+            return p;
+        }
+    }
+
+    /**
+     * Sequence number, message, index and count as varints, then the data as a length prefixed run.
+     */
+    static class DatagramSegmentSerializer extends Serializer<DatagramSegmentPacket> {
+        public void write(Kryo kryo, Output out, DatagramSegmentPacket p) {
+            out.writeVarLong(p.seq, true);
+            out.writeVarInt(p.message, true);
+            out.writeVarInt(p.index, true);
+            out.writeVarInt(p.count, true);
+            writeBytes(out, p.data);
+        }
+
+        public DatagramSegmentPacket read(Kryo kryo, Input in, Class<? extends DatagramSegmentPacket> type) {
+            DatagramSegmentPacket p = new DatagramSegmentPacket();
+            p.seq = in.readVarLong(true);
+            p.message = in.readVarInt(true);
+            p.index = in.readVarInt(true);
+            p.count = in.readVarInt(true);
+            p.data = readBytes(in);
+            return p;
+        }
+    }
+
+    /**
+     * Amount of sequence numbers as a varint, then each as a varlong.
+     */
+    static class DatagramAckSerializer extends Serializer<DatagramAckPacket> {
+        public void write(Kryo kryo, Output out, DatagramAckPacket p) {
+            out.writeVarInt(p.ranges.length, true);
+            for (long seq : p.ranges) out.writeVarLong(seq, true);
+        }
+
+        public DatagramAckPacket read(Kryo kryo, Input in, Class<? extends DatagramAckPacket> type) {
+            DatagramAckPacket p = new DatagramAckPacket();
+            p.ranges = new long[checkLength(in, in.readVarInt(true))];
+            for (int i = 0; i < p.ranges.length; i++) p.ranges[i] = in.readVarLong(true);
+            return p;
+        }
+    }
+
+    /**
+     * First sequence number, count and index as varints, then the data as a length prefixed run.
+     */
+    static class DatagramParitySerializer extends Serializer<DatagramParityPacket> {
+        public void write(Kryo kryo, Output out, DatagramParityPacket p) {
+            out.writeVarLong(p.first, true);
+            out.writeVarInt(p.count, true);
+            out.writeVarInt(p.index, true);
+            writeBytes(out, p.data);
+        }
+
+        public DatagramParityPacket read(Kryo kryo, Input in, Class<? extends DatagramParityPacket> type) {
+            DatagramParityPacket p = new DatagramParityPacket();
+            p.first = in.readVarLong(true);
+            p.count = in.readVarInt(true);
+            p.index = in.readVarInt(true);
+            p.data = readBytes(in);
+            return p;
+        }
+    }
+
+    /**
+     * Transfer and series as varints, then content and params as
+     * length + 1 prefixed runs, 0 for null.
+     */
+    static class FileChunkSerializer extends Serializer<FileChunkPacket> {
+        public void write(Kryo kryo, Output out, FileChunkPacket p) {
+            out.writeVarInt(p.transfer, true);
+            out.writeVarInt(p.series, true);
+            writeOptionalBytes(out, p.content);
+            writeOptionalBytes(out, p.contentParams);
+        }
+
+        public FileChunkPacket read(Kryo kryo, Input in, Class<? extends FileChunkPacket> type) {
+            FileChunkPacket p = new FileChunkPacket();
+            p.transfer = in.readVarInt(true);
+            p.series = in.readVarInt(true);
+            p.content = readOptionalBytes(in);
+            p.contentParams = readOptionalBytes(in);
+            return p;
+        }
+
+        static void writeOptionalBytes(Output out, byte[] v) {
+            out.writeVarInt(v == null ? 0 : v.length + 1, true);
+            if (v != null) out.writeBytes(v);
+        }
+
+        static byte[] readOptionalBytes(Input in) {
+            int l = in.readVarInt(true);
+            return l == 0 ? null : in.readBytes(checkLength(in, l - 1));
+        }
+    }
+
+    /**
+     * The 'FileChunkPacket' format followed by the checksum as a fixed int.
+     */
+    static class FileChunkV2Serializer extends Serializer<FileChunkPacketV2> {
+        public void write(Kryo kryo, Output out, FileChunkPacketV2 p) {
+            out.writeVarInt(p.transfer, true);
+            out.writeVarInt(p.series, true);
+            FileChunkSerializer.writeOptionalBytes(out, p.content);
+            FileChunkSerializer.writeOptionalBytes(out, p.contentParams);
+            out.writeInt(p.checksum);
+        }
+
+        public FileChunkPacketV2 read(Kryo kryo, Input in, Class<? extends FileChunkPacketV2> type) {
+            FileChunkPacketV2 p = new FileChunkPacketV2();
+            p.transfer = in.readVarInt(true);
+            p.series = in.readVarInt(true);
+            p.content = FileChunkSerializer.readOptionalBytes(in);
+            p.contentParams = FileChunkSerializer.readOptionalBytes(in);
+            p.checksum = in.readInt();
+            return p;
+        }
+    }
+}
@@ -1,8 +1,8 @@
 package net.packet;
 
 /**
- * This packet is sent from the Server to all clients when a user with
- * the given PIN disconnects.
+ * This packet is sent from the Server to the clients that know of a PIN when the user with
+ * that PIN disconnects. Departures close together are batched into 'PINS'.
  * The client needs to update its PIN validity accordingly.
  *
  * @author Jacob Gordon
@@ -11,4 +11,5 @@ package net.packet;
  **/
 public class PinUpdatePacket {
     public String PIN;
+    public String[] PINS;
 }
@@ -0,0 +1,15 @@
+package net.packet;
+
+/**
+ * First packet on an auxiliary connection of a client to the server, which the chunks of its
+ * striped transfers are spread over besides its main connection, see 'TransferOpenPacket.striped'.
+ * Carries the UID of the client and the token the server gave its main connection in
+ * 'ConnectResponsePacketV2'; the connection is closed if they do not match.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ **/
+public class StripeHelloPacket {
+    public String UID;
+    public String token;
+}
@@ -0,0 +1,46 @@
+package net.packet;
+
+/**
+ * Opens a split transfer on a connection, carrying everything about the file once.
+ * Every part of the file that follows is a lean 'FileChunkPacket' that refers to this packet
+ * by 'transfer'. Each side keeps the header in a per-connection 'net.TransferTable'
+ * until the final chunk.
+ * Only sent to peers that negotiated 'ConnectRequestPacketV2.PROTOCOL_FRAMES'.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ **/
+public class TransferOpenPacket {
+    /**
+     * ID of the transfer on this connection, chosen by the sending side.
+     */
+    public Integer transfer;
+
+    public String pin;
+    public String senderUID; //assigned by server
+    public String fileUID;
+    public byte[] fileName, fileNameParams;
+    public byte[] fileSize, fileSizeParams;
+    public Boolean isZip;
+    public Integer length;
+
+    /**
+     * True if the sending side proposes to send the chunks over the UDP data channel, see 'net.UdpChannel'.
+     * Peers that do not know the flag ignore it; the chunks go there only once the receiving side
+     * agreed with 'ContinueSplitPacket.datagram'.
+     */
+    public Boolean datagram;
+
+    /**
+     * True if the sending side proposes to send parity with the datagrams, see 'net.UdpChannel.setParity()'.
+     * Only with 'datagram'; agreed to with 'ContinueSplitPacket.parity'.
+     */
+    public Boolean parity;
+
+    /**
+     * True if the chunks may come over any connection of the session, see 'StripeHelloPacket';
+     * the receiving side puts them back in series order, see 'net.TransferTable.order()'.
+     * Only set for transfers that send every series from the first.
+     */
+    public Boolean striped;
+}
@@ -0,0 +1,19 @@
+package net.packet;
+
+/**
+ * Resumes a split file that was cut off when a client disconnected, see 'ConnectRequestPacketV2.PROTOCOL_RESUME'.
+ * Sent by the side receiving the file and tells the sending side which series it already holds,
+ * the sender then only sends the series missing.
+ * A client sends it instead of a 'FileAcceptPacket' for a file it holds part of.
+ * The server sends it to a client that reconnects in the middle of uploading a file.
+ * 'have' holds a bit per series: bit 'i % 8' of byte 'i / 8', the layout of 'net.TransferMeta'.
+ * The final series is never reported, it is always sent last so it still closes the transfer.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ **/
+public class TransferResumePacket {
+    public String fileUID;
+    public Integer length;
+    public byte[] have;
+}
@@ -0,0 +1,16 @@
+package net.packet.legacy;
+
+/**
+ * Boxed 'Byte[]' wire format of 'net.packet.HandshakePacket', spoken by clients that connect
+ * with a plain 'ConnectRequestPacket'. Registered in place of the original class, so its
+ * fields must stay exactly as they are; see 'LegacyPackets'.
+ *
+ * This packet is sent by the Client to another client, containing its
+ * encrypted public key.
+ */
+public class HandshakePacket {
+    public String UID;
+    public String senderUID;
+    public Byte[] encryptedPubKey;
+    public String pin;
+}
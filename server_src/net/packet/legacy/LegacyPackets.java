@@ -0,0 +1,145 @@
+package net.packet.legacy;
+
+/**
+ * Converts between the boxed 'Byte[]' packets of 'net.packet.legacy' and their
+ * 'byte[]' counterparts in 'net.packet'.
+ * Only used at the edge for connections that did not negotiate 'ConnectRequestPacketV2',
+ * everything past the edge works on 'byte[]'.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ */
+public class LegacyPackets {
+
+    /**
+     * @param object received packet.
+     * @return the 'net.packet' counterpart of a legacy packet, or the object itself.
+     */
+    public static Object upgrade(Object object) {
+        if (object instanceof FileSendPacketSplit) {
+            FileSendPacketSplit l = (FileSendPacketSplit) object;
+            net.packet.FileSendPacketSplit p = new net.packet.FileSendPacketSplit();
+            p.pin = l.pin;
+            p.fileName = unbox(l.fileName);
+            p.fileNameParams = unbox(l.fileNameParams);
+            p.fileSize = unbox(l.fileSize);
+            p.fileSizeParams = unbox(l.fileSizeParams);
+            p.isZip = l.isZip;
+            p.content = unbox(l.content);
+            p.contentParams = unbox(l.contentParams);
+            p.senderUID = l.senderUID;
+            p.fileUID = l.fileUID;
+            p.series = l.series;
+            p.length = l.length;
+            p.finalPacket = l.finalPacket;
+            return p;
+        } else if (object instanceof FileSendPacket) {
+            FileSendPacket l = (FileSendPacket) object;
+            net.packet.FileSendPacket p = new net.packet.FileSendPacket();
+            p.pin = l.pin;
+            p.content = unbox(l.content);
+            p.contentParams = unbox(l.contentParams);
+            p.fileName = unbox(l.fileName);
+            p.fileNameParams = unbox(l.fileNameParams);
+            p.fileSize = unbox(l.fileSize);
+            p.fileSizeParams = unbox(l.fileSizeParams);
+            p.fileUID = l.fileUID;
+            p.senderUID = l.senderUID;
+            p.isZip = l.isZip;
+            return p;
+        } else if (object instanceof FileSendRequestPacket) {
+            FileSendRequestPacket l = (FileSendRequestPacket) object;
+            net.packet.FileSendRequestPacket p = new net.packet.FileSendRequestPacket();
+            p.pin = l.pin;
+            p.senderUID = l.senderUID;
+            p.fileUID = l.fileUID;
+            p.fileName = unbox(l.fileName);
+            p.fileNameParams = unbox(l.fileNameParams);
+            p.fileSize = unbox(l.fileSize);
+            p.fileSizeParams = unbox(l.fileSizeParams);
+            return p;
+        } else if (object instanceof HandshakePacket) {
+            HandshakePacket l = (HandshakePacket) object;
+            net.packet.HandshakePacket p = new net.packet.HandshakePacket();
+            p.UID = l.UID;
+            p.senderUID = l.senderUID;
+            p.encryptedPubKey = unbox(l.encryptedPubKey);
+            p.pin = l.pin;
+            return p;
+        }
+        return object;
+    }
+
+    /**
+     * @param object packet to send.
+     * @return the legacy counterpart of a 'net.packet' packet, or the object itself.
+     */
+    public static Object downgrade(Object object) {
+        if (object instanceof net.packet.FileSendPacketSplit) {
+            net.packet.FileSendPacketSplit p = (net.packet.FileSendPacketSplit) object;
+            FileSendPacketSplit l = new FileSendPacketSplit();
+            l.pin = p.pin;
+            l.fileName = box(p.fileName);
+            l.fileNameParams = box(p.fileNameParams);
+            l.fileSize = box(p.fileSize);
+            l.fileSizeParams = box(p.fileSizeParams);
+            l.isZip = p.isZip;
+            l.content = box(p.content);
+            l.contentParams = box(p.contentParams);
+            l.senderUID = p.senderUID;
+            l.fileUID = p.fileUID;
+            l.series = p.series;
+            l.length = p.length;
+            l.finalPacket = p.finalPacket;
+            return l;
+        } else if (object instanceof net.packet.FileSendPacket) {
+            net.packet.FileSendPacket p = (net.packet.FileSendPacket) object;
+            FileSendPacket l = new FileSendPacket();
+            l.pin = p.pin;
+            l.content = box(p.content);
+            l.contentParams = box(p.contentParams);
+            l.fileName = box(p.fileName);
+            l.fileNameParams = box(p.fileNameParams);
+            l.fileSize = box(p.fileSize);
+            l.fileSizeParams = box(p.fileSizeParams);
+            l.fileUID = p.fileUID;
+            l.senderUID = p.senderUID;
+            l.isZip = p.isZip;
+            return l;
+        } else if (object instanceof net.packet.FileSendRequestPacket) {
+            net.packet.FileSendRequestPacket p = (net.packet.FileSendRequestPacket) object;
+            FileSendRequestPacket l = new FileSendRequestPacket();
+            l.pin = p.pin;
+            l.senderUID = p.senderUID;
+            l.fileUID = p.fileUID;
+            l.fileName = box(p.fileName);
+            l.fileNameParams = box(p.fileNameParams);
+            l.fileSize = box(p.fileSize);
+            l.fileSizeParams = box(p.fileSizeParams);
+            return l;
+        } else if (object instanceof net.packet.HandshakePacket) {
+            net.packet.HandshakePacket p = (net.packet.HandshakePacket) object;
+            HandshakePacket l = new HandshakePacket();
+            l.UID = p.UID;
+            l.senderUID = p.senderUID;
+            l.encryptedPubKey = box(p.encryptedPubKey);
+            l.pin = p.pin;
+            return l;
+        }
+        return object;
+    }
+
+    private static byte[] unbox(Byte[] data) {
+        if (data == null) return null;
+        byte[] b = new byte[data.length];
+        for (int i = 0; i < data.length; i++) b[i] = data[i];
+        return b;
+    }
+
+    private static Byte[] box(byte[] data) {
+        if (data == null) return null;
+        Byte[] b = new Byte[data.length];
+        for (int i = 0; i < data.length; i++) b[i] = data[i];
+        return b;
+    }
+}
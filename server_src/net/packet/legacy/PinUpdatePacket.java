@@ -0,0 +1,13 @@
+package net.packet.legacy;
+
+/**
+ * Single PIN format of 'net.packet.PinUpdatePacket', spoken by clients that connect
+ * with a plain 'ConnectRequestPacket'. Registered in place of the original class, so its
+ * fields must stay exactly as they are; the server sends one per departed PIN.
+ *
+ * This packet is sent from the Server to the clients that know of a PIN when the user with
+ * that PIN disconnects.
+ */
+public class PinUpdatePacket {
+    public String PIN;
+}
@@ -1,12 +1,41 @@
 package util;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryonet.Client;
+import com.esotericsoftware.kryonet.Connection;
 import com.esotericsoftware.kryonet.Listener;
+import com.esotericsoftware.kryonet.Server;
+import net.ChunkSizer;
+import net.ClientRegistry;
+import net.FileSendPacketWrap;
+import net.PacketDispatcher;
+import net.SendPump;
+import net.TransferTable;
+import net.UdpChannel;
+import net.packet.*;
+import net.packet.legacy.LegacyPackets;
 import net.lingala.zip4j.ZipFile;
 import net.lingala.zip4j.exception.ZipException;
 
 import java.io.*;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 
 public class Debug extends Listener {
@@ -31,6 +60,766 @@ public class Debug extends Listener {
         System.out.println("Read in " + elapsed + " miliseconds.");
     }
 
+    /**
+     * Times lookups on a 'ClientRegistry' by connection ID, UID and PIN
+     * for increasing amounts of connected clients.
+     * Cost per lookup should stay flat as the amount of clients grows.
+     */
+    public static void benchClientRegistry() {
+        int lookups = 1000000;
+        Random r = new Random();
+        for (int n : new int[]{10, 100, 1000, 10000, 100000}) {
+            ClientRegistry<String> registry = new ClientRegistry<>();
+            String[] uids = new String[n];
+            String[] pins = new String[n];
+            for (int i = 0; i < n; i++) {
+                uids[i] = PINUtils.gen(PINUtils.LENGTH_UID) + i;
+                pins[i] = PINUtils.gen(PINUtils.LENGTH) + i;
+                registry.add(i, uids[i]);
+                registry.admit(i, uids[i], pins[i]);
+            }
+            //warm up
+            long sink = 0;
+            for (int i = 0; i < lookups; i++) sink += registry.getConnectionFromPIN(pins[r.nextInt(n)]);
+            long now = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                int k = r.nextInt(n);
+                sink += registry.getConnectionFromPIN(pins[k]);
+                sink += registry.getConnectionFromUID(uids[k]);
+                if (registry.get(k) == null) sink--;
+            }
+            long elapsed = System.nanoTime() - now;
+            System.out.println("clients: " + n + " -> " + (elapsed / (lookups * 3)) + "ns per lookup (" + sink + ")");
+        }
+    }
+
+    /**
+     * Times 'PinAllocator' allocations with the 4 character PIN space 1%, 50% and 95% full.
+     * Each allocation is paired with a release of a random held PIN so occupancy stays put.
+     * Cost per allocation should stay flat as occupancy grows.
+     */
+    public static void benchPinAllocator() {
+        int ops = 1000000;
+        Random r = new Random();
+        for (double occupancy : new double[]{0.01, 0.5, 0.95}) {
+            PinAllocator allocator = new PinAllocator(PINUtils.LENGTH, 0);
+            String[] held = new String[(int) (allocator.getSpace() * occupancy)];
+            for (int i = 0; i < held.length; i++) held[i] = allocator.allocate();
+            for (int pass = 0; pass < 2; pass++) {
+                //first pass warms up
+                long now = System.nanoTime();
+                for (int i = 0; i < ops; i++) {
+                    int k = r.nextInt(held.length);
+                    allocator.release(held[k]);
+                    held[k] = allocator.allocate();
+                }
+                long elapsed = System.nanoTime() - now;
+                if (pass == 1) System.out.println("occupancy: " + (int) (occupancy * 100) + "% (" + allocator.size() + ") -> " + (elapsed / ops) + "ns per release + allocate");
+            }
+        }
+    }
+
+    /**
+     * Loopback load test for 'PacketDispatcher'.
+     * Uploading clients stream 'FileSendPacketSplit's that the server flushes to a temporary
+     * 'FileSendPacketWrap' work space, while a probing client sends 'PinCheckRequestPacket's and
+     * measures the round trip of each one.
+     * Runs once with packets handled on the KryoNet update thread and once through the
+     * dispatcher, printing control-packet latency percentiles for both.
+     */
+    public static void loadTestDispatch() throws IOException, InterruptedException {
+        File dir = Files.createTempDirectory("dispatch").toFile();
+        FileSendPacketWrap.initReadWrite(dir.getAbsolutePath());
+        runDispatchLoad(false, 54771);
+        runDispatchLoad(true, 54772);
+    }
+
+    private static void registerDebugClasses(Kryo kryo) {
+        PacketSerializers.register(kryo);
+    }
+
+    private static void runDispatchLoad(boolean dispatch, int port) throws IOException, InterruptedException {
+        final int uploaders = 3, probes = 200, splitSize = 64 * 1024;
+        Server server = new Server(16384 * 256, 2048 * 1024);
+        registerDebugClasses(server.getKryo());
+        final PacketDispatcher[] admitting = new PacketDispatcher[1];
+        Listener handler = new Listener() {
+            @Override
+            public void connected(Connection connection) {
+                //nothing to register here, bulk packets are handled right away
+                if (admitting[0] != null) admitting[0].admit(connection);
+            }
+
+            @Override
+            public void received(Connection connection, Object object) {
+                if (object instanceof PinCheckRequestPacket) {
+                    //echo the probe number back in 'UID'
+                    PinCheckResponsePacket response = new PinCheckResponsePacket();
+                    response.valid = true;
+                    response.UID = ((PinCheckRequestPacket) object).PIN;
+                    connection.sendTCP(response);
+                } else if (object instanceof FileSendPacketSplit) {
+                    FileSendPacketSplit split = (FileSendPacketSplit) object;
+                    FileSendPacketWrap.flush(split);
+                    if (split.series > 0) FileSendPacketWrap.removeSplit(split.fileUID, split.series - 1);
+                }
+            }
+        };
+        PacketDispatcher dispatcher = dispatch ? new PacketDispatcher(handler, 2, uploaders) : null;
+        admitting[0] = dispatcher;
+        server.addListener(dispatch ? dispatcher : handler);
+        server.bind(port);
+        server.start();
+
+        Client prober = new Client();
+        registerDebugClasses(prober.getKryo());
+        final long[] sentAt = new long[probes];
+        final long[] latencies = new long[probes];
+        prober.addListener(new Listener() {
+            @Override
+            public void received(Connection connection, Object object) {
+                if (!(object instanceof PinCheckResponsePacket)) return;
+                int i = Integer.parseInt(((PinCheckResponsePacket) object).UID);
+                latencies[i] = System.nanoTime() - sentAt[i];
+            }
+        });
+        prober.start();
+        prober.connect(5000, "127.0.0.1", port);
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        ArrayList<Client> clients = new ArrayList<>();
+        byte[] content = new byte[splitSize];
+        byte[] header = new byte[]{1, 2, 3};
+        for (int u = 0; u < uploaders; u++) {
+            Client client = new Client(16384 * 256, 2048 * 1024);
+            registerDebugClasses(client.getKryo());
+            client.start();
+            client.connect(5000, "127.0.0.1", port);
+            clients.add(client);
+        }
+        //connect everyone before uploading so registration isn't starved
+        for (Client client : clients) {
+            new Thread(() -> {
+                String uid = PINUtils.gen(24);
+                int series = 0;
+                while (running.get() && client.isConnected()) {
+                    //paced below what the update thread can decode, so only handling differs
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (client.getTcpWriteBufferSize() > splitSize * 4) continue;
+                    FileSendPacketSplit split = new FileSendPacketSplit();
+                    split.fileUID = uid;
+                    split.pin = "AAAA";
+                    split.fileName = split.fileNameParams = split.fileSize = split.fileSizeParams = header;
+                    split.content = content;
+                    split.isZip = false;
+                    split.series = series++;
+                    split.length = 64;
+                    split.finalPacket = false;
+                    client.sendTCP(split);
+                    if (series == split.length) {
+                        uid = PINUtils.gen(24);
+                        series = 0;
+                    }
+                }
+            }).start();
+        }
+
+        Thread.sleep(1000);
+        for (int i = 0; i < probes; i++) {
+            PinCheckRequestPacket request = new PinCheckRequestPacket();
+            request.PIN = String.valueOf(i);
+            sentAt[i] = System.nanoTime();
+            prober.sendTCP(request);
+            Thread.sleep(20);
+        }
+        Thread.sleep(3000);
+        running.set(false);
+        int lost = 0;
+        for (int i = 0; i < probes; i++) {
+            if (latencies[i] == 0) {
+                latencies[i] = Long.MAX_VALUE;
+                lost++;
+            }
+        }
+        Arrays.sort(latencies);
+        System.out.println((dispatch ? "dispatcher" : "inline") + " control latency (ms): p50=" + percentile(latencies, 0.5)
+                + " p90=" + percentile(latencies, 0.9) + " p99=" + percentile(latencies, 0.99)
+                + " max=" + percentile(latencies, 1) + " unanswered=" + lost + "/" + probes);
+        prober.stop();
+        for (Client client : clients) client.stop();
+        server.stop();
+        if (dispatcher != null) dispatcher.stop(1000);
+    }
+
+    /**
+     * Compares the boxed 'Byte[]' packets of 'net.packet.legacy' with the 'byte[]' packets of 'net.packet'.
+     * Streams a 1 GB transfer as 'FileSendPacketSplit's through Kryo in memory, including the
+     * conversions each format needs between the file and the wire, and prints the throughput,
+     * the bytes allocated per transferred byte and the heap held by one decoded 10 MB split.
+     */
+    public static void benchPayloadFormats() {
+        final int splitSize = 64 * 1024;
+        final long total = 1L << 30;
+        byte[] data = new byte[splitSize];
+        new Random(1).nextBytes(data);
+        for (int pass = 0; pass < 2; pass++) {
+            for (boolean legacy : new boolean[]{true, false}) {
+                Kryo kryo = new Kryo();
+                kryo.register(net.packet.legacy.FileSendPacketSplit.class);
+                kryo.register(FileSendPacketSplit.class);
+                kryo.register(Byte[].class);
+                kryo.register(byte[].class);
+                Output output = new Output(splitSize * 8);
+                Input input = new Input();
+                long allocated = allocatedBytes();
+                long now = System.nanoTime();
+                long checksum = 0;
+                for (long sent = 0; sent < total; sent += splitSize) {
+                    FileSendPacketSplit split = new FileSendPacketSplit();
+                    split.fileUID = "bench";
+                    split.content = data;
+                    split.series = (int) (sent / splitSize);
+                    split.length = (int) (total / splitSize);
+                    split.finalPacket = sent + splitSize >= total;
+                    output.reset();
+                    kryo.writeClassAndObject(output, legacy ? LegacyPackets.downgrade(split) : split);
+                    input.setBuffer(output.getBuffer(), 0, output.position());
+                    Object received = LegacyPackets.upgrade(kryo.readClassAndObject(input));
+                    checksum += ((FileSendPacketSplit) received).content[split.series % splitSize];
+                }
+                long elapsed = System.nanoTime() - now;
+                allocated = allocatedBytes() - allocated;
+                if (pass == 0) continue;
+                System.out.println((legacy ? "Byte[]" : "byte[]") + ": " + String.format("%.0f", total / 1048576.0 / (elapsed / 1e9)) + " MB/s, "
+                        + String.format("%.1f", allocated / (double) total) + " bytes allocated per byte, checksum " + checksum);
+            }
+        }
+        long before = usedHeap();
+        byte[] primitive = new byte[10 * 1024 * 1024];
+        long primitiveHeap = usedHeap() - before;
+        before = usedHeap();
+        Byte[] boxed = new Byte[primitive.length];
+        for (int i = 0; i < boxed.length; i++) boxed[i] = (byte) i;
+        long boxedHeap = usedHeap() - before;
+        System.out.println("10 MB split held as Byte[]: " + String.format("%.1f", boxedHeap / 1048576.0) + " MB, as byte[]: "
+                + String.format("%.1f", primitiveHeap / 1048576.0) + " MB (" + boxed.length + ", " + primitive.length + ")");
+    }
+
+    /**
+     * Compares Kryo's reflective 'FieldSerializer' with the serializers of 'PacketSerializers'.
+     * Writes and reads typical packets in memory and prints, per packet, the nanoseconds
+     * per round trip and the encoded size for both.
+     */
+    public static void benchPacketSerializers() {
+        ConnectResponsePacket response = new ConnectResponsePacket();
+        response.PIN = "A1b2";
+        response.allowed = true;
+        response.targetLength = 1_000_000;
+        PinCheckResponsePacket check = new PinCheckResponsePacket();
+        check.UID = "a3f5c2e1-6d1b-4e7a-9c4f-2b8d1e0a7c55";
+        check.valid = true;
+        FileAcceptPacket accept = new FileAcceptPacket();
+        accept.UID = new String[]{"1574436125391", "1574436125392"};
+        FileSendRequestPacket request = new FileSendRequestPacket();
+        request.pin = "A1b2";
+        request.senderUID = check.UID;
+        request.fileUID = "1574436125391";
+        request.fileName = new byte[32];
+        request.fileNameParams = new byte[18];
+        request.fileSize = new byte[16];
+        request.fileSizeParams = new byte[18];
+        FileSendRequestBatchPacket batch = new FileSendRequestBatchPacket();
+        batch.requests = new FileSendRequestPacket[16];
+        Arrays.fill(batch.requests, request);
+        FileSendPacketSplit small = new FileSendPacketSplit();
+        small.pin = "A1b2";
+        small.senderUID = check.UID;
+        small.fileUID = "1574436125391";
+        small.isZip = false;
+        small.content = new byte[1024];
+        small.series = 7;
+        small.length = 100;
+        small.finalPacket = false;
+        FileSendPacketSplit large = new FileSendPacketSplit();
+        large.fileUID = small.fileUID;
+        large.pin = small.pin;
+        large.content = new byte[64 * 1024];
+        large.series = 8;
+        large.finalPacket = false;
+        Object[] packets = {response, check, accept, request, batch, small, large};
+
+        Kryo reflective = new Kryo();
+        for (Object packet : packets) reflective.register(packet.getClass());
+        reflective.register(String[].class);
+        reflective.register(FileSendRequestPacket[].class);
+        reflective.register(byte[].class);
+        Kryo written = new Kryo();
+        PacketSerializers.register(written);
+        Output output = new Output(256 * 1024);
+        Input input = new Input();
+        for (Object packet : packets) {
+            StringBuilder line = new StringBuilder(packet.getClass().getSimpleName());
+            for (Kryo kryo : new Kryo[]{reflective, written}) {
+                int iterations = 200_000, size = 0;
+                long checksum = 0, now = 0;
+                for (int pass = 0; pass < 2; pass++) {
+                    now = System.nanoTime();
+                    for (int i = 0; i < iterations; i++) {
+                        output.reset();
+                        kryo.writeClassAndObject(output, packet);
+                        size = output.position();
+                        input.setBuffer(output.getBuffer(), 0, size);
+                        checksum += kryo.readClassAndObject(input).hashCode() & 1;
+                    }
+                }
+                long elapsed = System.nanoTime() - now;
+                line.append(kryo == reflective ? ": FieldSerializer " : ", PacketSerializers ")
+                        .append(String.format("%.0f", elapsed / (double) iterations)).append(" ns ")
+                        .append(size).append(" bytes");
+                if (checksum < 0) line.append('!');
+            }
+            System.out.println(line);
+        }
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        Runtime r = Runtime.getRuntime();
+        return r.totalMemory() - r.freeMemory();
+    }
+
+    /**
+     * Compares fixed split lengths with lengths picked by 'ChunkSizer' under simulated links on loopback.
+     * Every profile runs a 'Server' behind a 'LinkProxy' that limits bandwidth, adds one-way latency and
+     * queues at most 'LinkProxy.QUEUE_TIME' like a router would. A client uploads a few bulk transfers
+     * through a 'SendPump' with credit based flow control, the way 'BinClient' does, and sends a small
+     * transfer halfway through the last one. Prints the throughput, the split length of each transfer
+     * and how long the small transfer took.
+     */
+    public static void benchChunkSizing() throws IOException, InterruptedException {
+        //name, bytes per second (0 for unlimited), one-way latency in milis, bytes per bulk transfer
+        Object[][] profiles = {
+                {"lan", 0L, 0L, 64 << 20},
+                {"broadband 50 Mbit/s 30 ms", 50_000_000L / 8, 15L, 12 << 20},
+                {"slow 4 Mbit/s 120 ms", 4_000_000L / 8, 60L, 1 << 20},
+        };
+        int port = 54780;
+        for (Object[] profile : profiles) {
+            for (boolean adaptive : new boolean[]{false, true}) {
+                runChunkSizing((String) profile[0], (long) profile[1], (long) profile[2], (int) profile[3], adaptive, port);
+                port += 2;
+            }
+        }
+    }
+
+    private static void runChunkSizing(String name, long bandwidth, long latency, int size, boolean adaptive, int port)
+            throws IOException, InterruptedException {
+        //the default memory multiple of both settings files, split bounds and credits as in 'BinServer'
+        final int m = 1200, window = 32, batch = window / 4, bulks = 6;
+        final int fixed = (int) (m * 2048 * 0.2f), min = 16 * 1024, max = (int) (m * 2048 * 0.4f);
+        TransferTable received = new TransferTable();
+        ConcurrentHashMap<Integer, Long> finished = new ConcurrentHashMap<>();
+        Server server = new Server(m * 16384, m * 2048);
+        registerDebugClasses(server.getKryo());
+        server.addListener(new Listener() {
+            @Override
+            public void received(Connection connection, Object object) {
+                if (object instanceof TransferOpenPacket) {
+                    TransferOpenPacket top = (TransferOpenPacket) object;
+                    received.open(top, window);
+                    connection.sendTCP(TransferTable.credit(top.transfer, window));
+                } else if (object instanceof FileChunkPacket) {
+                    int transfer = ((FileChunkPacket) object).transfer;
+                    FileSendPacketSplit split = received.toSplit((FileChunkPacket) object);
+                    if (split == null) return;
+                    if (split.finalPacket) finished.put(transfer, System.nanoTime());
+                    int credit = received.handled(transfer, batch, split.finalPacket);
+                    if (credit > 0) connection.sendTCP(TransferTable.credit(transfer, credit));
+                }
+            }
+        });
+        server.bind(port);
+        server.start();
+        LinkProxy proxy = new LinkProxy(port + 1, port, bandwidth, latency);
+
+        Client client = new Client(m * 8192, m * 2048);
+        registerDebugClasses(client.getKryo());
+        TransferTable sending = new TransferTable();
+        ChunkSizer sizer = new ChunkSizer(window, fixed);
+        sizer.setBounds(min, max);
+        SendPump pump = new SendPump(client, m * 8192 / 2, SendPump.SMALLEST_REMAINING);
+        client.addListener(new Listener() {
+            @Override
+            public void received(Connection connection, Object object) {
+                if (!(object instanceof ContinueSplitPacket)) return;
+                ContinueSplitPacket csp = (ContinueSplitPacket) object;
+                sizer.acked(csp.transfer, csp.credit);
+                sending.grant(csp.transfer, csp.credit);
+            }
+
+            @Override
+            public void idle(Connection connection) {
+                pump.pump();
+            }
+        });
+        client.start();
+        client.connect(5000, "127.0.0.1", port + 1);
+
+        byte[] data = new byte[size];
+        new Random(1).nextBytes(data);
+        StringBuilder lengths = new StringBuilder();
+        long start = System.nanoTime();
+        int last = -1;
+        Thread small = null;
+        long[] smallTook = new long[1];
+        for (int b = 0; b < bulks; b++) {
+            int length = adaptive ? sizer.next() : fixed;
+            lengths.append(b == 0 ? "" : ", ").append(length / 1024).append(" KB");
+            final int transfer = sending.nextSendID();
+            if (b == bulks - 1) {
+                last = transfer;
+                //an interactive send halfway through the last bulk transfer
+                long delay = bandwidth == 0 ? 50 : size * 500L / bandwidth;
+                small = new Thread(() -> {
+                    try {
+                        Thread.sleep(delay);
+                        int id = sending.nextSendID();
+                        long sent = System.nanoTime();
+                        sendBenchTransfer(pump, sending, adaptive ? sizer : null, id, new byte[32 * 1024], 32 * 1024, false, false);
+                        while (!finished.containsKey(id)) Thread.sleep(1);
+                        smallTook[0] = finished.get(id) - sent;
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                });
+                small.start();
+            }
+            sendBenchTransfer(pump, sending, adaptive ? sizer : null, transfer, data, length, false, false);
+            while (!finished.containsKey(transfer)) Thread.sleep(1);
+        }
+        small.join();
+        double seconds = (finished.get(last) - start) / 1e9;
+        System.out.println(name + (adaptive ? " adaptive" : " fixed") + ": " + String.format("%.2f", bulks * (double) size / seconds / 1048576)
+                + " MB/s, small transfer took " + String.format("%.0f", smallTook[0] / 1e6) + " ms, split lengths " + lengths
+                + (adaptive ? ", estimated " + String.format("%.2f", sizer.getBandwidth() / 1048576) + " MB/s rtt "
+                + String.format("%.1f", sizer.getRtt()) + " ms" : ""));
+        client.stop();
+        server.stop();
+        proxy.close();
+    }
+
+    /**
+     * Loopback benchmark of 'UdpChannel' under datagram loss, with and without the parity of 'ErasureCode'.
+     * A client uploads one transfer to a 'Server' with its chunks on the UDP data channel, through a 'LossProxy'
+     * that drops datagrams at random and delays the rest by a one-way latency; TCP goes to the server directly.
+     * Prints the goodput at 1%, 5% and 10% loss with parity off and on.
+     */
+    public static void benchDatagramLoss() throws IOException, InterruptedException {
+        int port = 54800;
+        for (double loss : new double[]{0.01, 0.05, 0.10}) {
+            for (boolean parity : new boolean[]{false, true}) {
+                runDatagramLoss(loss, 10, parity, port);
+                port += 3;
+            }
+        }
+    }
+
+    private static void runDatagramLoss(double loss, long latency, boolean parity, int port)
+            throws IOException, InterruptedException {
+        final int m = 64, window = 32, batch = window / 4, size = 4 << 20, length = 32 * 1024;
+        TransferTable received = new TransferTable();
+        UdpChannel[] receiving = new UdpChannel[1];
+        CountDownLatch done = new CountDownLatch(1);
+        Server server = new Server(m * 16384, m * 2048);
+        registerDebugClasses(server.getKryo());
+        server.addListener(new Listener() {
+            @Override
+            public void received(Connection connection, Object object) {
+                if (object instanceof TransferOpenPacket) {
+                    TransferOpenPacket top = (TransferOpenPacket) object;
+                    received.open(top, window);
+                    ContinueSplitPacket credit = TransferTable.credit(top.transfer, window);
+                    if (Boolean.TRUE.equals(top.datagram) && UdpChannel.isAvailable(connection)) {
+                        receiving[0] = new UdpChannel(connection, m * 2048);
+                        credit.datagram = true;
+                        if (Boolean.TRUE.equals(top.parity)) credit.parity = true;
+                    }
+                    connection.sendTCP(credit);
+                } else if (object instanceof DatagramSegmentPacket && receiving[0] != null) {
+                    for (Object chunk : receiving[0].receive((DatagramSegmentPacket) object)) received(connection, chunk);
+                } else if (object instanceof DatagramParityPacket && receiving[0] != null) {
+                    for (Object chunk : receiving[0].receive((DatagramParityPacket) object)) received(connection, chunk);
+                } else if (object instanceof DatagramAckPacket && receiving[0] != null) {
+                    receiving[0].acked((DatagramAckPacket) object);
+                } else if (object instanceof FileChunkPacket) {
+                    int transfer = ((FileChunkPacket) object).transfer;
+                    FileSendPacketSplit split = received.toSplit((FileChunkPacket) object);
+                    if (split == null) return;
+                    if (split.finalPacket) done.countDown();
+                    int credit = received.handled(transfer, batch, split.finalPacket);
+                    if (credit > 0) connection.sendTCP(TransferTable.credit(transfer, credit));
+                }
+            }
+        });
+        server.bind(port, port + 1);
+        server.start();
+        LossProxy proxy = new LossProxy(port + 2, port + 1, loss, latency);
+
+        Client client = new Client(m * 8192, m * 2048);
+        registerDebugClasses(client.getKryo());
+        TransferTable sending = new TransferTable();
+        SendPump pump = new SendPump(client, m * 8192 / 2);
+        UdpChannel[] channel = new UdpChannel[1];
+        client.addListener(new Listener() {
+            @Override
+            public void received(Connection connection, Object object) {
+                if (object instanceof ContinueSplitPacket) {
+                    ContinueSplitPacket csp = (ContinueSplitPacket) object;
+                    if (Boolean.TRUE.equals(csp.datagram) && channel[0] == null) {
+                        channel[0] = new UdpChannel(connection, m * 2048);
+                        channel[0].carry(csp.transfer);
+                        if (Boolean.TRUE.equals(csp.parity)) channel[0].setParity(true);
+                        pump.setDatagrams(channel[0]);
+                    }
+                    sending.grant(csp.transfer, csp.credit);
+                } else if (object instanceof DatagramAckPacket && channel[0] != null) {
+                    channel[0].acked((DatagramAckPacket) object);
+                }
+            }
+
+            @Override
+            public void idle(Connection connection) {
+                pump.pump();
+            }
+        });
+        client.start();
+        client.connect(5000, "127.0.0.1", port, port + 2);
+
+        byte[] data = new byte[size];
+        new Random(1).nextBytes(data);
+        long start = System.nanoTime();
+        sendBenchTransfer(pump, sending, null, sending.nextSendID(), data, length, true, parity);
+        boolean finished = done.await(5, TimeUnit.MINUTES);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("loss %.0f%%", loss * 100) + ", latency " + latency + " ms, parity " + (parity ? "on" : "off") + ": "
+                + (finished ? String.format("%.2f", size / seconds / 1048576) + " MB/s" : "timed out")
+                + ", " + proxy.dropped + " of " + proxy.datagrams + " datagrams dropped");
+        if (channel[0] != null) channel[0].close();
+        if (receiving[0] != null) receiving[0].close();
+        client.stop();
+        server.stop();
+        proxy.close();
+    }
+
+    /**
+     * Sends one transfer the way 'BinClient.sendFramed()' does, blocking for credit.
+     * @param datagram true to ask for the chunks to go over the UDP data channel, see 'TransferOpenPacket.datagram'.
+     * @param parity true to offer parity with them.
+     */
+    private static void sendBenchTransfer(SendPump pump, TransferTable table, ChunkSizer sizer, int transfer, byte[] data, int length,
+                                          boolean datagram, boolean parity) throws InterruptedException {
+        int count = (data.length + length - 1) / length;
+        SendPump.Queue queue = pump.open(count + 1, null);
+        byte[] header = new byte[]{1, 2, 3};
+        for (int series = 0; series < count; series++) {
+            FileSendPacketSplit split = new FileSendPacketSplit();
+            split.fileUID = "bench" + transfer;
+            split.pin = "AAAA";
+            split.isZip = false;
+            split.series = series;
+            split.length = count;
+            split.finalPacket = series == count - 1;
+            split.content = Arrays.copyOfRange(data, series * length, Math.min(data.length, (series + 1) * length));
+            if (series == 0) {
+                split.fileName = split.fileNameParams = split.fileSize = split.fileSizeParams = header;
+                TransferOpenPacket top = TransferTable.header(transfer, split);
+                if (datagram) top.datagram = true;
+                if (parity) top.parity = true;
+                queue.add(top);
+                if (sizer != null) sizer.sent(transfer, 0);
+            }
+            table.acquire(transfer, Long.MAX_VALUE);
+            queue.add(TransferTable.chunk(transfer, split));
+            if (sizer != null) sizer.sent(transfer, split.content.length);
+        }
+        table.finish(transfer);
+        queue.close();
+    }
+
+    /**
+     * Forwards one TCP connection to a local port through a simulated link: each direction is limited
+     * to a bandwidth, delayed by a one-way latency, and reads no further ahead than 'QUEUE_TIME'
+     * of transmission, so a full queue pushes back on the sender like a router's buffer.
+     */
+    private static class LinkProxy {
+
+        private static final long QUEUE_TIME = 100;
+
+        private final ServerSocket listener;
+        private final ArrayList<Socket> sockets = new ArrayList<>();
+
+        private LinkProxy(int port, int target, long bandwidth, long latency) throws IOException {
+            listener = new ServerSocket(port);
+            Thread accept = new Thread(() -> {
+                try {
+                    Socket in = listener.accept();
+                    Socket out = new Socket("127.0.0.1", target);
+                    in.setTcpNoDelay(true);
+                    out.setTcpNoDelay(true);
+                    synchronized (sockets) {
+                        sockets.add(in);
+                        sockets.add(out);
+                    }
+                    forward(in, out, bandwidth, latency);
+                    forward(out, in, bandwidth, latency);
+                } catch (IOException e) {
+                    //closed before a connection was made
+                }
+            });
+            accept.setDaemon(true);
+            accept.start();
+        }
+
+        private static void forward(Socket from, Socket to, long bandwidth, long latency) {
+            LinkedBlockingQueue<Object[]> link = new LinkedBlockingQueue<>();
+            Thread reader = new Thread(() -> {
+                byte[] buffer = new byte[16 * 1024];
+                long free = System.nanoTime();
+                try {
+                    InputStream in = from.getInputStream();
+                    int n;
+                    while ((n = in.read(buffer)) != -1) {
+                        long now = System.nanoTime();
+                        free = Math.max(free, now) + (bandwidth == 0 ? 0 : n * 1_000_000_000L / bandwidth);
+                        link.put(new Object[]{free + latency * 1_000_000, Arrays.copyOf(buffer, n)});
+                        long ahead = free - System.nanoTime() - QUEUE_TIME * 1_000_000;
+                        if (ahead > 0) LockSupport.parkNanos(ahead);
+                    }
+                } catch (IOException | InterruptedException e) {
+                    //link closed
+                }
+            });
+            Thread writer = new Thread(() -> {
+                try {
+                    OutputStream out = to.getOutputStream();
+                    while (true) {
+                        Object[] next = link.take();
+                        long wait = (long) next[0] - System.nanoTime();
+                        if (wait > 0) LockSupport.parkNanos(wait);
+                        out.write((byte[]) next[1]);
+                    }
+                } catch (IOException | InterruptedException e) {
+                    //link closed
+                }
+            });
+            reader.setDaemon(true);
+            writer.setDaemon(true);
+            reader.start();
+            writer.start();
+        }
+
+        private void close() throws IOException {
+            listener.close();
+            synchronized (sockets) {
+                for (Socket socket : sockets) socket.close();
+            }
+        }
+    }
+
+    /**
+     * Forwards the datagrams of one UDP client to a local port and back, dropping each one at random
+     * with the given probability and delaying the rest by a one-way latency.
+     */
+    private static class LossProxy {
+
+        private final DatagramSocket front, back;
+        private final Random random = new Random(1);
+        private final ArrayList<Thread> writers = new ArrayList<>();
+        private volatile long datagrams = 0, dropped = 0;
+
+        private LossProxy(int port, int target, double loss, long latency) throws IOException {
+            front = new DatagramSocket(port);
+            back = new DatagramSocket();
+            SocketAddress server = new InetSocketAddress("127.0.0.1", target);
+            SocketAddress[] client = new SocketAddress[1];
+            forward(front, back, () -> server, loss, latency, p -> client[0] = p.getSocketAddress());
+            forward(back, front, () -> client[0], loss, latency, p -> {});
+        }
+
+        private void forward(DatagramSocket from, DatagramSocket to, java.util.function.Supplier<SocketAddress> target,
+                             double loss, long latency, java.util.function.Consumer<DatagramPacket> seen) {
+            LinkedBlockingQueue<Object[]> link = new LinkedBlockingQueue<>();
+            Thread reader = new Thread(() -> {
+                byte[] buffer = new byte[65536];
+                try {
+                    while (true) {
+                        DatagramPacket p = new DatagramPacket(buffer, buffer.length);
+                        from.receive(p);
+                        seen.accept(p);
+                        synchronized (random) {
+                            datagrams++;
+                            if (random.nextDouble() < loss) {
+                                dropped++;
+                                continue;
+                            }
+                        }
+                        link.put(new Object[]{System.nanoTime() + latency * 1_000_000, Arrays.copyOf(buffer, p.getLength())});
+                    }
+                } catch (IOException | InterruptedException e) {
+                    //proxy closed
+                }
+            });
+            Thread writer = new Thread(() -> {
+                try {
+                    while (true) {
+                        Object[] next = link.take();
+                        long wait = (long) next[0] - System.nanoTime();
+                        if (wait > 0) LockSupport.parkNanos(wait);
+                        SocketAddress address = target.get();
+                        byte[] bytes = (byte[]) next[1];
+                        if (address != null) to.send(new DatagramPacket(bytes, bytes.length, address));
+                    }
+                } catch (IOException | InterruptedException e) {
+                    //proxy closed
+                }
+            });
+            reader.setDaemon(true);
+            writer.setDaemon(true);
+            reader.start();
+            writer.start();
+            writers.add(writer);
+        }
+
+        private void close() {
+            front.close();
+            back.close();
+            for (Thread writer : writers) writer.interrupt();
+        }
+    }
+
+    /**
+     * @return bytes allocated by this thread so far, or 0 if the JVM does not report it.
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return 0;
+        return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * @param sorted latencies in nanoseconds, Long.MAX_VALUE if unanswered.
+     * @param p percentile from 0 to 1.
+     * @return the latency at the given percentile in milis, or "-" if unanswered.
+     */
+    private static String percentile(long[] sorted, double p) {
+        long v = sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+        return v == Long.MAX_VALUE ? "-" : String.format("%.2f", v / 1e6);
+    }
+
     public static float problem1(float n) {
         if (n <= 0) return 1;
         return -3 * problem1(n - 1) + 4 * problem1(n - 2);
@@ -627,6 +627,16 @@ public class FileUtils {
         return sb.toString();
     }
 
+    /**
+     * Reads an array of bytes as a single String, see 'byteArrayToString(Byte[])'.
+     *
+     * @param bytes to convert into a String.
+     * @return
+     */
+    public static String byteArrayToString(byte[] bytes) {
+        return byteArrayToString(convertBytes(bytes));
+    }
+
     /**
      * Reads a String as a Byte[] separated by 'byteSep'
      * Returns null if of format error.
@@ -172,6 +172,7 @@ public class Handshake {
     private byte[] pubKeyEnc;
     private KeyAgreement keyAgree;
     private byte[] sharedSecret;
+    private ChunkCipher chunkCipher;
 
 
     /**
@@ -189,6 +190,16 @@ public class Handshake {
         return sharedSecret;
     }
 
+    /**
+     * Encrypts the chunks of split files with the shared secret, see 'ChunkCipher'.
+     * @return the cipher, null until the handshake is complete.
+     */
+    public synchronized ChunkCipher getChunkCipher() {
+        if (!isComplete() || sharedSecret == null) return null;
+        if (chunkCipher == null) chunkCipher = new ChunkCipher(sharedSecret);
+        return chunkCipher;
+    }
+
     public boolean isComplete() {
         return status == 1;
     }
@@ -1,8 +1,5 @@
 package util;
 
-import java.util.ArrayList;
-import java.util.Random;
-
 /**
  * Generates unique PINUtils's given a default length of the PINUtils,
  * prevents repeat PINUtils generation.
@@ -26,44 +23,26 @@ public class PINUtils {
     public static final int LENGTH_UID = 9;
 
     /**
-     * Instance of our StringBuilder to avoid concetation.
-     */
-    private static StringBuilder sb;
-
-    /**
-     * Instance of our random number generater.
+     * Fraction of the PIN space to fill before PINs one character longer are generated.
      */
-    private static Random random;
+    public static final double GROW_AT = 0.9;
 
     /**
-     * List to track our PINUtils's to avoid repeat generations.
+     * Tracks our PINUtils's to avoid repeat generations.
+     * Created on first use, as clients only ever call 'gen(int)'.
      */
-    private static ArrayList<String> listPins;
-
-    /**
-     * List of all possible characters to generate the PINUtils with.
-     */
-    static String[] allChars = {"0", "1", "2", "3", "4", "5", "6", "7", "8", "9", "A", "B", "C", "D", "E", "F", "G", "H", "I", "J", "K", "L", "M", "N", "O", "P", "Q", "R", "S", "T", "U", "V", "W", "X", "Y", "Z", "a", "b", "c", "d", "e", "f", "g", "h", "i", "j", "k", "l", "m", "n", "o", "p", "q", "r", "s", "t", "u", "v", "w", "x", "y", "z"};
+    private static class Pins {
+        static final PinAllocator allocator = new PinAllocator(LENGTH, GROW_AT);
+    }
 
     /**
      * Generates a random String of 'LENGTH' with
-     * digits and letters. Assumes that PINUtils's can always be
-     * generated and the list will not be full of combinations.
-     * Prevents regenerating PINs.
+     * digits and letters, unique among the PINs not yet removed.
+     * Once the PIN space is mostly full the PIN is one character longer; see 'PinAllocator'.
      * @return a PINUtils of 'LENGTH'.
      */
     public static String gen() {
-        sb = new StringBuilder();
-        if (random == null) random = new Random();
-        if (listPins == null) listPins = new ArrayList<>();
-        while (true) {
-            for (int i = 0; i < LENGTH; i++) {
-                sb.append(allChars[random.nextInt(allChars.length)]);
-            }
-            if (!listPins.contains(sb.toString())) break;
-        }
-        listPins.add(sb.toString());
-        return sb.toString();
+        return Pins.allocator.allocate();
     }
 
     /**
@@ -73,12 +52,7 @@ public class PINUtils {
      * @return a random string of 'length' length.
      */
     public static String gen(int length) {
-        sb = new StringBuilder();
-        if (random == null) random = new Random();
-        for (int i = 0; i < length; i++) {
-            sb.append(allChars[random.nextInt(allChars.length)]);
-        }
-        return sb.toString();
+        return PinAllocator.random(length);
     }
 
     /**
@@ -87,7 +61,7 @@ public class PINUtils {
      * @return true if the PINUtils has been generated, false otherwise
      */
     public static boolean isValidPin(String pin) {
-        return listPins.contains(pin);
+        return Pins.allocator.isAllocated(pin);
     }
 
     /**
@@ -96,6 +70,6 @@ public class PINUtils {
      * @return true if successful, false otherwise.
      */
     public static boolean removePIN(String pin) {
-        return listPins.remove(pin);
+        return Pins.allocator.release(pin);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,187 @@
+package util;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timing wheel: one daemon thread that runs any number of scheduled tasks.
+ * The wheel is an array of buckets, one per tick. A task is placed in the bucket of its
+ * deadline along with the amount of full revolutions left before it expires, so scheduling
+ * and cancelling are O(1) no matter how many tasks are pending.
+ * Accuracy is one tick, which is plenty for timeouts (admission, handshakes, stalled transfers).
+ * Tasks run on the timer's thread and should be short; hand off anything slow.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ */
+public class WheelTimer {
+
+    /**
+     * A scheduled task which can be cancelled until it has run.
+     */
+    public static class Timeout {
+
+        private static final int PENDING = 0, CANCELLED = 1, EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private long rounds;
+        private volatile int state = PENDING;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels this timeout.
+         * @return true if the task will no longer run, false if it already ran or was cancelled.
+         */
+        public boolean cancel() {
+            synchronized (this) {
+                if (state != PENDING) return false;
+                state = CANCELLED;
+                return true;
+            }
+        }
+
+        private boolean expire() {
+            synchronized (this) {
+                if (state != PENDING) return false;
+                state = EXPIRED;
+                return true;
+            }
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+    }
+
+    /**
+     * Length of a tick in nanoseconds.
+     */
+    private final long tickNanos;
+
+    /**
+     * One bucket per tick, only touched by the timer thread.
+     */
+    private final ArrayDeque<Timeout>[] wheel;
+
+    /**
+     * Timeouts scheduled since the last tick, moved into 'wheel' by the timer thread.
+     */
+    private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Time the timer started and amount of ticks done since.
+     */
+    private final long startTime;
+    private long tick = 0;
+
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * Creates and starts the timer.
+     * @param tickDuration length of a tick.
+     * @param unit of 'tickDuration'.
+     * @param ticksPerWheel amount of buckets in the wheel.
+     * @param name of the timer thread.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public WheelTimer(long tickDuration, TimeUnit unit, int ticksPerWheel, String name) {
+        tickNanos = Math.max(1, unit.toNanos(tickDuration));
+        wheel = new ArrayDeque[Math.max(1, ticksPerWheel)];
+        for (int i = 0; i < wheel.length; i++) wheel[i] = new ArrayDeque<>();
+        startTime = System.nanoTime();
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Runs the given task once after the given delay.
+     * @param task to run on the timer thread.
+     * @param delay before running.
+     * @param unit of 'delay'.
+     * @return a Timeout that can be used to cancel the task.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout t = new Timeout(task, System.nanoTime() - startTime + unit.toNanos(Math.max(0, delay)));
+        if (!running) {
+            t.cancel();
+            return t;
+        }
+        added.add(t);
+        return t;
+    }
+
+    /**
+     * Stops the timer thread; pending timeouts never run.
+     */
+    public void stop() {
+        running = false;
+        thread.interrupt();
+    }
+
+    private void run() {
+        while (running) {
+            long next = (tick + 1) * tickNanos;
+            long sleep = next - (System.nanoTime() - startTime);
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+                } catch (InterruptedException e) {
+                    if (!running) return;
+                }
+                continue;
+            }
+            transferAdded();
+            expire(wheel[(int) (tick % wheel.length)]);
+            tick++;
+        }
+    }
+
+    /**
+     * Places newly scheduled timeouts into the bucket of their deadline.
+     */
+    private void transferAdded() {
+        Timeout t;
+        while ((t = added.poll()) != null) {
+            if (t.isCancelled()) continue;
+            long ticks = Math.max(t.deadline / tickNanos, tick);
+            t.rounds = (ticks - tick) / wheel.length;
+            wheel[(int) (ticks % wheel.length)].add(t);
+        }
+    }
+
+    /**
+     * Runs every timeout in the bucket that is due this revolution and drops cancelled ones.
+     */
+    private void expire(ArrayDeque<Timeout> bucket) {
+        Iterator<Timeout> it = bucket.iterator();
+        while (it.hasNext()) {
+            Timeout t = it.next();
+            if (t.isCancelled()) {
+                it.remove();
+            } else if (t.rounds > 0) {
+                t.rounds--;
+            } else {
+                it.remove();
+                if (!t.expire()) continue;
+                try {
+                    t.task.run();
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -107,6 +107,14 @@ public class LaunchClient {
                 client.setConnectionFinishedListener(pin -> {
                     SplashScreen.instance.nextScreen(pin);
                 });
+                Object direct = clientSettings.keyValueMap.get(ClientSettings.DIRECT);
+                client.setDirectPort(direct instanceof Integer ? (int) direct : ClientSettings.DEFAULT_PORT_DIRECT);
+                Object datagrams = clientSettings.keyValueMap.get(ClientSettings.DATAGRAMS);
+                client.setDatagrams((datagrams instanceof Integer ? (int) datagrams : ClientSettings.DEFAULT_UDP_DATA) == 1);
+                Object parity = clientSettings.keyValueMap.get(ClientSettings.PARITY);
+                client.setParity((parity instanceof Integer ? (int) parity : ClientSettings.DEFAULT_UDP_FEC) == 1);
+                Object stripes = clientSettings.keyValueMap.get(ClientSettings.STRIPES);
+                client.setStripes(stripes instanceof Integer ? (int) stripes : ClientSettings.DEFAULT_STRIPES);
                 client.init((String) clientSettings.keyValueMap.get(ClientSettings.IP), (int) clientSettings.keyValueMap.get(ClientSettings.TCP), (int) clientSettings.keyValueMap.get(ClientSettings.UDP), (int) clientSettings.keyValueMap.get(ClientSettings.MEM), (String) clientSettings.keyValueMap.get(ClientSettings.UID));
             };
         /**
@@ -2,7 +2,9 @@ package net;
 
 import com.esotericsoftware.kryonet.Client;
 import com.esotericsoftware.kryonet.Connection;
+import com.esotericsoftware.kryonet.FrameworkMessage;
 import com.esotericsoftware.kryonet.Listener;
+import util.ChunkCipher;
 import util.Handshake;
 import javafx.application.Platform;
 import net.packet.*;
@@ -12,10 +14,15 @@ import net.lingala.zip4j.ZipFile;
 import net.lingala.zip4j.exception.ZipException;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This class handles all the network activity for our client.
@@ -46,6 +53,12 @@ public class BinClient extends Listener {
      */
     public static final float SPLIT_PERC = 0.2f;
 
+    /**
+     * Largest percent of the maximum allowable network target size a split may take
+     * when its length is picked by 'ChunkSizer'.
+     */
+    public static final float MAX_SPLIT_PERC = 0.4f;
+
     /**
      * Time in milis after connection attempt to give up.
      */
@@ -56,6 +69,11 @@ public class BinClient extends Listener {
      */
     public static final int INITIAL_REQUEST_WAIT = 1000;
 
+    /**
+     * Time in milis between attempts to reconnect once the connection is lost, and amount of attempts.
+     */
+    public static final int RECONNECT_WAIT = 2000, RECONNECT_ATTEMPTS = 30;
+
     /**
      * Unique PIN given from the Server.
      */
@@ -87,6 +105,12 @@ public class BinClient extends Listener {
      */
     private HashMap<String, Handshake> secretMap;
 
+    /**
+     * UIDs of the clients that take split files whose chunks are encrypted one at a time, see 'ChunkCipher';
+     * learned from their 'HandshakePacket'.
+     */
+    private final Set<String> sealedPeers = ConcurrentHashMap.newKeySet();
+
     /**
      * TODO: write UID's to dsk & do handshake when desired.
      */
@@ -160,6 +184,78 @@ public class BinClient extends Listener {
      */
     private int localTargetLength = 0;
 
+    /**
+     * Largest split length of ours when the server lets us pick it, see 'ConnectResponsePacketV2'.
+     */
+    private int localMaxLength = 0;
+
+    /**
+     * Picks the split length of each transfer from the throughput and RTT measured on the connection.
+     * Created once the server responded with the bounds, see 'getTargetNetSize()'.
+     */
+    private ChunkSizer sizer;
+
+    /**
+     * Credit granted to the server when it opens a transfer, amount of its chunks handled
+     * before that credit is handed back, and milis to wait for credit before checking the connection;
+     * see 'ContinueSplitPacket'.
+     */
+    private static final int CREDIT_WINDOW = 32, CREDIT_BATCH = CREDIT_WINDOW / 4, CREDIT_WAIT = 1000;
+
+    /**
+     * Split transfers open on the connection to the server, see 'TransferTable'.
+     */
+    private TransferTable transfers = new TransferTable();
+
+    /**
+     * Counts the connections made, a split sent on an earlier one is not sent further; see 'sendFramed()'.
+     */
+    private volatile int session = 0;
+
+    /**
+     * Split files being uploaded by file UID, kept until done so they resume after a disconnect;
+     * see 'TransferResumePacket'.
+     */
+    private final ConcurrentHashMap<String, Upload> uploads = new ConcurrentHashMap<>();
+
+    /**
+     * Uploads by the transfer they are sent under, until the server acknowledged every chunk;
+     * corrupted chunks are sent again from them, see 'RetransmitPacket'.
+     */
+    private final ConcurrentHashMap<Integer, Upload> sent = new ConcurrentHashMap<>();
+
+    /**
+     * Sends the packets of all our transfers to the server, see 'SendPump'.
+     * Transfers are interleaved chunk by chunk, the one with the least chunks left first.
+     * Created by 'init()' once connected.
+     */
+    private SendPump pump;
+
+    /**
+     * Direct connections to the peers we share a secret with, split files we send them skip the server
+     * where they can be reached; see 'DirectEndpointPacket'.
+     * Created by 'init()' if a port was set with 'setDirectPort()', else null.
+     */
+    private DirectPeers direct;
+    private int directPort = 0;
+
+    /**
+     * Carries the chunks of transfers with the server that both sides agreed on over UDP, see 'UdpChannel'.
+     * Only proposed and agreed to if enabled with 'setDatagrams()'; opened for the first such transfer
+     * of a connection, null until then. Parity is sent and taken with the datagrams if enabled with 'setParity()'.
+     */
+    private volatile UdpChannel udp;
+    private boolean datagrams = false, parity = false;
+
+    /**
+     * Auxiliary connections to the server that the chunks of our uploads and of the files relayed to us
+     * are spread over, see 'Stripes'; opened once the server gave a token if enabled with 'setStripes()',
+     * null until then. Chunks from the server are put back in series order one at a time, see 'TransferTable.order()'.
+     */
+    private volatile Stripes stripes;
+    private int stripeCount = 0;
+    private final ReentrantLock arrivals = new ReentrantLock();
+
     /**
      * Creates the network client given a port TCP, port UDP, and multiple of memory size.
      */
@@ -179,6 +275,7 @@ public class BinClient extends Listener {
             ex.printStackTrace();
             return;
         }
+        pump = new SendPump(client, writeBufferSize / 2, SendPump.SMALLEST_REMAINING);
         client.addListener(this);
         try {
             Thread.sleep(INITIAL_REQUEST_WAIT);
@@ -186,35 +283,75 @@ public class BinClient extends Listener {
             e.printStackTrace();
         }
         localTargetLength = (int) ((writeBufferSize < objectBufferSize ? writeBufferSize : objectBufferSize) * SPLIT_PERC);
+        localMaxLength = (int) ((writeBufferSize < objectBufferSize ? writeBufferSize : objectBufferSize) * MAX_SPLIT_PERC);
         secretMap = new HashMap<>();
         uidToPinMap = new HashMap<>();
-        ConnectRequestPacket packet = new ConnectRequestPacket();
-        packet.UID = uid;
+        if (directPort > 0) {
+            direct = new DirectPeers(this, writeBufferSize, objectBufferSize);
+            if (!direct.bind(directPort)) direct = null;
+        }
+        sendConnectRequest();
+    }
+
+    /**
+     * Sends our 'ConnectRequestPacketV2', the server responds with a PIN.
+     */
+    private void sendConnectRequest() {
+        ConnectRequestPacketV2 packet = new ConnectRequestPacketV2();
+        packet.UID = UID;
+        packet.protocol = ConnectRequestPacketV2.PROTOCOL_STRIPES;
         client.sendTCP(packet);
     }
+
+    /**
+     * Opens the auxiliary connections of 'Stripes' on a daemon thread of their own, as it blocks while
+     * connecting and the update thread of the main connection must keep running; chunks take the main
+     * connection until they are ready. Connections that could not be opened are logged.
+     * @param s stripes to open.
+     * @param token given in 'ConnectResponsePacketV2'.
+     */
+    private void openStripes(Stripes s, String token) {
+        Thread t = new Thread(() -> {
+            int wanted = Math.min(stripeCount, Stripes.MAX);
+            try {
+                int opened = s.open(ip, portTCP, portUDP, wanted, UID, token);
+                if (opened < wanted) System.out.println("ERROR: opened " + opened + " of " + wanted + " auxiliary connections.");
+            } catch (RuntimeException e) {
+                System.out.println("ERROR: could not open auxiliary connections: " + e.getMessage());
+                e.printStackTrace();
+                s.close();
+            }
+        }, "stripes-open");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Reconnects to the server after the connection was lost, every 'RECONNECT_WAIT' milis until it succeeds
+     * or 'RECONNECT_ATTEMPTS' failed. The server then resumes the split files cut off.
+     */
+    private void reconnect() {
+        for (int i = 0; i < RECONNECT_ATTEMPTS && success; i++) {
+            try {
+                Thread.sleep(RECONNECT_WAIT);
+                client.reconnect(INITIAL_TIMEOUT);
+                sendConnectRequest();
+                return;
+            } catch (IOException e) {
+                System.out.println("Reconnect failed: " + e.getMessage());
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+    }
     /**
      * Register all classes and data types being sent
-     * in any packet.
+     * in any packet, with the fixed IDs and serializers of 'PacketSerializers'
+     * shared with 'BinServer'.
      */
     private void registerClasses() {
-        client.getKryo().register(ConnectRequestPacket.class);
-        client.getKryo().register(ConnectResponsePacket.class);
-        client.getKryo().register(DisconnectRequestPacket.class);
-        client.getKryo().register(FileAcceptPacket.class);
-        client.getKryo().register(FileRejectedPacket.class);
-        client.getKryo().register(FileSendPacket.class);
-        client.getKryo().register(FileSendPacketSplit.class);
-        client.getKryo().register(FileSendRequestPacket.class);
-        client.getKryo().register(PinCheckResponsePacket.class);
-        client.getKryo().register(PinCheckRequestPacket.class);
-        client.getKryo().register(PinUpdatePacket.class);
-        client.getKryo().register(ContinueSplitPacket.class);
-        client.getKryo().register(HandshakePacket.class);
-        client.getKryo().register(Byte[].class);
-        client.getKryo().register(String[].class);
-        client.getKryo().register(String.class);
-        client.getKryo().register(Integer.class);
-        client.getKryo().register(Boolean.class);
+        PacketSerializers.register(client.getKryo());
     }
 
     /**
@@ -230,45 +367,268 @@ public class BinClient extends Listener {
 
     /**
      * Invoked when the client has disconnected from the net.server.
-     * ]
+     * Reconnects unless the server asked us to disconnect.
+     * A direct connection to a peer that closed is forgotten, files sent on it are relayed instead.
      *
      * @param connection
      */
     @Override
     public void disconnected(Connection connection) {
         super.disconnected(connection);
+        if (connection != client) {
+            DirectLink link = direct == null ? null : direct.closed(connection);
+            if (link == null) return;
+            for (Upload upload : link.close()) {
+                System.out.println("Direct connection to " + link.peerUID + " lost, relaying " + upload.fileUID);
+                new Thread(() -> {
+                    if (upload.claim()) send(upload, null, null);
+                }).start();
+            }
+            return;
+        }
+        session++;
+        sent.clear();
+        if (pump != null) pump.clear();
+        closeDatagrams();
+        Stripes s = stripes;
+        stripes = null;
+        if (s != null) s.close();
+        if (success) new Thread(this::reconnect).start();
+    }
+
+    /**
+     * Invoked whenever the write buffer of the connection drained below its idle threshold;
+     * refills it with queued packets.
+     *
+     * @param connection
+     */
+    @Override
+    public void idle(Connection connection) {
+        if (connection != client) {
+            DirectLink link = direct == null ? null : direct.get(connection);
+            if (link != null) link.pump.pump();
+            return;
+        }
+        if (pump != null) pump.pump();
     }
 
     /**
      * Invoked whenever this Client receives a Packet.
      * Closes the application upon retrieval of a DisconnectRequestPacket.
+     * Packets of a direct connection are handled the same once the peer said hello,
+     * only those of split transfers are taken; see 'DirectLink'.
      *
-     * @param connection connection data of packet sender.
+     * @param connection connection data of packet sender, the server or a peer.
      * @param object     received from the Server.
      */
     @Override
     public void received(Connection connection, Object object) {
         super.received(connection, object);
-        if (object instanceof DisconnectRequestPacket) {
+        final DirectLink link = connection == client || direct == null ? null : direct.get(connection);
+        if (connection != client && link == null) {
+            if (direct != null && !(object instanceof FrameworkMessage)) direct.hello(connection, object);
+            return;
+        }
+        if (link != null && !DirectLink.isAllowed(object)) return;
+        if (object instanceof FileChunkPacket && link == null && !arrivals.isHeldByCurrentThread()) {
+            //chunks of striped transfers come over every connection to the server, handled in series order
+            arrivals.lock();
+            try {
+                List<FileChunkPacket> ordered = transfers.order((FileChunkPacket) object);
+                if (!dropCancelled(connection, transfers, ((FileChunkPacket) object).transfer)) {
+                    for (FileChunkPacket chunk : ordered) received(connection, chunk);
+                }
+            } finally {
+                arrivals.unlock();
+            }
+            return;
+        }
+        if (object instanceof DatagramSegmentPacket) {
+            //part of a chunk sent over UDP, handle the chunks it completes in order
+            UdpChannel channel = udp;
+            if (channel == null) return;
+            for (Object chunk : channel.receive((DatagramSegmentPacket) object)) received(connection, chunk);
+            return;
+        } else if (object instanceof DatagramParityPacket) {
+            //parity of a group of datagrams, handle the chunks of the ones it rebuilds
+            UdpChannel channel = udp;
+            if (channel == null) return;
+            for (Object chunk : channel.receive((DatagramParityPacket) object)) received(connection, chunk);
+            return;
+        } else if (object instanceof DatagramAckPacket) {
+            UdpChannel channel = udp;
+            if (channel != null) channel.acked((DatagramAckPacket) object);
+            return;
+        }
+        TransferTable table = link == null ? transfers : link.transfers;
+        int transfer = -1;
+        boolean last = false;
+        if (object instanceof FileChunkPacket) {
+            //part of an open transfer, handled as the split it stands for
+            FileChunkPacket chunk = (FileChunkPacket) object;
+            //a corrupted chunk is asked for again, the final chunk waits for it
+            RetransmitPacket retransmit = table.check(chunk);
+            if (retransmit != null) {
+                System.out.println("Corrupted chunk [" + chunk.series + "] of transfer " + chunk.transfer + ", asked again.");
+                connection.sendTCP(retransmit);
+                return;
+            }
+            if (table.defer(chunk)) return;
+            transfer = chunk.transfer;
+            FileSendPacketSplit split = table.toSplit(chunk);
+            if (split == null) {
+                if (!dropCancelled(connection, table, chunk.transfer)) System.out.println("ERROR: chunk of unknown transfer");
+                return;
+            }
+            last = split.finalPacket;
+            object = split;
+        }
+        if (object instanceof TransferOpenPacket) {
+            /*
+            The server or a peer opened a split transfer, keep its header until the final chunk
+            and grant the initial credit.
+             */
+            TransferOpenPacket top = (TransferOpenPacket) object;
+            if (link != null) top.senderUID = link.peerUID;
+            table.open(top, CREDIT_WINDOW);
+            if (top.transfer != null) {
+                ContinueSplitPacket credit = TransferTable.credit(top.transfer, CREDIT_WINDOW);
+                //take the chunks over UDP if the server proposed it, the channel is ready before they can arrive
+                if (link == null && datagrams && Boolean.TRUE.equals(top.datagram) && UdpChannel.isAvailable(client)) {
+                    openDatagrams();
+                    credit.datagram = true;
+                    if (parity && Boolean.TRUE.equals(top.parity)) credit.parity = true;
+                }
+                connection.sendTCP(credit);
+            }
+        } else if (object instanceof ContinueSplitPacket) {
+            /*
+            The server or a peer granted credit for a transfer we send.
+             */
+            ContinueSplitPacket csp = (ContinueSplitPacket) object;
+            if (csp.transfer != null && csp.credit != null) {
+                //the server agreed to take the chunks over UDP, before the sender wakes up
+                if (link == null && Boolean.TRUE.equals(csp.datagram) && UdpChannel.isAvailable(client)) {
+                    UdpChannel channel = openDatagrams();
+                    channel.carry(csp.transfer);
+                    if (Boolean.TRUE.equals(csp.parity)) channel.setParity(true);
+                }
+                //measured before the sender wakes up and sends more
+                if (sizer != null && link == null) sizer.acked(csp.transfer, csp.credit);
+                if (table.grant(csp.transfer, csp.credit)) {
+                    //every chunk arrived, the upload is done
+                    UdpChannel channel = link == null ? udp : null;
+                    if (channel != null) channel.drop(csp.transfer);
+                    Upload upload = (link == null ? sent : link.sent).remove(csp.transfer);
+                    if (upload != null && uploads.remove(upload.fileUID, upload)) upload.dispose();
+                }
+            }
+        } else if (object instanceof RetransmitPacket) {
+            /*
+            A chunk we sent reached the server corrupted, send it again.
+            It takes the credit of the corrupted one.
+             */
+            RetransmitPacket rp = (RetransmitPacket) object;
+            Upload upload = rp.transfer == null || rp.series == null ? null : (link == null ? sent : link.sent).get(rp.transfer);
+            if (upload != null) {
+                new Thread(() -> {
+                    FileSendPacketSplit split = upload.split(rp.series);
+                    if (split == null) {
+                        System.out.println("ERROR: could not send again " + upload.fileUID + " [" + rp.series + "]");
+                        return;
+                    }
+                    (link == null ? pump : link.pump).send(TransferTable.checkedChunk(rp.transfer, split), null);
+                }).start();
+            }
+        } else if (object instanceof TransferResumePacket) {
+            /*
+            We reconnected in the middle of uploading a file, send the series the server misses.
+            Or a peer accepted a file we offered it directly, that it holds part of.
+             */
+            TransferResumePacket trp = (TransferResumePacket) object;
+            Upload upload = trp.fileUID == null ? null : link == null ? uploads.get(trp.fileUID) : link.offered.remove(trp.fileUID);
+            if (upload != null) {
+                new Thread(() -> {
+                    if (upload.claim()) send(upload, trp.have, link);
+                }).start();
+            }
+        } else if (object instanceof FileAcceptPacket) {
+            /*
+            A peer accepted files we offered it directly, send them.
+             */
+            FileAcceptPacket fap = (FileAcceptPacket) object;
+            for (String uid : fap.UID == null || link == null ? new String[0] : fap.UID) {
+                Upload upload = link.offered.remove(uid);
+                if (upload == null) continue;
+                new Thread(() -> {
+                    if (upload.claim()) send(upload, null, link);
+                }).start();
+            }
+        } else if (object instanceof FileRejectedPacket) {
+            /*
+            The server gave up files we upload, E.G. it could not spool them or their recipient is unknown.
+            Stop sending them. Or it gave up a file sent to us, E.G. its spool could not be read; drop what we hold.
+             */
+            FileRejectedPacket frp = (FileRejectedPacket) object;
+            for (String uid : frp.UID == null || link != null ? new String[0] : frp.UID) {
+                Upload upload = uploads.remove(uid);
+                if (upload == null) {
+                    if (FileSendPacketWrap.canReadWrite() && FileSendPacketWrap.hasCatalog(uid) && !FileSendPacketWrap.isFinished(uid)) {
+                        FileSendPacketWrap.removeCompletely(uid);
+                        System.out.println("ERROR: server dropped download " + uid);
+                    }
+                    continue;
+                }
+                //the thread sending it stops once it misses its transfer
+                sent.values().remove(upload);
+                new Thread(() -> {
+                    if (upload.claim()) upload.dispose();
+                }).start();
+                System.out.println("ERROR: server dropped upload " + uid);
+            }
+        } else if (object instanceof DirectEndpointPacket) {
+            /*
+            A peer we share a secret with advertised an endpoint, send its split files there.
+             */
+            if (direct != null) direct.learn((DirectEndpointPacket) object);
+        } else if (object instanceof DisconnectRequestPacket) {
             /*
             DisconnectPacket, net.server wants us to close the connection.
             */
-            client.close();
             success = false;
+            client.close();
+            if (direct != null) direct.close();
         } else if (object instanceof ConnectResponsePacket) {
             /*
             ConnectResponsePacket.
             Get PIN from the packet.
-            Get target length from the packet.
+            Get target length from the packet, and the bounds to pick split lengths within if given.
             Invoke our 'ConnectionFinishedListener'.
              */
             ConnectResponsePacket crp = (ConnectResponsePacket) object;
+            //once reconnected the screens are set up already
+            boolean reconnected = PIN != null;
             PIN = crp.PIN;
             if (targetLength == 0) {
                 targetLength = crp.targetLength;
                 targetLength = localTargetLength < targetLength ? localTargetLength : targetLength;
+                ChunkSizer s = new ChunkSizer(CREDIT_WINDOW, targetLength);
+                if (crp instanceof ConnectResponsePacketV2) {
+                    ConnectResponsePacketV2 v2 = (ConnectResponsePacketV2) crp;
+                    if (v2.minLength != null && v2.maxLength != null) {
+                        s.setBounds(Math.min(v2.minLength, targetLength), Math.min(v2.maxLength, localMaxLength));
+                    }
+                }
+                sizer = s;
+            }
+            //spread chunks over auxiliary connections as well, the server takes them with its token
+            String token = crp instanceof ConnectResponsePacketV2 ? ((ConnectResponsePacketV2) crp).stripeToken : null;
+            if (stripeCount > 0 && token != null) {
+                Stripes s = new Stripes(client, pump, this, writeBufferSize, objectBufferSize);
+                stripes = s;
+                openStripes(s, token);
             }
-            if (connectionFinishedListener != null) {
+            if (connectionFinishedListener != null && !reconnected) {
                 Runnable r = () -> connectionFinishedListener.respond(PIN);
                 Platform.runLater(r);
             }
@@ -280,30 +640,48 @@ public class BinClient extends Listener {
              */
             HandshakePacket hp = (HandshakePacket) object;
             Handshake h = secretMap.get(hp.senderUID);
+            if (Boolean.TRUE.equals(hp.sealed)) sealedPeers.add(hp.senderUID);
+            else sealedPeers.remove(hp.senderUID);
             if (h == null) {
                 uidToPinMap.put(hp.pin, hp.senderUID);
-                secretMap.put(hp.senderUID, h = new Handshake(FileUtils.convertBytes(hp.encryptedPubKey)));
+                secretMap.put(hp.senderUID, h = new Handshake(hp.encryptedPubKey));
                 HandshakePacket packet = new HandshakePacket();
                 packet.UID = hp.senderUID;
-                packet.encryptedPubKey = FileUtils.convertBytes(h.getPubEncrypted());
+                packet.encryptedPubKey = h.getPubEncrypted();
+                packet.sealed = true;
                 client.sendTCP(packet);
+                advertise(hp.senderUID);
                 System.out.println("handshake complete 1: " + hp.senderUID);
             } else if (h.isInProgress()) {
                 uidToPinMap.put(hp.pin, hp.senderUID);
-                h.generateAlice(FileUtils.convertBytes(hp.encryptedPubKey));
+                h.generateAlice(hp.encryptedPubKey);
+                advertise(hp.senderUID);
                 System.out.println("handshake complete 2");
+            } else {
+                //they lost the secret we kept, E.G. restarted; start over as "Bob"
+                uidToPinMap.put(hp.pin, hp.senderUID);
+                secretMap.put(hp.senderUID, h = new Handshake(hp.encryptedPubKey));
+                HandshakePacket packet = new HandshakePacket();
+                packet.UID = hp.senderUID;
+                packet.encryptedPubKey = h.getPubEncrypted();
+                packet.sealed = true;
+                client.sendTCP(packet);
+                advertise(hp.senderUID);
+                System.out.println("handshake renewed: " + hp.senderUID);
             }
         } else if (object instanceof PinUpdatePacket) {
             /*
-            Another client disconnected, invoke our 'net.PinUpdateListener'.
+            One or more clients we know of disconnected, invoke our 'net.PinUpdateListener' for each.
             Remove from uid map.
              */
             PinUpdatePacket p = ((PinUpdatePacket) object);
-            if (pinUpdateListener != null) {
-                Runnable r = () -> pinUpdateListener.respond((p.PIN));
-                removeClient(uidToPinMap.get(p.PIN));
+            String[] pins = p.PINS != null ? p.PINS : new String[]{p.PIN};
+            for (String pin : pins) {
+                if (pin == null || pinUpdateListener == null) continue;
+                Runnable r = () -> pinUpdateListener.respond(pin);
+                removeClient(uidToPinMap.get(pin));
                 //TODO: change this
-                uidToPinMap.remove(p.PIN);
+                uidToPinMap.remove(pin);
                 Platform.runLater(r);
             }
         } else if (object instanceof PinCheckResponsePacket) {
@@ -317,14 +695,45 @@ public class BinClient extends Listener {
             }
         } else if (object instanceof FileSendRequestPacket) {
             /*
-            A request for a file to be sent to this client has been made.
-            Invoke our listener.
-
+            A request for a file to be sent to this client has been made, by the server or a peer directly.
+            Resume it if we hold part of it, else invoke our listener.
+            A file offered directly is accepted on the same connection, see 'sendAccept()'.
              */
-            if (fileRequestListener != null) {
-                FileSendRequestPacket p = (FileSendRequestPacket) object;
-                fileRequestListener.respondRequest(p, new String(Handshake.Decrypt(secretMap.get(p.senderUID).getSecret(), FileUtils.convertBytes(p.fileName), FileUtils.convertBytes(p.fileNameParams))));
+            FileSendRequestPacket p = (FileSendRequestPacket) object;
+            if (link != null) p.senderUID = link.peerUID;
+            if (!resume(connection, p.fileUID)) {
+                Handshake h = secretMap.get(p.senderUID);
+                if (h == null || h.getSecret() == null) {
+                    //it could never be decrypted, the sender has to send it again once we share a secret
+                    System.out.println("No secret for file from: " + p.senderUID + ", rejected.");
+                    if (link == null) sendReject(p.fileUID);
+                    return;
+                }
+                if (link != null) link.requested.add(p.fileUID);
+                if (fileRequestListener != null) {
+                    fileRequestListener.respondRequest(p, new String(Handshake.Decrypt(secretMap.get(p.senderUID).getSecret(), p.fileName, p.fileNameParams)));
+                }
+            }
+        } else if (object instanceof FileSendRequestBatchPacket) {
+            /*
+            Files were sent to this client while it was offline, or were cut off by a disconnect.
+            Files we hold part of are resumed.
+            Only requests from senders we share a secret with can be shown.
+             */
+            ArrayList<String> undecryptable = new ArrayList<>();
+            for (FileSendRequestPacket p : ((FileSendRequestBatchPacket) object).requests) {
+                if (resume(connection, p.fileUID)) continue;
+                Handshake h = secretMap.get(p.senderUID);
+                if (h == null || h.getSecret() == null) {
+                    //rejected so the server drops it, it could never be decrypted
+                    System.out.println("No secret for queued file from: " + p.senderUID + ", rejected.");
+                    undecryptable.add(p.fileUID);
+                    continue;
+                }
+                if (fileRequestListener == null) continue;
+                fileRequestListener.respondRequest(p, new String(Handshake.Decrypt(h.getSecret(), p.fileName, p.fileNameParams)));
             }
+            if (!undecryptable.isEmpty()) sendReject(undecryptable.toArray(new String[0]));
         } else if (object instanceof FileSendPacket) {
             /*
             A file has been sent to this user.
@@ -335,8 +744,8 @@ public class BinClient extends Listener {
                 FileSendPacket fsp = (FileSendPacket) object;
                 byte[] secret = secretMap.get(fsp.senderUID).getSecret();
                 String outTemp = ClientSettings.WORKING_DIR_CRYPT + fsp.fileUID;
-                String out = fileRequestListener.respondSend(fsp.fileUID, new String(Handshake.Decrypt(secret, FileUtils.convertBytes(fsp.fileName), FileUtils.convertBytes(fsp.fileNameParams))));
-                FileUtils.writeFileAsBytes(fsp.isZip ? outTemp : out, Handshake.Decrypt(secretMap.get(fsp.senderUID).getSecret(), FileUtils.convertBytes(fsp.content), FileUtils.convertBytes(fsp.contentParams)));
+                String out = fileRequestListener.respondSend(fsp.fileUID, new String(Handshake.Decrypt(secret, fsp.fileName, fsp.fileNameParams)));
+                FileUtils.writeFileAsBytes(fsp.isZip ? outTemp : out, Handshake.Decrypt(secretMap.get(fsp.senderUID).getSecret(), fsp.content, fsp.contentParams));
                 if (fsp.isZip) {
                     try {
                         new ZipFile(outTemp).extractAll(out);
@@ -369,8 +778,12 @@ public class BinClient extends Listener {
                  */
                     System.out.println("{FileSendPaceket} Finished creating file wit uid " + fsps.fileUID);
                     HashMap<String, Object> map = FileSendPacketWrap.getParamsAsMap(fsps.fileUID);
-                    String out = fileRequestListener.respondSend(fsps.fileUID, new String(Handshake.Decrypt(secret, FileUtils.convertBytes((Byte[]) map.get("fileName")), FileUtils.convertBytes((Byte[]) map.get("fileNameParams")))));
-                    if (FileSendPacketWrap.isEncryptedEach(fsps.fileUID)) {
+                    String out = fileRequestListener.respondSend(fsps.fileUID, new String(Handshake.Decrypt(secret, (byte[]) map.get("fileName"), (byte[]) map.get("fileNameParams"))));
+                    HashMap<Integer, byte[]> params = FileSendPacketWrap.getContentParams(fsps.fileUID);
+                    if (params != null && ChunkCipher.salt(params.get(0)) != null) {
+                        //each split was encrypted on its own by a 'ChunkCipher'
+                        writeSealed(fsps.fileUID, secretMap.get(fsps.senderUID).getChunkCipher(), out, outTemp);
+                    } else if (FileSendPacketWrap.isEncryptedEach(fsps.fileUID)) {
                     /*
                     Assuming the given file is completely accounted for, then
                     for each split decrypt and append to the file.
@@ -394,7 +807,7 @@ public class BinClient extends Listener {
                                 f.delete();
                                 break;
                             }
-                            FileUtils.appendFileAsBytes((iz = split.isZip) ? outTemp : out, Handshake.Decrypt(secret, FileUtils.convertBytes(split.content), FileUtils.convertBytes(split.contentParams)));
+                            FileUtils.appendFileAsBytes((iz = split.isZip) ? outTemp : out, Handshake.Decrypt(secret, split.content, split.contentParams));
                             System.out.println("removal [ + " + split + "]: " + FileSendPacketWrap.removeSplit(fsps.fileUID, i));
                         }
                         if (iz) {
@@ -415,7 +828,7 @@ public class BinClient extends Listener {
                      */
                         FileSendPacketWrap wrap = FileSendPacketWrap.read(fsps.fileUID);
                         FileSendPacket fsp = wrap.concatenate();
-                        FileUtils.writeFileAsBytes(fsp.isZip ? outTemp : out, Handshake.Decrypt(secret, FileUtils.convertBytes(fsp.content), FileUtils.convertBytes(fsp.contentParams)));
+                        FileUtils.writeFileAsBytes(fsp.isZip ? outTemp : out, Handshake.Decrypt(secret, fsp.content, fsp.contentParams));
                         if (fsp.isZip) {
                             try {
                                 new ZipFile(outTemp).extractAll(out);
@@ -434,6 +847,13 @@ public class BinClient extends Listener {
 
             //unknown packet
         }
+        if (transfer != -1) {
+            int credit = table.handled(transfer, CREDIT_BATCH, last);
+            if (credit > 0) connection.sendTCP(TransferTable.credit(transfer, credit));
+            //the final chunk held back for the one just handled
+            FileChunkPacket held = table.release(transfer);
+            if (held != null) received(connection, held);
+        }
     }
 
     /**
@@ -519,59 +939,24 @@ public class BinClient extends Listener {
             int debug = 0;
             if (l > targetLength) {
                 System.out.println("load into mem, but split.");
-                Runnable r = () -> {
-                    double rcs = getTargetNetSize() >= READ_CHUNK_SIZE ? READ_CHUNK_SIZE : getTargetNetSize();
-                    double x = Math.ceil(l / rcs);
-                    ArrayList<Object> splits = new ArrayList<>();
-                    int c = 0; //count of Bytes in 'content'
-                    int n = 0; //number of splits
-                    int z = 0;
-                    while (c < l) {
-                        //get split content
-                        Byte[] contentS = new Byte[targetLength];
-                        int k = 0;
-                        for (int i = 0; i < targetLength; i++) {
-                            contentS[k++] = contentData.get(0)[c++];
-                            if (c >= contentData.get(0).length) break;
-                        }
-                        //trim contents
-                        if (k < contentS.length) contentS = Arrays.copyOf(contentS, k);
-                        //setup packet
-                        FileSendPacketSplit fsps = new FileSendPacketSplit();
-                        boolean first = n == 0;
-                        fsps.content = contentS;
-                        fsps.contentParams = first ? FileUtils.convertBytes(contentData.get(1)) : null;
-                        fsps.pin = pin;
-                        fsps.fileName = first ? FileUtils.convertBytes(nameData.get(0)) : null;
-                        fsps.fileNameParams = first ? FileUtils.convertBytes(nameData.get(1)) : null;
-                        fsps.fileSize = first ? FileUtils.convertBytes(sizeData.get(0)) : null;
-                        fsps.fileSizeParams = first ? FileUtils.convertBytes(sizeData.get(1)) : null;
-                        fsps.isZip = isZ;
-                        fsps.length = (int) x;
-                        fsps.fileUID = fileUID;
-                        fsps.finalPacket = ++n == x;
-                        fsps.series = z++;
-                        splits.add(fsps);
-                    }
-                    new IdleSender(client, splits, () -> splits.clear());
-                };
-                new Thread(r).start();
+                int rcs = (int) Math.min(getTargetNetSize(), READ_CHUNK_SIZE);
+                Upload upload = Upload.inMemory(fileUID, pin, uid, rcs, isZ, nameData, sizeData, contentData);
+                uploads.put(fileUID, upload);
+                new Thread(() -> offer(upload)).start();
             } else {
                 //setup packet
                 FileSendPacket fsp = new FileSendPacket();
-                fsp.content = FileUtils.convertBytes(contentData.get(0));
-                fsp.contentParams = FileUtils.convertBytes(contentData.get(1));
+                fsp.content = contentData.get(0);
+                fsp.contentParams = contentData.get(1);
                 fsp.pin = pin;
-                fsp.fileName = FileUtils.convertBytes(nameData.get(0));
-                fsp.fileNameParams = FileUtils.convertBytes(nameData.get(1));
-                fsp.fileSize = FileUtils.convertBytes(sizeData.get(0));
-                fsp.fileSizeParams = FileUtils.convertBytes(sizeData.get(1));
+                fsp.fileName = nameData.get(0);
+                fsp.fileNameParams = nameData.get(1);
+                fsp.fileSize = sizeData.get(0);
+                fsp.fileSizeParams = sizeData.get(1);
                 fsp.isZip = isZ;
                 fsp.fileUID = fileUID;
                 //send
-                ArrayList<Object> list = new ArrayList<>();
-                list.add(fsp);
-                new IdleSender(client, list);
+                pump.send(fsp, null);
                 debug = 1;
             }
             if (isZip) new File(p).delete();
@@ -589,54 +974,206 @@ public class BinClient extends Listener {
              * Withstand 'getTargetNetSize()', do not send 'READ_CHUNK_SIZE' chunk sizes.
              * Delete folder file in working_dir if applicable.
              */
-            double rcs = getTargetNetSize() >= READ_CHUNK_SIZE ? READ_CHUNK_SIZE : getTargetNetSize();
-            double x = Math.ceil(l / rcs);
-            long start = System.currentTimeMillis();
-            final Num n = new Num(0);
-            final String pp = p;
+            int rcs = (int) Math.min(getTargetNetSize(), READ_CHUNK_SIZE);
+            ChunkCipher cipher = sealedPeers.contains(uid) ? secretMap.get(uid).getChunkCipher() : null;
+            Upload upload = Upload.onDisk(fileUID, pin, uid, rcs, isZ, nameData, sizeData, p, secret, cipher, isZ);
+            uploads.put(fileUID, upload);
             System.out.println("each split");
             Runnable r = () -> {
-
-		//TODO: optimize here.
-                FileUtils.readFileAsBytes(p, (int) rcs, (chunk, perc) -> {
-                    //enc in temp dir & delete
-                    String temp = ClientSettings.WORKING_DIR_CRYPT + fileUID;
-                    ArrayList<byte[]> contentData = Handshake.Encrypt(secret, chunk);
-                    new File(temp).delete();
-                    //setup packet to send
-                    FileSendPacketSplit split = new FileSendPacketSplit();
-                    split.content = FileUtils.convertBytes(contentData.get(0));
-                    split.contentParams = FileUtils.convertBytes(contentData.get(1));
-                    split.pin = pin;
-                    if (n.value == 0) {
-                        split.fileName = FileUtils.convertBytes(nameData.get(0));
-                        split.fileNameParams = FileUtils.convertBytes(nameData.get(1));
-                        split.fileSize = FileUtils.convertBytes(sizeData.get(0));
-                        split.fileSizeParams = FileUtils.convertBytes(sizeData.get(1));
-                    }
-                    split.isZip = isZ;
-                    split.fileUID = fileUID;
-                    split.series = n.value;
-                    split.length = (int) x;
-                    split.finalPacket = ++n.value == x;
-                    //send packet
-                    ArrayList<Object> list = new ArrayList<>();
-                    list.add(split);
-                    new IdleSender(client, list);
-                });
+                long start = System.currentTimeMillis();
+                if (!offer(upload)) return;
                 long elapsed = System.currentTimeMillis() - start;
                 //TODO: debug
                 System.out.println("Sent file (" + fileName + ") of (" + fileSize + "). {ENCRYPT_EACH}");
                 System.out.println("Took " + (elapsed / 1000) + " seconds.");
                 System.out.println("Is Zip: " + isZ);
                 System.out.println();
-                if (isZ) new File(p).delete();
             };
             new Thread(r).start();
             return true;
         }
     }
 
+    /**
+     * Writes a received split file whose splits were encrypted one at a time, see 'ChunkCipher'; decrypting each
+     * into the same buffer and removing it once written. A folder is unzipped to the given path.
+     * Each split is decrypted under the salt in its own header, see 'ChunkCipher.salt()'.
+     * The file is deleted if a split is missing or fails to decrypt, E.G. it was altered.
+     * @param uid of the file.
+     * @param cipher of the secret shared with the sender.
+     * @param out path to write to.
+     * @param outTemp path of the zip if a folder was sent.
+     * @return true if written.
+     */
+    private boolean writeSealed(String uid, ChunkCipher cipher, String out, String outTemp) {
+        int l = FileSendPacketWrap.getLength(uid);
+        boolean written = cipher != null, zip = false;
+        byte[] plain = new byte[0];
+        FileOutputStream stream = null;
+        try {
+            for (int i = 0; i < l && written; i++) {
+                FileSendPacketSplit split = FileSendPacketWrap.readSplit(uid, i);
+                byte[] salt = split == null ? null : ChunkCipher.salt(split.contentParams);
+                if (salt == null) {
+                    written = false;
+                    break;
+                }
+                if (stream == null) stream = new FileOutputStream((zip = split.isZip) ? outTemp : out);
+                if (plain.length < ChunkCipher.plainLength(split.content.length)) {
+                    plain = new byte[ChunkCipher.plainLength(split.content.length)];
+                }
+                int n = cipher.decrypt(salt, i, split.content, 0, split.content.length, plain, 0);
+                if (n < 0) {
+                    written = false;
+                    break;
+                }
+                stream.write(plain, 0, n);
+                FileSendPacketWrap.removeSplit(uid, i);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            written = false;
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        FileSendPacketWrap.removeCompletely(uid);
+        if (!written) {
+            System.out.println("ERROR: can't decrypt each for uid: " + uid);
+            new File(zip ? outTemp : out).delete();
+            return false;
+        }
+        if (zip) {
+            try {
+                new ZipFile(outTemp).extractAll(out);
+            } catch (ZipException e) {
+                e.printStackTrace();
+            }
+            new File(outTemp).delete();
+        }
+        return true;
+    }
+
+    /**
+     * Offers an upload to its receiver directly if it advertised an endpoint we can reach, see 'DirectLink';
+     * it is sent once accepted. Else sends it through the server right away.
+     * Blocks while connecting to the receiver.
+     * @param upload to send.
+     * @return true if offered, or all splits were queued.
+     */
+    private boolean offer(Upload upload) {
+        DirectLink link = direct == null ? null : direct.connect(upload.receiverUID, UID);
+        if (link != null && link.offer(upload)) return true;
+        return upload.claim() && send(upload, null, null);
+    }
+
+    /**
+     * Sends the splits of a claimed upload as one transfer, all of them or only those the server misses.
+     * The final split is always sent, it completes the file on the server.
+     * Splits are read and encrypted ahead in parallel, see 'SplitReader'.
+     * The upload is released if the connection is lost meanwhile, and kept to be resumed
+     * once the server sends a 'TransferResumePacket'; else it is disposed of once the server
+     * acknowledged every chunk, until then chunks are sent again from it; see 'RetransmitPacket'.
+     * Sent to a peer directly instead if a link is given, the same way.
+     * @param upload claimed, see 'Upload.claim()'.
+     * @param have bitmap of the series the server holds, see 'TransferResumePacket', or null to send all.
+     * @param link to send on, or null to send to the server.
+     * @return true if all splits were queued.
+     */
+    private boolean send(Upload upload, byte[] have, DirectLink link) {
+        int session = this.session;
+        BitSet held = have == null ? new BitSet() : BitSet.valueOf(have);
+        held.clear(upload.length - 1);
+        int count = upload.length - held.cardinality();
+        TransferTable table = link == null ? transfers : link.transfers;
+        int transfer = table.nextSendID();
+        (link == null ? sent : link.sent).put(transfer, upload);
+        SendPump.Queue queue = (link == null ? pump : link.pump).open((long) count + 1, null);
+        //only when every series is sent in order, the server waits for each before it hands on a later one
+        boolean striped = link == null && held.isEmpty() && stripes != null;
+        //read and encrypted ahead on every core, while waiting for credit
+        SplitReader reader = new SplitReader(upload, held);
+        boolean first = true;
+        while (reader.hasNext()) {
+            FileSendPacketSplit split = reader.next();
+            if (split == null || !sendFramed(queue, transfer, split, first, striped, session, link)) {
+                System.out.println("ERROR: connection closed while sending " + upload.fileUID);
+                reader.close();
+                table.cancel(transfer);
+                (link == null ? sent : link.sent).remove(transfer, upload);
+                queue.close();
+                upload.release();
+                return false;
+            }
+            first = false;
+        }
+        upload.release();
+        return true;
+    }
+
+    /**
+     * Sends a split as the 'FileChunkPacket' of the given transfer, preceded by the
+     * transfer's 'TransferOpenPacket' if it is the first split sent.
+     * Blocks until the server granted credit for the chunk, see 'ContinueSplitPacket',
+     * so at most the granted amount of chunks are queued or in flight.
+     * The queue is closed after the final split.
+     * @param queue of the transfer on 'pump'.
+     * @param transfer ID from 'transfers'.
+     * @param split to send.
+     * @param first true if no split of the transfer was sent yet.
+     * @param striped true to spread the chunks over the auxiliary connections as well, see 'Stripes'.
+     * @param session the transfer was opened in, see 'session'.
+     * @param link the transfer is sent on, or null if sent to the server.
+     * @return false if the connection closed while waiting for credit, or closed since the transfer was opened,
+     * or the transfer was dropped.
+     */
+    private boolean sendFramed(SendPump.Queue queue, int transfer, FileSendPacketSplit split, boolean first, boolean striped,
+                               int session, DirectLink link) {
+        if (!isOpen(link, session)) return false;
+        TransferTable table = link == null ? transfers : link.transfers;
+        if (first) {
+            TransferOpenPacket header = TransferTable.header(transfer, split);
+            //the server may agree to take the chunks over UDP with its first credit
+            if (link == null && datagrams && UdpChannel.isAvailable(client)) {
+                header.datagram = true;
+                if (parity) header.parity = true;
+            }
+            if (striped) header.striped = true;
+            queue.add(header);
+            if (sizer != null && link == null) sizer.sent(transfer, 0);
+        }
+        try {
+            while (!table.acquire(transfer, CREDIT_WAIT)) {
+                if (!isOpen(link, session) || !(link == null ? sent : link.sent).containsKey(transfer)) return false;
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            return false;
+        }
+        if (!isOpen(link, session)) return false;
+        boolean last = Boolean.TRUE.equals(split.finalPacket);
+        //before it is sent, its acknowledgement completes the transfer
+        if (last) table.finish(transfer);
+        queue.add(TransferTable.checkedChunk(transfer, split));
+        if (sizer != null && link == null) sizer.sent(transfer, split.content.length);
+        if (last) queue.close();
+        return true;
+    }
+
+    /**
+     * @param link a transfer is sent on, or null if sent to the server.
+     * @param session the transfer was opened in, see 'session'.
+     * @return true if the link is open, or the connection to the server was not lost since the transfer was opened.
+     */
+    private boolean isOpen(DirectLink link, int session) {
+        return link == null ? client.isConnected() && this.session == session : link.isOpen();
+    }
+
     /**
      * Recursive helper function to add all sub-folders of
      * a folder to a zip object (to be zipped in the future).
@@ -662,23 +1199,111 @@ public class BinClient extends Listener {
     }
 
     //remove from secret map
-    //when disconnected
+    //when disconnected, unless a file from or to them is unfinished and resumes once they reconnect
     public void removeClient(String uid) {
+        if (hasUnfinished(uid)) return;
         secretMap.remove(uid);
+        sealedPeers.remove(uid);
+        if (direct != null) direct.forget(uid);
+    }
+
+    /**
+     * Returns true if a split file is being uploaded to the given UID, or one it sent us is held in part;
+     * either needs the shared secret once resumed.
+     *
+     * @param uid of a client.
+     * @return TRUE if a file from or to the client is unfinished.
+     */
+    private boolean hasUnfinished(String uid) {
+        if (uid == null) return false;
+        for (Upload upload : uploads.values()) {
+            if (uid.equals(upload.receiverUID)) return true;
+        }
+        if (!FileSendPacketWrap.canReadWrite()) return false;
+        for (String fileUID : FileSendPacketWrap.getAllUIDs()) {
+            TransferMeta meta = FileSendPacketWrap.getMeta(fileUID);
+            if (meta != null && uid.equals(meta.senderUID) && !meta.isFinished()) return true;
+        }
+        return false;
     }
 
 
     /**
      * Invoked to send a 'FileAccept' Packet to the net.server.
+     * Files a peer offered directly are accepted on its connection instead, see 'DirectLink'.
      *
      * @param uid of the packet we want to accept.
      */
     public void sendAccept(String... uid) {
+        ArrayList<String> relayed = new ArrayList<>();
+        for (String u : uid) {
+            DirectLink link = direct == null ? null : direct.requestedOver(u);
+            if (link == null) {
+                relayed.add(u);
+                continue;
+            }
+            link.requested.remove(u);
+            FileAcceptPacket fap = new FileAcceptPacket();
+            fap.UID = new String[]{u};
+            link.connection.sendTCP(fap);
+        }
+        if (relayed.isEmpty()) return;
         FileAcceptPacket fap = new FileAcceptPacket();
-        fap.UID = uid;
+        fap.UID = relayed.toArray(new String[0]);
         client.sendTCP(fap);
     }
 
+    /**
+     * Gives up a file whose transfer was cancelled for a chunk out of range, see 'TransferTable.cancelled()'.
+     * The server is told with a 'FileRejectedPacket', a peer can not be told and is disconnected.
+     *
+     * @param connection the chunk came on, the server or a peer.
+     * @param table of the transfers on the connection.
+     * @param transfer ID of the transfer.
+     * @return true if the transfer was cancelled.
+     */
+    private boolean dropCancelled(Connection connection, TransferTable table, int transfer) {
+        String uid = table.cancelled(transfer);
+        if (uid == null) return false;
+        System.out.println("ERROR: chunk out of range of " + uid + ", dropped it.");
+        if (FileSendPacketWrap.canReadWrite() && FileSendPacketWrap.hasCatalog(uid)) FileSendPacketWrap.removeCompletely(uid);
+        if (connection == client) sendReject(uid);
+        else connection.close();
+        return true;
+    }
+
+    /**
+     * Invoked to send a 'FileRejected' Packet to the net.server, which drops the files.
+     *
+     * @param uid of the packets we reject.
+     */
+    public void sendReject(String... uid) {
+        FileRejectedPacket frp = new FileRejectedPacket();
+        frp.UID = uid;
+        client.sendTCP(frp);
+    }
+
+    /**
+     * Accepts a file we hold part of with a 'TransferResumePacket', so only the missing series are sent.
+     * It was accepted before it was cut off, so the user is not asked again.
+     *
+     * @param connection the file was requested on, the server or a peer.
+     * @param fileUID of a file requested.
+     * @return true if the file was resumed, false if none of it is held.
+     */
+    private boolean resume(Connection connection, String fileUID) {
+        if (fileUID == null || !FileSendPacketWrap.canReadWrite() || FileSendPacketWrap.isFinished(fileUID)) return false;
+        byte[] have = FileSendPacketWrap.getSplitBitmap(fileUID);
+        if (have == null) return false;
+        TransferResumePacket trp = new TransferResumePacket();
+        trp.fileUID = fileUID;
+        trp.length = FileSendPacketWrap.getLength(fileUID);
+        trp.have = have;
+        connection.sendTCP(trp);
+        System.out.println("Resuming " + fileUID);
+        return true;
+    }
+
     /**
      * Returns true if a shared-secret is established between this Client and the
      * given UID.
@@ -701,22 +1326,98 @@ public class BinClient extends Listener {
         if (secretMap.containsKey(uid)) return;
         Handshake h;
         secretMap.put(uid, h = new Handshake());
-        Byte[] encryptedPubKey = FileUtils.convertBytes(h.getPubEncrypted());
+        byte[] encryptedPubKey = h.getPubEncrypted();
         HandshakePacket hp = new HandshakePacket();
         hp.encryptedPubKey = encryptedPubKey;
         hp.UID = uid;
+        hp.sealed = true;
         client.sendTCP(hp);
         System.out.println("Sent handshake to " + uid);
     }
 
     /**
-     * Returns the maximum allowable length of data sizes in
-     * our network, I.E. 'targetLength'.
+     * Advertises our endpoint for direct connections to a peer we share a secret with, see 'DirectEndpointPacket'.
+     *
+     * @param uid of the peer.
+     */
+    private void advertise(String uid) {
+        DirectEndpointPacket packet = direct == null ? null : direct.advertise(uid);
+        if (packet != null) client.sendTCP(packet);
+    }
+
+    /**
+     * Returns the UDP data channel to the server, opening it for the first transfer agreed on it.
+     *
+     * @return the channel of the current connection.
+     */
+    private synchronized UdpChannel openDatagrams() {
+        if (udp == null) {
+            udp = new UdpChannel(client, objectBufferSize);
+            pump.setDatagrams(udp);
+        }
+        return udp;
+    }
+
+    /**
+     * Closes the UDP data channel of a connection that was lost, the next one opens its own.
+     */
+    private synchronized void closeDatagrams() {
+        if (udp == null) return;
+        udp.close();
+        udp = null;
+        if (pump != null) pump.setDatagrams(null);
+    }
+
+    /**
+     * Returns the length of splits for a new transfer, picked by 'sizer' from what was measured
+     * on the connection so far, or 'targetLength' before the server responded.
      *
-     * @return maximum allowable number of bytes.
+     * @return number of bytes per split.
      */
     private long getTargetNetSize() {
-        return targetLength;
+        return sizer == null ? targetLength : sizer.next();
+    }
+
+    /**
+     * Proposes and agrees to send the chunks of split transfers with the server over UDP, see 'UdpChannel'.
+     * Must be set before 'init()'.
+     *
+     * @param datagrams true to use UDP where the server agrees.
+     */
+    public void setDatagrams(boolean datagrams) {
+        this.datagrams = datagrams;
+    }
+
+    /**
+     * Proposes and agrees to send parity with the datagrams of the UDP data channel, so lost ones are
+     * rebuilt without being sent again; see 'UdpChannel.setParity()'. Costs 'GROUP_PARITY' datagrams
+     * for every 'GROUP_DATA', only worth it on lossy networks. Must be set before 'init()'.
+     *
+     * @param parity true to send parity where the server agrees.
+     */
+    public void setParity(boolean parity) {
+        this.parity = parity;
+    }
+
+    /**
+     * Opens auxiliary connections to the server and spreads the chunks of split transfers over them,
+     * see 'Stripes'; each adds a TCP congestion window, for paths with a high bandwidth-delay product.
+     * Must be set before 'init()'.
+     *
+     * @param count of auxiliary connections, at most 'Stripes.MAX'; 0 for none.
+     */
+    public void setStripes(int count) {
+        this.stripeCount = Math.max(0, Math.min(count, Stripes.MAX));
+    }
+
+    /**
+     * Takes split files from peers directly on the given port, or the next free one, see 'DirectPeers'.
+     * Must be set before 'init()'.
+     *
+     * @param port to listen on, 0 to only use the server.
+     */
+    public void setDirectPort(int port) {
+        this.directPort = port;
     }
 
     /**
@@ -762,11 +1463,3 @@ public class BinClient extends Listener {
         this.connectionFinishedListener = listener;
     }
 }
-
-class Num {
-    int value;
-
-    public Num(int value) {
-        this.value = value;
-    }
-}
@@ -0,0 +1,177 @@
+package net;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Picks the chunk length of split transfers on one connection from its measured throughput and RTT.
+ * Every chunk sent is recorded with 'sent()'; credit handed back for a transfer, see 'ContinueSplitPacket',
+ * acknowledges its oldest chunks with 'acked()', which must run before the credit is granted.
+ * Receivers hand back all credit on the final chunk, see 'TransferTable.handled()', so every chunk
+ * is acknowledged eventually. Each acknowledgement yields an RTT sample (time since the newest
+ * acknowledged chunk was sent) and a delivery rate sample (bytes acknowledged since then over that time).
+ * The bandwidth estimate is the max of recent rate samples. The RTT estimate is the min RTT sample
+ * seen in the last 'RTT_EXPIRY' milis; chunks wait behind the ones queued before them, so the
+ * 'TransferOpenPacket' is recorded as a chunk of 0 bytes too, its initial credit usually comes back
+ * over an idle connection.
+ * A chunk should take about 'CHUNK_TIME' to transmit, so transfers interleave finely and little is
+ * queued ahead of other transfers on slow links while chunks grow large on fast ones, and the credit
+ * window should cover twice the bandwidth-delay product so the link is never idle waiting for credit.
+ * A window-limited connection measures a lower rate than it could reach, the doubled product makes
+ * the chunk length grow until it is not.
+ * The length changes by at most a factor of 2 per transfer and stays within the negotiated bounds.
+ * The length of a transfer is fixed by its 'TransferOpenPacket', so it is picked per transfer with 'next()'.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ */
+public class ChunkSizer {
+
+    /**
+     * Milis one chunk should take to transmit at the estimated bandwidth.
+     */
+    public static final int CHUNK_TIME = 20;
+
+    /**
+     * Milis after which the min RTT sample is replaced by the next one even if larger, so a changed
+     * route is picked up.
+     */
+    public static final long RTT_EXPIRY = 10_000;
+
+    /**
+     * Amount of recent samples the estimates are taken over.
+     */
+    private static final int SAMPLES = 16;
+
+    /**
+     * Credit window of a transfer in chunks.
+     */
+    private final int window;
+
+    /**
+     * Bounds of the chunk length in bytes and the length picked last.
+     */
+    private int min, max, current;
+
+    /**
+     * Recent rate samples in bytes per second, filled round-robin.
+     */
+    private final double[] rates = new double[SAMPLES];
+    private int samples = 0;
+
+    /**
+     * Min RTT sample in milis, and nanos when it was taken.
+     */
+    private double minRtt = 0;
+    private long minRttAt = 0;
+
+    /**
+     * Bytes acknowledged on the connection so far.
+     */
+    private long delivered = 0;
+
+    /**
+     * Chunks sent and not acknowledged yet per transfer, oldest first, dropped once all are:
+     * {nanos when sent, bytes, 'delivered' when sent}.
+     */
+    private final HashMap<Integer, ArrayDeque<long[]>> outstanding = new HashMap<>();
+
+    /**
+     * @param window credit window of a transfer in chunks.
+     * @param length chunk length to start with, used as both bounds until 'setBounds()'.
+     */
+    public ChunkSizer(int window, int length) {
+        this.window = Math.max(1, window);
+        this.min = this.max = this.current = Math.max(1, length);
+    }
+
+    /**
+     * Sets the bounds of the chunk length, moving the current length within them.
+     * @param min length in bytes.
+     * @param max length in bytes, raised to 'min' if smaller.
+     */
+    public synchronized void setBounds(int min, int max) {
+        this.min = Math.max(1, min);
+        this.max = Math.max(this.min, max);
+        current = clamp(current, this.min, this.max);
+    }
+
+    /**
+     * Records a chunk handed to the connection, or the 'TransferOpenPacket' of a transfer as 0 bytes.
+     * @param transfer ID of the chunk's transfer.
+     * @param bytes length of the chunk's content.
+     */
+    public synchronized void sent(int transfer, int bytes) {
+        outstanding.computeIfAbsent(transfer, t -> new ArrayDeque<>()).add(new long[]{System.nanoTime(), bytes, delivered});
+    }
+
+    /**
+     * Acknowledges the oldest chunks of a transfer, taking an RTT and, unless only the header
+     * was acknowledged, a delivery rate sample.
+     * Credit granted before anything was sent acknowledges nothing.
+     * @param transfer ID of the transfer credit was granted for.
+     * @param chunks amount of credit granted.
+     */
+    public synchronized void acked(int transfer, int chunks) {
+        ArrayDeque<long[]> queue = outstanding.get(transfer);
+        if (queue == null) return;
+        long[] last = null;
+        for (int i = 0; i < chunks && !queue.isEmpty(); i++) {
+            last = queue.poll();
+            delivered += last[1];
+        }
+        if (queue.isEmpty()) outstanding.remove(transfer);
+        if (last == null) return;
+        long now = System.nanoTime();
+        double elapsed = Math.max(1, now - last[0]) / 1e6;
+        //a header alone says nothing about the rate, other transfers may be acknowledged meanwhile
+        if (last[1] > 0) {
+            rates[samples % SAMPLES] = (delivered - last[2]) * 1000.0 / elapsed;
+            samples++;
+        }
+        if (minRttAt == 0 || elapsed <= minRtt || now - minRttAt > RTT_EXPIRY * 1_000_000) {
+            minRtt = elapsed;
+            minRttAt = now;
+        }
+    }
+
+    /**
+     * Picks the chunk length for a new transfer.
+     * @return length in bytes.
+     */
+    public synchronized int next() {
+        double bandwidth = getBandwidth(), rtt = getRtt();
+        if (bandwidth <= 0) return current;
+        double target = Math.max(bandwidth * CHUNK_TIME / 1000, 2 * bandwidth * rtt / 1000 / window);
+        target = Math.min(Math.max(target, current / 2.0), current * 2.0);
+        current = clamp((long) target, min, max);
+        return current;
+    }
+
+    /**
+     * @return estimated bandwidth in bytes per second, 0 without samples.
+     */
+    public synchronized double getBandwidth() {
+        double m = 0;
+        for (int i = 0; i < Math.min(samples, SAMPLES); i++) m = Math.max(m, rates[i]);
+        return m;
+    }
+
+    /**
+     * @return estimated RTT in milis, 0 without samples.
+     */
+    public synchronized double getRtt() {
+        return minRtt;
+    }
+
+    /**
+     * @return chunk length picked last.
+     */
+    public synchronized int getLength() {
+        return current;
+    }
+
+    private static int clamp(long v, int min, int max) {
+        return (int) Math.min(Math.max(v, min), max);
+    }
+}
@@ -56,6 +56,30 @@ public class ClientSettings {
      */
     public static String[] KEYS = {"uid", "ip", "port_tcp", "port_udp", "m"};
 
+    /**
+     * Key of the port split files are taken on directly from peers, see 'BinClient.setDirectPort()'; 0 turns it off.
+     * Optional, so settings files written before it still load; 'DEFAULT_PORT_DIRECT' if missing.
+     */
+    public static final String DIRECT = "port_direct";
+
+    /**
+     * Key of the switch for sending chunks with the server over UDP, see 'BinClient.setDatagrams()'; 1 turns it on.
+     * Optional as well, 'DEFAULT_UDP_DATA' if missing.
+     */
+    public static final String DATAGRAMS = "udp_data";
+
+    /**
+     * Key of the switch for sending parity with those chunks, see 'BinClient.setParity()'; 1 turns it on.
+     * Optional as well, 'DEFAULT_UDP_FEC' if missing.
+     */
+    public static final String PARITY = "udp_fec";
+
+    /**
+     * Key of the amount of auxiliary connections to the server, see 'BinClient.setStripes()'; 0 turns them off.
+     * Optional as well, 'DEFAULT_STRIPES' if missing.
+     */
+    public static final String STRIPES = "stripes";
+
     /**
      * Length of generated UIDs.
      */
@@ -68,6 +92,10 @@ public class ClientSettings {
     public static final int DEFAULT_PORT_TCP = 5555;
     public static final int DEFAULT_PORT_UDP = 5555;
     public static final int DEFAULT_MEM = 1200;
+    public static final int DEFAULT_PORT_DIRECT = 5556;
+    public static final int DEFAULT_UDP_DATA = 0;
+    public static final int DEFAULT_UDP_FEC = 0;
+    public static final int DEFAULT_STRIPES = 0;
 
     /**
      * HashMap containing keys and values that are embedded in the clientSettings file.
@@ -85,6 +113,10 @@ public class ClientSettings {
         keyValueMap.put(KEYS[2], DEFAULT_PORT_TCP);
         keyValueMap.put(KEYS[3], DEFAULT_PORT_UDP);
         keyValueMap.put(KEYS[4], DEFAULT_MEM);
+        keyValueMap.put(DIRECT, DEFAULT_PORT_DIRECT);
+        keyValueMap.put(DATAGRAMS, DEFAULT_UDP_DATA);
+        keyValueMap.put(PARITY, DEFAULT_UDP_FEC);
+        keyValueMap.put(STRIPES, DEFAULT_STRIPES);
         FileUtils.writeFileAsStrings(true, SETTINGS_FILE_PATH, FileUtils.convertKeyValueMap(keyValueMap, true));
     }
 
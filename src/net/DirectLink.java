@@ -0,0 +1,108 @@
+package net;
+
+import com.esotericsoftware.kryonet.Connection;
+import net.packet.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A connection straight to a peer, see 'DirectEndpointPacket', either made by us to send split files
+ * or accepted by 'DirectPeers' to take them. Takes the place of the server on it: 'BinClient' offers files
+ * with a 'FileSendRequestPacket' and sends their chunks the way the server relays them, with its own
+ * 'TransferTable' and 'SendPump'.
+ * Only the packets of a split transfer are taken on it, see 'isAllowed()'.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ */
+public class DirectLink {
+
+    /**
+     * Connection to the peer, and the UID it proved with its 'DirectHelloPacket' or we connected to.
+     */
+    public final Connection connection;
+    public final String peerUID;
+
+    /**
+     * Split transfers open on the connection.
+     */
+    public final TransferTable transfers = new TransferTable();
+
+    /**
+     * Sends the chunks of the files we send on the connection.
+     */
+    public final SendPump pump;
+
+    /**
+     * Uploads offered to the peer by file UID, until it accepted them.
+     */
+    public final ConcurrentHashMap<String, Upload> offered = new ConcurrentHashMap<>();
+
+    /**
+     * Uploads by the transfer they are sent under, until the peer acknowledged every chunk.
+     */
+    public final ConcurrentHashMap<Integer, Upload> sent = new ConcurrentHashMap<>();
+
+    /**
+     * UIDs of the files the peer offered us, accepted on this connection.
+     */
+    public final Set<String> requested = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    private volatile boolean closed = false;
+
+    public DirectLink(Connection connection, String peerUID, int highWater) {
+        this.connection = connection;
+        this.peerUID = peerUID;
+        this.pump = new SendPump(connection, highWater, SendPump.SMALLEST_REMAINING);
+    }
+
+    /**
+     * Offers an upload to the peer, it is sent once accepted; see 'Upload.request()'.
+     * @param upload to offer.
+     * @return false if the connection is closed.
+     */
+    public boolean offer(Upload upload) {
+        if (!isOpen()) return false;
+        offered.put(upload.fileUID, upload);
+        connection.sendTCP(upload.request());
+        return true;
+    }
+
+    /**
+     * @return true until the connection closed.
+     */
+    public boolean isOpen() {
+        return !closed && connection.isConnected();
+    }
+
+    /**
+     * Marks the connection closed and clears what was queued on it.
+     * @return the uploads offered or sent on it that were not done, to be relayed instead.
+     */
+    public ArrayList<Upload> close() {
+        closed = true;
+        pump.clear();
+        ArrayList<Upload> left = new ArrayList<>(offered.values());
+        for (Upload upload : sent.values()) {
+            if (!left.contains(upload)) left.add(upload);
+        }
+        offered.clear();
+        sent.clear();
+        requested.clear();
+        return left;
+    }
+
+    /**
+     * @param object received on a direct connection.
+     * @return true if a peer may send it, I.E. it is part of offering or sending a split file.
+     */
+    public static boolean isAllowed(Object object) {
+        return object instanceof FileSendRequestPacket || object instanceof FileAcceptPacket
+                || object instanceof TransferResumePacket || object instanceof TransferOpenPacket
+                || object instanceof FileChunkPacket || object instanceof ContinueSplitPacket
+                || object instanceof RetransmitPacket;
+    }
+}
@@ -0,0 +1,266 @@
+package net;
+
+import com.esotericsoftware.kryonet.Client;
+import com.esotericsoftware.kryonet.Connection;
+import com.esotericsoftware.kryonet.Listener;
+import com.esotericsoftware.kryonet.Server;
+import net.packet.DirectEndpointPacket;
+import net.packet.DirectHelloPacket;
+import net.packet.PacketSerializers;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Direct connections between clients, so split files skip the server, see 'DirectEndpointPacket'.
+ * Listens on a port of its own for peers we advertised an endpoint to, each with a token of its own,
+ * and connects to the endpoints peers advertised to us. Every connection is a 'DirectLink',
+ * packets on them go to the given 'Listener' (our 'BinClient') once the peer said hello.
+ * All methods are thread-safe.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ */
+public class DirectPeers {
+
+    /**
+     * Amount of ports tried from the one given to 'bind()', E.G. for clients on the same machine.
+     */
+    public static final int PORT_ATTEMPTS = 16;
+
+    /**
+     * Time in milis to wait for a connection to a host of an endpoint.
+     */
+    public static final int CONNECT_TIMEOUT = 2000;
+
+    /**
+     * Random bytes in a token.
+     */
+    private static final int TOKEN_BYTES = 24;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final Listener listener;
+    private final int writeBufferSize, objectBufferSize;
+
+    /**
+     * Takes the connections of peers, null until bound.
+     */
+    private Server server;
+    private int port = -1;
+
+    /**
+     * Tokens we advertised by peer UID, and endpoints peers advertised to us by their UID.
+     */
+    private final ConcurrentHashMap<String, String> tokens = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, DirectEndpointPacket> endpoints = new ConcurrentHashMap<>();
+
+    /**
+     * Links by their connection, and the ones we made by peer UID.
+     */
+    private final ConcurrentHashMap<Connection, DirectLink> links = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, DirectLink> outgoing = new ConcurrentHashMap<>();
+
+    /**
+     * @param listener invoked for every connection and packet, from the KryoNet threads.
+     * @param writeBufferSize of each connection.
+     * @param objectBufferSize of each connection.
+     */
+    public DirectPeers(Listener listener, int writeBufferSize, int objectBufferSize) {
+        this.listener = listener;
+        this.writeBufferSize = writeBufferSize;
+        this.objectBufferSize = objectBufferSize;
+    }
+
+    /**
+     * Listens on the first free port of 'PORT_ATTEMPTS' from the given one.
+     * @param port to try first.
+     * @return true if listening.
+     */
+    public synchronized boolean bind(int port) {
+        Server s = new Server(writeBufferSize, objectBufferSize);
+        PacketSerializers.register(s.getKryo());
+        for (int i = 0; i < PORT_ATTEMPTS; i++) {
+            try {
+                s.bind(port + i);
+            } catch (IOException e) {
+                continue;
+            }
+            s.addListener(listener);
+            new Thread(s, "direct").start();
+            this.server = s;
+            this.port = port + i;
+            System.out.println("Taking direct connections on port " + this.port);
+            return true;
+        }
+        System.out.println("ERROR: no free port for direct connections from " + port);
+        return false;
+    }
+
+    /**
+     * Creates the endpoint to advertise to a peer, see 'DirectEndpointPacket'.
+     * @param uid of the peer.
+     * @return the packet to send to the server, null if not listening.
+     */
+    public DirectEndpointPacket advertise(String uid) {
+        if (server == null || uid == null) return null;
+        DirectEndpointPacket packet = new DirectEndpointPacket();
+        packet.UID = uid;
+        packet.port = port;
+        packet.hosts = localHosts();
+        packet.token = tokens.computeIfAbsent(uid, u -> {
+            byte[] b = new byte[TOKEN_BYTES];
+            random.nextBytes(b);
+            return Base64.getEncoder().encodeToString(b);
+        });
+        return packet;
+    }
+
+    /**
+     * Keeps an endpoint a peer advertised, files sent to it go there from now on; see 'connect()'.
+     * @param endpoint received.
+     */
+    public void learn(DirectEndpointPacket endpoint) {
+        if (endpoint.senderUID == null || endpoint.port == null || endpoint.token == null || endpoint.hosts == null) return;
+        endpoints.put(endpoint.senderUID, endpoint);
+    }
+
+    /**
+     * Forgets a peer that left, its endpoint and the token we advertised to it.
+     * @param uid of the peer.
+     */
+    public void forget(String uid) {
+        if (uid == null) return;
+        endpoints.remove(uid);
+        tokens.remove(uid);
+    }
+
+    /**
+     * Returns our open link to a peer, or connects to the endpoint it advertised, trying each of its hosts.
+     * An endpoint that can not be reached is forgotten until the peer advertises it again.
+     * @param uid of the peer.
+     * @param ourUID sent in our 'DirectHelloPacket'.
+     * @return the link, or null if the peer has no endpoint or it can not be reached.
+     */
+    public synchronized DirectLink connect(String uid, String ourUID) {
+        DirectLink link = uid == null ? null : outgoing.get(uid);
+        if (link != null && link.isOpen()) return link;
+        DirectEndpointPacket endpoint = uid == null ? null : endpoints.get(uid);
+        if (endpoint == null) return null;
+        for (String host : endpoint.hosts) {
+            Client client = new Client(writeBufferSize, objectBufferSize);
+            PacketSerializers.register(client.getKryo());
+            new Thread(client, "direct-" + host).start();
+            try {
+                client.connect(CONNECT_TIMEOUT, host, endpoint.port);
+            } catch (IOException e) {
+                System.out.println("Direct connection to " + host + ":" + endpoint.port + " failed: " + e.getMessage());
+                client.stop();
+                continue;
+            }
+            link = new DirectLink(client, uid, writeBufferSize / 2);
+            links.put(client, link);
+            outgoing.put(uid, link);
+            client.addListener(listener);
+            DirectHelloPacket hello = new DirectHelloPacket();
+            hello.UID = ourUID;
+            hello.token = endpoint.token;
+            client.sendTCP(hello);
+            System.out.println("Connected directly to " + uid + " @ " + host + ":" + endpoint.port);
+            return link;
+        }
+        endpoints.remove(uid, endpoint);
+        return null;
+    }
+
+    /**
+     * Takes the first packet of a connection a peer made, which must be a 'DirectHelloPacket' with
+     * the token we advertised to it; else the connection is closed.
+     * @param connection of the peer.
+     * @param object first packet received on it.
+     * @return the link, or null if closed.
+     */
+    public DirectLink hello(Connection connection, Object object) {
+        if (object instanceof DirectHelloPacket) {
+            DirectHelloPacket hello = (DirectHelloPacket) object;
+            String token = hello.UID == null ? null : tokens.get(hello.UID);
+            if (token != null && token.equals(hello.token)) {
+                DirectLink link = new DirectLink(connection, hello.UID, writeBufferSize / 2);
+                links.put(connection, link);
+                System.out.println("Direct connection from " + hello.UID);
+                return link;
+            }
+        }
+        System.out.println("Closed direct connection from " + connection.getRemoteAddressTCP() + ", no valid hello.");
+        connection.close();
+        return null;
+    }
+
+    /**
+     * @param connection of a peer.
+     * @return its link, or null if it did not say hello yet.
+     */
+    public DirectLink get(Connection connection) {
+        return links.get(connection);
+    }
+
+    /**
+     * @param fileUID of a file offered to us.
+     * @return the open link it was offered on, or null if it was offered by the server.
+     */
+    public DirectLink requestedOver(String fileUID) {
+        for (DirectLink link : links.values()) {
+            if (link.requested.contains(fileUID) && link.isOpen()) return link;
+        }
+        return null;
+    }
+
+    /**
+     * Forgets a connection that closed, stopping it if we made it.
+     * @param connection closed.
+     * @return its link, or null if it had none.
+     */
+    public DirectLink closed(Connection connection) {
+        DirectLink link = links.remove(connection);
+        if (link != null) outgoing.remove(link.peerUID, link);
+        if (connection instanceof Client) ((Client) connection).stop();
+        return link;
+    }
+
+    /**
+     * Stops listening and closes every link.
+     */
+    public synchronized void close() {
+        if (server != null) server.stop();
+        server = null;
+        for (Connection connection : new ArrayList<>(links.keySet())) {
+            if (connection instanceof Client) ((Client) connection).stop();
+            else connection.close();
+        }
+    }
+
+    /**
+     * @return the site-local addresses of this machine, E.G. on a LAN shared with the peer.
+     */
+    private static String[] localHosts() {
+        ArrayList<String> hosts = new ArrayList<>();
+        try {
+            for (NetworkInterface ni : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (!ni.isUp() || ni.isLoopback()) continue;
+                for (InetAddress address : Collections.list(ni.getInetAddresses())) {
+                    if (address.isSiteLocalAddress()) hosts.add(address.getHostAddress());
+                }
+            }
+        } catch (SocketException e) {
+            e.printStackTrace();
+        }
+        return hosts.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,157 @@
+package net;
+
+/**
+ * Systematic Reed-Solomon erasure code over GF(256), used by 'UdpChannel' to send parity with groups of datagrams.
+ * From a group of data shards it makes 'rows' parity shards, each a different combination of all of them;
+ * any of the data and parity shards together, as many as there are data shards, give back the missing ones.
+ * Parity rows are those of a Cauchy matrix, every square part of which can be inverted, so any combination works.
+ * Shards shorter than the others count as padded with zeros.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ */
+public class ErasureCode {
+
+    /**
+     * Generator polynomial of the field, x^8 + x^4 + x^3 + x^2 + 1.
+     */
+    private static final int POLYNOMIAL = 0x11d;
+
+    private static final byte[] EXP = new byte[512];
+    private static final int[] LOG = new int[256];
+
+    /**
+     * Products of every pair of field elements, 'MUL[a][b]'.
+     */
+    private static final byte[][] MUL = new byte[256][256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) x ^= POLYNOMIAL;
+        }
+        for (int i = 255; i < EXP.length; i++) EXP[i] = EXP[i - 255];
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) MUL[a][b] = EXP[LOG[a] + LOG[b]];
+        }
+    }
+
+    private ErasureCode() {
+    }
+
+    /**
+     * Makes parity shards.
+     * @param data shards, at most '256 - rows'.
+     * @param rows amount of parity shards the code has, the same when decoding.
+     * @return 'rows' parity shards, as long as the longest data shard.
+     */
+    public static byte[][] encode(byte[][] data, int rows) {
+        int length = 0;
+        for (byte[] shard : data) length = Math.max(length, shard.length);
+        byte[][] parity = new byte[rows][length];
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < data.length; column++) {
+                addProduct(parity[row], data[column], coefficient(row, column, rows));
+            }
+        }
+        return parity;
+    }
+
+    /**
+     * Rebuilds the missing data shards in place.
+     * @param data shards, null for the missing ones.
+     * @param parity shards by row, null for the missing ones.
+     * @return false if fewer parity shards are present than data shards are missing.
+     */
+    public static boolean decode(byte[][] data, byte[][] parity) {
+        int rows = parity.length, length = 0;
+        int[] missing = new int[data.length], used = new int[rows];
+        int m = 0, p = 0;
+        for (int column = 0; column < data.length; column++) {
+            if (data[column] == null) missing[m++] = column;
+        }
+        for (int row = 0; row < rows && p < m; row++) {
+            if (parity[row] == null) continue;
+            used[p++] = row;
+            length = parity[row].length;
+        }
+        if (m == 0) return true;
+        if (p < m) return false;
+        //what is left of each parity shard once the data shards present are taken out
+        byte[][] rest = new byte[m][];
+        byte[][] matrix = new byte[m][m];
+        for (int i = 0; i < m; i++) {
+            rest[i] = parity[used[i]].clone();
+            for (int column = 0; column < data.length; column++) {
+                if (data[column] != null) addProduct(rest[i], data[column], coefficient(used[i], column, rows));
+            }
+            for (int j = 0; j < m; j++) matrix[i][j] = coefficient(used[i], missing[j], rows);
+        }
+        byte[][] inverse = invert(matrix);
+        for (int j = 0; j < m; j++) {
+            byte[] shard = new byte[length];
+            for (int i = 0; i < m; i++) addProduct(shard, rest[i], inverse[j][i]);
+            data[missing[j]] = shard;
+        }
+        return true;
+    }
+
+    /**
+     * @return entry of the Cauchy matrix, 1 / (x_row + y_column) with x_row = row and y_column = rows + column.
+     */
+    private static byte coefficient(int row, int column, int rows) {
+        return inverse(row ^ (rows + column));
+    }
+
+    private static byte inverse(int a) {
+        return EXP[255 - LOG[a]];
+    }
+
+    /**
+     * Adds 'c' times 'src' to 'dst', as far as both reach.
+     */
+    private static void addProduct(byte[] dst, byte[] src, byte c) {
+        if (c == 0) return;
+        byte[] row = MUL[c & 0xff];
+        int n = Math.min(dst.length, src.length);
+        for (int i = 0; i < n; i++) dst[i] ^= row[src[i] & 0xff];
+    }
+
+    /**
+     * Inverts a square matrix by Gauss-Jordan elimination, it must be invertible.
+     */
+    private static byte[][] invert(byte[][] matrix) {
+        int n = matrix.length;
+        byte[][] a = new byte[n][];
+        byte[][] b = new byte[n][n];
+        for (int i = 0; i < n; i++) {
+            a[i] = matrix[i].clone();
+            b[i][i] = 1;
+        }
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            while (a[pivot][col] == 0) pivot++;
+            byte[] swap = a[pivot];
+            a[pivot] = a[col];
+            a[col] = swap;
+            swap = b[pivot];
+            b[pivot] = b[col];
+            b[col] = swap;
+            byte scale = inverse(a[col][col] & 0xff);
+            for (int j = 0; j < n; j++) {
+                a[col][j] = MUL[scale & 0xff][a[col][j] & 0xff];
+                b[col][j] = MUL[scale & 0xff][b[col][j] & 0xff];
+            }
+            for (int i = 0; i < n; i++) {
+                if (i == col || a[i][col] == 0) continue;
+                byte f = a[i][col];
+                addProduct(a[i], a[col], f);
+                addProduct(b[i], b[col], f);
+            }
+        }
+        return b;
+    }
+}
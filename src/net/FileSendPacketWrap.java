@@ -1,11 +1,20 @@
 package net;
 
+import util.AppendLog;
 import util.FileUtils;
+import net.packet.FileChunkPacket;
 import net.packet.FileSendPacket;
 import net.packet.FileSendPacketSplit;
+import net.packet.TransferOpenPacket;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Wrapper for FileSendPacket that can also store
@@ -43,6 +52,23 @@ public class FileSendPacketWrap {
      */
     private static String cd;
 
+    /**
+     * In-memory copy of the catalog, loaded on first use.
+     * The catalog file is an 'AppendLog': one recorded UID per line, "-" + UID once removed.
+     */
+    private static Set<String> catalog;
+    private static AppendLog catalogLog;
+
+    /**
+     * Least amount of catalog lines before the catalog file is compacted.
+     */
+    private static final int CATALOG_COMPACT_MIN = 256;
+
+    /**
+     * Loaded metadata of recorded files, see 'TransferMeta'.
+     */
+    private static final ConcurrentHashMap<String, TransferMeta> metas = new ConcurrentHashMap<>();
+
     /**
      * Set by invoking 'initReadWrite'.
      */
@@ -59,6 +85,8 @@ public class FileSendPacketWrap {
             Object o = map.get(key);
             if (o instanceof Byte[]) {
                 map.put(key, FileUtils.byteArrayToString((Byte[]) o));
+            } else if (o instanceof byte[]) {
+                map.put(key, FileUtils.byteArrayToString((byte[]) o));
             }
         }
         return true;
@@ -82,6 +110,42 @@ public class FileSendPacketWrap {
         DIR_WORK_SPACE = path;
         if (!DIR_WORK_SPACE.endsWith(FileUtils.getSeparator())) DIR_WORK_SPACE += FileUtils.getSeparator();
         if (!FileUtils.doesDirectoryExist(path)) FileUtils.createDir(DIR_WORK_SPACE);
+        synchronized (FileSendPacketWrap.class) {
+            cd = null;
+            catalog = null;
+            catalogLog = null;
+            metas.clear();
+        }
+    }
+
+    /**
+     * Returns the in-memory catalog, loading it from the catalog file if needed.
+     * @return set of recorded UIDs, or null if not ready to read/write.
+     */
+    private static synchronized Set<String> getCatalog() {
+        if (catalog != null) return catalog;
+        if (!canReadWrite()) return null;
+        catalogLog = new AppendLog(getCatalogPath());
+        Set<String> set = ConcurrentHashMap.newKeySet();
+        for (String line : catalogLog.read()) {
+            if (line.isEmpty()) continue;
+            if (line.startsWith("-")) {
+                set.remove(line.substring(1));
+            } else {
+                set.add(line);
+            }
+        }
+        catalog = set;
+        compactCatalog();
+        return catalog;
+    }
+
+    /**
+     * Rewrites the catalog file with only the recorded UIDs once most of its lines are removals.
+     */
+    private static synchronized void compactCatalog() {
+        if (catalogLog.getLines() < CATALOG_COMPACT_MIN || catalogLog.getLines() < catalog.size() * 2) return;
+        catalogLog.rewrite(new ArrayList<>(catalog));
     }
 
     /**
@@ -105,6 +169,7 @@ public class FileSendPacketWrap {
 
     /**
      * File path to a given file uid and name,
+     * Only used to migrate params files written before 'TransferMeta'.
      * @param uid
      * @return
      */
@@ -112,6 +177,77 @@ public class FileSendPacketWrap {
         return String.format(DIR_WORK_SPACE + "%s_%s", uid, "params");
     }
 
+    /**
+     * File path to the binary metadata of a given file uid.
+     * @param uid
+     * @return
+     */
+    private static final String META_FILE_PATH(String uid) {
+        return DIR_WORK_SPACE + uid + "_meta";
+    }
+
+    /**
+     * Gets the metadata of a recorded file, loading it on first use.
+     * A params file left by an older version is migrated to a meta file and deleted.
+     * @param uid of the recorded file.
+     * @return the metadata, or null if not recorded.
+     */
+    public static TransferMeta getMeta(String uid) {
+        if (!hasCatalog(uid)) return null;
+        TransferMeta meta = metas.get(uid);
+        if (meta != null) return meta;
+        synchronized (FileSendPacketWrap.class) {
+            meta = metas.get(uid);
+            if (meta != null) return meta;
+            meta = TransferMeta.load(META_FILE_PATH(uid));
+            if (meta == null) meta = migrateParams(uid);
+            if (meta != null) metas.put(uid, meta);
+            return meta;
+        }
+    }
+
+    /**
+     * Converts a '<uid>_params' key=value file into a meta file.
+     * @param uid of the recorded file.
+     * @return the metadata, or null if there is no params file.
+     */
+    private static TransferMeta migrateParams(String uid) {
+        String[] lines = FileUtils.readFileAsStrings(PARAMS_FILE_PATH(uid));
+        if (lines == null) return null;
+        HashMap<String, Object> map = FileUtils.readKeyValueMap(lines);
+        int length = map.containsKey("length") ? Integer.parseInt(String.valueOf(map.get("length"))) : 1;
+        long timestamp = map.containsKey("timestamp") ? (long) Double.parseDouble(String.valueOf(map.get("timestamp"))) : System.currentTimeMillis();
+        HashMap<Integer, byte[]> params = new HashMap<>();
+        for (int i = 0; i < length; i++) {
+            if (map.containsKey("param_" + i)) params.put(i, legacyBytes(map.get("param_" + i)));
+        }
+        TransferMeta meta = TransferMeta.create(META_FILE_PATH(uid), uid, map.get("senderUID") == null ? null : String.valueOf(map.get("senderUID")),
+                legacyBytes(map.get("fileName")), legacyBytes(map.get("fileNameParams")), legacyBytes(map.get("fileSize")),
+                legacyBytes(map.get("fileSizeParams")), length, timestamp, Boolean.parseBoolean(String.valueOf(map.get("isFinished"))),
+                Boolean.parseBoolean(String.valueOf(map.get("isZip"))), params);
+        if (meta != null) {
+            //content of migrated files stays in '<uid>_<series>' files
+            meta.setLegacy();
+            new File(PARAMS_FILE_PATH(uid)).delete();
+        }
+        return meta;
+    }
+
+    private static byte[] legacyBytes(Object o) {
+        if (o == null || String.valueOf(o).equals("null")) return null;
+        Byte[] b = FileUtils.stringToByteArray(String.valueOf(o));
+        return b == null ? null : FileUtils.convertBytes(b);
+    }
+
+    /**
+     * File path to the split content of a given file uid, see 'TransferMeta'.
+     * @param uid
+     * @return
+     */
+    private static final String DATA_FILE_PATH(String uid) {
+        return DIR_WORK_SPACE + uid + "_data";
+    }
+
     /**
      * Gets all file paths to file content with the given uid.
      * @param uid of the file to search for.
@@ -125,8 +261,10 @@ public class FileSendPacketWrap {
         }
         //...is spit
         ArrayList<String> strings = new ArrayList<>();
-        HashMap<String, Object> map = getParamsAsMap(uid);
-        int length = (int) map.get("length");
+        if (FileUtils.doesFileExist(DATA_FILE_PATH(uid))) strings.add(DATA_FILE_PATH(uid));
+        TransferMeta meta = getMeta(uid);
+        if (meta == null || !meta.isLegacy()) return strings.toArray(new String[0]);
+        int length = getLength(uid);
         for (int i = 0; i < length; i++) {
             String str = DIR_WORK_SPACE + uid + "_" + i;
             if (!FileUtils.doesFileExist(str)) continue;
@@ -135,6 +273,64 @@ public class FileSendPacketWrap {
         return strings.toArray(new String[0]);
     }
 
+    /**
+     * Writes the content of a split to its slot in the data file.
+     * Only a file whose splits can not all be laid out in the data file, see 'TransferMeta.isLegacy()',
+     * keeps the splits that do not fit in their own '<uid>_<series>' file instead.
+     * @param s split to write.
+     * @return false if it is not of the recorded file, E.G. its series is out of range, or was not written.
+     */
+    private static boolean writeSplit(FileSendPacketSplit s) {
+        TransferMeta meta = getMeta(s.fileUID);
+        byte[] content = s.content;
+        if (meta == null || content == null || s.series == null || s.series < 0 || s.series >= meta.length) return false;
+        if (meta.placeChunk(s.series, content.length)) {
+            try (FileChannel ch = FileChannel.open(Paths.get(DATA_FILE_PATH(s.fileUID)), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                //preallocate every slot on first write
+                if (ch.size() < meta.dataSize()) ch.write(ByteBuffer.allocate(1), meta.dataSize() - 1);
+                ByteBuffer buf = ByteBuffer.wrap(content);
+                long pos = meta.chunkOffset(s.series);
+                while (buf.hasRemaining()) pos += ch.write(buf, pos);
+                meta.setChunk(s.series, true);
+                meta.putChecksum(s.series, TransferTable.checksum(content, s.contentParams));
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+        if (!meta.isLegacy()) return false;
+        FileUtils.writeFileAsBytes(DIR_WORK_SPACE + s.fileUID + "_" + s.series, content);
+        meta.putChecksum(s.series, TransferTable.checksum(content, s.contentParams));
+        return true;
+    }
+
+    /**
+     * Reads the content of a split from the data file, or from its own file.
+     * @return the content, or null if not stored.
+     */
+    private static byte[] readSplitContent(String uid, int series) {
+        TransferMeta meta = getMeta(uid);
+        if (meta == null) return null;
+        if (meta.hasChunk(series)) {
+            try (FileChannel ch = FileChannel.open(Paths.get(DATA_FILE_PATH(uid)), StandardOpenOption.READ)) {
+                ByteBuffer buf = ByteBuffer.allocate(meta.chunkSize(series));
+                long pos = meta.chunkOffset(series);
+                while (buf.hasRemaining()) {
+                    int r = ch.read(buf, pos);
+                    if (r < 0) return null;
+                    pos += r;
+                }
+                return buf.array();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+        if (!meta.isLegacy() || !FileUtils.doesFileExist(DIR_WORK_SPACE + uid + "_" + series)) return null;
+        return FileUtils.readFileAsBytes(DIR_WORK_SPACE + uid + "_" + series);
+    }
+
     /**
      * Given a file is recorded and contains split data, remove
      * based on its series.
@@ -147,16 +343,21 @@ public class FileSendPacketWrap {
         if (getLength(uid) == 1) {
             return removeCompletely(uid);
         }
+        TransferMeta meta = getMeta(uid);
+        //in the data file, clear its bit
+        if (meta.hasChunk(series)) {
+            meta.putParam(series, null);
+            meta.putChecksum(series, null);
+            meta.setChunk(series, false);
+            return true;
+        }
         //see if split exits
         String pr = uid + "_" + series;
         File f = new File(DIR_WORK_SPACE + pr);
         if (!f.exists()) return false;
         //remove from params
-        HashMap<String, Object> map = getParamsAsMap(uid);
-        if (!map.containsKey("param_" + series)) return false;
-        map.remove("param_" + series);
-        replaceByteArrInString(map);
-        FileUtils.writeFileAsKeyValueMap(PARAMS_FILE_PATH(uid), map);
+        meta.putParam(series, null);
+        meta.putChecksum(series, null);
         //remove content
         return new File(DIR_WORK_SPACE + pr).delete();
     }
@@ -169,23 +370,23 @@ public class FileSendPacketWrap {
      * @param uid
      * @return true if and only if all content was fully deleted.
      */
-    public static boolean removeCompletely(String uid) {
+    public static synchronized boolean removeCompletely(String uid) {
         if (!hasCatalog(uid)) return false;
+        //find content files while still in the catalog
+        String[] contentPaths = CONTENT_FILE_PATHS(uid);
         //remove from catalog
-        String[] data = FileUtils.readFileAsStrings(getCatalogPath());
-        String[] nd = new String[data.length - 1];
-        int i = 0;
-        for (String str: data) {
-            if (!str.equals(uid)) nd[i++] = str;
-        }
-        FileUtils.writeFileAsStrings(true, getCatalogPath(), nd);
+        getCatalog().remove(uid);
+        catalogLog.append("-" + uid);
+        compactCatalog();
         boolean f = true;
         //remove all content files
-        for (String contentPath: CONTENT_FILE_PATHS(uid)) {
+        for (String contentPath: contentPaths) {
             if (!(new File(contentPath).delete())) f = false;
         }
-        //remove param files
-        if (!(new File(PARAMS_FILE_PATH(uid)).delete())) f = false;
+        //remove meta file, and params file if never migrated
+        metas.remove(uid);
+        if (!(new File(META_FILE_PATH(uid)).delete())) f = false;
+        new File(PARAMS_FILE_PATH(uid)).delete();
         return f;
     }
 
@@ -220,6 +421,10 @@ public class FileSendPacketWrap {
     public static boolean hasSplit(String uid) {
         if (!hasCatalog(uid)) return false;
         if (FileUtils.doesFileExist(DIR_WORK_SPACE + uid)) return false;
+        TransferMeta meta = getMeta(uid);
+        if (meta == null) return false;
+        if (meta.chunkCount() > 0) return true;
+        if (!meta.isLegacy()) return false;
         int l = getLength(uid);
         for (int i = 0; i < l; i++) {
             if (FileUtils.doesFileExist(DIR_WORK_SPACE + uid + "_" + i)) return true;
@@ -233,12 +438,29 @@ public class FileSendPacketWrap {
      * @return
      */
     public static boolean hasSplit(String uid, int z) {
-        if (!hasCatalog(uid)) return false;
-        if (FileUtils.doesFileExist(DIR_WORK_SPACE + uid)) return false;
+        TransferMeta meta = getMeta(uid);
+        if (meta == null) return false;
+        if (meta.hasChunk(z)) return true;
+        if (!meta.isLegacy() || FileUtils.doesFileExist(DIR_WORK_SPACE + uid)) return false;
         return FileUtils.doesFileExist(DIR_WORK_SPACE + uid + "_" + z);
 
     }
 
+    /**
+     * Gets which series of a split file are stored, to resume its transfer; see 'TransferResumePacket'.
+     * @param uid of the file.
+     * @return bit 'i % 8' of byte 'i / 8' set if series 'i' is stored, or null if not a recorded split file.
+     */
+    public static byte[] getSplitBitmap(String uid) {
+        TransferMeta meta = getMeta(uid);
+        if (meta == null || FileUtils.doesFileExist(DIR_WORK_SPACE + uid)) return null;
+        byte[] have = new byte[(Math.max(meta.length, 0) + 7) / 8];
+        for (int i = 0; i < meta.length; i++) {
+            if (hasSplit(uid, i)) have[i / 8] |= 1 << (i % 8);
+        }
+        return have;
+    }
+
     /**
      * If content exists, return false.
      * If the object is not recorded, then record.
@@ -253,7 +475,7 @@ public class FileSendPacketWrap {
     public static boolean flush(Object o) {
         if (!(o instanceof FileSendPacket || o instanceof FileSendPacketWrap || o instanceof FileSendPacketSplit)) return false;
         //record info if it doesnt exist
-        if (!hasCatalog(getParamsAsStrings(o)[0])) {
+        if (!hasCatalog(o)) {
             record(o);
         } else {
             //todo check if content file exists ten don't do work
@@ -261,56 +483,45 @@ public class FileSendPacketWrap {
         //add content files
         if (o instanceof FileSendPacket) {
             FileSendPacket p = (FileSendPacket) o;
-            FileUtils.writeFileAsBytes(DIR_WORK_SPACE + p.fileUID, FileUtils.convertBytes(p.content));
+            FileUtils.writeFileAsBytes(DIR_WORK_SPACE + p.fileUID, p.content);
         } else if (o instanceof FileSendPacketSplit) {
-            FileSendPacketSplit s = (FileSendPacketSplit) o;
-            FileUtils.writeFileAsBytes(DIR_WORK_SPACE + s.fileUID + "_" + s.series, FileUtils.convertBytes(s.content));
+            if (!writeSplit((FileSendPacketSplit) o)) return false;
         } else {
             FileSendPacketWrap w = (FileSendPacketWrap) o;
             if (w.isSingular()) {
                 FileSendPacket p = w.packet;
-                FileUtils.writeFileAsBytes(DIR_WORK_SPACE + p.fileUID, FileUtils.convertBytes(p.content));
+                FileUtils.writeFileAsBytes(DIR_WORK_SPACE + p.fileUID, p.content);
             } else {
                 for (FileSendPacketSplit s: w.packets) {
-                    FileUtils.writeFileAsBytes(DIR_WORK_SPACE + s.fileUID + "_" + s.series, FileUtils.convertBytes(s.content));
+                    if (!writeSplit(s)) return false;
                 }
             }
         }
         //update 'isFinished' and 'contentParams' for FileSendPacketWrap & FileSendPacketSplit
-        if (o instanceof FileSendPacketWrap || o instanceof FileSendPacketSplit) {
-            HashMap<String, Object> map = getParamsAsMap(getParamsAsStrings(o)[0]);
-            if (o instanceof FileSendPacketWrap) {
-                FileSendPacketWrap w = (FileSendPacketWrap) o;
-                //isFinished
-                if (w.isComplete()) {
-                    map.put("isFinished", true);
-                }
-                //contentParams
-                if (w.isSingular()){
-                    map.put("param_0", FileUtils.byteArrayToString(w.packet.contentParams));
-                } else {
-                    for (FileSendPacketSplit split : w.packets) {
-                        if (split.contentParams == null) continue;
-                        map.put("param_" + split.series,  FileUtils.byteArrayToString(split.contentParams));
-                    }
-                }
-                //write updated map
-                replaceByteArrInString(map);
-                FileUtils.writeFileAsKeyValueMap(PARAMS_FILE_PATH(w.getUID()), map);
+        if (o instanceof FileSendPacketWrap) {
+            FileSendPacketWrap w = (FileSendPacketWrap) o;
+            TransferMeta meta = getMeta(w.getUID());
+            if (meta == null) return false;
+            //isFinished
+            if (w.isComplete()) meta.setFinished();
+            //contentParams
+            if (w.isSingular()) {
+                if (!meta.putParam(0, w.packet.contentParams)) return false;
             } else {
-                FileSendPacketSplit s = (FileSendPacketSplit) o;
-                //isFinished
-                if (s.finalPacket) {
-                    System.out.println("changed is finished");
-                    map.put("isFinished", true);
-                }
-                //content params if applicable
-                if (s.contentParams != null) {
-                    map.put("param_" + s.series,  FileUtils.byteArrayToString(s.contentParams));
+                for (FileSendPacketSplit split : w.packets) {
+                    if (split.contentParams == null) continue;
+                    if (!meta.putParam(split.series, split.contentParams)) return false;
                 }
-                //write updated map
-                replaceByteArrInString(map);
-                FileUtils.writeFileAsKeyValueMap(PARAMS_FILE_PATH(s.fileUID), map);
+            }
+        } else if (o instanceof FileSendPacketSplit) {
+            FileSendPacketSplit s = (FileSendPacketSplit) o;
+            TransferMeta meta = getMeta(s.fileUID);
+            if (meta == null) return false;
+            //isFinished, unless series are missing, E.G. a resumed transfer was cut off again
+            if (s.finalPacket && getRealLength(s.fileUID) == meta.length) meta.setFinished();
+            //content params if applicable
+            if (s.contentParams != null && !Arrays.equals(s.contentParams, meta.getParam(s.series))) {
+                if (!meta.putParam(s.series, s.contentParams)) return false;
             }
         }
         return true;
@@ -325,36 +536,32 @@ public class FileSendPacketWrap {
      * @param o
      * @return
      */
-    public static boolean record(Object o) {
+    public static synchronized boolean record(Object o) {
         if (!(o instanceof FileSendPacket || o instanceof FileSendPacketWrap || o instanceof FileSendPacketSplit)) return false;
         if (hasCatalog(o)) return false;
-        String[] params = getParamsAsStrings(o);
-        //write to catalog first
-        FileUtils.appendFileAsStrings(true, getCatalogPath(), getParamsAsStrings(o)[0]);
-        //write params file
-        HashMap<String, Object> map = new HashMap<>();
-        int c = 0;
-        map.put("uid", params[c++]);
-        map.put("fileName", params[c++]);
-        map.put("fileNameParams", params[c++]);
-        map.put("fileSize", params[c++]);
-        map.put("fileSizeParams", params[c++]);
-        map.put("senderUID", params[c++]);
-        map.put("isFinished", params[c++]);
-        map.put("isZip", params[c++]);
-        int l = Integer.parseInt(params[c]);
-        map.put("length", params[c++]);
-        //write params
-        for (int i = 0; i < l; i++) {
-            System.out.println("I: " + i);
-            if (c + 1 >= params.length) break;
-            String s = params[c++];
-            map.put(FileUtils.getStringBefore(s, FileUtils.keyMapSep), FileUtils.getStringAfter(s, FileUtils.keyMapSep));
-        }
-        //store timestamp as string
-        map.put("timestamp", System.currentTimeMillis());
-        FileUtils.writeFileAsKeyValueMap(PARAMS_FILE_PATH(params[0]), map);
-        System.out.println("continued");
+        //write meta file
+        HashMap<Integer, byte[]> params = new HashMap<>();
+        TransferMeta meta;
+        if (o instanceof FileSendPacket) {
+            FileSendPacket p = (FileSendPacket) o;
+            if (p.contentParams != null) params.put(0, p.contentParams);
+            meta = TransferMeta.create(META_FILE_PATH(p.fileUID), p.fileUID, p.senderUID, p.fileName, p.fileNameParams,
+                    p.fileSize, p.fileSizeParams, 1, System.currentTimeMillis(), true, p.isZip, params);
+        } else {
+            FileSendPacketWrap w = o instanceof FileSendPacketWrap ? (FileSendPacketWrap) o : new FileSendPacketWrap((FileSendPacketSplit) o);
+            if (w.isSingular()) return record(w.packet);
+            FileSendPacketSplit first = w.packets[0];
+            for (FileSendPacketSplit split : w.packets) {
+                if (split.contentParams != null) params.put(split.series, split.contentParams);
+            }
+            meta = TransferMeta.create(META_FILE_PATH(first.fileUID), first.fileUID, first.senderUID, first.fileName, first.fileNameParams,
+                    first.fileSize, first.fileSizeParams, first.length, System.currentTimeMillis(), w.isFinished(), first.isZip, params);
+        }
+        if (meta == null) return false;
+        metas.put(meta.uid, meta);
+        //then add to catalog
+        getCatalog().add(meta.uid);
+        catalogLog.append(meta.uid);
         return true;
     }
 
@@ -369,17 +576,17 @@ public class FileSendPacketWrap {
         if (getLength(uid) != 1) return null;
         FileSendPacket fsp = new FileSendPacket();
         //content
-        fsp.content = FileUtils.convertBytes(FileUtils.readFileAsBytes(CONTENT_FILE_PATHS(uid)[0]));
-        fsp.contentParams = getContentParams(uid).get(0);
+        fsp.content = FileUtils.readFileAsBytes(CONTENT_FILE_PATHS(uid)[0]);
         //params
-        HashMap<String, Object> map = getParamsAsMap(uid);
+        TransferMeta meta = getMeta(uid);
+        fsp.contentParams = meta.getParam(0);
         fsp.fileUID = uid;
-        fsp.fileName = (Byte[]) map.get("fileName");
-        fsp.fileNameParams = (Byte[]) map.get("fileNameParams");
-        fsp.fileSize = (Byte[]) map.get("fileSize");
-        fsp.fileSizeParams = (Byte[]) map.get("fileSizeParams");
-        fsp.senderUID = (String) map.get("senderUID");
-        fsp.isZip = (Boolean) map.get("isZip");
+        fsp.fileName = meta.fileName;
+        fsp.fileNameParams = meta.fileNameParams;
+        fsp.fileSize = meta.fileSize;
+        fsp.fileSizeParams = meta.fileSizeParams;
+        fsp.senderUID = meta.senderUID;
+        fsp.isZip = meta.isZip();
         return fsp;
     }
 
@@ -394,27 +601,69 @@ public class FileSendPacketWrap {
     public static FileSendPacketSplit readSplit(String uid, int series) {
         if (!hasCatalog(uid)) return null;
         System.out.println("(" + uid + ") [" + series + "]" );
-        //check if series exists in params
-        HashMap<String, Object> map = getParamsAsMap(uid);
+        TransferMeta meta = getMeta(uid);
         //check if content exists
-        if (!FileUtils.doesFileExist(DIR_WORK_SPACE + uid + "_" + series)) return null;
+        byte[] content = readSplitContent(uid, series);
+        if (meta == null || content == null) return null;
         FileSendPacketSplit split = new FileSendPacketSplit();
         split.fileUID = uid;
-        split.fileName = (Byte[]) map.get("fileName");
-        split.fileNameParams = (Byte[]) map.get("fileNameParams");
-        split.fileSize = (Byte[]) map.get("fileSize");
-        split.fileSizeParams = (Byte[]) map.get("fileSizeParams");
-        split.senderUID = (String) map.get("senderUID");
-        split.content = FileUtils.convertBytes(FileUtils.readFileAsBytes(DIR_WORK_SPACE + uid + "_" + series));
-        split.contentParams = map.containsKey("param_" + series) ? (Byte[]) map.get("param_" + series) : null;
+        split.fileName = meta.fileName;
+        split.fileNameParams = meta.fileNameParams;
+        split.fileSize = meta.fileSize;
+        split.fileSizeParams = meta.fileSizeParams;
+        split.senderUID = meta.senderUID;
+        split.content = content;
+        split.contentParams = meta.getParam(series);
         split.series = series;
-        split.length = (int) map.get("length");
-        System.out.println("length from readSplit(): " + split.length);
-        split.isZip = (boolean) map.get("isZip");
+        split.length = meta.length;
+        split.isZip = meta.isZip();
         split.finalPacket = (split.series + 1) == (split.length);
         return split;
     }
 
+    /**
+     * Reads the header of a spooled split file, to open a transfer of it; see 'TransferTable'.
+     * @param uid of the file.
+     * @param transfer ID of the transfer on the receiving connection.
+     * @return the header, or null if the file is not recorded.
+     */
+    public static TransferOpenPacket readHeader(String uid, int transfer) {
+        TransferMeta meta = getMeta(uid);
+        if (meta == null) return null;
+        TransferOpenPacket h = new TransferOpenPacket();
+        h.transfer = transfer;
+        h.fileUID = uid;
+        h.senderUID = meta.senderUID;
+        h.fileName = meta.fileName;
+        h.fileNameParams = meta.fileNameParams;
+        h.fileSize = meta.fileSize;
+        h.fileSizeParams = meta.fileSizeParams;
+        h.isZip = meta.isZip();
+        h.length = meta.length;
+        return h;
+    }
+
+    /**
+     * Reads a spooled split as the chunk of a transfer opened with 'readHeader()'.
+     * @param uid of the file.
+     * @param series of the split.
+     * @param transfer ID of the transfer on the receiving connection.
+     * @param checked true to add the checksum recorded when the split was stored, see 'FileChunkPacketV2';
+     * so a split corrupted on disk is noticed by the receiver.
+     * @return the chunk, or null if the split is not stored.
+     */
+    public static FileChunkPacket readChunk(String uid, int series, int transfer, boolean checked) {
+        TransferMeta meta = getMeta(uid);
+        byte[] content = readSplitContent(uid, series);
+        if (meta == null || content == null) return null;
+        FileChunkPacket c = new FileChunkPacket();
+        c.transfer = transfer;
+        c.series = series;
+        c.content = content;
+        c.contentParams = meta.getParam(series);
+        return checked ? TransferTable.checked(c, meta.getChecksum(series)) : c;
+    }
+
     /**
      * Given a file existing with the uid then read the given data, singular
      * or split into a FileSendPacketWrap.
@@ -425,8 +674,7 @@ public class FileSendPacketWrap {
         if (!hasCatalog(uid)) return null;
         if (getLength(uid) == 1) return new FileSendPacketWrap(readSingle(uid));
         FileSendPacketWrap wrap = new FileSendPacketWrap();
-        HashMap<String, Object> map = getParamsAsMap(uid);
-        wrap.packets = new FileSendPacketSplit[(int) map.get("length")];
+        wrap.packets = new FileSendPacketSplit[getLength(uid)];
         for (int i = 0; i < wrap.packets.length; i++) {
             //read split checks our packets and will return null
             //if not recorded
@@ -504,29 +752,14 @@ public class FileSendPacketWrap {
     }
 
     /**
-     * Reads all param values as Strings from a given uid.
-     * Exchanges the String returned for values that represent Byte[] to a Byte[].
+     * Reads all param values of a given uid, see 'TransferMeta.toMap()'.
+     * Values that represent byte arrays are a byte[].
      * @param uid
      * @return
      */
     public static HashMap<String, Object> getParamsAsMap(String uid) {
-        if (!hasCatalog(uid)) {
-            return null;
-        }
-        HashMap<String, Object> map = FileUtils.readKeyValueMap(FileUtils.readFileAsStrings(PARAMS_FILE_PATH(uid)));
-        map.put("fileName", FileUtils.stringToByteArray((String) map.get("fileName")));
-        map.put("fileNameParams", FileUtils.stringToByteArray((String) map.get("fileNameParams")));
-        map.put("fileSize", FileUtils.stringToByteArray((String) map.get("fileSize")));
-        map.put("fileSizeParams", FileUtils.stringToByteArray((String) map.get("fileSizeParams")));
-        if (hasSingular(uid)) {
-            map.put("param_0", FileUtils.stringToByteArray((String) map.get("param_0")));
-        } else {
-            int l = (Integer) map.get("length");
-            for (int i = 0; i < l; i++) {
-                if (map.containsKey("param_" + i)) map.put("param_" + i, FileUtils.stringToByteArray((String) map.get("param_" + i)));
-            }
-        }
-        return map;
+        TransferMeta meta = getMeta(uid);
+        return meta == null ? null : meta.toMap();
     }
 
     /**
@@ -534,21 +767,10 @@ public class FileSendPacketWrap {
      * @param uid
      * @return
      */
-    public static HashMap<Integer, Byte[]> getContentParams(String uid) {
-        if (!hasCatalog(uid)) return null;
-        HashMap<String, Object> map = getParamsAsMap(uid);
-        HashMap<Integer, Byte[]> bytes = new HashMap<>();
-        int l = getLength(uid);
-        if (l == -1) return null;
-        if (l == 1) {
-            bytes.put(0, (Byte[]) map.get("param_0"));
-            return bytes;
-        }
-        for (int i = 0; i < l; i++) {
-            if (!map.containsKey("param_" + i)) continue;
-            bytes.put(i, (Byte[]) map.get("param_" + i));
-        }
-        return bytes;
+    public static HashMap<Integer, byte[]> getContentParams(String uid) {
+        TransferMeta meta = getMeta(uid);
+        if (meta == null) return null;
+        return meta.getParams();
     }
 
     /**
@@ -557,13 +779,11 @@ public class FileSendPacketWrap {
      * @return
      */
     public static boolean hasCatalog(Object o) {
-        if (o instanceof String) hasCatalog((String) o);
-        if (!(o instanceof FileSendPacket || o instanceof FileSendPacketWrap || o instanceof FileSendPacketSplit)) return false;
-        boolean has = false;
-        if (o instanceof FileSendPacket) if (has(((FileSendPacket) o).fileUID)) has = true;
-        if (o instanceof FileSendPacketWrap) if (has(((FileSendPacketWrap) o).getUID())) has = true;
-        if (o instanceof FileSendPacketSplit) if (has(((FileSendPacketSplit) o).fileUID)) has = true;
-        return has;
+        if (o instanceof String) return hasCatalog((String) o);
+        if (o instanceof FileSendPacket) return hasCatalog(((FileSendPacket) o).fileUID);
+        if (o instanceof FileSendPacketWrap) return hasCatalog(((FileSendPacketWrap) o).getUID());
+        if (o instanceof FileSendPacketSplit) return hasCatalog(((FileSendPacketSplit) o).fileUID);
+        return false;
     }
 
     /**
@@ -572,13 +792,9 @@ public class FileSendPacketWrap {
      * @return
      */
     public static boolean hasCatalog(String uid) {
-        if (!canReadWrite()) return false;
-        String[] strs = FileUtils.readFileAsStrings(getCatalogPath());
-        if (strs == null) return false;
-        for (int i = 0; i < strs.length; i++) {
-            if (strs[i].equals(uid)) return true;
-        }
-        return false;
+        if (uid == null) return false;
+        Set<String> set = getCatalog();
+        return set != null && set.contains(uid);
     }
 
     /**
@@ -595,25 +811,25 @@ public class FileSendPacketWrap {
         if (o instanceof FileSendPacket) {
             FileSendPacket fsp = (FileSendPacket) o;
             //check params
-            if (!FileUtils.doesFileExist(PARAMS_FILE_PATH(fsp.fileUID))) return false;
+            if (getMeta(fsp.fileUID) == null) return false;
             //check content
             if (!FileUtils.doesFileExist(CONTENT_FILE_PATHS(fsp.fileUID)[0])) return false;
             return true;
         } else if (o instanceof FileSendPacketSplit) {
             FileSendPacketSplit fsps = (FileSendPacketSplit) o;
             //check params
-            if (!FileUtils.doesFileExist(PARAMS_FILE_PATH(fsps.fileUID))) return false;
+            if (getMeta(fsps.fileUID) == null) return false;
             //check content
-            if (!FileUtils.doesFileExist(DIR_WORK_SPACE + "" + fsps.fileUID + "_" + fsps.series)) return false;
+            if (!hasSplit(fsps.fileUID, fsps.series)) return false;
             return true;
         }
         FileSendPacketWrap wrap = (FileSendPacketWrap) o;
         //check params
-        if (!FileUtils.doesFileExist(PARAMS_FILE_PATH(wrap.getUID()))) return false;
+        if (getMeta(wrap.getUID()) == null) return false;
         //check content
         if (wrap.isSingular()) if (!FileUtils.doesFileExist(DIR_WORK_SPACE + wrap.getUID())) return false;
         for (int i = 0; i < wrap.packets.length; i++) {
-            if (!FileUtils.doesFileExist(DIR_WORK_SPACE + wrap.getUID() + "_" + wrap.packets[i].series)) return false;
+            if (!hasSplit(wrap.getUID(), wrap.packets[i].series)) return false;
         }
         return true;
     }
@@ -624,8 +840,8 @@ public class FileSendPacketWrap {
      * @return the timestamp of the given file or -1.
      */
     public static long getFileTimestamp(String uid) {
-        if (!hasCatalog(uid)) return -1;
-        return ((Double) getParamsAsMap(uid).get("timestamp")).longValue();
+        TransferMeta meta = getMeta(uid);
+        return meta == null ? -1 : meta.timestamp;
     }
 
     /**
@@ -633,9 +849,9 @@ public class FileSendPacketWrap {
      * @return
      */
     public static String[] getAllUIDs() {
-        if (!canReadWrite()) return new String[0];
-        if (FileUtils.isFileEmpty(getCatalogPath())) return new String[0];
-        return FileUtils.readFileAsStrings(getCatalogPath());
+        Set<String> set = getCatalog();
+        if (set == null) return new String[0];
+        return set.toArray(new String[0]);
     }
 
     /**
@@ -646,11 +862,11 @@ public class FileSendPacketWrap {
      * @return
      */
     public static int getLength(String uid) {
-        if (!hasCatalog(uid)) return -1;
+        TransferMeta meta = getMeta(uid);
+        if (meta == null) return -1;
         if (FileUtils.doesFileExist(DIR_WORK_SPACE + uid)) return 1;
         //is split
-        HashMap<String, Object> map = getParamsAsMap(uid);
-        return (int) map.get("length");
+        return meta.length;
     }
 
     /**
@@ -660,10 +876,13 @@ public class FileSendPacketWrap {
      */
     public static int getRealLength(String uid) {
         if (FileUtils.doesFileExist(DIR_WORK_SPACE + uid)) return 1;
-        int c = 0;
+        TransferMeta meta = getMeta(uid);
+        if (meta == null) return 0;
+        int c = meta.chunkCount();
+        if (!meta.isLegacy()) return c;
         int l = getLength(uid);
         for (int i = 0; i < l; i++) {
-            if (FileUtils.doesFileExist(DIR_WORK_SPACE + uid + "_" + i)) c++;
+            if (!meta.hasChunk(i) && FileUtils.doesFileExist(DIR_WORK_SPACE + uid + "_" + i)) c++;
         }
         return c;
     }
@@ -675,9 +894,8 @@ public class FileSendPacketWrap {
      * @return
      */
     public static boolean isFinished(String uid) {
-        if (!hasCatalog(uid)) return false;
-        HashMap<String, Object> map = FileUtils.readKeyValueMap(FileUtils.readFileAsStrings(PARAMS_FILE_PATH(uid)));
-        return (boolean) map.get("isFinished");
+        TransferMeta meta = getMeta(uid);
+        return meta != null && meta.isFinished();
     }
 
     /**
@@ -753,11 +971,11 @@ public class FileSendPacketWrap {
         return isSingular() ? packet.fileUID: packets[0].fileUID;
     }
 
-    public Byte[] getFileName() {
+    public byte[] getFileName() {
         return isSingular() ? packet.fileName : packets[0].fileName;
     }
 
-    public Byte[] getFileNameParams() {
+    public byte[] getFileNameParams() {
         return isSingular() ? packet.fileNameParams : packets[0].fileNameParams;
     }
 
@@ -784,11 +1002,12 @@ public class FileSendPacketWrap {
         for (FileSendPacketSplit s: packets) {
             l += s.content.length;
         }
-        Byte[] data = new Byte[l];
+        byte[] data = new byte[l];
         int c = 0;
         //combine
         for (FileSendPacketSplit s: packets) {
-            for (Byte b: s.content) data[c++] = b;
+            System.arraycopy(s.content, 0, data, c, s.content.length);
+            c += s.content.length;
         }
         //setup packet
         FileSendPacket fsp = new FileSendPacket();
@@ -1,13 +1,12 @@
 package net;
 
 /**
- * This interface is used by 'IdleSender' when its action is complete.
+ * This interface is used by 'SendPump' when a source of packets is complete.
  */
 public interface IdleOnFinish {
 
     /**
-     * Invoked whenever an IdleSender has finished its operations pertaining to
-     * its list of objects.
+     * Invoked whenever a 'SendPump' has sent every packet of a source.
      */
     void onFinish();
 }
@@ -0,0 +1,140 @@
+package net;
+
+import net.packet.FileSendPacketSplit;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates the splits of an upload ahead of sending them, see 'Upload.split()': each is read and encrypted
+ * on a pool of worker threads shared by every upload, one per core, and handed out in series order.
+ * At most 'AHEAD_BYTES' of content are read ahead of the splits being sent by all uploads together,
+ * but always one split per upload so none waits on another. Only the thread sending the upload uses it.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ */
+public class SplitReader {
+
+    /**
+     * Most bytes of content read ahead by all uploads.
+     */
+    public static final long AHEAD_BYTES = 64L * 1024 * 1024;
+
+    private static final ExecutorService workers = createWorkers(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Bytes of content read ahead by all uploads, see 'reserve()'.
+     */
+    private static final AtomicLong aheadBytes = new AtomicLong();
+
+    private final Upload upload;
+    private final BitSet held;
+
+    /**
+     * Splits being created in series order, and the most at a time.
+     */
+    private final ArrayDeque<Future<FileSendPacketSplit>> ahead = new ArrayDeque<>();
+    private final int window;
+
+    /**
+     * Bytes of content every split is counted as in 'aheadBytes'.
+     */
+    private final long perSplit;
+
+    /**
+     * Next series to create.
+     */
+    private int series = 0;
+
+    /**
+     * @param upload to create the splits of.
+     * @param held series not to create, E.G. those the server holds.
+     */
+    public SplitReader(Upload upload, BitSet held) {
+        this.upload = upload;
+        this.held = held;
+        this.perSplit = Math.max(1, upload.splitLength);
+        this.window = (int) Math.max(1, Math.min(2L * Runtime.getRuntime().availableProcessors(), AHEAD_BYTES / perSplit));
+    }
+
+    private static ExecutorService createWorkers(int n) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory tf = r -> {
+            Thread t = new Thread(r, "split-reader-" + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
+        return Executors.newFixedThreadPool(Math.max(1, n), tf);
+    }
+
+    /**
+     * Returns the next split in series order, waiting for it to be created; creates the ones after it meanwhile.
+     * @return the split, or null if it could not be read or encrypted.
+     */
+    public FileSendPacketSplit next() {
+        fill();
+        Future<FileSendPacketSplit> head = ahead.poll();
+        if (head == null) return null;
+        aheadBytes.addAndGet(-perSplit);
+        fill();
+        try {
+            return head.get();
+        } catch (InterruptedException | ExecutionException | CancellationException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @return true if a split is left to hand out.
+     */
+    public boolean hasNext() {
+        return !ahead.isEmpty() || upload.length > held.nextClearBit(series);
+    }
+
+    /**
+     * Drops the splits created ahead, waiting for those being created; the upload is not touched once it returns.
+     */
+    public void close() {
+        for (Future<FileSendPacketSplit> f : ahead) {
+            aheadBytes.addAndGet(-perSplit);
+            if (f.cancel(false)) continue;
+            try {
+                f.get();
+            } catch (InterruptedException | ExecutionException | CancellationException e) {
+                //dropped anyway
+            }
+        }
+        ahead.clear();
+    }
+
+    private void fill() {
+        while (ahead.size() < window) {
+            series = held.nextClearBit(series);
+            if (series >= upload.length || !reserve()) return;
+            final int s = series++;
+            ahead.add(workers.submit(() -> upload.split(s)));
+        }
+    }
+
+    /**
+     * Counts one more split in 'aheadBytes' if it stays within 'AHEAD_BYTES', or if this upload has none ahead.
+     * @return true if the split may be created.
+     */
+    private boolean reserve() {
+        while (true) {
+            long bytes = aheadBytes.get();
+            if (!ahead.isEmpty() && bytes + perSplit > AHEAD_BYTES) return false;
+            if (aheadBytes.compareAndSet(bytes, bytes + perSplit)) return true;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package net;
+
+import com.esotericsoftware.kryonet.Client;
+import com.esotericsoftware.kryonet.Connection;
+import com.esotericsoftware.kryonet.FrameworkMessage;
+import com.esotericsoftware.kryonet.Listener;
+import net.packet.PacketSerializers;
+import net.packet.StripeHelloPacket;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Auxiliary connections to the server that the chunks of striped transfers are spread over besides the
+ * main connection, see 'TransferOpenPacket.striped'. Each has a TCP congestion window of its own, so one
+ * transfer is not held to a single window on paths with a high bandwidth-delay product.
+ * Each says hello with the token the server gave the main connection, see 'StripeHelloPacket', and is handed
+ * to the 'SendPump' once the server echoed it. Packets received on them go to the given 'Listener'
+ * (our 'BinClient') as if received on the main connection.
+ * Losing one loses the chunks in flight on it, so the main connection is closed as well and its transfers
+ * resume once reconnected.
+ * All methods are thread-safe.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ */
+public class Stripes {
+
+    /**
+     * Most auxiliary connections opened, the server takes no more.
+     */
+    public static final int MAX = 8;
+
+    /**
+     * Time in milis to wait for each connection.
+     */
+    public static final int CONNECT_TIMEOUT = 5000;
+
+    private final Client main;
+    private final SendPump pump;
+    private final Listener listener;
+    private final int writeBufferSize, objectBufferSize;
+
+    /**
+     * Connections opened, and those the server echoed the hello of.
+     */
+    private final ArrayList<Client> opened = new ArrayList<>();
+    private final CopyOnWriteArrayList<Connection> ready = new CopyOnWriteArrayList<>();
+
+    private volatile boolean closed = false;
+
+    /**
+     * @param main connection to the server.
+     * @param pump of the main connection, spreads the chunks over the connections once ready.
+     * @param listener invoked for every packet as if received on the main connection, from the KryoNet threads.
+     * @param writeBufferSize of each connection.
+     * @param objectBufferSize of each connection.
+     */
+    public Stripes(Client main, SendPump pump, Listener listener, int writeBufferSize, int objectBufferSize) {
+        this.main = main;
+        this.pump = pump;
+        this.listener = listener;
+        this.writeBufferSize = writeBufferSize;
+        this.objectBufferSize = objectBufferSize;
+    }
+
+    /**
+     * Connects the auxiliary connections and says hello on each, blocks while connecting.
+     * @param host of the server.
+     * @param portTCP of the server.
+     * @param portUDP of the server, KryoNet only takes connections that register on both.
+     * @param count connections to open, at most 'MAX'.
+     * @param uid of this client.
+     * @param token given in 'ConnectResponsePacketV2'.
+     * @return amount of connections opened.
+     */
+    public synchronized int open(String host, int portTCP, int portUDP, int count, String uid, String token) {
+        for (int i = 0; i < Math.min(count, MAX) && !closed; i++) {
+            Client client = new Client(writeBufferSize, objectBufferSize);
+            PacketSerializers.register(client.getKryo());
+            client.addListener(new Listener() {
+                @Override
+                public void received(Connection connection, Object object) {
+                    if (object instanceof FrameworkMessage) return;
+                    if (object instanceof StripeHelloPacket) {
+                        //attached, chunks may go here from now on
+                        if (closed) return;
+                        ready.add(connection);
+                        pump.setStripes(ready.toArray(new Connection[0]));
+                        return;
+                    }
+                    listener.received(main, object);
+                }
+
+                @Override
+                public void idle(Connection connection) {
+                    listener.idle(main);
+                }
+
+                @Override
+                public void disconnected(Connection connection) {
+                    if (!closed && ready.contains(connection)) main.close();
+                }
+            });
+            new Thread(client, "stripe-" + i).start();
+            try {
+                client.connect(CONNECT_TIMEOUT, host, portTCP, portUDP);
+            } catch (IOException e) {
+                System.out.println("Auxiliary connection to " + host + ":" + portTCP + " failed: " + e.getMessage());
+                client.stop();
+                break;
+            }
+            opened.add(client);
+            StripeHelloPacket hello = new StripeHelloPacket();
+            hello.UID = uid;
+            hello.token = token;
+            client.sendTCP(hello);
+        }
+        return opened.size();
+    }
+
+    /**
+     * Stops every connection, E.G. once the main connection was lost.
+     */
+    public void close() {
+        //before waiting for 'open()', so it stops connecting
+        closed = true;
+        synchronized (this) {
+            pump.setStripes(null);
+            ready.clear();
+            for (Client client : opened) client.stop();
+            opened.clear();
+        }
+    }
+}
@@ -0,0 +1,487 @@
+package net;
+
+import java.io.*;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * Binary metadata of a file recorded by 'FileSendPacketWrap', stored at '<uid>_meta'.
+ * Replaces the '<uid>_params' key=value text file, which was parsed and rewritten whole for every split.
+ * Layout (big-endian):
+ *   int magic, byte flags (finished, zip, legacy), int length, long timestamp, int stride, int lastSize,
+ *   uid, senderUID, fileName, fileNameParams, fileSize, fileSizeParams,
+ *   int bitmap size, bitmap of splits stored in the '<uid>_data' file,
+ *   followed by an append-only section of (int series, int size, bytes) content param records,
+ *   where a size of -1 removes the params of that series. Records with the high bit of 'series' set
+ *   carry the 4 byte checksum of that split instead, see 'TransferTable.checksum()'; older readers
+ *   keep them as params of a negative series, which no split has.
+ * Split 'series' is stored in the data file at 'series * stride', every split is 'stride' bytes
+ * except the last one which is 'lastSize' bytes. A file whose slots can not be laid out, as it is too large
+ * or its last split came first, keeps its splits in their own '<uid>_<series>' file as before,
+ * which sets the legacy flag; in any other file a split that does not fit its slot is refused.
+ * Flags, sizes and the bitmap live at fixed offsets and params are appended, so marking a file finished,
+ * storing or removing a split, or adding its params is a single small write no matter how many splits the file has.
+ * The whole record is also kept in memory, so reads do not touch the disk.
+ * The split count, slot size and every byte field are bounded, as both the packets a meta is created from
+ * and a torn meta file may carry any value.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ */
+public class TransferMeta {
+
+    private static final int MAGIC = 0x45444D32;
+    private static final int FLAGS_OFFSET = 4, STRIDE_OFFSET = 17, LAST_SIZE_OFFSET = 21;
+    private static final byte FINISHED = 1, ZIP = 2, LEGACY = 4;
+    private static final int CHECKSUM_RECORD = 0x80000000;
+
+    /**
+     * Most splits a file may have, most bytes in a name, size or params field, and most bytes the data file may span.
+     */
+    public static final int MAX_LENGTH = 1 << 20, MAX_FIELD = 64 * 1024;
+    public static final long MAX_DATA_SIZE = 1L << 36;
+
+    /**
+     * Path of the meta file.
+     */
+    private final String path;
+
+    public final String uid, senderUID;
+    public final byte[] fileName, fileNameParams, fileSize, fileSizeParams;
+    public final int length;
+    public final long timestamp;
+    private boolean finished, legacy;
+    private final boolean zip;
+
+    /**
+     * Size of each split slot in the data file and of the last split, 0 until known.
+     */
+    private int stride, lastSize;
+
+    /**
+     * Splits stored in the data file, and the offset of the bitmap in the meta file, -1 if it has none.
+     */
+    private final BitSet chunks = new BitSet();
+    private long bitmapOffset = -1;
+
+    /**
+     * Series -> content params.
+     */
+    private final HashMap<Integer, byte[]> params = new HashMap<>();
+
+    /**
+     * Series -> checksum of its content and params, as received.
+     */
+    private final HashMap<Integer, Integer> checksums = new HashMap<>();
+
+    private TransferMeta(String path, String uid, String senderUID, byte[] fileName, byte[] fileNameParams, byte[] fileSize,
+                         byte[] fileSizeParams, int length, long timestamp, boolean finished, boolean zip) {
+        this.path = path;
+        this.uid = uid;
+        this.senderUID = senderUID;
+        this.fileName = fileName;
+        this.fileNameParams = fileNameParams;
+        this.fileSize = fileSize;
+        this.fileSizeParams = fileSizeParams;
+        this.length = length;
+        this.timestamp = timestamp;
+        this.finished = finished;
+        this.zip = zip;
+    }
+
+    /**
+     * Creates and writes a new meta file, replacing any existing one.
+     * @param length amount of splits, from 1 to 'MAX_LENGTH'.
+     * @param timestamp of when the file was recorded.
+     * @return the meta, or null if it could not be written or a field is out of bounds.
+     */
+    public static TransferMeta create(String path, String uid, String senderUID, byte[] fileName, byte[] fileNameParams, byte[] fileSize,
+                                      byte[] fileSizeParams, int length, long timestamp, boolean finished, boolean zip,
+                                      HashMap<Integer, byte[]> params) {
+        if (length < 1 || length > MAX_LENGTH) {
+            System.out.println("ERROR: refused meta of [" + uid + "] with [" + length + "] splits.");
+            return null;
+        }
+        for (byte[] b : new byte[][]{fileName, fileNameParams, fileSize, fileSizeParams}) {
+            if (b != null && b.length > MAX_FIELD) return null;
+        }
+        if (params != null) {
+            for (HashMap.Entry<Integer, byte[]> e : params.entrySet()) {
+                if (e.getKey() < 0 || e.getKey() >= length || (e.getValue() != null && e.getValue().length > MAX_FIELD)) return null;
+            }
+        }
+        TransferMeta meta = new TransferMeta(path, uid, senderUID, fileName, fileNameParams, fileSize, fileSizeParams,
+                length, timestamp, finished, zip);
+        if (params != null) meta.params.putAll(params);
+        return meta.write() ? meta : null;
+    }
+
+    /**
+     * Reads a meta file.
+     * @param path of the meta file.
+     * @return the meta, or null if not found or unreadable.
+     */
+    public static TransferMeta load(String path) {
+        File f = new File(path);
+        if (!f.exists()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            if (in.readInt() != MAGIC) return null;
+            byte flags = in.readByte();
+            int length = in.readInt();
+            long timestamp = in.readLong();
+            int stride = in.readInt(), lastSize = in.readInt();
+            if (length < 1 || length > MAX_LENGTH || stride < 0 || lastSize < 0 || lastSize > stride
+                    || (long) stride * length > MAX_DATA_SIZE) {
+                System.out.println("ERROR: meta file [" + path + "] is corrupt.");
+                return null;
+            }
+            TransferMeta meta = new TransferMeta(path, readString(in), readString(in), readBytes(in), readBytes(in),
+                    readBytes(in), readBytes(in), length, timestamp, (flags & FINISHED) != 0, (flags & ZIP) != 0);
+            meta.stride = stride;
+            meta.lastSize = lastSize;
+            meta.legacy = (flags & LEGACY) != 0;
+            if (in.readInt() != meta.bitmapSize()) {
+                System.out.println("ERROR: meta file [" + path + "] is corrupt.");
+                return null;
+            }
+            byte[] bitmap = new byte[meta.bitmapSize()];
+            meta.bitmapOffset = meta.header().length;
+            in.readFully(bitmap);
+            meta.chunks.or(BitSet.valueOf(bitmap));
+            while (true) {
+                int series;
+                byte[] p;
+                try {
+                    series = in.readInt();
+                    p = readBytes(in);
+                } catch (EOFException e) {
+                    //end of file, or a torn last append which is ignored
+                    break;
+                }
+                if ((series & CHECKSUM_RECORD) != 0) {
+                    if (p == null || p.length != 4) {
+                        meta.checksums.remove(series & ~CHECKSUM_RECORD);
+                    } else {
+                        meta.checksums.put(series & ~CHECKSUM_RECORD, new DataInputStream(new ByteArrayInputStream(p)).readInt());
+                    }
+                } else if (p == null) {
+                    meta.params.remove(series);
+                } else {
+                    meta.params.put(series, p);
+                }
+            }
+            return meta;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Writes the whole meta file.
+     */
+    private synchronized boolean write() {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)))) {
+            byte[] header = header();
+            out.write(header);
+            bitmapOffset = header.length;
+            out.write(bitmap(0, bitmapSize()));
+            for (HashMap.Entry<Integer, byte[]> e : params.entrySet()) {
+                out.writeInt(e.getKey());
+                writeBytes(out, e.getValue());
+            }
+            for (HashMap.Entry<Integer, Integer> e : checksums.entrySet()) {
+                out.writeInt(e.getKey() | CHECKSUM_RECORD);
+                writeBytes(out, intBytes(e.getValue()));
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Fixed part of the meta file, up to and including the bitmap size.
+     */
+    private byte[] header() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeByte(flags());
+        out.writeInt(length);
+        out.writeLong(timestamp);
+        out.writeInt(stride);
+        out.writeInt(lastSize);
+        writeString(out, uid);
+        writeString(out, senderUID);
+        writeBytes(out, fileName);
+        writeBytes(out, fileNameParams);
+        writeBytes(out, fileSize);
+        writeBytes(out, fileSizeParams);
+        out.writeInt(bitmapSize());
+        return bytes.toByteArray();
+    }
+
+    private int bitmapSize() {
+        return (Math.max(length, 0) + 7) / 8;
+    }
+
+    /**
+     * Bytes 'from' to 'to' of the bitmap, bit 'i' is bit 'i % 8' of byte 'i / 8'.
+     */
+    private byte[] bitmap(int from, int to) {
+        byte[] b = new byte[to - from];
+        for (int i = chunks.nextSetBit(from * 8); i >= 0 && i < to * 8; i = chunks.nextSetBit(i + 1)) {
+            b[i / 8 - from] |= 1 << (i % 8);
+        }
+        return b;
+    }
+
+    /**
+     * Overwrites part of the meta file in place.
+     */
+    private void writeAt(long offset, byte[] data) {
+        try (RandomAccessFile raf = new RandomAccessFile(path, "rw")) {
+            raf.seek(offset);
+            raf.write(data);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static byte[] intBytes(int v) {
+        return new byte[]{(byte) (v >>> 24), (byte) (v >>> 16), (byte) (v >>> 8), (byte) v};
+    }
+
+    /**
+     * Marks the file finished, writing only the flags byte.
+     */
+    public synchronized void setFinished() {
+        if (finished) return;
+        finished = true;
+        writeAt(FLAGS_OFFSET, new byte[]{flags()});
+    }
+
+    /**
+     * Marks the file as having splits in their own '<uid>_<series>' files, writing only the flags byte.
+     */
+    public synchronized void setLegacy() {
+        if (legacy) return;
+        legacy = true;
+        if (bitmapOffset >= 0) writeAt(FLAGS_OFFSET, new byte[]{flags()});
+    }
+
+    /**
+     * @return true if some splits may be in their own '<uid>_<series>' files.
+     */
+    public synchronized boolean isLegacy() {
+        return legacy;
+    }
+
+    /**
+     * Decides whether a split of the given size can be stored in the data file.
+     * The first split that is not the last one fixes the slot size of the file. If the slots can not be
+     * laid out from it the file is marked legacy, see 'setLegacy()'.
+     * @param series of the split.
+     * @param size of its content.
+     * @return true if it fits its slot, false if it must be kept in its own file when the file is legacy,
+     * else refused.
+     */
+    public synchronized boolean placeChunk(int series, int size) {
+        if (bitmapOffset < 0 || series < 0 || series >= length) return false;
+        boolean last = series == length - 1;
+        if (stride == 0) {
+            //bounds the preallocation of the data file, larger files keep their splits in their own files
+            if ((last && length > 1) || (long) size * length > MAX_DATA_SIZE) {
+                setLegacy();
+                return false;
+            }
+            stride = size;
+            writeAt(STRIDE_OFFSET, intBytes(stride));
+        }
+        if (last) {
+            if (size > stride) return false;
+            if (size != lastSize) {
+                lastSize = size;
+                writeAt(LAST_SIZE_OFFSET, intBytes(lastSize));
+            }
+            return true;
+        }
+        return size == stride;
+    }
+
+    /**
+     * Sets or clears the bit of a split, writing only its byte of the bitmap.
+     * @param series of the split.
+     * @param stored true once its content is in the data file, false once removed.
+     */
+    public synchronized void setChunk(int series, boolean stored) {
+        if (bitmapOffset < 0 || series < 0 || series >= length || chunks.get(series) == stored) return;
+        chunks.set(series, stored);
+        writeAt(bitmapOffset + series / 8, bitmap(series / 8, series / 8 + 1));
+    }
+
+    /**
+     * @return true if the split is stored in the data file.
+     */
+    public synchronized boolean hasChunk(int series) {
+        return series >= 0 && chunks.get(series);
+    }
+
+    /**
+     * @return amount of splits stored in the data file.
+     */
+    public synchronized int chunkCount() {
+        return chunks.cardinality();
+    }
+
+    /**
+     * @return offset of the split in the data file.
+     */
+    public synchronized long chunkOffset(int series) {
+        return (long) series * stride;
+    }
+
+    /**
+     * @return size of the split in the data file.
+     */
+    public synchronized int chunkSize(int series) {
+        return series == length - 1 ? lastSize : stride;
+    }
+
+    /**
+     * @return size to preallocate the data file to, 0 if the slot size is not yet known.
+     */
+    public synchronized long dataSize() {
+        return (long) stride * length;
+    }
+
+    /**
+     * Sets the content params of a split, appending one record.
+     * Params of a series out of range or longer than 'MAX_FIELD' are refused like in 'create()',
+     * as 'load()' stops at such a record and every later one would be lost.
+     * @param series of the split.
+     * @param p content params, null to remove.
+     * @return false if refused or not written.
+     */
+    public synchronized boolean putParam(int series, byte[] p) {
+        if (p == null) {
+            if (!params.containsKey(series)) return true;
+        } else if (series < 0 || series >= length || p.length > MAX_FIELD) {
+            System.out.println("ERROR: refused params of [" + uid + "] split [" + series + "].");
+            return false;
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path, true)))) {
+            out.writeInt(series);
+            writeBytes(out, p);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        if (p == null) params.remove(series);
+        else params.put(series, p);
+        return true;
+    }
+
+    /**
+     * Sets the checksum of a split, appending one record.
+     * @param series of the split.
+     * @param checksum of its content and params, null to remove.
+     */
+    public synchronized void putChecksum(int series, Integer checksum) {
+        if (checksum == null) {
+            if (checksums.remove(series) == null) return;
+        } else {
+            if (checksum.equals(checksums.put(series, checksum))) return;
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path, true)))) {
+            out.writeInt(series | CHECKSUM_RECORD);
+            writeBytes(out, checksum == null ? null : intBytes(checksum));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return checksum of the split as received, or null if not recorded.
+     */
+    public synchronized Integer getChecksum(int series) {
+        return checksums.get(series);
+    }
+
+    public synchronized byte[] getParam(int series) {
+        return params.get(series);
+    }
+
+    public synchronized boolean hasParam(int series) {
+        return params.containsKey(series);
+    }
+
+    /**
+     * @return copy of series -> content params.
+     */
+    public synchronized HashMap<Integer, byte[]> getParams() {
+        return new HashMap<>(params);
+    }
+
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    public boolean isZip() {
+        return zip;
+    }
+
+    /**
+     * Returns the meta in the format of the former params file, I.E. for 'getParamsAsMap'.
+     * @return key -> value, with byte[] values already decoded.
+     */
+    public synchronized HashMap<String, Object> toMap() {
+        HashMap<String, Object> map = new HashMap<>();
+        map.put("uid", uid);
+        map.put("senderUID", senderUID);
+        map.put("fileName", fileName);
+        map.put("fileNameParams", fileNameParams);
+        map.put("fileSize", fileSize);
+        map.put("fileSizeParams", fileSizeParams);
+        map.put("isFinished", finished);
+        map.put("isZip", zip);
+        map.put("length", length);
+        map.put("timestamp", timestamp);
+        for (HashMap.Entry<Integer, byte[]> e : params.entrySet()) map.put("param_" + e.getKey(), e.getValue());
+        return map;
+    }
+
+    private byte flags() {
+        return (byte) ((finished ? FINISHED : 0) | (zip ? ZIP : 0) | (legacy ? LEGACY : 0));
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) out.writeUTF(s);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+        if (b == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int l = in.readInt();
+        if (l < 0) return null;
+        //a torn record may have any length
+        if (l > MAX_FIELD) throw new EOFException("field of " + l + " bytes");
+        byte[] data = new byte[l];
+        in.readFully(data);
+        return data;
+    }
+}
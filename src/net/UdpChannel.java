@@ -0,0 +1,718 @@
+package net;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryonet.Connection;
+import net.packet.DatagramAckPacket;
+import net.packet.DatagramParityPacket;
+import net.packet.DatagramSegmentPacket;
+import net.packet.FileChunkPacket;
+import net.packet.PacketSerializers;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reliable, ordered data channel over the UDP port a connection registered, for the chunks of split transfers,
+ * so a lost packet only costs its own resend instead of stalling everything behind it in the TCP stream.
+ * Control packets stay on TCP; which transfers are carried here is agreed per transfer,
+ * see 'TransferOpenPacket.datagram', and their credit bounds what is buffered on either side.
+ *
+ * Packets are serialized and cut into 'DatagramSegmentPacket's of at most 'SEGMENT_SIZE' bytes, the receiving
+ * side puts them back together and hands them on in the order they were sent, see 'receive()'.
+ * Every datagram has a sequence number of its own and the receiver acknowledges runs of them, see 'DatagramAckPacket'.
+ * A datagram is taken as lost once 'LOSS_THRESHOLD' datagrams sent after it were acknowledged, or once it is
+ * overdue by a round trip, and its segment is sent again under a new number. If nothing is acknowledged for
+ * a probe timeout the oldest 'PROBES' datagrams are sent again regardless of the window, so an acknowledgement
+ * comes back even if the window is full of lost ones, and the timeout doubles (QUIC's PTO).
+ * Sending is limited by a congestion window that grows per datagram acknowledged, doubling per round trip until
+ * the first loss, and is halved once per round trip that lost datagrams, or falls to 'MIN_WINDOW' after
+ * 'PERSISTENT_TIMEOUTS' probe timeouts in a row; datagrams are paced evenly over the round trip.
+ * With 'setParity()' every 'GROUP_DATA' datagrams sent are followed by 'GROUP_PARITY' 'DatagramParityPacket's,
+ * the receiver rebuilds lost datagrams of the group from them and acknowledges them as received, see 'ErasureCode'.
+ * All methods are thread-safe, datagrams are sent from a thread of the channel while any are unacknowledged.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ */
+public class UdpChannel {
+
+    /**
+     * Bytes of a packet per datagram, small enough to pass common paths without fragmenting.
+     */
+    public static final int SEGMENT_SIZE = 1200;
+
+    /**
+     * Congestion window in datagrams at the start, after persistent timeouts, and at most.
+     */
+    private static final int INITIAL_WINDOW = 10, MIN_WINDOW = 2, MAX_WINDOW = 8192;
+
+    /**
+     * Amount of datagrams sent after one that must be acknowledged before it is taken as lost.
+     */
+    private static final int LOSS_THRESHOLD = 3;
+
+    /**
+     * Datagrams sent again per probe timeout, and timeouts in a row taken as persistent congestion.
+     */
+    private static final int PROBES = 2, PERSISTENT_TIMEOUTS = 3;
+
+    /**
+     * Round trip in nanos assumed until measured, bounds of the probe timeout,
+     * and least time a datagram must be overdue to be taken as lost.
+     */
+    private static final long INITIAL_RTT = TimeUnit.MILLISECONDS.toNanos(100),
+            MIN_RTO = TimeUnit.MILLISECONDS.toNanos(20), MAX_RTO = TimeUnit.SECONDS.toNanos(10),
+            GRANULARITY = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Datagrams are paced at this many congestion windows per round trip,
+     * and up to 'BURST' may go out at once after a pause.
+     */
+    private static final double PACING_GAIN = 1.25;
+    private static final int BURST = 10;
+
+    /**
+     * Datagrams received before acknowledging them, runs of sequence numbers kept,
+     * and runs sent per acknowledgement.
+     */
+    private static final int ACK_EVERY = 2, KEPT_RANGES = 64, ACK_RANGES = 16;
+
+    /**
+     * Datagrams per parity group and parity datagrams sent with each, see 'setParity()'.
+     * Both sides must use the same.
+     */
+    public static final int GROUP_DATA = 8, GROUP_PARITY = 2;
+
+    /**
+     * Datagrams received lately that are kept to rebuild lost ones of their group from.
+     */
+    private static final int RECENT = 1024;
+
+    /**
+     * Bytes a segment's message, index, count and length take up in a shard, see 'shard()'.
+     */
+    private static final int SHARD_HEADER = 14;
+
+    /**
+     * Packets not yet complete that are kept at most, further ahead of the next one to hand on are dropped.
+     */
+    private static final int MAX_AHEAD = 4096;
+
+    private static class Segment {
+        private final int message, index, count;
+        private final byte[] data;
+
+        /**
+         * Sequence number and time in nanos it was last sent under, and whether any send of it was acknowledged.
+         */
+        private long seq, sentAt;
+        private boolean acked = false;
+
+        private Segment(int message, int index, int count, byte[] data) {
+            this.message = message;
+            this.index = index;
+            this.count = count;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Parity datagrams of a group received so far, by row.
+     */
+    private static class Group {
+        private final int count;
+        private final byte[][] rows = new byte[GROUP_PARITY][];
+
+        private Group(int count) {
+            this.count = count;
+        }
+    }
+
+    private final Connection connection;
+
+    /**
+     * Largest packet taken in bytes.
+     */
+    private final int maxMessage;
+
+    /**
+     * Transfers whose chunks are sent here instead of on TCP.
+     */
+    private final Set<Integer> carried = new HashSet<>();
+
+    /*
+    Sending side, guarded by 'this'.
+     */
+    private final Kryo encoder = new Kryo();
+    private final ArrayDeque<Segment> queued = new ArrayDeque<>(), lost = new ArrayDeque<>();
+    private final TreeMap<Long, Segment> inFlight = new TreeMap<>();
+    private long nextSeq = 0, largestAcked = -1, recoveryEnd = 0;
+    private int nextMessage = 0, probes = 0, timeouts = 0;
+    private double window = INITIAL_WINDOW, threshold = Double.MAX_VALUE, tokens = BURST;
+    private long srtt = -1, rttvar = 0, latestRtt = 0, rto = TimeUnit.SECONDS.toNanos(1);
+    private long lastProgress, lastRefill;
+    private Thread sender;
+    private boolean closed = false;
+
+    /**
+     * True to send parity, and shards of the datagrams of the current group, the sequence number of its first
+     * and when it was sent.
+     */
+    private volatile boolean parity = false;
+    private final ArrayList<byte[]> group = new ArrayList<>();
+    private long groupFirst, groupStarted;
+
+    /*
+    Receiving side, guarded by 'receiving'.
+     */
+    private final Object receiving = new Object();
+    private final Kryo decoder = new Kryo();
+    private final HashMap<Integer, byte[][]> assembling = new HashMap<>();
+    private final HashMap<Integer, Integer> filled = new HashMap<>();
+
+    /**
+     * Runs of sequence numbers received, first -> last.
+     */
+    private final TreeMap<Long, Long> received = new TreeMap<>();
+    private int nextDeliver = 0, unacked = 0;
+
+    /**
+     * Shards of the datagrams received lately by sequence number, kept once the other side sent parity,
+     * and the parity of groups not complete yet by the sequence number of their first datagram.
+     */
+    private final TreeMap<Long, byte[]> shards = new TreeMap<>();
+    private final TreeMap<Long, Group> groups = new TreeMap<>();
+    private boolean keepShards = false;
+
+    /**
+     * @param connection whose UDP port is used, it must have registered one.
+     * @param maxMessage largest packet taken in bytes, E.G. the object buffer size.
+     */
+    public UdpChannel(Connection connection, int maxMessage) {
+        this.connection = connection;
+        this.maxMessage = maxMessage;
+        PacketSerializers.register(encoder);
+        PacketSerializers.register(decoder);
+    }
+
+    /**
+     * @param connection to check.
+     * @return true if the connection registered a UDP port to use.
+     */
+    public static boolean isAvailable(Connection connection) {
+        return connection.isConnected() && connection.getRemoteAddressUDP() != null;
+    }
+
+    /**
+     * Carries the chunks of a transfer from now on, see 'carries()'.
+     * @param transfer ID on the connection.
+     */
+    public void carry(int transfer) {
+        synchronized (carried) {
+            carried.add(transfer);
+        }
+    }
+
+    /**
+     * Stops carrying a transfer once it is done.
+     * @param transfer ID on the connection.
+     */
+    public void drop(int transfer) {
+        synchronized (carried) {
+            carried.remove(transfer);
+        }
+    }
+
+    /**
+     * @param packet about to be sent.
+     * @return true if it is a chunk of a transfer carried here, it must be sent with 'send()'.
+     */
+    public boolean carries(Object packet) {
+        if (!(packet instanceof FileChunkPacket)) return false;
+        synchronized (carried) {
+            return carried.contains(((FileChunkPacket) packet).transfer);
+        }
+    }
+
+    /**
+     * Sends parity with the datagrams from now on, once the other side agreed to take it;
+     * see 'ContinueSplitPacket.parity'.
+     * @param parity true to send parity.
+     */
+    public void setParity(boolean parity) {
+        this.parity = parity;
+    }
+
+    /**
+     * Queues a packet to be sent until acknowledged.
+     * @param packet to send.
+     */
+    public synchronized void send(Object packet) {
+        if (closed) return;
+        Output out = new Output(SEGMENT_SIZE, -1);
+        encoder.writeClassAndObject(out, packet);
+        byte[] bytes = out.toBytes();
+        int count = Math.max(1, (bytes.length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        int message = nextMessage++;
+        for (int i = 0; i < count; i++) {
+            byte[] data = Arrays.copyOfRange(bytes, i * SEGMENT_SIZE, Math.min(bytes.length, (i + 1) * SEGMENT_SIZE));
+            queued.add(new Segment(message, i, count, data));
+        }
+        if (sender == null) {
+            sender = new Thread(this::run, "udp-" + connection.getID());
+            sender.setDaemon(true);
+            lastProgress = lastRefill = System.nanoTime();
+            sender.start();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Takes an acknowledgement of the other side.
+     * @param ack received.
+     */
+    public synchronized void acked(DatagramAckPacket ack) {
+        if (ack.ranges == null || closed) return;
+        long now = System.nanoTime();
+        int count = 0;
+        Segment newest = null;
+        for (int i = 0; i + 1 < ack.ranges.length; i += 2) {
+            if (ack.ranges[i] > ack.ranges[i + 1] || ack.ranges[i + 1] >= nextSeq) continue;
+            NavigableMap<Long, Segment> run = inFlight.subMap(ack.ranges[i], true, ack.ranges[i + 1], true);
+            for (Segment segment : run.values()) {
+                segment.acked = true;
+                count++;
+                if (newest == null || segment.seq > newest.seq) newest = segment;
+            }
+            run.clear();
+            largestAcked = Math.max(largestAcked, ack.ranges[i + 1]);
+        }
+        if (count == 0) return;
+        updateRtt(now - newest.sentAt);
+        lastProgress = now;
+        probes = 0;
+        timeouts = 0;
+        //no growth while recovering from a loss
+        if (newest.seq >= recoveryEnd) {
+            window = Math.min(MAX_WINDOW, window < threshold ? window + count : window + count / window);
+        }
+        detectLosses(now);
+        notifyAll();
+    }
+
+    /**
+     * Takes a segment of the other side and acknowledges it, rebuilding lost ones of its group if parity allows.
+     * @param segment received.
+     * @return the packets it completed, in the order they were sent; empty if none.
+     */
+    public List<Object> receive(DatagramSegmentPacket segment) {
+        ArrayList<Object> delivered = new ArrayList<>();
+        DatagramAckPacket ack = null;
+        synchronized (receiving) {
+            boolean now = take(segment, delivered);
+            if (keepShards && segment.data != null && segment.data.length <= SEGMENT_SIZE) {
+                shards.put(segment.seq, shard(segment));
+                while (shards.size() > RECENT) shards.pollFirstEntry();
+                Map.Entry<Long, Group> entry = groups.floorEntry(segment.seq);
+                if (entry != null && segment.seq < entry.getKey() + entry.getValue().count) {
+                    now |= repair(entry.getKey(), entry.getValue(), delivered);
+                }
+            }
+            //ack every other datagram, and right away on a gap, a duplicate or the end of a packet
+            if (++unacked >= ACK_EVERY || now) {
+                ack = ack();
+                unacked = 0;
+            }
+        }
+        if (ack != null) connection.sendUDP(ack);
+        return delivered;
+    }
+
+    /**
+     * Takes parity of the other side, rebuilding lost datagrams of its group if enough arrived.
+     * Rebuilt datagrams are acknowledged right away, so they are not sent again.
+     * @param packet received.
+     * @return the packets the rebuilt datagrams completed, in the order they were sent; empty if none.
+     */
+    public List<Object> receive(DatagramParityPacket packet) {
+        ArrayList<Object> delivered = new ArrayList<>();
+        DatagramAckPacket ack = null;
+        synchronized (receiving) {
+            Map.Entry<Long, Long> highest = received.lastEntry();
+            if (isValid(packet) && (highest == null || packet.first > highest.getValue() - RECENT)) {
+                keepShards = true;
+                Group group = groups.computeIfAbsent(packet.first, first -> new Group(packet.count));
+                if (group.count == packet.count) group.rows[packet.index] = packet.data;
+                while (groups.size() > RECENT / GROUP_DATA) groups.pollFirstEntry();
+                if (repair(packet.first, group, delivered)) {
+                    ack = ack();
+                    unacked = 0;
+                }
+            }
+        }
+        if (ack != null) connection.sendUDP(ack);
+        return delivered;
+    }
+
+    /**
+     * Stops sending and drops everything buffered, used once the connection closed.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            queued.clear();
+            lost.clear();
+            inFlight.clear();
+            notifyAll();
+        }
+        synchronized (receiving) {
+            assembling.clear();
+            filled.clear();
+        }
+        synchronized (carried) {
+            carried.clear();
+        }
+    }
+
+    /**
+     * Records a segment, puts it into its packet and hands on the packets complete in order.
+     * @return true if it should be acknowledged right away: it came after a gap, was a duplicate or completed a packet.
+     */
+    private boolean take(DatagramSegmentPacket segment, List<Object> delivered) {
+        Map.Entry<Long, Long> highest = received.lastEntry();
+        boolean inOrder = highest == null || segment.seq == highest.getValue() + 1;
+        record(segment.seq);
+        boolean fresh = false, completed = false;
+        if (isValid(segment)) {
+            byte[][] parts = assembling.computeIfAbsent(segment.message, m -> new byte[segment.count][]);
+            if (parts.length == segment.count && parts[segment.index] == null) {
+                parts[segment.index] = segment.data;
+                fresh = true;
+                completed = filled.merge(segment.message, 1, Integer::sum) == segment.count;
+            }
+        }
+        while (filled.getOrDefault(nextDeliver, 0) > 0 && filled.get(nextDeliver) == assembling.get(nextDeliver).length) {
+            byte[][] parts = assembling.remove(nextDeliver);
+            filled.remove(nextDeliver);
+            nextDeliver++;
+            Object packet = decode(parts);
+            if (packet != null) delivered.add(packet);
+        }
+        return !inOrder || !fresh || completed;
+    }
+
+    /**
+     * Rebuilds the lost datagrams of a group and takes them, if as many parity datagrams arrived.
+     * The group is forgotten once complete, or if a datagram it needs is no longer kept.
+     * @return true if any were rebuilt.
+     */
+    private boolean repair(long first, Group group, List<Object> delivered) {
+        byte[][] data = new byte[group.count][];
+        int missing = 0, rows = 0;
+        for (int i = 0; i < group.count; i++) {
+            if (!isReceived(first + i)) {
+                missing++;
+            } else if ((data[i] = shards.get(first + i)) == null) {
+                groups.remove(first);
+                return false;
+            }
+        }
+        for (byte[] row : group.rows) {
+            if (row != null) rows++;
+        }
+        if (missing > 0 && rows < missing) return false;
+        groups.remove(first);
+        if (missing == 0 || !ErasureCode.decode(data, group.rows)) return false;
+        for (int i = 0; i < group.count; i++) {
+            if (isReceived(first + i)) continue;
+            DatagramSegmentPacket segment = segment(first + i, data[i]);
+            if (segment != null) take(segment, delivered);
+        }
+        return true;
+    }
+
+    /**
+     * Sends what the congestion window and pacing allow, waiting for acknowledgements in between,
+     * until nothing is left unacknowledged or the channel closed.
+     */
+    private void run() {
+        ArrayList<Object> out = new ArrayList<>();
+        while (true) {
+            synchronized (this) {
+                while (out.isEmpty()) {
+                    if (closed || (queued.isEmpty() && lost.isEmpty() && inFlight.isEmpty())) {
+                        sender = null;
+                        return;
+                    }
+                    long now = System.nanoTime();
+                    checkTimeout(now);
+                    refill(now);
+                    while (probes > 0 || (tokens >= 1 && inFlight.size() < (int) window)) {
+                        Segment segment = lost.isEmpty() ? queued.poll() : lost.poll();
+                        if (segment == null) break;
+                        if (segment.acked) continue;
+                        if (probes > 0) probes--;
+                        if (inFlight.isEmpty()) lastProgress = now;
+                        segment.seq = nextSeq++;
+                        segment.sentAt = now;
+                        inFlight.put(segment.seq, segment);
+                        tokens = Math.max(0, tokens - 1);
+                        DatagramSegmentPacket packet = packet(segment);
+                        out.add(packet);
+                        if (parity) protect(packet, out);
+                    }
+                    //the tail of what was queued is protected as well, and a group the window holds up too long
+                    if (!group.isEmpty() && ((queued.isEmpty() && lost.isEmpty()) || now >= groupDeadline())) sendParity(out);
+                    if (out.isEmpty()) {
+                        try {
+                            TimeUnit.NANOSECONDS.timedWait(this, nextWake(now));
+                        } catch (InterruptedException e) {
+                            sender = null;
+                            return;
+                        }
+                    }
+                }
+            }
+            for (Object packet : out) connection.sendUDP(packet);
+            out.clear();
+        }
+    }
+
+    /**
+     * Adds a datagram just sent to the current group, sending parity once the group is full.
+     */
+    private void protect(DatagramSegmentPacket packet, List<Object> out) {
+        if (group.isEmpty()) {
+            groupFirst = packet.seq;
+            groupStarted = System.nanoTime();
+        }
+        group.add(shard(packet));
+        if (group.size() == GROUP_DATA) sendParity(out);
+    }
+
+    /**
+     * @return when the current group is sent with the datagrams it has, a quarter of a round trip after its first;
+     * later parity would come too late to save sending lost ones again.
+     */
+    private long groupDeadline() {
+        return groupStarted + (srtt < 0 ? INITIAL_RTT : srtt) / 4;
+    }
+
+    /**
+     * Adds the parity of the current group to the datagrams to send and starts the next group.
+     */
+    private void sendParity(List<Object> out) {
+        byte[][] rows = ErasureCode.encode(group.toArray(new byte[0][]), GROUP_PARITY);
+        for (int i = 0; i < rows.length; i++) {
+            DatagramParityPacket packet = new DatagramParityPacket();
+            packet.first = groupFirst;
+            packet.count = group.size();
+            packet.index = i;
+            packet.data = rows[i];
+            out.add(packet);
+        }
+        tokens = Math.max(0, tokens - rows.length);
+        group.clear();
+    }
+
+    /**
+     * Sends the oldest datagrams again if nothing was acknowledged for a probe timeout, and doubles the timeout.
+     * The window falls back to 'MIN_WINDOW' once that happened 'PERSISTENT_TIMEOUTS' times in a row.
+     */
+    private void checkTimeout(long now) {
+        if (inFlight.isEmpty() || now - lastProgress < rto) return;
+        ArrayList<Segment> oldest = new ArrayList<>();
+        while (oldest.size() < PROBES && !inFlight.isEmpty()) oldest.add(inFlight.pollFirstEntry().getValue());
+        for (int i = oldest.size() - 1; i >= 0; i--) lost.addFirst(oldest.get(i));
+        probes = oldest.size();
+        if (++timeouts >= PERSISTENT_TIMEOUTS) {
+            threshold = Math.max(window / 2, MIN_WINDOW);
+            window = MIN_WINDOW;
+            recoveryEnd = nextSeq;
+        }
+        rto = Math.min(rto * 2, MAX_RTO);
+        lastProgress = now;
+    }
+
+    /**
+     * Takes datagrams as lost that 'LOSS_THRESHOLD' later ones were acknowledged after,
+     * or that are overdue by 9/8 of a round trip; halves the window once per round trip.
+     */
+    private void detectLosses(long now) {
+        long delay = Math.max(GRANULARITY, Math.max(srtt, latestRtt) * 9 / 8);
+        long largestLost = -1;
+        //with parity a datagram may be rebuilt once the rest of its group arrived, give it that long
+        int reordering = parity ? LOSS_THRESHOLD + GROUP_DATA : LOSS_THRESHOLD;
+        Iterator<Segment> it = inFlight.headMap(largestAcked, false).values().iterator();
+        while (it.hasNext()) {
+            Segment segment = it.next();
+            if (largestAcked - segment.seq < reordering && now - segment.sentAt < delay) continue;
+            it.remove();
+            lost.add(segment);
+            largestLost = segment.seq;
+        }
+        if (largestLost >= recoveryEnd) {
+            threshold = Math.max(window / 2, MIN_WINDOW);
+            window = threshold;
+            recoveryEnd = nextSeq;
+        }
+    }
+
+    /**
+     * Takes a round trip sample, see RFC 6298.
+     * @param rtt in nanos.
+     */
+    private void updateRtt(long rtt) {
+        latestRtt = rtt;
+        if (srtt < 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+            srtt = (7 * srtt + rtt) / 8;
+        }
+        rto = Math.min(MAX_RTO, Math.max(MIN_RTO, srtt + 4 * rttvar));
+    }
+
+    /**
+     * @return nanos between two datagrams at the current window and round trip.
+     */
+    private double interval() {
+        return (srtt < 0 ? INITIAL_RTT : srtt) / (window * PACING_GAIN);
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(BURST, tokens + (now - lastRefill) / interval());
+        lastRefill = now;
+    }
+
+    /**
+     * @return nanos to wait until the next datagram or parity may go out or the retransmission timeout expires.
+     */
+    private long nextWake(long now) {
+        long wake = inFlight.isEmpty() ? rto : lastProgress + rto - now;
+        boolean sendable = (!queued.isEmpty() || !lost.isEmpty()) && (probes > 0 || inFlight.size() < (int) window);
+        if (sendable) wake = Math.min(wake, (long) ((1 - tokens) * interval()));
+        if (!group.isEmpty()) wake = Math.min(wake, groupDeadline() - now);
+        return Math.max(wake, 1000);
+    }
+
+    private DatagramSegmentPacket packet(Segment segment) {
+        DatagramSegmentPacket packet = new DatagramSegmentPacket();
+        packet.seq = segment.seq;
+        packet.message = segment.message;
+        packet.index = segment.index;
+        packet.count = segment.count;
+        packet.data = segment.data;
+        return packet;
+    }
+
+    /**
+     * @return true if the segment belongs to a packet not handed on yet and fits the limits.
+     */
+    private boolean isValid(DatagramSegmentPacket segment) {
+        return segment.data != null && segment.data.length <= SEGMENT_SIZE && segment.count > 0
+                && segment.count <= maxMessage / SEGMENT_SIZE + 1 && segment.index >= 0 && segment.index < segment.count
+                && segment.message >= nextDeliver && segment.message - nextDeliver < MAX_AHEAD;
+    }
+
+    /**
+     * @return true if a datagram with the sequence number was received.
+     */
+    private boolean isReceived(long seq) {
+        Map.Entry<Long, Long> run = received.floorEntry(seq);
+        return run != null && run.getValue() >= seq;
+    }
+
+    /**
+     * @return true if the parity fits a group of this side's code.
+     */
+    private static boolean isValid(DatagramParityPacket packet) {
+        return packet.data != null && packet.data.length <= SHARD_HEADER + SEGMENT_SIZE && packet.first >= 0
+                && packet.count > 0 && packet.count <= GROUP_DATA && packet.index >= 0 && packet.index < GROUP_PARITY;
+    }
+
+    /**
+     * @return the segment as a shard for 'ErasureCode': message, index, count, length of the data, then the data.
+     */
+    private static byte[] shard(DatagramSegmentPacket segment) {
+        ByteBuffer shard = ByteBuffer.allocate(SHARD_HEADER + segment.data.length);
+        shard.putInt(segment.message).putInt(segment.index).putInt(segment.count).putShort((short) segment.data.length);
+        shard.put(segment.data);
+        return shard.array();
+    }
+
+    /**
+     * @return the segment a rebuilt shard holds, null if it holds none.
+     */
+    private static DatagramSegmentPacket segment(long seq, byte[] shard) {
+        if (shard.length < SHARD_HEADER) return null;
+        ByteBuffer in = ByteBuffer.wrap(shard);
+        DatagramSegmentPacket segment = new DatagramSegmentPacket();
+        segment.seq = seq;
+        segment.message = in.getInt();
+        segment.index = in.getInt();
+        segment.count = in.getInt();
+        int length = in.getShort() & 0xffff;
+        if (length > shard.length - SHARD_HEADER) return null;
+        segment.data = Arrays.copyOfRange(shard, SHARD_HEADER, SHARD_HEADER + length);
+        return segment;
+    }
+
+    /**
+     * Adds a sequence number to the runs received, merging neighbours and forgetting the oldest runs.
+     */
+    private void record(long seq) {
+        Map.Entry<Long, Long> below = received.floorEntry(seq);
+        if (below != null && below.getValue() >= seq) return;
+        long first = seq, last = seq;
+        if (below != null && below.getValue() == seq - 1) {
+            first = below.getKey();
+        }
+        Long above = received.get(seq + 1);
+        if (above != null) {
+            last = above;
+            received.remove(seq + 1);
+        }
+        received.put(first, last);
+        while (received.size() > KEPT_RANGES) received.pollFirstEntry();
+    }
+
+    private DatagramAckPacket ack() {
+        int runs = Math.min(ACK_RANGES, received.size());
+        DatagramAckPacket ack = new DatagramAckPacket();
+        ack.ranges = new long[runs * 2];
+        int i = 0;
+        for (Map.Entry<Long, Long> run : received.descendingMap().entrySet()) {
+            if (i == ack.ranges.length) break;
+            ack.ranges[i++] = run.getKey();
+            ack.ranges[i++] = run.getValue();
+        }
+        return ack;
+    }
+
+    /**
+     * @return the chunk the parts make up, null if they are not one.
+     */
+    private Object decode(byte[][] parts) {
+        int length = 0;
+        for (byte[] part : parts) length += part.length;
+        byte[] bytes = new byte[length];
+        int at = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, bytes, at, part.length);
+            at += part.length;
+        }
+        try {
+            Object packet = decoder.readClassAndObject(new Input(bytes));
+            return packet instanceof FileChunkPacket ? packet : null;
+        } catch (KryoException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
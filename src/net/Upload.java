@@ -0,0 +1,263 @@
+package net;
+
+import net.packet.FileSendPacketSplit;
+import net.packet.FileSendRequestPacket;
+import util.ChunkCipher;
+import util.Handshake;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A split file being uploaded by 'BinClient', kept until the server acknowledged every split so the upload
+ * can be resumed after a disconnect, see 'TransferResumePacket', and corrupted splits sent again, see 'RetransmitPacket'.
+ * Any split can be created again at any time, so only the series the server misses are sent:
+ * either sliced from the encrypted content held in memory, where only the first split carries the
+ * content params, or read from the file on disk and encrypted one split at a time. Those are encrypted by
+ * a 'ChunkCipher' if the receiver takes it, under a new salt every time, so each carries its own header.
+ * A file on disk that changed size or was modified since the upload was created is not read again,
+ * the splits sent already would not belong with the rest.
+ * Only one thread sends an upload at a time, see 'claim()'.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ */
+public class Upload {
+
+    public final String fileUID, pin;
+
+    /**
+     * UID of the client the file is sent to.
+     */
+    public final String receiverUID;
+
+    /**
+     * Amount of splits and length of the content of each, but the last.
+     */
+    public final int length, splitLength;
+
+    private final boolean isZip;
+
+    /**
+     * Encrypted file name and size, with their params.
+     */
+    private final ArrayList<byte[]> nameData, sizeData;
+
+    /**
+     * Encrypted content and its params if held in memory, else null.
+     */
+    private final byte[] content, contentParams;
+
+    /**
+     * File read from disk if not held in memory, its size and when it was last modified, and the secret its
+     * splits are encrypted with.
+     */
+    private final String path;
+    private final long size, modified;
+    private final byte[] secret;
+
+    /**
+     * Encrypts the splits read from disk instead of 'Handshake.Encrypt()' if not null.
+     */
+    private final ChunkCipher cipher;
+
+    /**
+     * True if 'path' is a temporary file, I.E. a zipped folder, deleted by 'dispose()'.
+     */
+    private final boolean temporary;
+
+    private RandomAccessFile file;
+    private boolean sending = false;
+
+    private Upload(String fileUID, String pin, String receiverUID, int splitLength, boolean isZip, ArrayList<byte[]> nameData,
+                   ArrayList<byte[]> sizeData, byte[] content, byte[] contentParams, String path, byte[] secret, ChunkCipher cipher,
+                   boolean temporary) {
+        this.fileUID = fileUID;
+        this.pin = pin;
+        this.receiverUID = receiverUID;
+        this.splitLength = Math.max(1, splitLength);
+        this.isZip = isZip;
+        this.nameData = nameData;
+        this.sizeData = sizeData;
+        this.content = content;
+        this.contentParams = contentParams;
+        this.path = path;
+        this.secret = secret;
+        this.cipher = cipher;
+        this.temporary = temporary;
+        this.size = content != null ? content.length : new File(path).length();
+        this.modified = content != null ? 0 : new File(path).lastModified();
+        this.length = (int) Math.max(1, (size + this.splitLength - 1) / this.splitLength);
+    }
+
+    /**
+     * Creates an upload of content encrypted as a whole and held in memory.
+     * @param contentData encrypted content and its params, see 'Handshake.Encrypt()'.
+     * @return the upload.
+     */
+    public static Upload inMemory(String fileUID, String pin, String receiverUID, int splitLength, boolean isZip,
+                                  ArrayList<byte[]> nameData, ArrayList<byte[]> sizeData, ArrayList<byte[]> contentData) {
+        return new Upload(fileUID, pin, receiverUID, splitLength, isZip, nameData, sizeData, contentData.get(0),
+                contentData.get(1), null, null, null, false);
+    }
+
+    /**
+     * Creates an upload of a file on disk, each split is encrypted on its own.
+     * @param path of the file.
+     * @param secret to encrypt with.
+     * @param cipher of the secret to encrypt with instead, see 'ChunkCipher'; null if the receiver does not take it.
+     * @param temporary true to delete the file once the upload is done.
+     * @return the upload.
+     */
+    public static Upload onDisk(String fileUID, String pin, String receiverUID, int splitLength, boolean isZip, ArrayList<byte[]> nameData,
+                                ArrayList<byte[]> sizeData, String path, byte[] secret, ChunkCipher cipher, boolean temporary) {
+        return new Upload(fileUID, pin, receiverUID, splitLength, isZip, nameData, sizeData, null, null, path, secret, cipher, temporary);
+    }
+
+    /**
+     * Creates the split of the given series.
+     * May be invoked by any thread, E.G. to send a split again while the claiming thread sends the others,
+     * and by the workers of 'SplitReader' at once.
+     * @param series of the split.
+     * @return the split, or null if the file could not be read or encrypted, or changed since.
+     */
+    public FileSendPacketSplit split(int series) {
+        FileSendPacketSplit split = new FileSendPacketSplit();
+        long offset = (long) series * splitLength;
+        int l = (int) Math.min(splitLength, size - offset);
+        if (content != null) {
+            split.content = Arrays.copyOfRange(content, (int) offset, (int) offset + l);
+            split.contentParams = series == 0 ? contentParams : null;
+        } else if (cipher != null) {
+            byte[] plain = read(offset, l);
+            if (plain == null) return null;
+            split.content = new byte[ChunkCipher.sealedLength(l)];
+            split.contentParams = cipher.encrypt(series, plain, 0, l, split.content, 0);
+            if (split.contentParams == null) return null;
+        } else {
+            byte[] plain = read(offset, l);
+            ArrayList<byte[]> contentData = plain == null ? null : Handshake.Encrypt(secret, plain);
+            if (contentData == null) return null;
+            split.content = contentData.get(0);
+            split.contentParams = contentData.get(1);
+        }
+        split.pin = pin;
+        if (series == 0) {
+            split.fileName = nameData.get(0);
+            split.fileNameParams = nameData.get(1);
+            split.fileSize = sizeData.get(0);
+            split.fileSizeParams = sizeData.get(1);
+        }
+        split.isZip = isZip;
+        split.fileUID = fileUID;
+        split.series = series;
+        split.length = length;
+        split.finalPacket = series + 1 == length;
+        return split;
+    }
+
+    /**
+     * Creates the request that offers the file to its receiver, as the server sends it; see 'DirectLink'.
+     * @return the request, without the sender UID the receiver knows us by.
+     */
+    public FileSendRequestPacket request() {
+        FileSendRequestPacket request = new FileSendRequestPacket();
+        request.pin = pin;
+        request.fileUID = fileUID;
+        request.fileName = nameData.get(0);
+        request.fileNameParams = nameData.get(1);
+        request.fileSize = sizeData.get(0);
+        request.fileSizeParams = sizeData.get(1);
+        return request;
+    }
+
+    /**
+     * Reads content at a position of its own, so splits are read by several threads at once; see 'SplitReader'.
+     * The file is kept open while the upload is claimed, a read while it is not, E.G. to send a split again,
+     * opens the file for itself and closes it.
+     */
+    private byte[] read(long offset, int l) {
+        File f = new File(path);
+        if (f.length() != size || f.lastModified() != modified) {
+            System.out.println("ERROR: " + path + " changed while uploading " + fileUID + ", not read again.");
+            return null;
+        }
+        RandomAccessFile own = null;
+        try {
+            FileChannel channel;
+            synchronized (this) {
+                if (sending) {
+                    if (file == null) file = new RandomAccessFile(path, "r");
+                    channel = file.getChannel();
+                } else {
+                    channel = (own = new RandomAccessFile(path, "r")).getChannel();
+                }
+            }
+            ByteBuffer b = ByteBuffer.allocate(l);
+            while (b.hasRemaining()) {
+                if (channel.read(b, offset + b.position()) < 0) throw new EOFException(path);
+            }
+            return b.array();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (own != null) {
+                try {
+                    own.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Claims the upload for the calling thread, waiting for a thread that still sends it,
+     * I.E. one that has not noticed the disconnect yet.
+     * @return false if interrupted.
+     */
+    public synchronized boolean claim() {
+        try {
+            while (sending) wait();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            return false;
+        }
+        sending = true;
+        return true;
+    }
+
+    /**
+     * Releases the upload claimed by the calling thread.
+     */
+    public synchronized void release() {
+        sending = false;
+        closeFile();
+        notifyAll();
+    }
+
+    /**
+     * Releases the upload for good once done, deleting a temporary file.
+     */
+    public synchronized void dispose() {
+        release();
+        if (temporary) new File(path).delete();
+    }
+
+    private void closeFile() {
+        if (file == null) return;
+        try {
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        file = null;
+    }
+}
@@ -0,0 +1,54 @@
+package net.packet;
+
+/**
+ * Sent instead of 'ConnectRequestPacket' by clients that carry payloads as primitive 'byte[]'.
+ * Servers that receive a plain 'ConnectRequestPacket' keep speaking the boxed
+ * 'Byte[]' format of 'net.packet.legacy' to that client.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ **/
+public class ConnectRequestPacketV2 extends ConnectRequestPacket {
+
+    /**
+     * Protocol with 'byte[]' payloads.
+     */
+    public static final int PROTOCOL_BYTES = 2;
+
+    /**
+     * Protocol with split transfers framed as 'TransferOpenPacket' and 'FileChunkPacket'.
+     */
+    public static final int PROTOCOL_FRAMES = 3;
+
+    /**
+     * Protocol with credit based flow control of split transfers, see 'ContinueSplitPacket'.
+     */
+    public static final int PROTOCOL_CREDITS = 4;
+
+    /**
+     * Protocol with chunk lengths picked per transfer within bounds, see 'ConnectResponsePacketV2'.
+     */
+    public static final int PROTOCOL_ADAPTIVE = 5;
+
+    /**
+     * Protocol that resumes split files cut off by a disconnect, see 'TransferResumePacket'.
+     */
+    public static final int PROTOCOL_RESUME = 6;
+
+    /**
+     * Protocol with a checksum per chunk and retransmission of corrupted chunks, see 'FileChunkPacketV2'.
+     */
+    public static final int PROTOCOL_CHECKSUM = 7;
+
+    /**
+     * Protocol that sends split files straight to peers that advertised an endpoint, see 'DirectEndpointPacket'.
+     */
+    public static final int PROTOCOL_DIRECT = 8;
+
+    /**
+     * Protocol that sends the chunks of one transfer over several connections, see 'StripeHelloPacket'.
+     */
+    public static final int PROTOCOL_STRIPES = 9;
+
+    public Integer protocol;
+}
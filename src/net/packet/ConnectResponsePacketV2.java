@@ -0,0 +1,20 @@
+package net.packet;
+
+/**
+ * Sent instead of 'ConnectResponsePacket' to clients that speak 'ConnectRequestPacketV2.PROTOCOL_ADAPTIVE'.
+ * Carries the bounds of the content length of a split, the client picks a length within them
+ * for each transfer from what it measures on the connection, see 'ChunkSizer'.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ **/
+public class ConnectResponsePacketV2 extends ConnectResponsePacket {
+    public Integer minLength;
+    public Integer maxLength;
+
+    /**
+     * Token for the client's auxiliary connections, see 'StripeHelloPacket';
+     * only given to clients that speak 'ConnectRequestPacketV2.PROTOCOL_STRIPES'.
+     */
+    public String stripeToken;
+}
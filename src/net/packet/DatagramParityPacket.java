@@ -0,0 +1,18 @@
+package net.packet;
+
+/**
+ * Parity of a group of 'DatagramSegmentPacket's sent over the UDP data channel, see 'net.UdpChannel'.
+ * Covers the 'count' datagrams with sequence numbers from 'first' on; the receiver rebuilds up to as many of them
+ * as it got parity packets for without waiting for them to be sent again, see 'net.ErasureCode'.
+ * 'index' is the parity row of 'data'. Parity datagrams are sent once and never acknowledged.
+ * Only sent to a peer that agreed to it for a transfer, see 'ContinueSplitPacket.parity'.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ **/
+public class DatagramParityPacket {
+    public long first;
+    public int count;
+    public int index;
+    public byte[] data;
+}
@@ -7,14 +7,14 @@ package net.packet;
 public class FileSendPacketSplit {
     //header only
     public String pin;
-    public Byte[] fileName, fileNameParams;
-    public Byte[] fileSize, fileSizeParams;
+    public byte[] fileName, fileNameParams;
+    public byte[] fileSize, fileSizeParams;
     public Boolean isZip;
 
     //header only if fits in memory
     //else it exists for each packet
-    public Byte[] content;
-    public Byte[] contentParams;
+    public byte[] content;
+    public byte[] contentParams;
 
     //all data
     public String senderUID; //assigned by server
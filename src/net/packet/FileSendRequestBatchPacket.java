@@ -0,0 +1,12 @@
+package net.packet;
+
+/**
+ * Sent from the Server to a Client right after it connects, holding a 'FileSendRequestPacket'
+ * for every file that was sent to it while it was offline.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ **/
+public class FileSendRequestBatchPacket {
+    public FileSendRequestPacket[] requests;
+}
@@ -14,8 +14,8 @@ public class FileSendRequestPacket {
     public String pin;
     public String senderUID;
     public String fileUID;
-    public Byte[] fileName;
-    public Byte[] fileNameParams;
-    public Byte[] fileSize;
-    public Byte[] fileSizeParams;
+    public byte[] fileName;
+    public byte[] fileNameParams;
+    public byte[] fileSize;
+    public byte[] fileSizeParams;
 }
@@ -7,6 +7,12 @@ package net.packet;
 public class HandshakePacket {
     public String UID;
     public String senderUID;
-    public Byte[] encryptedPubKey;
+    public byte[] encryptedPubKey;
     public String pin;
+
+    /**
+     * TRUE if the sender takes split files whose chunks are encrypted one at a time, see 'util.ChunkCipher';
+     * null from clients that do not.
+     */
+    public Boolean sealed;
 }
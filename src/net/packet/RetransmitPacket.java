@@ -0,0 +1,15 @@
+package net.packet;
+
+/**
+ * Asks the sending side of a split transfer to send one chunk again, its checksum did not match;
+ * see 'FileChunkPacketV2'.
+ * The chunk is sent again without credit, it takes the credit of the corrupted one, which was never granted back.
+ * The receiving side holds back the final chunk of the transfer until every chunk it asked for arrived.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ **/
+public class RetransmitPacket {
+    public Integer transfer;
+    public Integer series;
+}
@@ -0,0 +1,104 @@
+package util;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+
+/**
+ * A text file that is only ever appended to, one record per line.
+ * Appending a record costs one write no matter how large the file is;
+ * owners replay the lines on startup and call 'rewrite' every so often to compact it.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ */
+public class AppendLog {
+
+    /**
+     * Path of the log file.
+     */
+    private final String path;
+
+    /**
+     * Amount of lines in the file, as of the last read, append or rewrite.
+     */
+    private int lines = 0;
+
+    /**
+     * @param path of the log file, created on the first append if needed.
+     */
+    public AppendLog(String path) {
+        this.path = path;
+    }
+
+    /**
+     * Reads every line of the log.
+     * @return lines in the order they were appended, empty if the file does not exist.
+     */
+    public synchronized String[] read() {
+        String[] data = FileUtils.readFileAsStrings(path);
+        if (data == null) data = new String[0];
+        lines = data.length;
+        return data;
+    }
+
+    /**
+     * Appends the given lines to the end of the log.
+     * @param data lines to append, without line breaks.
+     * @return true if written.
+     */
+    public synchronized boolean append(String... data) {
+        File parent = new File(path).getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) parent.mkdirs();
+        try (FileWriter fw = new FileWriter(path, true)) {
+            for (String s : data) {
+                fw.write(s);
+                fw.write(System.lineSeparator());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        lines += data.length;
+        return true;
+    }
+
+    /**
+     * Replaces the log with the given lines.
+     * Written to a temporary file first and then moved over the log in one atomic rename,
+     * so a crash leaves either version intact.
+     * @param data lines to keep.
+     * @return true if written.
+     */
+    public synchronized boolean rewrite(Collection<String> data) {
+        File f = new File(path);
+        File temp = new File(path + ".tmp");
+        try (FileWriter fw = new FileWriter(temp, false)) {
+            for (String s : data) {
+                fw.write(s);
+                fw.write(System.lineSeparator());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        try {
+            Files.move(temp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        lines = data.size();
+        return true;
+    }
+
+    /**
+     * @return amount of lines in the log.
+     */
+    public synchronized int getLines() {
+        return lines;
+    }
+}
@@ -0,0 +1,227 @@
+package util;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Encrypts and decrypts the chunks of a split file one at a time with AES/GCM, see 'Upload'.
+ * Every encryption of a chunk has a key of its own, derived from the shared secret and a random salt drawn
+ * for it that travels in a header with the chunk, see 'header()'. A chunk is encrypted again whenever it is
+ * sent again, and the file it is read from may have changed meanwhile, so no key and nonce are ever used twice.
+ * A chunk is sealed in records of at most 'RECORD_LENGTH' bytes, as the JDK is far slower on longer ones,
+ * each with a tag and a nonce made of the series, the index of the record and whether it is the last one.
+ * So a chunk that was altered, cut short or put in the place of another series fails to decrypt.
+ * One per shared secret, see 'Handshake.getChunkCipher()'. Its 'Cipher' instances are kept per thread and
+ * only initialized for each record, the output goes to buffers given by the caller.
+ * All methods are thread-safe.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ */
+public class ChunkCipher {
+
+    /**
+     * Bytes every record grows by when encrypted.
+     */
+    public static final int TAG_LENGTH = 16;
+
+    /**
+     * Most plain bytes in a record.
+     */
+    public static final int RECORD_LENGTH = 64 * 1024;
+
+    /**
+     * Random bytes the key of a file is derived with.
+     */
+    public static final int SALT_LENGTH = 16;
+
+    private static final int NONCE_LENGTH = 12;
+
+    /**
+     * Starts the header, tells it apart from the encoded params of 'Handshake.Encrypt()'.
+     */
+    private static final byte[] MAGIC = {'G', 'C', 'M', 1};
+
+    private static final SecureRandom random = new SecureRandom();
+
+    /**
+     * Derives the key of every file, see 'State.key()'.
+     */
+    private final SecretKeySpec master;
+
+    private final ThreadLocal<State> states = ThreadLocal.withInitial(State::new);
+
+    /**
+     * @param sharedSecret of the 'Handshake', the keys are derived from it so they differ from the one of 'Handshake.Encrypt()'.
+     */
+    public ChunkCipher(byte[] sharedSecret) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update("chunk".getBytes(StandardCharsets.US_ASCII));
+            master = new SecretKeySpec(digest.digest(sharedSecret), "HmacSHA256");
+        } catch (NoSuchAlgorithmException e) {
+            //every JRE has it
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Encrypts a chunk under a new salt.
+     * @param series of the chunk.
+     * @param in plain content.
+     * @param inOffset in 'in'.
+     * @param length of the plain content.
+     * @param out to write to, 'sealedLength(length)' bytes from 'outOffset'; must not overlap the content.
+     * @param outOffset in 'out'.
+     * @return the header to send as the content params of the chunk, null if it failed.
+     */
+    public byte[] encrypt(int series, byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+        State s = states.get();
+        if (s.encrypt == null) return null;
+        byte[] salt = newSalt();
+        try {
+            SecretKeySpec key = s.key(salt);
+            int read = 0, written = 0, record = 0;
+            do {
+                int n = Math.min(RECORD_LENGTH, length - read);
+                nonce(s.nonce, series, record++, read + n == length);
+                s.encrypt.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, s.nonce));
+                written += s.encrypt.doFinal(in, inOffset + read, n, out, outOffset + written);
+                read += n;
+            } while (read < length);
+            return header(salt);
+        } catch (GeneralSecurityException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Decrypts a chunk.
+     * @param salt it was encrypted under, see 'salt()'.
+     * @param series of the chunk.
+     * @param in encrypted content.
+     * @param inOffset in 'in'.
+     * @param length of the encrypted content.
+     * @param out to write to, 'plainLength(length)' bytes from 'outOffset'; must not overlap the content.
+     * @param outOffset in 'out'.
+     * @return bytes written, -1 if it failed, E.G. the chunk was altered or is not of the series.
+     */
+    public int decrypt(byte[] salt, int series, byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+        State s = states.get();
+        if (s.decrypt == null) return -1;
+        try {
+            SecretKeySpec key = s.key(salt);
+            int read = 0, written = 0, record = 0;
+            do {
+                int n = Math.min(RECORD_LENGTH + TAG_LENGTH, length - read);
+                if (n < TAG_LENGTH) return -1;
+                nonce(s.nonce, series, record++, read + n == length);
+                s.decrypt.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, s.nonce));
+                written += s.decrypt.doFinal(in, inOffset + read, n, out, outOffset + written);
+                read += n;
+            } while (read < length);
+            return written;
+        } catch (GeneralSecurityException e) {
+            System.out.println("ERROR: chunk [" + series + "] failed to decrypt: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * @return a new random salt for one encryption.
+     */
+    private static byte[] newSalt() {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        return salt;
+    }
+
+    /**
+     * Creates the header sent as the content params of a chunk.
+     * @param salt it was encrypted under.
+     * @return the header.
+     */
+    private static byte[] header(byte[] salt) {
+        byte[] header = Arrays.copyOf(MAGIC, MAGIC.length + SALT_LENGTH);
+        System.arraycopy(salt, 0, header, MAGIC.length, SALT_LENGTH);
+        return header;
+    }
+
+    /**
+     * @param params content params of a chunk.
+     * @return the salt the chunk was encrypted under if it was encrypted by a 'ChunkCipher', else null.
+     */
+    public static byte[] salt(byte[] params) {
+        if (params == null || params.length != MAGIC.length + SALT_LENGTH) return null;
+        if (!Arrays.equals(params, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) return null;
+        return Arrays.copyOfRange(params, MAGIC.length, params.length);
+    }
+
+    /**
+     * @return length of a chunk of the given plain length once encrypted.
+     */
+    public static int sealedLength(int plainLength) {
+        int records = Math.max(1, (plainLength + RECORD_LENGTH - 1) / RECORD_LENGTH);
+        return plainLength + records * TAG_LENGTH;
+    }
+
+    /**
+     * @return length of an encrypted chunk once decrypted, if valid.
+     */
+    public static int plainLength(int sealedLength) {
+        int records = (sealedLength + RECORD_LENGTH + TAG_LENGTH - 1) / (RECORD_LENGTH + TAG_LENGTH);
+        return Math.max(0, sealedLength - records * TAG_LENGTH);
+    }
+
+    private static void nonce(byte[] nonce, int series, int record, boolean last) {
+        nonce[0] = (byte) (series >>> 24);
+        nonce[1] = (byte) (series >>> 16);
+        nonce[2] = (byte) (series >>> 8);
+        nonce[3] = (byte) series;
+        nonce[4] = (byte) (record >>> 24);
+        nonce[5] = (byte) (record >>> 16);
+        nonce[6] = (byte) (record >>> 8);
+        nonce[7] = (byte) record;
+        nonce[NONCE_LENGTH - 1] = (byte) (last ? 1 : 0);
+    }
+
+    /**
+     * Ciphers of one thread, null if AES/GCM is not available, and the nonce being built.
+     * The key last derived is kept with its salt.
+     */
+    private class State {
+        private Cipher encrypt, decrypt;
+        private Mac mac;
+        private final byte[] nonce = new byte[NONCE_LENGTH];
+        private byte[] salt;
+        private SecretKeySpec key;
+
+        private State() {
+            try {
+                encrypt = Cipher.getInstance("AES/GCM/NoPadding");
+                decrypt = Cipher.getInstance("AES/GCM/NoPadding");
+                mac = Mac.getInstance("HmacSHA256");
+            } catch (GeneralSecurityException e) {
+                e.printStackTrace();
+                encrypt = decrypt = null;
+            }
+        }
+
+        private SecretKeySpec key(byte[] salt) throws GeneralSecurityException {
+            if (key != null && Arrays.equals(salt, this.salt)) return key;
+            mac.init(master);
+            key = new SecretKeySpec(mac.doFinal(salt), 0, 16, "AES");
+            this.salt = salt.clone();
+            return key;
+        }
+    }
+}
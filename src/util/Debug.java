@@ -1,11 +1,16 @@
 package util;
 import com.esotericsoftware.kryonet.Listener;
+import net.SplitReader;
+import net.Upload;
+import net.packet.FileSendPacketSplit;
 import net.lingala.zip4j.ZipFile;
 import net.lingala.zip4j.exception.ZipException;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.Random;
 
@@ -51,6 +56,117 @@ public class Debug extends Listener {
         System.out.println("done? " + elapsed);
     }
 
+    /**
+     * Compares encrypting and decrypting chunks with 'ChunkCipher' (AES/GCM) against 'Handshake.Encrypt()' and
+     * 'Handshake.Decrypt()' (AES/CBC) for 64 KB, 1 MB and 16 MB chunks, on the calling thread only.
+     * Every operation runs for 'WARM_UP_NANOS' first so the JIT has compiled the AES intrinsics.
+     */
+    public static void benchChunkCiphers() {
+        byte[] secret = new byte[256];
+        new Random(3).nextBytes(secret);
+        ChunkCipher cipher = new ChunkCipher(secret);
+        boolean warm = false;
+        for (int size : new int[]{64 * 1024, 1024 * 1024, 16 * 1024 * 1024}) {
+            byte[] plain = new byte[size];
+            new Random(1).nextBytes(plain);
+            byte[] sealed = new byte[ChunkCipher.sealedLength(size)];
+            byte[] resealed = new byte[sealed.length];
+            byte[] opened = new byte[size];
+            ArrayList<byte[]> cbc = Handshake.Encrypt(secret, plain);
+            byte[] salt = ChunkCipher.salt(cipher.encrypt(0, plain, 0, size, sealed, 0));
+            Runnable[] ops = {
+                    () -> Handshake.Encrypt(secret, plain),
+                    () -> Handshake.Decrypt(secret, cbc.get(0), cbc.get(1)),
+                    () -> cipher.encrypt(1, plain, 0, size, resealed, 0),
+                    () -> cipher.decrypt(salt, 0, sealed, 0, sealed.length, opened, 0)
+            };
+            double[] rates = new double[ops.length];
+            for (int i = 0; i < ops.length; i++) {
+                if (!warm) timeRate(WARM_UP_NANOS, size, ops[i]);
+                rates[i] = timeRate(3_000_000_000L, size, ops[i]);
+            }
+            warm = true;
+            System.out.println((size / 1024) + " KB chunks -> CBC encrypt " + String.format("%.0f", rates[0]) + ", decrypt "
+                    + String.format("%.0f", rates[1]) + " MB/s | GCM encrypt " + String.format("%.0f", rates[2]) + ", decrypt "
+                    + String.format("%.0f", rates[3]) + " MB/s");
+        }
+    }
+
+    /**
+     * Compares creating the splits of a 256 MB file one after another with 'Upload.split()' against
+     * creating them ahead with a 'SplitReader', for 1 MB splits encrypted with AES/GCM and with AES/CBC.
+     * The speed-up depends on the cores the pool of 'SplitReader' gets, so the amount is printed with
+     * the results; on a single core only reading overlaps with encrypting and little is gained.
+     */
+    public static void benchSplitReader() throws IOException {
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println("measured on " + cores + (cores == 1
+                ? " core: single core only, the multi-core speed-up of 'SplitReader' is not shown"
+                : " cores"));
+        byte[] secret = new byte[256];
+        new Random(3).nextBytes(secret);
+        ChunkCipher cipher = new ChunkCipher(secret);
+        File file = Files.createTempFile("splits", ".bin").toFile();
+        byte[] block = new byte[(int) FileUtils.BYTES_IN_MB];
+        Random random = new Random(1);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            for (int i = 0; i < 256; i++) {
+                random.nextBytes(block);
+                out.write(block);
+            }
+        }
+        ArrayList<byte[]> name = Handshake.Encrypt(secret, file.getName().getBytes(StandardCharsets.UTF_8));
+        for (int pass = 0; pass < 2; pass++) {
+            //first pass warms up
+            for (boolean gcm : new boolean[]{true, false}) {
+                for (boolean ahead : new boolean[]{false, true}) {
+                    Upload upload = Upload.onDisk("bench", "AAAA", "bench", block.length, false, name, name,
+                            file.getAbsolutePath(), secret, gcm ? cipher : null, false);
+                    upload.claim();
+                    long bytes = 0, now = System.nanoTime();
+                    if (ahead) {
+                        SplitReader reader = new SplitReader(upload, new BitSet());
+                        while (reader.hasNext()) {
+                            FileSendPacketSplit split = reader.next();
+                            if (split == null) break;
+                            bytes += split.content.length;
+                        }
+                        reader.close();
+                    } else {
+                        for (int series = 0; series < upload.length; series++) {
+                            FileSendPacketSplit split = upload.split(series);
+                            if (split == null) break;
+                            bytes += split.content.length;
+                        }
+                    }
+                    long elapsed = System.nanoTime() - now;
+                    upload.release();
+                    if (pass == 1) System.out.println((gcm ? "GCM" : "CBC") + (ahead ? " split reader: " : " sequential: ")
+                            + String.format("%.0f", bytes / (elapsed / 1e9) / 1e6) + " MB/s");
+                }
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Nanoseconds each cipher operation runs before it is timed.
+     */
+    private static final long WARM_UP_NANOS = 8_000_000_000L;
+
+    /**
+     * Runs an operation on a chunk over and over for about the given time.
+     * @return chunk bytes handled per second in MB.
+     */
+    private static double timeRate(long nanos, int size, Runnable operation) {
+        long count = 0, now = System.nanoTime(), elapsed;
+        do {
+            operation.run();
+            count++;
+        } while ((elapsed = System.nanoTime() - now) < nanos);
+        return (double) count * size / (elapsed / 1e9) / 1e6;
+    }
+
     public static float problem1(float n) {
         if (n <= 0) return 1;
         return -3 * problem1(n - 1) + 4 * problem1(n - 2);
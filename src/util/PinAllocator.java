@@ -0,0 +1,165 @@
+package util;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Hands out unique PINs of a fixed length made of digits and letters.
+ * Every PIN of the base length maps to one bit of a BitSet, so allocating is a random pick
+ * followed by a search for the next clear bit, and releasing clears a bit; both are O(1) on average
+ * no matter how full the PIN space is. The search scans 64 PINs per word, so even at
+ * 95% occupancy it rarely reads more than a couple of words.
+ * Optionally, once the base length is filled past a threshold, further PINs are one character longer
+ * (tracked in a set, which is sparse at that length) until base PINs are released again.
+ * All methods are thread-safe.
+ *
+ * @author Jacob Gordon
+ * @version 1.0
+ */
+public class PinAllocator {
+
+    /**
+     * Characters a PIN is made of, in the order they are encoded.
+     */
+    private static final char[] CHARS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz".toCharArray();
+
+    /**
+     * Base length of PINs and amount of possible PINs of that length.
+     */
+    private final int length, space;
+
+    /**
+     * Fraction of the base space to fill before handing out longer PINs, 0 to never grow.
+     */
+    private final double growAt;
+
+    /**
+     * Bit 'i' is set if the PIN encoded as 'i' is allocated.
+     */
+    private final BitSet taken;
+
+    /**
+     * Amount of base length PINs allocated.
+     */
+    private int count = 0;
+
+    /**
+     * Allocated PINs of length 'length + 1'.
+     */
+    private final HashSet<String> grown = new HashSet<>();
+
+    /**
+     * @param length of PINs, 62^length must fit in an int (length <= 5).
+     * @param growAt fraction of the space to fill before allocating longer PINs, 0 to never grow.
+     */
+    public PinAllocator(int length, double growAt) {
+        long s = 1;
+        for (int i = 0; i < length; i++) s *= CHARS.length;
+        if (length < 1 || s > Integer.MAX_VALUE) throw new IllegalArgumentException("Unsupported PIN length: " + length);
+        this.length = length;
+        this.space = (int) s;
+        this.growAt = growAt;
+        this.taken = new BitSet(space);
+    }
+
+    /**
+     * Allocates a random unused PIN.
+     * @return the PIN, or null if the space is full and growing is disabled.
+     */
+    public synchronized String allocate() {
+        if (count < space && (growAt <= 0 || count < space * growAt)) {
+            int code = taken.nextClearBit(ThreadLocalRandom.current().nextInt(space));
+            if (code >= space) code = taken.nextClearBit(0);
+            taken.set(code);
+            count++;
+            return decode(code, length);
+        }
+        if (growAt <= 0) return null;
+        //sparse at the longer length, so a few random draws suffice
+        String pin;
+        do {
+            pin = random(length + 1);
+        } while (grown.contains(pin));
+        grown.add(pin);
+        return pin;
+    }
+
+    /**
+     * Releases a PIN so it can be allocated again.
+     * @param pin to release.
+     * @return true if the PIN was allocated.
+     */
+    public synchronized boolean release(String pin) {
+        if (pin == null) return false;
+        if (pin.length() != length) return grown.remove(pin);
+        int code = encode(pin);
+        if (code < 0 || !taken.get(code)) return false;
+        taken.clear(code);
+        count--;
+        return true;
+    }
+
+    /**
+     * @param pin to check.
+     * @return true if the PIN is allocated.
+     */
+    public synchronized boolean isAllocated(String pin) {
+        if (pin == null) return false;
+        if (pin.length() != length) return grown.contains(pin);
+        int code = encode(pin);
+        return code >= 0 && taken.get(code);
+    }
+
+    /**
+     * @return amount of allocated PINs.
+     */
+    public synchronized int size() {
+        return count + grown.size();
+    }
+
+    /**
+     * @return amount of possible PINs of the base length.
+     */
+    public int getSpace() {
+        return space;
+    }
+
+    /**
+     * Creates a random String of the given length, not tracked by the allocator.
+     * @param length of the String.
+     * @return random digits and letters.
+     */
+    public static String random(int length) {
+        ThreadLocalRandom r = ThreadLocalRandom.current();
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) chars[i] = CHARS[r.nextInt(CHARS.length)];
+        return new String(chars);
+    }
+
+    private static int encode(String pin) {
+        int code = 0;
+        for (int i = 0; i < pin.length(); i++) {
+            int v = indexOf(pin.charAt(i));
+            if (v < 0) return -1;
+            code = code * CHARS.length + v;
+        }
+        return code;
+    }
+
+    private static String decode(int code, int length) {
+        char[] chars = new char[length];
+        for (int i = length - 1; i >= 0; i--) {
+            chars[i] = CHARS[code % CHARS.length];
+            code /= CHARS.length;
+        }
+        return new String(chars);
+    }
+
+    private static int indexOf(char c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'A' && c <= 'Z') return c - 'A' + 10;
+        if (c >= 'a' && c <= 'z') return c - 'a' + 36;
+        return -1;
+    }
+}